@@ -0,0 +1,64 @@
+package id.periksa.plugins.usbcamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame Java cost of the two USBCameraVideoCapturer output formats
+ *
+ * I420 mode converts into pooled direct planes, NV21 mode only copies the
+ * frame into a pooled array. The native libyuv conversion NV21 mode hands
+ * to the encoder is not part of this JVM benchmark, compare on device with
+ * USBCameraVideoCapturer.getAverageFrameProcessingNs() and a CPU profile.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CapturerModeBenchmark {
+
+    @Param({SyntheticFrames.RESOLUTION_640, SyntheticFrames.RESOLUTION_720, SyntheticFrames.RESOLUTION_1080})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private ByteBuffer nv21Direct;
+    private I420FramePool i420Pool;
+    private NV21FramePool nv21Pool;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = SyntheticFrames.width(resolution);
+        height = SyntheticFrames.height(resolution);
+        nv21Direct = SyntheticFrames.nv21Direct(width, height);
+        i420Pool = new I420FramePool();
+        nv21Pool = new NV21FramePool();
+    }
+
+    /**
+     * OutputFormat.I420: Java-side NV21 to I420 conversion
+     */
+    @Benchmark
+    public void i420Mode(Blackhole bh) {
+        YUVConverter.I420Data frame = YUVConverter.convertYUV420SPToI420(nv21Direct, width, height, i420Pool);
+        bh.consume(frame);
+        frame.release();
+    }
+
+    /**
+     * OutputFormat.NV21: single copy into a pooled array
+     */
+    @Benchmark
+    public void nv21Mode(Blackhole bh) {
+        NV21FramePool.Frame frame = nv21Pool.copyOf(nv21Direct, width, height);
+        bh.consume(frame);
+        frame.release();
+    }
+}
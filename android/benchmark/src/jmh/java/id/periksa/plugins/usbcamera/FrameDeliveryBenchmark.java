@@ -0,0 +1,70 @@
+package id.periksa.plugins.usbcamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the broadcast-mode delivery path
+ *
+ * Mirrors USBCameraStreamActivity.mBroadcastFrameCallback (copy of the native
+ * buffer into a byte[] for the Intent extra) and the UsbCameraPlugin frame
+ * receiver (Base64 of the whole frame). android.util.Base64 with NO_WRAP
+ * produces the same output as java.util.Base64, which is used here since
+ * the benchmark runs on a plain JVM.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class FrameDeliveryBenchmark {
+
+    @Param({SyntheticFrames.RESOLUTION_640, SyntheticFrames.RESOLUTION_720, SyntheticFrames.RESOLUTION_1080})
+    public String resolution;
+
+    private ByteBuffer nv21Direct;
+    private byte[] nv21Array;
+    private final Base64.Encoder encoder = Base64.getEncoder();
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = SyntheticFrames.width(resolution);
+        int height = SyntheticFrames.height(resolution);
+        nv21Direct = SyntheticFrames.nv21Direct(width, height);
+        nv21Array = SyntheticFrames.nv21(width, height);
+    }
+
+    /**
+     * Broadcast callback: copy the native frame into a new byte[]
+     */
+    @Benchmark
+    public byte[] broadcastFrameCopy() {
+        int position = nv21Direct.position();
+        byte[] frameData = new byte[nv21Direct.remaining()];
+        nv21Direct.get(frameData);
+        nv21Direct.position(position);
+        return frameData;
+    }
+
+    /**
+     * Frame receiver: Base64 encode the frame for the JS "frame" event
+     */
+    @Benchmark
+    public String base64EncodeFrame() {
+        return encoder.encodeToString(nv21Array);
+    }
+
+    /**
+     * Both steps back to back, the per-frame Java cost of broadcast mode before Binder
+     */
+    @Benchmark
+    public String broadcastCopyAndBase64() {
+        return encoder.encodeToString(broadcastFrameCopy());
+    }
+}
@@ -0,0 +1,85 @@
+package id.periksa.plugins.usbcamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of the 1/2 and 1/4 simulcast layers built in one pass against
+ * box-scaling each layer from the full frame on its own
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class I420PyramidBenchmark {
+
+    @Param({SyntheticFrames.RESOLUTION_640, SyntheticFrames.RESOLUTION_720, SyntheticFrames.RESOLUTION_1080})
+    public String resolution;
+
+    private I420FramePool pool;
+    private YUVConverter.I420Data full;
+    private I420Pyramid pyramid;
+
+    // Same frame in one contiguous I420 buffer, the input of the independent scalers
+    private ByteBuffer contiguous;
+    private YUVFrameLayout contiguousLayout;
+    private YUVTransform half;
+    private YUVTransform quarter;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        int width = SyntheticFrames.width(resolution);
+        int height = SyntheticFrames.height(resolution);
+        pool = new I420FramePool();
+        full = YUVConverter.convertYUV420SPToI420(SyntheticFrames.nv21Direct(width, height), width, height, null);
+        pyramid = new I420Pyramid(2);
+
+        contiguousLayout = YUVFrameLayout.i420(width, height, 1);
+        contiguous = ByteBuffer.allocateDirect(contiguousLayout.requiredSize());
+        contiguous.position(contiguousLayout.y.offset);
+        contiguous.put(full.yPlane.duplicate());
+        contiguous.position(contiguousLayout.u.offset);
+        contiguous.put(full.uPlane.duplicate());
+        contiguous.position(contiguousLayout.v.offset);
+        contiguous.put(full.vPlane.duplicate());
+        contiguous.clear();
+        half = new YUVTransform(width, height, 0, 0, width, height, width / 2, height / 2, 0, false,
+            YUVTransform.Filter.BOX);
+        quarter = new YUVTransform(width, height, 0, 0, width, height, width / 4, height / 4, 0, false,
+            YUVTransform.Filter.BOX);
+    }
+
+    /**
+     * Both layers from one read of the full frame, the quarter layer reusing the half one
+     */
+    @Benchmark
+    public void pyramidTwoLayers(Blackhole bh) {
+        YUVConverter.I420Data[] layers = pyramid.build(full, pool);
+        bh.consume(layers);
+        for (YUVConverter.I420Data layer : layers) {
+            layer.release();
+        }
+    }
+
+    /**
+     * Each layer box-scaled from the full frame, what per-layer scaling costs
+     */
+    @Benchmark
+    public void independentTwoLayers(Blackhole bh) {
+        YUVConverter.I420Data halfLayer = pool.acquire(half.getDstWidth(), half.getDstHeight());
+        YUVConverter.I420Data quarterLayer = pool.acquire(quarter.getDstWidth(), quarter.getDstHeight());
+        half.transform(contiguous, contiguousLayout, halfLayer);
+        quarter.transform(contiguous, contiguousLayout, quarterLayer);
+        bh.consume(halfLayer);
+        bh.consume(quarterLayer);
+        halfLayer.release();
+        quarterLayer.release();
+    }
+}
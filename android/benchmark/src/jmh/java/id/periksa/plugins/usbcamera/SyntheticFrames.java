@@ -0,0 +1,60 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Synthetic NV21 (YUV420SP) input for the benchmarks, so they run without a USB camera
+ */
+final class SyntheticFrames {
+    /**
+     * Resolutions covered by every frame benchmark, in JMH @Param form
+     */
+    static final String RESOLUTION_640 = "640x480";
+    static final String RESOLUTION_720 = "1280x720";
+    static final String RESOLUTION_1080 = "1920x1080";
+
+    private SyntheticFrames() {
+    }
+
+    static int width(String resolution) {
+        return Integer.parseInt(resolution.substring(0, resolution.indexOf('x')));
+    }
+
+    static int height(String resolution) {
+        return Integer.parseInt(resolution.substring(resolution.indexOf('x') + 1));
+    }
+
+    static int nv21Size(int width, int height) {
+        return width * height + ((width + 1) / 2) * ((height + 1) / 2) * 2;
+    }
+
+    /**
+     * Luma gradient with noise and random chroma, enough to defeat any
+     * constant-folding without making the content matter
+     */
+    static byte[] nv21(int width, int height) {
+        Random random = new Random(width * 31L + height);
+        byte[] frame = new byte[nv21Size(width, height)];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                frame[y * width + x] = (byte) ((x + y + random.nextInt(16)) & 0xff);
+            }
+        }
+        for (int i = width * height; i < frame.length; i++) {
+            frame[i] = (byte) (128 + random.nextInt(64) - 32);
+        }
+        return frame;
+    }
+
+    /**
+     * Same content as {@link #nv21(int, int)} in a direct buffer, like the one
+     * libuvc hands to IFrameCallback#onFrame
+     */
+    static ByteBuffer nv21Direct(int width, int height) {
+        byte[] frame = nv21(width, height);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(frame.length);
+        buffer.put(frame).flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,119 @@
+package id.periksa.plugins.usbcamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the NV21 to I420 conversion done by USBCameraVideoCapturer
+ *
+ * One benchmark op is one frame, so the average time is ns/frame and the GC
+ * profiler's gc.alloc.rate.norm is bytes allocated per frame.
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class YUVConverterBenchmark {
+
+    @Param({SyntheticFrames.RESOLUTION_640, SyntheticFrames.RESOLUTION_720, SyntheticFrames.RESOLUTION_1080})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private byte[] nv21Array;
+    private ByteBuffer nv21Direct;
+    private I420FramePool pool;
+    private ParallelYUVConverter parallelConverter;
+
+    // Planes for the kernel-only benchmarks
+    private int chromaPairs;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = SyntheticFrames.width(resolution);
+        height = SyntheticFrames.height(resolution);
+        nv21Array = SyntheticFrames.nv21(width, height);
+        nv21Direct = SyntheticFrames.nv21Direct(width, height);
+        pool = new I420FramePool();
+        parallelConverter = new ParallelYUVConverter(4, 3);
+        parallelConverter.setThresholdPixels(0);
+
+        chromaPairs = ((width + 1) / 2) * ((height + 1) / 2);
+        uPlane = ByteBuffer.allocateDirect(chromaPairs);
+        vPlane = ByteBuffer.allocateDirect(chromaPairs);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        parallelConverter.shutdown();
+    }
+
+    /**
+     * Original capturer path: copy the native buffer into a new byte[], then
+     * convert into freshly allocated direct planes
+     */
+    @Benchmark
+    public void copyToArrayThenConvertUnpooled(Blackhole bh) {
+        int position = nv21Direct.position();
+        byte[] frameData = new byte[nv21Direct.remaining()];
+        nv21Direct.get(frameData);
+        nv21Direct.position(position);
+        bh.consume(YUVConverter.convertYUV420SPToI420(frameData, width, height));
+    }
+
+    /**
+     * byte[] input into pooled planes
+     */
+    @Benchmark
+    public void convertArrayPooled(Blackhole bh) {
+        YUVConverter.I420Data frame = YUVConverter.convertYUV420SPToI420(nv21Array, width, height, pool);
+        bh.consume(frame);
+        frame.release();
+    }
+
+    /**
+     * Current capturer path: straight from the direct buffer into pooled planes
+     */
+    @Benchmark
+    public void convertDirectPooled(Blackhole bh) {
+        YUVConverter.I420Data frame = YUVConverter.convertYUV420SPToI420(nv21Direct, width, height, pool);
+        bh.consume(frame);
+        frame.release();
+    }
+
+    /**
+     * Stripe-parallel conversion with 4 stripes on 3 workers plus the caller
+     */
+    @Benchmark
+    public void convertDirectPooledParallel(Blackhole bh) {
+        YUVConverter.I420Data frame = parallelConverter.convert(nv21Direct, width, height, pool);
+        bh.consume(frame);
+        frame.release();
+    }
+
+    /**
+     * Chroma de-interleave only, scalar kernel
+     */
+    @Benchmark
+    public void deinterleaveScalar() {
+        YUVConverter.deinterleaveVUScalar(nv21Direct, width * height, uPlane, 0, vPlane, 0, chromaPairs);
+    }
+
+    /**
+     * Chroma de-interleave only, word-at-a-time kernel
+     */
+    @Benchmark
+    public void deinterleaveSwar() {
+        YUVConverter.deinterleaveVUSwar(nv21Direct, width * height, uPlane, 0, vPlane, 0, chromaPairs);
+    }
+}
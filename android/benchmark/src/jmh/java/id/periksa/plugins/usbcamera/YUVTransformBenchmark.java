@@ -0,0 +1,114 @@
+package id.periksa.plugins.usbcamera;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-frame cost of the fused NV21 to I420 transform against plain conversion
+ * and the two-pass scale-then-convert path
+ */
+@State(Scope.Thread)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class YUVTransformBenchmark {
+
+    @Param({SyntheticFrames.RESOLUTION_640, SyntheticFrames.RESOLUTION_720, SyntheticFrames.RESOLUTION_1080})
+    public String resolution;
+
+    private int width;
+    private int height;
+    private ByteBuffer nv21Direct;
+    private I420FramePool pool;
+
+    private YUVTransform identity;
+    private YUVTransform rotate180;
+    private YUVTransform rotate90;
+    private YUVTransform halfBox;
+    private YUVTransform halfBilinear;
+    private YUVTransform halfRotate90Mirror;
+    private NV21Scaler halfScaler;
+    private byte[] halfFrame;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        width = SyntheticFrames.width(resolution);
+        height = SyntheticFrames.height(resolution);
+        nv21Direct = SyntheticFrames.nv21Direct(width, height);
+        pool = new I420FramePool();
+
+        identity = YUVTransform.fit(width, height, width, height, 0, false, YUVTransform.Filter.BOX);
+        rotate180 = YUVTransform.fit(width, height, width, height, 180, false, YUVTransform.Filter.BOX);
+        rotate90 = YUVTransform.fit(width, height, height, width, 90, false, YUVTransform.Filter.BOX);
+        halfBox = YUVTransform.fit(width, height, width / 2, height / 2, 0, false, YUVTransform.Filter.BOX);
+        halfBilinear = YUVTransform.fit(width, height, width / 2, height / 2, 0, false, YUVTransform.Filter.BILINEAR);
+        halfRotate90Mirror = YUVTransform.fit(width, height, height / 2, width / 2, 90, true, YUVTransform.Filter.BOX);
+        halfScaler = new NV21Scaler(width, height, width / 2, height / 2);
+        halfFrame = new byte[halfScaler.getDstFrameSize()];
+    }
+
+    /**
+     * Baseline: full size conversion without any transform
+     */
+    @Benchmark
+    public void convertOnly(Blackhole bh) {
+        consume(bh, YUVConverter.convertYUV420SPToI420(nv21Direct, width, height, pool));
+    }
+
+    @Benchmark
+    public void transformIdentity(Blackhole bh) {
+        consume(bh, identity.transform(nv21Direct, pool));
+    }
+
+    /**
+     * Upside-down mounted camera
+     */
+    @Benchmark
+    public void transformRotate180(Blackhole bh) {
+        consume(bh, rotate180.transform(nv21Direct, pool));
+    }
+
+    @Benchmark
+    public void transformRotate90(Blackhole bh) {
+        consume(bh, rotate90.transform(nv21Direct, pool));
+    }
+
+    /**
+     * Half size layer, box filter
+     */
+    @Benchmark
+    public void transformHalfBox(Blackhole bh) {
+        consume(bh, halfBox.transform(nv21Direct, pool));
+    }
+
+    @Benchmark
+    public void transformHalfBilinear(Blackhole bh) {
+        consume(bh, halfBilinear.transform(nv21Direct, pool));
+    }
+
+    @Benchmark
+    public void transformHalfRotate90Mirror(Blackhole bh) {
+        consume(bh, halfRotate90Mirror.transform(nv21Direct, pool));
+    }
+
+    /**
+     * Two passes for the same half size layer: NV21 box downscale, then conversion
+     */
+    @Benchmark
+    public void scaleThenConvert(Blackhole bh) {
+        halfScaler.scale(nv21Direct, halfFrame);
+        consume(bh, YUVConverter.convertYUV420SPToI420(halfFrame, width / 2, height / 2, pool));
+    }
+
+    private static void consume(Blackhole bh, YUVConverter.I420Data frame) {
+        bh.consume(frame);
+        frame.release();
+    }
+}
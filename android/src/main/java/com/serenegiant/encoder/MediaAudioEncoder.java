@@ -52,6 +52,13 @@ public class MediaAudioEncoder extends MediaEncoder implements IAudioEncoder {
 		super(muxer, listener);
 	}
 
+	/**
+	 * @param async true to run the codec in asynchronous mode, see MediaEncoder
+	 */
+	public MediaAudioEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final boolean async) {
+		super(muxer, listener, async);
+	}
+
 	@Override
 	protected void prepare() throws IOException {
 		if (DEBUG) Log.v(TAG, "prepare:");
@@ -74,6 +81,7 @@ public class MediaAudioEncoder extends MediaEncoder implements IAudioEncoder {
 //      audioFormat.setLong(MediaFormat.KEY_DURATION, (long)durationInMs );
 		if (DEBUG) Log.i(TAG, "format: " + audioFormat);
         mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        setupCodecCallback();
         mMediaCodec.configure(audioFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
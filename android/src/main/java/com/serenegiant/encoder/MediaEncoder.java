@@ -26,9 +26,14 @@ package com.serenegiant.encoder;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
 import android.media.MediaFormat;
+import android.os.Build;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.util.Log;
 
 public abstract class MediaEncoder implements Runnable {
@@ -38,6 +43,15 @@ public abstract class MediaEncoder implements Runnable {
 	protected static final int TIMEOUT_USEC = 10000;	// 10[msec]
 	protected static final int MSG_FRAME_AVAILABLE = 1;
 	protected static final int MSG_STOP_RECORDING = 9;
+	/**
+	 * data chunks kept while the codec has no free input buffer in asynchronous mode,
+	 * the oldest is dropped beyond this
+	 */
+	private static final int MAX_PENDING_INPUTS = 4;
+	/**
+	 * time the codec may take to return EOS after stopping in asynchronous mode
+	 */
+	private static final long EOS_TIMEOUT_MS = 3000;
 
 	public interface MediaEncoderListener {
 		public void onPrepared(MediaEncoder encoder);
@@ -84,15 +98,62 @@ public abstract class MediaEncoder implements Runnable {
 
     protected final MediaEncoderListener mListener;
 
+    /**
+     * Flag that indicate MediaCodec runs in asynchronous mode,
+     * its callbacks come on mCodecThread instead of polling on the encoder thread
+     */
+    private final boolean mAsync;
+    private HandlerThread mCodecThread;
+    private Handler mCodecHandler;
+    /**
+     * guards the input buffer hand-off between the caller and the codec callbacks
+     */
+    private final Object mInputSync = new Object();
+    /**
+     * input buffers the codec handed over while no data was waiting
+     */
+    private final ArrayDeque<Integer> mFreeInputs = new ArrayDeque<Integer>();
+    /**
+     * data that came while no input buffer was free, and recycled entries
+     */
+    private final ArrayDeque<PendingInput> mPendingInputs = new ArrayDeque<PendingInput>();
+    private final ArrayDeque<PendingInput> mInputPool = new ArrayDeque<PendingInput>();
+    private int mDroppedInputs;
+    /**
+     * output that came before the muxer started, codec thread only
+     */
+    private final ArrayDeque<HeldOutput> mHeldOutputs = new ArrayDeque<HeldOutput>();
+    private boolean mAsyncReleased;
+
     public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener) {
+    	this(muxer, listener, false);
+    }
+
+    /**
+     * @param async true to run MediaCodec in asynchronous mode on its own HandlerThread,
+     * input and output are then handled as the codec calls back instead of polling every 10ms.
+     * Needs API >= 23, falls back to polling below.
+     */
+    public MediaEncoder(final MediaMuxerWrapper muxer, final MediaEncoderListener listener, final boolean async) {
     	if (listener == null) throw new NullPointerException("MediaEncoderListener is null");
     	if (muxer == null) throw new NullPointerException("MediaMuxerWrapper is null");
 		mWeakMuxer = new WeakReference<MediaMuxerWrapper>(muxer);
 		muxer.addEncoder(this);
 		mListener = listener;
+		mAsync = async && (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M);
+		if (async && !mAsync) Log.w(TAG, "asynchronous mode needs API 23, polling instead");
         synchronized (mSync) {
             // create BufferInfo here for effectiveness(to reduce GC)
             mBufferInfo = new MediaCodec.BufferInfo();
+            if (mAsync) {
+            	// no encoder thread, the codec calls back on this one
+            	mCodecThread = new HandlerThread(getClass().getSimpleName());
+            	mCodecThread.start();
+            	mCodecHandler = new Handler(mCodecThread.getLooper());
+            	mRequestStop = false;
+            	mRequestDrain = 0;
+            	return;
+            }
             // wait for starting thread
             new Thread(this, getClass().getSimpleName()).start();
             try {
@@ -102,6 +163,13 @@ public abstract class MediaEncoder implements Runnable {
         }
 	}
 
+    /**
+     * @return true if MediaCodec runs in asynchronous mode
+     */
+    public boolean isAsync() {
+    	return mAsync;
+    }
+
     public String getOutputPath() {
     	final MediaMuxerWrapper muxer = mWeakMuxer.get();
     	return muxer != null ? muxer.getOutputPath() : null;
@@ -117,6 +185,10 @@ public abstract class MediaEncoder implements Runnable {
             if (!mIsCapturing || mRequestStop) {
                 return false;
             }
+            if (mAsync) {
+            	// output comes by callback, nothing to drain
+            	return true;
+            }
             mRequestDrain++;
             mSync.notifyAll();
         }
@@ -180,6 +252,17 @@ public abstract class MediaEncoder implements Runnable {
     */
    /*package*/ abstract void prepare() throws IOException;
 
+	/**
+	 * set the asynchronous callback to mMediaCodec, sub classes call this
+	 * between MediaCodec#createEncoderByType and #configure. nothing to do in polling mode.
+	 */
+	@TargetApi(Build.VERSION_CODES.M)
+	protected void setupCodecCallback() {
+		if (mAsync && (mMediaCodec != null)) {
+			mMediaCodec.setCallback(mCodecCallback, mCodecHandler);	// API >= 23
+		}
+	}
+
 	/*package*/ void startRecording() {
    	if (DEBUG) Log.v(TAG, "startRecording");
 		synchronized (mSync) {
@@ -203,6 +286,18 @@ public abstract class MediaEncoder implements Runnable {
 	        // We can not know when the encoding and writing finish.
 	        // so we return immediately after request to avoid delay of caller thread
 		}
+		if (mAsync) {
+			mCodecHandler.post(mStopTask);
+		}
+	}
+
+	/**
+	 * called by the muxer once all tracks are added and it started
+	 */
+	/*package*/ void onMuxerStarted() {
+		if (mAsync) {
+			mCodecHandler.post(mFlushHeldOutputsTask);
+		}
 	}
 
 //********************************************************************************
@@ -231,7 +326,7 @@ public abstract class MediaEncoder implements Runnable {
        		final MediaMuxerWrapper muxer = mWeakMuxer.get();
        		if (muxer != null) {
        			try {
-           			muxer.stop();
+           			muxer.stop(mTrackIndex);
     			} catch (final Exception e) {
     				Log.e(TAG, "failed stopping muxer", e);
     			}
@@ -245,6 +340,10 @@ public abstract class MediaEncoder implements Runnable {
         // signalEndOfInputStream is only avairable for video encoding with surface
         // and equivalent sending a empty buffer with BUFFER_FLAG_END_OF_STREAM flag.
 //		mMediaCodec.signalEndOfInputStream();	// API >= 18
+        if (mAsync) {
+        	queueEndOfStream(getPTSUs());
+        	return;
+        }
         encode((byte[])null, 0, getPTSUs());
 	}
 
@@ -258,6 +357,14 @@ public abstract class MediaEncoder implements Runnable {
 	protected void encode(final byte[] buffer, final int length, final long presentationTimeUs) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
     	if (!mIsCapturing) return;
+    	if (mAsync) {
+    		if (length <= 0) {
+    			queueEndOfStream(presentationTimeUs);
+    		} else if (buffer != null) {
+    			queueInput(ByteBuffer.wrap(buffer, 0, length), presentationTimeUs);
+    		}
+    		return;
+    	}
     	int ix = 0, sz;
         final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
         while (mIsCapturing && ix < length) {
@@ -300,6 +407,16 @@ public abstract class MediaEncoder implements Runnable {
 	protected void encode(final ByteBuffer buffer, final int length, final long presentationTimeUs) {
 //    	if (DEBUG) Log.v(TAG, "encode:buffer=" + buffer);
     	if (!mIsCapturing) return;
+    	if (mAsync) {
+    		if (length <= 0) {
+    			queueEndOfStream(presentationTimeUs);
+    		} else if (buffer != null) {
+    			final ByteBuffer src = buffer.duplicate();
+    			src.limit(length).position(0);
+    			queueInput(src, presentationTimeUs);
+    		}
+    		return;
+    	}
     	int ix = 0, sz;
         final ByteBuffer[] inputBuffers = mMediaCodec.getInputBuffers();
         while (mIsCapturing && ix < length) {
@@ -445,4 +562,243 @@ LOOP:	while (mIsCapturing) {
 		return result;
     }
 
+//********************************************************************************
+// asynchronous mode, MediaCodec calls back on mCodecThread
+//********************************************************************************
+	/**
+	 * data chunk waiting for an input buffer
+	 */
+	private static final class PendingInput {
+		private ByteBuffer data;
+		private long presentationTimeUs;
+		private boolean eos;
+	}
+
+	/**
+	 * output buffer kept until the muxer starts
+	 */
+	private static final class HeldOutput {
+		private final int index;
+		private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+		private HeldOutput(final int index, final MediaCodec.BufferInfo src) {
+			this.index = index;
+			info.set(src.offset, src.size, src.presentationTimeUs, src.flags);
+		}
+	}
+
+	/**
+	 * pass data to a free input buffer right away, or keep a copy until the codec hands one over.
+	 * never waits for the codec.
+	 */
+	private void queueInput(final ByteBuffer src, final long presentationTimeUs) {
+		synchronized (mInputSync) {
+			if (mIsEOS || (mMediaCodec == null)) return;
+			try {
+				while (src.hasRemaining() && mPendingInputs.isEmpty() && !mFreeInputs.isEmpty()) {
+					fillInput(mFreeInputs.poll(), src, presentationTimeUs);
+				}
+			} catch (final IllegalStateException e) {
+				Log.w(TAG, "queueInput:", e);
+				return;
+			}
+			if (!src.hasRemaining()) return;
+			if (mPendingInputs.size() >= MAX_PENDING_INPUTS) {
+				// the codec is behind, drop the oldest chunk rather than block the caller
+				mInputPool.add(mPendingInputs.poll());
+				if ((mDroppedInputs++ % 30) == 0) Log.w(TAG, "queueInput:codec is behind, dropped=" + mDroppedInputs);
+			}
+			PendingInput pending = mInputPool.poll();
+			if (pending == null) {
+				pending = new PendingInput();
+			}
+			if ((pending.data == null) || (pending.data.capacity() < src.remaining())) {
+				pending.data = ByteBuffer.allocateDirect(src.remaining());
+			}
+			pending.data.clear();
+			pending.data.put(src);
+			pending.data.flip();
+			pending.presentationTimeUs = presentationTimeUs;
+			pending.eos = false;
+			mPendingInputs.add(pending);
+		}
+	}
+
+	/**
+	 * queue BUFFER_FLAG_END_OF_STREAM after all pending data
+	 */
+	private void queueEndOfStream(final long presentationTimeUs) {
+		synchronized (mInputSync) {
+			if (mIsEOS) return;
+			mIsEOS = true;
+			if (DEBUG) Log.i(TAG, "send BUFFER_FLAG_END_OF_STREAM");
+			if (mMediaCodec == null) {
+				mCodecHandler.post(mReleaseTask);
+				return;
+			}
+			if (mPendingInputs.isEmpty() && !mFreeInputs.isEmpty()) {
+				try {
+					mMediaCodec.queueInputBuffer(mFreeInputs.poll(), 0, 0,
+						presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				} catch (final IllegalStateException e) {
+					Log.w(TAG, "queueEndOfStream:", e);
+				}
+				return;
+			}
+			PendingInput pending = mInputPool.poll();
+			if (pending == null) {
+				pending = new PendingInput();
+			}
+			pending.presentationTimeUs = presentationTimeUs;
+			pending.eos = true;
+			mPendingInputs.add(pending);
+		}
+	}
+
+	/**
+	 * copy as much of src as fits into the input buffer and queue it, caller holds mInputSync
+	 */
+	private void fillInput(final int index, final ByteBuffer src, final long presentationTimeUs) {
+		final ByteBuffer inputBuffer = mMediaCodec.getInputBuffer(index);	// API >= 21
+		inputBuffer.clear();
+		final int sz = Math.min(inputBuffer.remaining(), src.remaining());
+		final int limit = src.limit();
+		src.limit(src.position() + sz);
+		inputBuffer.put(src);
+		src.limit(limit);
+		mMediaCodec.queueInputBuffer(index, 0, sz, presentationTimeUs, 0);
+	}
+
+	/**
+	 * write one output buffer to the muxer and return it to the codec, codec thread only
+	 */
+	private void writeOutput(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+		final MediaMuxerWrapper muxer = mWeakMuxer.get();
+		if ((info.size != 0) && (muxer != null)) {
+			final ByteBuffer encodedData = codec.getOutputBuffer(index);	// API >= 21
+			if (encodedData == null) {
+				// this never should come...may be a MediaCodec internal error
+				throw new RuntimeException("encoderOutputBuffer " + index + " was null");
+			}
+			// write encoded data to muxer(need to adjust presentationTimeUs.
+			info.presentationTimeUs = getPTSUs();
+			muxer.writeSampleData(mTrackIndex, encodedData, info);
+			prevOutputPTSUs = info.presentationTimeUs;
+		}
+		codec.releaseOutputBuffer(index, false);
+		if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+			// when EOS come, release outside of the callback
+			if (DEBUG) Log.d(TAG, "EOS received");
+			mCodecHandler.post(mReleaseTask);
+		}
+	}
+
+	private final MediaCodec.Callback mCodecCallback = new MediaCodec.Callback() {
+		@Override
+		public void onInputBufferAvailable(final MediaCodec codec, final int index) {
+			synchronized (mInputSync) {
+				final PendingInput pending = mPendingInputs.peek();
+				if (pending == null) {
+					mFreeInputs.add(index);
+					return;
+				}
+				if (pending.eos) {
+					codec.queueInputBuffer(index, 0, 0,
+						pending.presentationTimeUs, MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+				} else {
+					fillInput(index, pending.data, pending.presentationTimeUs);
+					if (pending.data.hasRemaining()) return;
+				}
+				mInputPool.add(mPendingInputs.poll());
+			}
+		}
+
+		@Override
+		public void onOutputBufferAvailable(final MediaCodec codec, final int index, final MediaCodec.BufferInfo info) {
+			if (mAsyncReleased) return;
+			if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0) {
+				// the format already went to the muxer by onOutputFormatChanged
+				if (DEBUG) Log.d(TAG, "onOutputBufferAvailable:BUFFER_FLAG_CODEC_CONFIG");
+				info.size = 0;
+			}
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (!mHeldOutputs.isEmpty() || ((info.size != 0) && ((muxer == null) || !muxer.isStarted()))) {
+				// the other track is not added yet, keep the buffer until #onMuxerStarted
+				mHeldOutputs.add(new HeldOutput(index, info));
+				return;
+			}
+			writeOutput(codec, index, info);
+		}
+
+		@Override
+		public void onOutputFormatChanged(final MediaCodec codec, final MediaFormat format) {
+			if (DEBUG) Log.v(TAG, "onOutputFormatChanged");
+			if (mMuxerStarted) {	// second time request is error
+				Log.e(TAG, "format changed twice");
+				return;
+			}
+			final MediaMuxerWrapper muxer = mWeakMuxer.get();
+			if (muxer == null) {
+				Log.w(TAG, "muxer is unexpectedly null");
+				return;
+			}
+			mTrackIndex = muxer.addTrack(format);
+			mMuxerStarted = true;
+			muxer.start();
+		}
+
+		@Override
+		public void onError(final MediaCodec codec, final MediaCodec.CodecException e) {
+			Log.e(TAG, "onError:", e);
+			mCodecHandler.post(mReleaseTask);
+		}
+	};
+
+	private final Runnable mFlushHeldOutputsTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mAsyncReleased) return;
+			for (HeldOutput held = mHeldOutputs.poll(); held != null; held = mHeldOutputs.poll()) {
+				writeOutput(mMediaCodec, held.index, held.info);
+			}
+		}
+	};
+
+	private final Runnable mStopTask = new Runnable() {
+		@Override
+		public void run() {
+			signalEndOfInputStream();
+			// some codecs never return EOS, do not wait for it forever
+			mCodecHandler.postDelayed(mReleaseTask, EOS_TIMEOUT_MS);
+		}
+	};
+
+	private final Runnable mReleaseTask = new Runnable() {
+		@Override
+		public void run() {
+			if (mAsyncReleased) return;
+			mAsyncReleased = true;
+			mCodecHandler.removeCallbacksAndMessages(null);
+			if (!mHeldOutputs.isEmpty()) {
+				Log.w(TAG, "muxer never started, dropped " + mHeldOutputs.size() + " buffers");
+				mHeldOutputs.clear();
+			}
+			synchronized (mInputSync) {
+				// reject newer input, the callers must not touch the codec while it is released
+				mIsEOS = true;
+				mFreeInputs.clear();
+				mPendingInputs.clear();
+				mInputPool.clear();
+			}
+			// not under mInputSync, onStopped may wait for the frame thread that feeds us
+			release();
+			synchronized (mSync) {
+				mRequestStop = true;
+				mIsCapturing = false;
+			}
+			mCodecThread.quitSafely();
+			if (DEBUG) Log.d(TAG, "Codec thread exiting");
+		}
+	};
+
 }
@@ -42,6 +42,10 @@ public class MediaMuxerWrapper {
 	private static final String TAG = "MediaMuxerWrapper";
 
 	private static final String DIR_NAME = "USBCamera";
+	/**
+	 * encoded samples queued per track for the writer thread, about 2 seconds of 30fps video
+	 */
+	public static final int DEFAULT_WRITE_QUEUE_CAPACITY = 64;
    private static final SimpleDateFormat mDateTimeFormat = new SimpleDateFormat("yyyy-MM-dd-HH-mm-ss", Locale.US);
 
 	private String mOutputPath;
@@ -49,13 +53,36 @@ public class MediaMuxerWrapper {
 	private int mEncoderCount, mStatredCount;
 	private boolean mIsStarted;
 	private MediaEncoder mVideoEncoder, mAudioEncoder;
+	private final int mWriteQueueCapacity;
+	/**
+	 * writes the samples on its own thread while the muxer runs, null for synchronous writes
+	 */
+	private volatile SampleWriter mWriter;
+	/**
+	 * used on the writer thread only
+	 */
+	private final MediaCodec.BufferInfo mWriteInfo = new MediaCodec.BufferInfo();
+
+	/**
+	 * Constructor
+	 * @param ext extension of output file
+	 * @throws IOException
+	 */
+	public MediaMuxerWrapper(final String ext) throws IOException {
+		this(ext, DEFAULT_WRITE_QUEUE_CAPACITY);
+	}
 
 	/**
 	 * Constructor
 	 * @param ext extension of output file
+	 * @param writeQueueCapacity encoded samples queued per track for the writer thread,
+	 * 0 to write on the encoder threads
 	 * @throws IOException
 	 */
-	public MediaMuxerWrapper(String ext) throws IOException {
+	public MediaMuxerWrapper(String ext, final int writeQueueCapacity) throws IOException {
+		if (writeQueueCapacity < 0)
+			throw new IllegalArgumentException("Invalid write queue capacity " + writeQueueCapacity);
+		mWriteQueueCapacity = writeQueueCapacity;
 		if (TextUtils.isEmpty(ext)) ext = ".mp4";
 		try {
 			mOutputPath = getCaptureFile(Environment.DIRECTORY_MOVIES, ext).toString();
@@ -98,6 +125,36 @@ public class MediaMuxerWrapper {
 		return mIsStarted;
 	}
 
+	/**
+	 * @return the writer of the current or last recording, null before the muxer started
+	 * or with synchronous writes. its queue depth, latency and byte counters are the
+	 * write statistics.
+	 */
+	public SampleWriter getSampleWriter() {
+		return mWriter;
+	}
+
+	/**
+	 * @return encoded samples waiting for the writer thread
+	 */
+	public int getWriteQueueDepth() {
+		final SampleWriter writer = mWriter;
+		return writer != null ? writer.getQueueDepth() : 0;
+	}
+
+	/**
+	 * @return average time in ns from an encoder handing over a sample to it being written
+	 */
+	public long getAverageWriteLatencyNs() {
+		final SampleWriter writer = mWriter;
+		return writer != null ? writer.getAverageLatencyNs() : 0;
+	}
+
+	public long getBytesWritten() {
+		final SampleWriter writer = mWriter;
+		return writer != null ? writer.getBytesWritten() : 0;
+	}
+
 //**********************************************************************
 //**********************************************************************
 	/**
@@ -135,8 +192,18 @@ public class MediaMuxerWrapper {
 		mStatredCount++;
 		if ((mEncoderCount > 0) && (mStatredCount == mEncoderCount)) {
 			mMediaMuxer.start();
+			if (mWriteQueueCapacity > 0) {
+				// MediaMuxer numbers the tracks from 0 in the order they were added
+				mWriter = new SampleWriter(mEncoderCount, mWriteQueueCapacity, mSink);
+				mWriter.start();
+			}
 			mIsStarted = true;
 			notifyAll();
+			// encoders in asynchronous mode do not wait, they keep their output until now
+			if (mVideoEncoder != null)
+				mVideoEncoder.onMuxerStarted();
+			if (mAudioEncoder != null)
+				mAudioEncoder.onMuxerStarted();
 			if (DEBUG) Log.v(TAG,  "MediaMuxer started:");
 		}
 		return mIsStarted;
@@ -144,11 +211,26 @@ public class MediaMuxerWrapper {
 
 	/**
 	 * request stop recording from encoder when encoder received EOS
+	 * @param trackIndex track of the encoder, minus value if it never added one
 	*/
-	/*package*/ synchronized void stop() {
+	/*package*/ synchronized void stop(final int trackIndex) {
 		if (DEBUG) Log.v(TAG,  "stop:mStatredCount=" + mStatredCount);
 		mStatredCount--;
+		final SampleWriter writer = mWriter;
+		if ((writer != null) && (trackIndex >= 0) && (trackIndex < mEncoderCount)) {
+			writer.endTrack(trackIndex);
+		}
 		if ((mEncoderCount > 0) && (mStatredCount <= 0)) {
+			if (writer != null) {
+				// everything queued goes to the file before it is finalized
+				writer.stop();
+				if (DEBUG) Log.v(TAG, "writer stopped:bytes=" + writer.getBytesWritten()
+					+ ",samples=" + writer.getSamplesWritten()
+					+ ",maxQueueDepth=" + writer.getMaxQueueDepth()
+					+ ",avgLatency=" + writer.getAverageLatencyNs() / 1000 + "us"
+					+ ",maxLatency=" + writer.getMaxLatencyNs() / 1000 + "us"
+					+ ",producerWaits=" + writer.getProducerWaits());
+			}
 			try {
 				mMediaMuxer.stop();
 			} catch (final Exception e) {
@@ -178,11 +260,33 @@ public class MediaMuxerWrapper {
 	 * @param byteBuf
 	 * @param bufferInfo
 	 */
-	/*package*/ synchronized void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
-		if (mStatredCount > 0)
-			mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+	/*package*/ void writeSampleData(final int trackIndex, final ByteBuffer byteBuf, final MediaCodec.BufferInfo bufferInfo) {
+		final SampleWriter writer = mWriter;
+		if (writer != null) {
+			// copied into the queue, the encoder releases its buffer right after
+			final ByteBuffer data = byteBuf.duplicate();
+			data.limit(bufferInfo.offset + bufferInfo.size).position(bufferInfo.offset);
+			writer.offer(trackIndex, data, bufferInfo.presentationTimeUs, bufferInfo.flags);
+			return;
+		}
+		synchronized (this) {
+			if (mStatredCount > 0)
+				mMediaMuxer.writeSampleData(trackIndex, byteBuf, bufferInfo);
+		}
 	}
 
+	private final SampleWriter.Sink mSink = new SampleWriter.Sink() {
+		@Override
+		public void writeSample(final int trackIndex, final ByteBuffer data, final long presentationTimeUs, final int flags) {
+			mWriteInfo.set(data.position(), data.remaining(), presentationTimeUs, flags);
+			try {
+				mMediaMuxer.writeSampleData(trackIndex, data, mWriteInfo);
+			} catch (final Exception e) {
+				Log.w(TAG, "writeSampleData:", e);
+			}
+		}
+	};
+
 //**********************************************************************
 //**********************************************************************
     /**
@@ -53,7 +53,14 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
     protected int mColorFormat;
 
 	public MediaVideoBufferEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener) {
-		super(muxer, listener);
+		this(muxer, width, height, listener, false);
+	}
+
+	/**
+	 * @param async true to run the codec in asynchronous mode, see MediaEncoder
+	 */
+	public MediaVideoBufferEncoder(final MediaMuxerWrapper muxer, final int width, final int height, final MediaEncoderListener listener, final boolean async) {
+		super(muxer, listener, async);
 		if (DEBUG) Log.i(TAG, "MediaVideoEncoder: ");
 		mWidth = width;
 		mHeight = height;
@@ -88,6 +95,7 @@ public class MediaVideoBufferEncoder extends MediaEncoder implements IVideoEncod
 		if (DEBUG) Log.i(TAG, "format: " + format);
 
         mMediaCodec = MediaCodec.createEncoderByType(MIME_TYPE);
+        setupCodecCallback();
         mMediaCodec.configure(format, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
         mMediaCodec.start();
         if (DEBUG) Log.i(TAG, "prepare finishing");
@@ -0,0 +1,328 @@
+/*
+ *  UVCCamera
+ *  library and sample to access to UVC web camera on non-rooted Android device
+ *
+ * Copyright (c) 2014-2017 saki t_saki@serenegiant.com
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *   You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *   Unless required by applicable law or agreed to in writing, software
+ *   distributed under the License is distributed on an "AS IS" BASIS,
+ *   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *   See the License for the specific language governing permissions and
+ *   limitations under the License.
+ *
+ *  All files in the folder are under this Apache License, Version 2.0.
+ *  Files in the libjpeg-turbo, libusb, libuvc, rapidjson folder
+ *  may have a different license, see the respective files.
+ */
+
+package com.serenegiant.encoder;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Writes encoded samples to the muxer on a single thread of its own,
+ * so the encoder threads never wait for file I/O.
+ *
+ * Each track has a bounded ring of pooled buffers with one producer, the thread
+ * of its encoder, and the writer thread as consumer. Nothing is locked: the rings
+ * are published through their head and tail counters and the threads wake each
+ * other with LockSupport. The writer takes the queued sample with the smallest
+ * presentation time over all tracks, so the file is interleaved by time. While
+ * a running track has nothing queued it waits for it, unless another ring is
+ * half full already.
+ *
+ * A producer only waits when its ring is full, that is when the storage fell
+ * behind by the whole ring.
+ */
+public class SampleWriter implements Runnable {
+
+	/**
+	 * receives the samples in write order, on the writer thread
+	 */
+	public interface Sink {
+		/**
+		 * @param data sample between position and limit, valid during this call only
+		 */
+		public void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags);
+	}
+
+	/**
+	 * one pooled sample
+	 */
+	private static final class Slot {
+		private ByteBuffer data;
+		private long presentationTimeUs;
+		private int flags;
+		private long queuedNs;
+	}
+
+	/**
+	 * single producer single consumer ring of one track
+	 */
+	private static final class Track {
+		private final Slot[] slots;
+		/**
+		 * next slot to write, advanced by the writer thread
+		 */
+		private final AtomicLong head = new AtomicLong();
+		/**
+		 * next slot to fill, advanced by the producer
+		 */
+		private final AtomicLong tail = new AtomicLong();
+		private volatile boolean ended;
+		private volatile Thread waiter;
+
+		private Track(final int capacity) {
+			slots = new Slot[capacity];
+			for (int i = 0; i < capacity; i++) {
+				slots[i] = new Slot();
+			}
+		}
+
+		private int size() {
+			return (int)(tail.get() - head.get());
+		}
+	}
+
+	private final Track[] mTracks;
+	private final int mCapacity;
+	private final Sink mSink;
+	private Thread mThread;
+	private volatile Thread mWriterThread;
+	private volatile boolean mRequestStop;
+	private volatile boolean mClosed;
+
+	// statistics, written by the writer thread only
+	private volatile long mBytesWritten;
+	private volatile long mSamplesWritten;
+	private volatile long mTotalLatencyNs;
+	private volatile long mMaxLatencyNs;
+	private volatile int mMaxQueueDepth;
+	private final AtomicLong mProducerWaits = new AtomicLong();
+
+	/**
+	 * @param trackCount number of tracks, track indices run from 0
+	 * @param capacity samples queued per track
+	 * @param sink
+	 */
+	public SampleWriter(final int trackCount, final int capacity, final Sink sink) {
+		if ((trackCount <= 0) || (capacity <= 0) || (sink == null)) {
+			throw new IllegalArgumentException("Invalid input parameters");
+		}
+		mTracks = new Track[trackCount];
+		for (int i = 0; i < trackCount; i++) {
+			mTracks[i] = new Track(capacity);
+		}
+		mCapacity = capacity;
+		mSink = sink;
+	}
+
+	/**
+	 * start the writer thread, samples offered before are kept
+	 */
+	public synchronized void start() {
+		if (mThread != null) return;
+		mThread = new Thread(this, "SampleWriter");
+		mWriterThread = mThread;
+		mThread.start();
+	}
+
+	/**
+	 * write everything queued, then end the writer thread and wait for it.
+	 * samples offered after this are dropped.
+	 */
+	public void stop() {
+		final Thread thread;
+		synchronized (this) {
+			thread = mThread;
+		}
+		mRequestStop = true;
+		if (thread == null) {
+			// never started, write on the caller thread
+			while (writeNext(true)) {}
+			close();
+			return;
+		}
+		LockSupport.unpark(mWriterThread);
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (final InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * copy one sample into the ring of its track, from one thread per track.
+	 * waits only while the ring is full.
+	 * @param data sample between position and limit, the position is not changed
+	 * @return false if the writer is stopped or the track ended, the sample is dropped
+	 */
+	public boolean offer(final int trackIndex, final ByteBuffer data, final long presentationTimeUs, final int flags) {
+		final Track track = track(trackIndex);
+		final long tail = track.tail.get();
+		if ((tail - track.head.get()) >= mCapacity) {
+			mProducerWaits.incrementAndGet();
+			track.waiter = Thread.currentThread();
+			while (!mClosed && !track.ended && ((tail - track.head.get()) >= mCapacity)) {
+				LockSupport.park(this);
+			}
+			track.waiter = null;
+		}
+		if (mClosed || track.ended) return false;
+		final Slot slot = track.slots[(int)(tail % mCapacity)];
+		final int size = data.remaining();
+		if ((slot.data == null) || (slot.data.capacity() < size)) {
+			// grows to the largest sample once, reused from then on
+			slot.data = ByteBuffer.allocateDirect(size);
+		}
+		final int position = data.position();
+		slot.data.clear();
+		slot.data.put(data);
+		slot.data.flip();
+		data.position(position);
+		slot.presentationTimeUs = presentationTimeUs;
+		slot.flags = flags;
+		slot.queuedNs = System.nanoTime();
+		track.tail.lazySet(tail + 1);
+		LockSupport.unpark(mWriterThread);
+		return true;
+	}
+
+	/**
+	 * no more samples for this track, the writer stops waiting for it
+	 */
+	public void endTrack(final int trackIndex) {
+		final Track track = track(trackIndex);
+		track.ended = true;
+		LockSupport.unpark(mWriterThread);
+	}
+
+	@Override
+	public void run() {
+		for ( ; ; ) {
+			final boolean stopping = mRequestStop;
+			if (writeNext(stopping)) continue;
+			if (stopping) break;
+			LockSupport.park(this);
+		}
+		close();
+	}
+
+	/**
+	 * write the queued sample with the smallest presentation time
+	 * @param force write even if a running track has nothing queued yet
+	 * @return false if nothing was written
+	 */
+	/*package*/ boolean writeNext(final boolean force) {
+		Track next = null;
+		int nextIndex = -1;
+		Slot nextSlot = null;
+		boolean waiting = false;
+		int depth = 0;
+		boolean halfFull = false;
+		for (int i = 0; i < mTracks.length; i++) {
+			final Track track = mTracks[i];
+			final int size = track.size();
+			depth += size;
+			if (size == 0) {
+				waiting |= !track.ended;
+				continue;
+			}
+			halfFull |= (size * 2 >= mCapacity);
+			final Slot slot = track.slots[(int)(track.head.get() % mCapacity)];
+			if ((nextSlot == null) || (slot.presentationTimeUs < nextSlot.presentationTimeUs)) {
+				next = track;
+				nextIndex = i;
+				nextSlot = slot;
+			}
+		}
+		if (depth > mMaxQueueDepth) {
+			mMaxQueueDepth = depth;
+		}
+		if ((nextSlot == null) || (waiting && !force && !halfFull)) {
+			// the sample of the empty track may come earlier
+			return false;
+		}
+		mSink.writeSample(nextIndex, nextSlot.data, nextSlot.presentationTimeUs, nextSlot.flags);
+		final long latencyNs = System.nanoTime() - nextSlot.queuedNs;
+		mBytesWritten += nextSlot.data.limit();
+		mSamplesWritten++;
+		mTotalLatencyNs += latencyNs;
+		if (latencyNs > mMaxLatencyNs) {
+			mMaxLatencyNs = latencyNs;
+		}
+		next.head.lazySet(next.head.get() + 1);
+		LockSupport.unpark(next.waiter);
+		return true;
+	}
+
+	private void close() {
+		mClosed = true;
+		for (final Track track : mTracks) {
+			LockSupport.unpark(track.waiter);
+		}
+	}
+
+	private Track track(final int trackIndex) {
+		if ((trackIndex < 0) || (trackIndex >= mTracks.length)) {
+			throw new IllegalArgumentException("Invalid track " + trackIndex);
+		}
+		return mTracks[trackIndex];
+	}
+
+	/**
+	 * @return samples queued over all tracks now
+	 */
+	public int getQueueDepth() {
+		int depth = 0;
+		for (final Track track : mTracks) {
+			depth += track.size();
+		}
+		return depth;
+	}
+
+	public int getMaxQueueDepth() {
+		return mMaxQueueDepth;
+	}
+
+	public long getBytesWritten() {
+		return mBytesWritten;
+	}
+
+	public long getSamplesWritten() {
+		return mSamplesWritten;
+	}
+
+	/**
+	 * @return average time from offer to written in ns, 0 before the first sample
+	 */
+	public long getAverageLatencyNs() {
+		final long samples = mSamplesWritten;
+		return samples > 0 ? mTotalLatencyNs / samples : 0;
+	}
+
+	public long getMaxLatencyNs() {
+		return mMaxLatencyNs;
+	}
+
+	/**
+	 * @return number of times a producer found its ring full and waited
+	 */
+	public long getProducerWaits() {
+		return mProducerWaits.get();
+	}
+}
@@ -61,9 +61,13 @@ import java.lang.reflect.Constructor;
 import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 abstract class AbstractUVCCameraHandler extends Handler {
 	private static final boolean DEBUG = true;	// TODO set false on release
@@ -79,6 +83,21 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		public void onError(final Exception e);
 	}
 
+	/**
+	 * receives a still from captureFullResolution, called on the camera thread
+	 */
+	public interface StillCaptureCallback {
+		/**
+		 * @param data complete JPEG when isJpeg, otherwise a NV21 frame, owned by the callee
+		 * @param width image width
+		 * @param height image height
+		 * @param isJpeg true if data is the camera's MJPEG payload as is
+		 * @param switchMs time from the request to the full resolution frame, including the mode switch
+		 */
+		public void onStillCaptured(byte[] data, int width, int height, boolean isJpeg, long switchMs);
+		public void onStillError(final Exception e);
+	}
+
 	private static final int MSG_OPEN = 0;
 	private static final int MSG_CLOSE = 1;
 	private static final int MSG_PREVIEW_START = 2;
@@ -89,6 +108,12 @@ abstract class AbstractUVCCameraHandler extends Handler {
 	private static final int MSG_MEDIA_UPDATE = 7;
 	private static final int MSG_RELEASE = 9;
 	private static final int MSG_CAMERA_FOCUS = 10;
+	private static final int MSG_FRAME_CALLBACK = 11;
+	private static final int MSG_CAPTURE_FULL_RES = 12;
+	private static final int MSG_FULL_RES_FRAME = 13;
+	private static final int MSG_FULL_RES_TIMEOUT = 14;
+	private static final int MSG_CAPTURE_BURST = 15;
+	private static final int MSG_CHANGE_PREVIEW_MODE = 16;
 
 	private final WeakReference<AbstractUVCCameraHandler.CameraThread> mWeakThread;
 	private volatile boolean mReleased;
@@ -217,10 +242,102 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		sendEmptyMessage(MSG_CAMERA_FOCUS);
 	}
 
+	/**
+	 * Set the frame callback, applied in order with open/startPreview on the camera thread
+	 * and kept across preview restarts
+	 * @param callback null to remove the callback
+	 * @param pixelFormat one of UVCCamera.PIXEL_FORMAT_*
+	 */
+	public void setFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+		if (isReleased()) return;
+		sendMessage(obtainMessage(MSG_FRAME_CALLBACK, pixelFormat, 0, callback));
+	}
+
+	/**
+	 * Capture one frame at the largest MJPEG size the camera supports
+	 *
+	 * The preview is stopped, reopened at full resolution for a single frame
+	 * and then restored to its previous mode. The MJPEG payload is handed over
+	 * without decoding; if the camera does not deliver one, a NV21 frame is.
+	 * The preview is out for the switch latency plus the restore, a few hundred ms.
+	 * @param callback receives the still or the error on the camera thread
+	 */
+	public void captureFullResolution(final StillCaptureCallback callback) {
+		checkReleased();
+		sendMessage(obtainMessage(MSG_CAPTURE_FULL_RES, callback));
+	}
+
+	/**
+	 * Trigger a burst capture, in order with the other capture requests
+	 *
+	 * The frames come from the frame callback set by the caller, which keeps the
+	 * ones before the trigger; this only plays the shutter sound and runs the trigger.
+	 * @param trigger run on the camera thread
+	 */
+	public void captureBurst(final Runnable trigger) {
+		checkReleased();
+		sendMessage(obtainMessage(MSG_CAPTURE_BURST, trigger));
+	}
+
+	/**
+	 * Request a preview size and frame rate, the closest mode the camera supports is used
+	 * from the next startPreview on
+	 * @param width requested width
+	 * @param height requested height
+	 * @param maxFps upper bound for the negotiated frame rate, 0 for the default ceiling
+	 */
+	public void setPreferredPreviewMode(final int width, final int height, final int maxFps) {
+		checkReleased();
+		final CameraThread thread = mWeakThread.get();
+		if (thread != null) {
+			thread.setPreferredPreviewMode(width, height, maxFps);
+		}
+	}
+
+	/**
+	 * Run the MediaCodec encoders of the next recordings in asynchronous mode,
+	 * their input and output are handled as the codec calls back instead of polling.
+	 * Applies to MediaSurfaceEncoder, MediaVideoBufferEncoder and MediaAudioEncoder,
+	 * needs API >= 23.
+	 * @param async
+	 */
+	public void setAsyncEncoding(final boolean async) {
+		checkReleased();
+		final CameraThread thread = mWeakThread.get();
+		if (thread != null) {
+			thread.setAsyncEncoding(async);
+		}
+	}
+
+	/**
+	 * Switch the running preview to the supported mode closest to the requested one
+	 *
+	 * The preview stops and restarts with the same surface and frame callback,
+	 * frames in between are lost. Ignored while recording or capturing a full
+	 * resolution still; the new mode then applies from the next startPreview.
+	 * @param width requested width
+	 * @param height requested height
+	 * @param maxFps upper bound for the negotiated frame rate, 0 for the default ceiling
+	 * @param onChanged run on the camera thread once the preview runs again, may be null
+	 */
+	public void changePreviewMode(final int width, final int height, final int maxFps, final Runnable onChanged) {
+		setPreferredPreviewMode(width, height, maxFps);
+		sendMessage(obtainMessage(MSG_CHANGE_PREVIEW_MODE, onChanged));
+	}
+
 	public List<Size> getSupportedPreviewSizes() {
 		return mWeakThread.get().getSupportedSizes();
 	}
 
+	/**
+	 * Size descriptor of the running preview, including its frame rates in Size#fps
+	 * @return null if not previewing
+	 */
+	public Size getPreviewSize() {
+		final CameraThread thread = mWeakThread.get();
+		return thread != null ? thread.getPreviewSize() : null;
+	}
+
 	public void release() {
 		mReleased = true;
 		close();
@@ -337,6 +454,24 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		case MSG_CAMERA_FOCUS:
 			thread.handleCameraFocus();
 			break;
+		case MSG_FRAME_CALLBACK:
+			thread.handleSetFrameCallback((IFrameCallback)msg.obj, msg.arg1);
+			break;
+		case MSG_CAPTURE_FULL_RES:
+			thread.handleCaptureFullResolution((StillCaptureCallback)msg.obj);
+			break;
+		case MSG_FULL_RES_FRAME:
+			thread.handleFullResolutionFrame((byte[])msg.obj);
+			break;
+		case MSG_FULL_RES_TIMEOUT:
+			thread.handleFullResolutionTimeout();
+			break;
+		case MSG_CAPTURE_BURST:
+			thread.handleCaptureBurst((Runnable)msg.obj);
+			break;
+		case MSG_CHANGE_PREVIEW_MODE:
+			thread.handleChangePreviewMode((Runnable)msg.obj);
+			break;
 		default:
 			throw new RuntimeException("unsupported message:what=" + msg.what);
 		}
@@ -344,6 +479,18 @@ abstract class AbstractUVCCameraHandler extends Handler {
 
 	static final class CameraThread extends Thread {
 		private static final String TAG_THREAD = "CameraThread";
+		/**
+		 * frame rate ceiling the preview was always opened with
+		 */
+		private static final int MAX_PREVIEW_FPS = 31;
+		/**
+		 * time the full resolution mode may take to deliver a usable frame
+		 */
+		private static final long FULL_RES_TIMEOUT_MS = 3000;
+		/**
+		 * padding accepted after the EOI of a raw still frame
+		 */
+		private static final int MAX_JPEG_TRAILING_BYTES = 4096;
 		private final Object mSync = new Object();
 		private final Class<? extends AbstractUVCCameraHandler> mHandlerClass;
 		private final WeakReference<Activity> mWeakParent;
@@ -351,7 +498,27 @@ abstract class AbstractUVCCameraHandler extends Handler {
 		private final int mEncoderType;
 		private final Set<CameraCallback> mCallbacks = new CopyOnWriteArraySet<CameraCallback>();
 		private int mWidth, mHeight, mPreviewMode;
+		/**
+		 * requested preview mode, matched against the supported sizes on startPreview
+		 */
+		private int mRequestedWidth, mRequestedHeight;
+		private int mMaxFps = MAX_PREVIEW_FPS;
+		private IFrameCallback mFrameCallback;
+		private int mFramePixelFormat;
+		/**
+		 * preview surface, set again after the temporary full resolution mode
+		 */
+		private Object mPreviewSurface;
+		/**
+		 * full resolution capture in progress, camera thread only
+		 */
+		private StillCaptureCallback mStillCallback;
+		private long mStillStartNs;
+		private int mStillWidth, mStillHeight;
+		private int mStillPixelFormat;
+		private final AtomicBoolean mStillFrameWanted = new AtomicBoolean(false);
 		private float mBandwidthFactor;
+		private volatile boolean mAsyncEncoding;
 		private boolean mIsPreviewing;
 		private boolean mIsRecording;
 		/**
@@ -391,6 +558,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			mEncoderType = encoderType;
 			mWidth = width;
 			mHeight = height;
+			mRequestedWidth = width;
+			mRequestedHeight = height;
 			mPreviewMode = format;
 			mBandwidthFactor = bandwidthFactor;
 			mWeakParent = new WeakReference<Activity>(parent);
@@ -428,6 +597,20 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		public void setPreferredPreviewMode(final int width, final int height, final int maxFps) {
+			synchronized (mSync) {
+				if (width > 0 && height > 0) {
+					mRequestedWidth = width;
+					mRequestedHeight = height;
+				}
+				mMaxFps = maxFps > 0 ? Math.min(maxFps, MAX_PREVIEW_FPS) : MAX_PREVIEW_FPS;
+			}
+		}
+
+		public void setAsyncEncoding(final boolean async) {
+			mAsyncEncoding = async;
+		}
+
 		public boolean isCameraOpened() {
 			synchronized (mSync) {
 				return mUVCCamera != null;
@@ -468,6 +651,7 @@ abstract class AbstractUVCCameraHandler extends Handler {
 
 		public void handleClose() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleClose:");
+			cancelFullResolution(new IllegalStateException("camera closed"), false);
 			handleStopRecording();
 			final UVCCamera camera;
 			synchronized (mSync) {
@@ -485,33 +669,110 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStartPreview:");
 			if ((mUVCCamera == null) || mIsPreviewing) return;
 			try {
-				mUVCCamera.setPreviewSize(mWidth, mHeight, 0,1, 31, mPreviewMode, mBandwidthFactor);
+				setClosestPreviewSize(mPreviewMode);
 			} catch (final IllegalArgumentException e) {
 				try {
 					// fallback to YUV mode
-					mUVCCamera.setPreviewSize(mWidth, mHeight, 0, 1, 31, UVCCamera.DEFAULT_PREVIEW_MODE, mBandwidthFactor);
+					setClosestPreviewSize(UVCCamera.DEFAULT_PREVIEW_MODE);
 				} catch (final IllegalArgumentException e1) {
 					callOnError(e1);
 					return;
 				}
 			}
+			mPreviewSurface = surface;
+			setPreviewSurface(surface);
+			if (mFrameCallback != null) {
+				mUVCCamera.setFrameCallback(mFrameCallback, mFramePixelFormat);
+			}
+			mUVCCamera.startPreview();
+			mUVCCamera.updateCameraParams();
+			synchronized (mSync) {
+				mIsPreviewing = true;
+			}
+			callOnStartPreview();
+		}
+
+		private void setPreviewSurface(final Object surface) {
 			if (surface instanceof SurfaceHolder) {
 				mUVCCamera.setPreviewDisplay((SurfaceHolder)surface);
-			} if (surface instanceof Surface) {
+			} else if (surface instanceof Surface) {
 				mUVCCamera.setPreviewDisplay((Surface)surface);
 			} else {
 				mUVCCamera.setPreviewTexture((SurfaceTexture)surface);
 			}
-			mUVCCamera.startPreview();
-			mUVCCamera.updateCameraParams();
+		}
+
+		/**
+		 * set the supported size closest to the requested one, first within the
+		 * requested frame rate ceiling, then within the default one
+		 * @param frameFormat either FRAME_FORMAT_YUYV(0) or FRAME_FORMAT_MJPEG(1)
+		 * @throws IllegalArgumentException if the camera rejects the mode
+		 */
+		private void setClosestPreviewSize(final int frameFormat) {
+			final int requestedWidth, requestedHeight, maxFps;
 			synchronized (mSync) {
-				mIsPreviewing = true;
+				requestedWidth = mRequestedWidth;
+				requestedHeight = mRequestedHeight;
+				maxFps = mMaxFps;
+			}
+			final List<Size> sizes = UVCCamera.getSupportedSize(
+				frameFormat > 0 ? 6 : 4, mUVCCamera.getSupportedSize());
+			final Size closest = selectClosestSize(sizes, requestedWidth, requestedHeight);
+			final int width = closest != null ? closest.width : requestedWidth;
+			final int height = closest != null ? closest.height : requestedHeight;
+			try {
+				mUVCCamera.setPreviewSize(width, height, 0, 1, maxFps, frameFormat, mBandwidthFactor);
+			} catch (final IllegalArgumentException e) {
+				if (maxFps >= MAX_PREVIEW_FPS) throw e;
+				// the camera has no mode at or below the requested rate
+				mUVCCamera.setPreviewSize(width, height, 0, 1, MAX_PREVIEW_FPS, frameFormat, mBandwidthFactor);
+			}
+			synchronized (mSync) {
+				mWidth = width;
+				mHeight = height;
+			}
+			if (DEBUG) Log.v(TAG_THREAD, "preview size " + width + "x" + height
+				+ " for requested " + requestedWidth + "x" + requestedHeight + "@" + maxFps);
+		}
+
+		/**
+		 * pick the size closest to the requested one, weighing aspect ratio
+		 * mismatch twice as heavy as area mismatch; ties go to the larger size
+		 * @return null if the list is empty
+		 */
+		static Size selectClosestSize(final List<Size> sizes, final int width, final int height) {
+			if (sizes == null || width <= 0 || height <= 0) return null;
+			final double area = (double)width * height;
+			final double aspect = (double)width / height;
+			Size best = null;
+			double bestScore = Double.MAX_VALUE;
+			for (final Size size: sizes) {
+				if (size.width <= 0 || size.height <= 0) continue;
+				final double score = Math.abs(Math.log(size.width * (double)size.height / area))
+					+ 2 * Math.abs(Math.log((double)size.width / size.height / aspect));
+				if ((score < bestScore - 1e-9)
+					|| ((Math.abs(score - bestScore) <= 1e-9) && (size.width * size.height > best.width * best.height))) {
+					best = size;
+					bestScore = score;
+				}
+			}
+			return best;
+		}
+
+		public void handleSetFrameCallback(final IFrameCallback callback, final int pixelFormat) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleSetFrameCallback:" + callback);
+			synchronized (mSync) {
+				mFrameCallback = callback;
+				mFramePixelFormat = pixelFormat;
+			}
+			if ((mUVCCamera != null) && (mMuxer == null || mVideoEncoder == null)) {
+				mUVCCamera.setFrameCallback(callback, pixelFormat);
 			}
-			callOnStartPreview();
 		}
 
 		public void handleStopPreview() {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStopPreview:");
+			cancelFullResolution(new IllegalStateException("preview stopped"), false);
 			if (mIsPreviewing) {
 				if (mUVCCamera != null) {
 					mUVCCamera.stopPreview();
@@ -554,6 +815,180 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			}
 		}
 
+		public void handleCaptureBurst(final Runnable trigger) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleCaptureBurst:");
+			if (mSoundPool != null) {
+				mSoundPool.play(mSoundId, 0.2f, 0.2f, 0, 0, 1.0f);	// play shutter sound
+			}
+			trigger.run();
+		}
+
+		public void handleChangePreviewMode(final Runnable onChanged) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleChangePreviewMode:");
+			if ((mUVCCamera == null) || !mIsPreviewing || (mMuxer != null) || (mStillCallback != null)) {
+				Log.w(TAG_THREAD, "preview mode change skipped, camera is not previewing or busy");
+			} else {
+				final long startNs = System.nanoTime();
+				restorePreview();
+				Log.i(TAG_THREAD, "preview mode changed to " + getWidth() + "x" + getHeight()
+					+ " in " + (System.nanoTime() - startNs) / 1000000 + " ms");
+			}
+			if (onChanged != null) {
+				onChanged.run();
+			}
+		}
+
+		public void handleCaptureFullResolution(final StillCaptureCallback callback) {
+			if (DEBUG) Log.v(TAG_THREAD, "handleCaptureFullResolution:");
+			if ((mUVCCamera == null) || !mIsPreviewing || (mMuxer != null) || (mStillCallback != null)) {
+				callback.onStillError(new IllegalStateException("camera is not previewing or busy"));
+				return;
+			}
+			mStillStartNs = System.nanoTime();
+			final List<Size> sizes = new ArrayList<Size>(UVCCamera.getSupportedSize(6, mUVCCamera.getSupportedSize()));
+			Collections.sort(sizes, new Comparator<Size>() {
+				@Override
+				public int compare(final Size a, final Size b) {
+					return Long.compare((long)b.width * b.height, (long)a.width * a.height);
+				}
+			});
+			mUVCCamera.stopPreview();
+			Size selected = null;
+			for (final Size size: sizes) {
+				try {
+					mUVCCamera.setPreviewSize(size.width, size.height, 0, 1, MAX_PREVIEW_FPS,
+						UVCCamera.FRAME_FORMAT_MJPEG, mBandwidthFactor);
+					selected = size;
+					break;
+				} catch (final IllegalArgumentException e) {
+					// not enough bandwidth for this size, try the next smaller one
+					Log.w(TAG_THREAD, "full resolution " + size.width + "x" + size.height + " rejected");
+				}
+			}
+			if (selected == null) {
+				restorePreview();
+				callback.onStillError(new IllegalStateException("no MJPEG mode available"));
+				return;
+			}
+			mStillCallback = callback;
+			mStillWidth = selected.width;
+			mStillHeight = selected.height;
+			// the raw callback hands over the MJPEG payload as the camera sent it
+			mStillPixelFormat = UVCCamera.PIXEL_FORMAT_RAW;
+			mStillFrameWanted.set(true);
+			mUVCCamera.setFrameCallback(mFullResolutionCallback, mStillPixelFormat);
+			mUVCCamera.startPreview();
+			mHandler.sendEmptyMessageDelayed(MSG_FULL_RES_TIMEOUT, FULL_RES_TIMEOUT_MS);
+		}
+
+		public void handleFullResolutionFrame(final byte[] data) {
+			final StillCaptureCallback callback = mStillCallback;
+			if (callback == null) return;
+			final boolean isJpeg = mStillPixelFormat == UVCCamera.PIXEL_FORMAT_RAW;
+			if (isJpeg && !isCompleteJpeg(data)) {
+				if (mUVCCamera == null) return;
+				// no usable MJPEG payload, take the next frame decoded instead
+				Log.w(TAG_THREAD, "raw frame is not a complete JPEG, falling back to NV21");
+				mStillPixelFormat = UVCCamera.PIXEL_FORMAT_NV21;
+				mStillFrameWanted.set(true);
+				mUVCCamera.setFrameCallback(mFullResolutionCallback, mStillPixelFormat);
+				return;
+			}
+			if (!isJpeg && data.length < mStillWidth * mStillHeight * 3 / 2) {
+				mStillFrameWanted.set(true);
+				return;
+			}
+			final long switchMs = (System.nanoTime() - mStillStartNs) / 1000000;
+			mStillCallback = null;
+			mHandler.removeMessages(MSG_FULL_RES_TIMEOUT);
+			try {
+				callback.onStillCaptured(data, mStillWidth, mStillHeight, isJpeg, switchMs);
+			} finally {
+				final long restoreStartNs = System.nanoTime();
+				restorePreview();
+				Log.i(TAG_THREAD, "full resolution still " + mStillWidth + "x" + mStillHeight
+					+ (isJpeg ? " MJPEG" : " NV21") + ": switch " + switchMs + " ms, restore "
+					+ (System.nanoTime() - restoreStartNs) / 1000000 + " ms");
+			}
+		}
+
+		public void handleFullResolutionTimeout() {
+			cancelFullResolution(new IllegalStateException(
+				"no full resolution frame within " + FULL_RES_TIMEOUT_MS + " ms"), true);
+		}
+
+		/**
+		 * @param restore whether to go back to the previous preview mode, false if the preview stops anyway
+		 */
+		private void cancelFullResolution(final Exception reason, final boolean restore) {
+			final StillCaptureCallback callback = mStillCallback;
+			if (callback == null) return;
+			mStillCallback = null;
+			mStillFrameWanted.set(false);
+			mHandler.removeMessages(MSG_FULL_RES_TIMEOUT);
+			mHandler.removeMessages(MSG_FULL_RES_FRAME);
+			if (restore) {
+				restorePreview();
+			}
+			callback.onStillError(reason);
+		}
+
+		/**
+		 * restart the preview in the preferred mode with the surface and callback in use,
+		 * e.g. after a full resolution capture or a preview mode change
+		 */
+		private void restorePreview() {
+			mStillFrameWanted.set(false);
+			if (mUVCCamera == null) return;
+			mUVCCamera.stopPreview();
+			try {
+				try {
+					setClosestPreviewSize(mPreviewMode);
+				} catch (final IllegalArgumentException e) {
+					setClosestPreviewSize(UVCCamera.DEFAULT_PREVIEW_MODE);
+				}
+			} catch (final IllegalArgumentException e) {
+				callOnError(e);
+				return;
+			}
+			if (mPreviewSurface != null) {
+				setPreviewSurface(mPreviewSurface);
+			}
+			if (mFrameCallback != null) {
+				mUVCCamera.setFrameCallback(mFrameCallback, mFramePixelFormat);
+			}
+			mUVCCamera.startPreview();
+		}
+
+		/**
+		 * SOI at the start and EOI within the trailing bytes, some cameras pad frames.
+		 * the receiver validates the marker chain itself
+		 */
+		static boolean isCompleteJpeg(final byte[] data) {
+			if ((data == null) || (data.length < 4)
+				|| ((data[0] & 0xff) != 0xff) || ((data[1] & 0xff) != 0xd8)) {
+				return false;
+			}
+			final int end = Math.max(2, data.length - MAX_JPEG_TRAILING_BYTES - 2);
+			for (int i = data.length - 2; i >= end; i--) {
+				if (((data[i] & 0xff) == 0xff) && ((data[i + 1] & 0xff) == 0xd9)) {
+					return true;
+				}
+			}
+			return false;
+		}
+
+		private final IFrameCallback mFullResolutionCallback = new IFrameCallback() {
+			@Override
+			public void onFrame(final ByteBuffer frame) {
+				// called on the native frame thread, only the first frame is taken
+				if (!mStillFrameWanted.compareAndSet(true, false)) return;
+				final byte[] data = new byte[frame.remaining()];
+				frame.get(data);
+				mHandler.sendMessage(mHandler.obtainMessage(MSG_FULL_RES_FRAME, data));
+			}
+		};
+
 		public void handleStartRecording(boolean recordAudio) {
 			if (DEBUG) Log.v(TAG_THREAD, "handleStartRecording:");
 			try {
@@ -565,16 +1000,16 @@ abstract class AbstractUVCCameraHandler extends Handler {
 					new MediaVideoEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
 					break;
 				case 2:	// for video capturing using MediaVideoBufferEncoder
-					videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+					videoEncoder = new MediaVideoBufferEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener, mAsyncEncoding);
 					break;
 				// case 0:	// for video capturing using MediaSurfaceEncoder
 				default:
-					new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener);
+					new MediaSurfaceEncoder(muxer, getWidth(), getHeight(), mMediaEncoderListener, mAsyncEncoding);
 					break;
 				}
 				if (recordAudio) {
 					// for audio capturing
-					new MediaAudioEncoder(muxer, mMediaEncoderListener);
+					new MediaAudioEncoder(muxer, mMediaEncoderListener, mAsyncEncoding);
 				}
 				muxer.prepare();
 				muxer.startRecording();
@@ -611,7 +1046,8 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			if (muxer != null) {
 				String outputPath = muxer.getOutputPath();
 				muxer.stopRecording();
-				mUVCCamera.setFrameCallback(null, 0);
+				// hand the frames back to the client callback, if any
+				mUVCCamera.setFrameCallback(mFrameCallback, mFrameCallback != null ? mFramePixelFormat : 0);
 				// you should not wait here
 				callOnStopRecording(outputPath);
 			}
@@ -669,6 +1105,12 @@ abstract class AbstractUVCCameraHandler extends Handler {
 			return mUVCCamera.getSupportedSizeList();
 		}
 
+		public Size getPreviewSize() {
+			if ((mUVCCamera == null) || !mIsPreviewing)
+				return null;
+			return mUVCCamera.getPreviewSize();
+		}
+
 		public void handleCameraFocus() {
 			if ((mUVCCamera == null) || !mIsPreviewing)
 				return;
@@ -0,0 +1,316 @@
+package id.periksa.plugins.usbcamera;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import com.serenegiant.usb_libuvccamera.IFrameCallback;
+import com.serenegiant.usb_libuvccamera.UVCCamera;
+import com.serenegiant.usbcameracommon.UVCCameraHandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Burst capture with frames from before and after the shutter
+ *
+ * While started, every preview frame is copied into a {@link PreCaptureRing}
+ * of pooled NV21 arrays. A trigger takes the last frames up to the shutter
+ * time plus the next ones after it and compresses them to JPEG on a small
+ * worker pool, several frames at once. Each image is delivered as soon as it
+ * is encoded, so results can arrive out of order; the index tells the
+ * position in the burst.
+ *
+ * For handheld stills the ring can score every frame's sharpness instead,
+ * and triggerSharpest() encodes only the sharpest of the latest frames.
+ *
+ * One burst at a time, callbacks run on the worker threads.
+ */
+public class BurstCapture {
+    private static final String TAG = "BurstCapture";
+
+    /**
+     * Time to wait for the frames after the trigger before the burst ends with what it has
+     */
+    public static final long AFTER_FRAMES_TIMEOUT_MS = 3000;
+
+    public interface Callback {
+        /**
+         * One image of the burst is ready
+         *
+         * @param jpeg Encoded image, position 0 to limit, only valid during the call
+         * @param index Position in the burst, 0 is the oldest frame
+         * @param width Image width
+         * @param height Image height
+         * @param offsetMs Capture time relative to the shutter, negative before it
+         */
+        void onBurstImage(ByteBuffer jpeg, int index, int width, int height, long offsetMs);
+
+        /**
+         * All images were delivered
+         *
+         * @param count Images delivered
+         * @param failed Frames that could not be encoded
+         */
+        void onBurstComplete(int count, int failed);
+    }
+
+    private final UVCCameraHandler mCameraHandler;
+    private final PreCaptureRing mRing;
+    private final ExecutorService mExecutor;
+    private final Handler mTimeoutHandler = new Handler(Looper.getMainLooper());
+    private final AtomicBoolean mPending = new AtomicBoolean(false);
+
+    /**
+     * @param capacity Frames kept before the shutter
+     */
+    public BurstCapture(UVCCameraHandler cameraHandler, int capacity) {
+        this(cameraHandler, capacity, false);
+    }
+
+    /**
+     * @param capacity Frames kept before the shutter
+     * @param scoreSharpness Score every frame for triggerSharpest()
+     */
+    public BurstCapture(UVCCameraHandler cameraHandler, int capacity, boolean scoreSharpness) {
+        mCameraHandler = cameraHandler;
+        mRing = new PreCaptureRing(capacity, scoreSharpness);
+        // JPEG compression dominates, leave a core for the camera and the UI
+        int threadCount = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+        mExecutor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "BurstEncoder-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start filling the ring from the preview
+     */
+    public void start() {
+        mCameraHandler.setFrameCallback(mFrameCallback, UVCCamera.PIXEL_FORMAT_NV21);
+    }
+
+    /**
+     * Capture a burst around now
+     *
+     * @param before Frames up to the shutter, at most the ring capacity
+     * @param after Frames after the shutter
+     * @param maxWidth Output width limit, 0 for the camera width
+     * @param maxHeight Output height limit, 0 for the camera height
+     * @param quality JPEG quality 0-100
+     * @return false if a burst is already running
+     */
+    public boolean trigger(int before, int after, int maxWidth, int maxHeight, int quality, Callback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        if (before < 0 || after < 0 || before + after == 0 || before > mRing.getCapacity()) {
+            throw new IllegalArgumentException("Invalid burst " + before + " + " + after
+                + ", ring holds " + mRing.getCapacity());
+        }
+        if (!mPending.compareAndSet(false, true)) {
+            return false;
+        }
+        // Taken at the shutter, the camera thread may be busy for a moment
+        final long triggerNs = System.nanoTime();
+        final Burst burst = new Burst(callback, quality, maxWidth, maxHeight);
+        final int beforeCount = before;
+        final int afterCount = after;
+        mCameraHandler.captureBurst(new Runnable() {
+            @Override
+            public void run() {
+                mTimeoutHandler.removeCallbacks(mTimeout);
+                mRing.trigger(triggerNs, beforeCount, afterCount, burst);
+                if (mRing.isCapturing()) {
+                    mTimeoutHandler.postDelayed(mTimeout, AFTER_FRAMES_TIMEOUT_MS);
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Capture the sharpest of the latest frames up to now as a single image
+     *
+     * @param candidates Frames to choose from, at most the ring capacity
+     * @param maxWidth Output width limit, 0 for the camera width
+     * @param maxHeight Output height limit, 0 for the camera height
+     * @param quality JPEG quality 0-100
+     * @return false if a capture is already running
+     */
+    public boolean triggerSharpest(int candidates, int maxWidth, int maxHeight, int quality, Callback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        if (candidates <= 0 || candidates > mRing.getCapacity()) {
+            throw new IllegalArgumentException("Invalid candidate count " + candidates
+                + ", ring holds " + mRing.getCapacity());
+        }
+        if (!mPending.compareAndSet(false, true)) {
+            return false;
+        }
+        final long triggerNs = System.nanoTime();
+        final Burst burst = new Burst(callback, quality, maxWidth, maxHeight);
+        final int candidateCount = candidates;
+        mCameraHandler.captureBurst(new Runnable() {
+            @Override
+            public void run() {
+                mTimeoutHandler.removeCallbacks(mTimeout);
+                mRing.selectSharpest(triggerNs, candidateCount, burst);
+                if (mRing.isCapturing()) {
+                    mTimeoutHandler.postDelayed(mTimeout, AFTER_FRAMES_TIMEOUT_MS);
+                } else {
+                    Log.d(TAG, "Sharpest of " + candidateCount + " frames scored " + mRing.getSelectedSharpness());
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Sharpness score of the frame picked by the last triggerSharpest(), -1 if unknown
+     */
+    public double getSelectedSharpness() {
+        return mRing.getSelectedSharpness();
+    }
+
+    public boolean isCapturing() {
+        return mPending.get();
+    }
+
+    /**
+     * Stop capturing, a burst in progress ends with the images encoded so far
+     */
+    public void release() {
+        mCameraHandler.setFrameCallback(null, 0);
+        mTimeoutHandler.removeCallbacks(mTimeout);
+        mRing.cancel();
+        mExecutor.shutdown();
+        mRing.clear();
+    }
+
+    private final IFrameCallback mFrameCallback = new IFrameCallback() {
+        @Override
+        public void onFrame(final ByteBuffer frame) {
+            // Runs on the native frame thread, the buffer is only valid during the call
+            final int width = mCameraHandler.getWidth();
+            final int height = mCameraHandler.getHeight();
+            if (frame.remaining() < NV21FramePool.frameSize(width, height)) {
+                return;
+            }
+            mRing.offer(frame, width, height, System.nanoTime());
+        }
+    };
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (mRing.isCapturing()) {
+                Log.w(TAG, "Burst frames did not arrive within " + AFTER_FRAMES_TIMEOUT_MS + " ms");
+                mRing.cancel();
+            }
+        }
+    };
+
+    /**
+     * State of one burst, fed by the ring and completed by the workers
+     */
+    private class Burst implements PreCaptureRing.Listener {
+        private final Callback callback;
+        private final int quality;
+        private final int maxWidth;
+        private final int maxHeight;
+        // Idle encoders, one per worker at most
+        private final ConcurrentLinkedQueue<FrameEncoder> encoders = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger finished = new AtomicInteger(0);
+        private final AtomicInteger failed = new AtomicInteger(0);
+        private final AtomicBoolean completed = new AtomicBoolean(false);
+        private final long startNs = System.nanoTime();
+        // Frame count, known once the ring handed over the last frame
+        private volatile int expected = -1;
+
+        Burst(Callback callback, int quality, int maxWidth, int maxHeight) {
+            this.callback = callback;
+            this.quality = quality;
+            this.maxWidth = maxWidth;
+            this.maxHeight = maxHeight;
+        }
+
+        @Override
+        public void onBurstFrame(final NV21FramePool.Frame frame, final int index, final long offsetNs) {
+            // Called with the ring locked, only queue the frame
+            try {
+                mExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        encode(frame, index, offsetNs);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // Released meanwhile
+                frame.release();
+                failed.incrementAndGet();
+                finished.incrementAndGet();
+            }
+        }
+
+        @Override
+        public void onBurstComplete(int count) {
+            mTimeoutHandler.removeCallbacks(mTimeout);
+            expected = count;
+            checkCompleted();
+        }
+
+        private void encode(NV21FramePool.Frame frame, int index, long offsetNs) {
+            FrameEncoder encoder = encoders.poll();
+            if (encoder == null) {
+                encoder = new FrameEncoder(FrameEncoder.Format.JPEG, quality, maxWidth, maxHeight);
+            }
+            try {
+                ByteBuffer jpeg;
+                try {
+                    jpeg = encoder.encode(ByteBuffer.wrap(frame.data), frame.width, frame.height);
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Error encoding burst frame " + index, e);
+                    failed.incrementAndGet();
+                    return;
+                } finally {
+                    frame.release();
+                }
+                callback.onBurstImage(jpeg, index, encoder.getEncodedWidth(), encoder.getEncodedHeight(),
+                    offsetNs / 1000000);
+            } finally {
+                encoders.offer(encoder);
+                finished.incrementAndGet();
+                checkCompleted();
+            }
+        }
+
+        private void checkCompleted() {
+            int count = expected;
+            if (count < 0 || finished.get() < count || !completed.compareAndSet(false, true)) {
+                return;
+            }
+            FrameEncoder encoder;
+            while ((encoder = encoders.poll()) != null) {
+                encoder.release();
+            }
+            Log.d(TAG, "Burst of " + count + " frames in " + (System.nanoTime() - startNs) / 1000000
+                + " ms, " + failed.get() + " failed");
+            mPending.set(false);
+            callback.onBurstComplete(count - failed.get(), failed.get());
+        }
+    }
+}
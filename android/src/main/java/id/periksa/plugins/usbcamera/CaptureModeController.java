@@ -0,0 +1,269 @@
+package id.periksa.plugins.usbcamera;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Picks the camera mode from downstream pressure, so USB bandwidth and CPU
+ * follow what is actually sent
+ *
+ * The supported modes form a ladder ordered by pixel rate (width x height x
+ * fps). Fed periodically with the hand-off queue depth, the conversion time
+ * per frame and an optional target from the sink, e.g. derived from the
+ * bandwidth estimate, the controller steps down when the pipeline falls
+ * behind or sends more than the target, and back up when there is headroom.
+ *
+ * Hysteresis keeps it from oscillating: the step down and step up
+ * thresholds are apart, each condition has to hold for a while, a step up
+ * must fit the predicted conversion time of the larger mode, and no decision
+ * is taken while a new mode settles.
+ *
+ * Not thread-safe, meant to be driven from one thread.
+ */
+public class CaptureModeController {
+    /**
+     * Pressure held this long before stepping down
+     */
+    public static final long DEFAULT_DOWN_HOLD_MS = 2000;
+    /**
+     * Headroom held this long before stepping up
+     */
+    public static final long DEFAULT_UP_HOLD_MS = 10000;
+    /**
+     * No decisions this long after a change, the switch itself disturbs the statistics
+     */
+    public static final long DEFAULT_SETTLE_MS = 3000;
+
+    // Queue fill and conversion share of the frame interval that count as pressure
+    static final double QUEUE_HIGH = 0.5;
+    static final double LOAD_HIGH = 0.6;
+    // Stepping up needs a nearly empty queue and a predicted load well below LOAD_HIGH
+    static final double QUEUE_LOW = 0.25;
+    static final double LOAD_LOW = 0.35;
+
+    /**
+     * One camera mode
+     */
+    public static final class Mode {
+        public final int width;
+        public final int height;
+        public final float fps;
+
+        public Mode(int width, int height, float fps) {
+            if (width <= 0 || height <= 0 || !(fps > 0f)) {
+                throw new IllegalArgumentException("Invalid mode " + width + "x" + height + " @ " + fps);
+            }
+            this.width = width;
+            this.height = height;
+            this.fps = fps;
+        }
+
+        public long getPixels() {
+            return (long) width * height;
+        }
+
+        public double getPixelRate() {
+            return getPixels() * (double) fps;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Mode)) return false;
+            Mode other = (Mode) o;
+            return width == other.width && height == other.height && Float.compare(fps, other.fps) == 0;
+        }
+
+        @Override
+        public int hashCode() {
+            return (width * 31 + height) * 31 + Float.floatToIntBits(fps);
+        }
+
+        @Override
+        public String toString() {
+            return width + "x" + height + " @ " + fps;
+        }
+    }
+
+    private final List<Mode> modes;
+    private final long downHoldMs;
+    private final long upHoldMs;
+    private final long settleMs;
+
+    private int index;
+    private double targetPixelRate = 0;
+    private long lastChangeMs;
+    private long pressureSinceMs = -1;
+    private long headroomSinceMs = -1;
+    private int changeCount = 0;
+
+    /**
+     * @param supported Modes the camera supports, larger ones than current are ignored
+     * @param current Running mode, the top of the ladder
+     * @param nowMs Current time in ms, starts the settle period
+     */
+    public CaptureModeController(List<Mode> supported, Mode current, long nowMs) {
+        this(supported, current, nowMs, DEFAULT_DOWN_HOLD_MS, DEFAULT_UP_HOLD_MS, DEFAULT_SETTLE_MS);
+    }
+
+    public CaptureModeController(List<Mode> supported, Mode current, long nowMs,
+                                 long downHoldMs, long upHoldMs, long settleMs) {
+        if (supported == null || current == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        if (downHoldMs < 0 || upHoldMs < 0 || settleMs < 0) {
+            throw new IllegalArgumentException("Hold and settle times must not be negative");
+        }
+        this.downHoldMs = downHoldMs;
+        this.upHoldMs = upHoldMs;
+        this.settleMs = settleMs;
+
+        List<Mode> ladder = new ArrayList<>();
+        ladder.add(current);
+        for (Mode mode : supported) {
+            if (mode != null && !ladder.contains(mode) && mode.width <= current.width
+                    && mode.height <= current.height && mode.getPixelRate() < current.getPixelRate()) {
+                ladder.add(mode);
+            }
+        }
+        Collections.sort(ladder, new Comparator<Mode>() {
+            @Override
+            public int compare(Mode a, Mode b) {
+                int byRate = Double.compare(a.getPixelRate(), b.getPixelRate());
+                return byRate != 0 ? byRate : Long.compare(a.getPixels(), b.getPixels());
+            }
+        });
+        modes = Collections.unmodifiableList(ladder);
+        index = modes.size() - 1;
+        lastChangeMs = nowMs;
+    }
+
+    /**
+     * Modes from the smallest to the largest pixel rate
+     */
+    public List<Mode> getModes() {
+        return modes;
+    }
+
+    public Mode getCurrentMode() {
+        return modes.get(index);
+    }
+
+    /**
+     * Number of mode changes proposed so far
+     */
+    public int getChangeCount() {
+        return changeCount;
+    }
+
+    /**
+     * Upper bound from the sink for the pixels sent per second, 0 for none
+     */
+    public void setTargetPixelRate(double pixelsPerSecond) {
+        if (pixelsPerSecond < 0 || Double.isNaN(pixelsPerSecond)) {
+            throw new IllegalArgumentException("Invalid target " + pixelsPerSecond);
+        }
+        targetPixelRate = pixelsPerSecond;
+    }
+
+    public double getTargetPixelRate() {
+        return targetPixelRate;
+    }
+
+    /**
+     * Evaluate the latest statistics
+     *
+     * @param nowMs Current time in ms
+     * @param queueDepth Frames waiting for delivery
+     * @param queueCapacity Capacity of the hand-off queue, 0 for synchronous delivery
+     * @param conversionNs Recent conversion time per frame
+     * @return Mode to switch to, or null to keep the current one
+     */
+    public Mode update(long nowMs, int queueDepth, int queueCapacity, long conversionNs) {
+        if (nowMs - lastChangeMs < settleMs) {
+            pressureSinceMs = -1;
+            headroomSinceMs = -1;
+            return null;
+        }
+        Mode current = modes.get(index);
+        double fill = queueCapacity > 0 ? (double) queueDepth / queueCapacity : 0;
+        double load = loadOf(conversionNs, current.fps);
+        boolean overTarget = targetPixelRate > 0 && current.getPixelRate() > targetPixelRate;
+
+        if (overTarget || fill >= QUEUE_HIGH || load >= LOAD_HIGH) {
+            headroomSinceMs = -1;
+            if (pressureSinceMs < 0) {
+                pressureSinceMs = nowMs;
+            }
+            if (index == 0 || nowMs - pressureSinceMs < downHoldMs) {
+                return null;
+            }
+            int next = index - 1;
+            if (overTarget) {
+                // Straight to the largest mode within the target
+                while (next > 0 && modes.get(next).getPixelRate() > targetPixelRate) {
+                    next--;
+                }
+            }
+            return change(next, nowMs);
+        }
+        pressureSinceMs = -1;
+
+        if (index == modes.size() - 1) {
+            headroomSinceMs = -1;
+            return null;
+        }
+        Mode larger = modes.get(index + 1);
+        // Conversion time grows with the frame size
+        long predictedNs = conversionNs * larger.getPixels() / current.getPixels();
+        boolean headroom = fill <= QUEUE_LOW && loadOf(predictedNs, larger.fps) < LOAD_LOW
+            && (targetPixelRate <= 0 || larger.getPixelRate() <= targetPixelRate);
+        if (!headroom) {
+            headroomSinceMs = -1;
+            return null;
+        }
+        if (headroomSinceMs < 0) {
+            headroomSinceMs = nowMs;
+        }
+        return nowMs - headroomSinceMs >= upHoldMs ? change(index + 1, nowMs) : null;
+    }
+
+    /**
+     * Report the mode the camera actually negotiated after a change, restarts the settle period
+     */
+    public void onModeApplied(Mode mode, long nowMs) {
+        int applied = modes.indexOf(mode);
+        if (applied < 0) {
+            // Closest rung by pixel rate
+            applied = 0;
+            for (int i = 1; i < modes.size(); i++) {
+                if (Math.abs(modes.get(i).getPixelRate() - mode.getPixelRate())
+                        < Math.abs(modes.get(applied).getPixelRate() - mode.getPixelRate())) {
+                    applied = i;
+                }
+            }
+        }
+        index = applied;
+        lastChangeMs = nowMs;
+        pressureSinceMs = -1;
+        headroomSinceMs = -1;
+    }
+
+    private Mode change(int next, long nowMs) {
+        index = next;
+        lastChangeMs = nowMs;
+        pressureSinceMs = -1;
+        headroomSinceMs = -1;
+        changeCount++;
+        return modes.get(index);
+    }
+
+    /**
+     * Conversion time as a share of the frame interval
+     */
+    private static double loadOf(long conversionNs, float fps) {
+        return conversionNs * (double) fps / 1000000000.0;
+    }
+}
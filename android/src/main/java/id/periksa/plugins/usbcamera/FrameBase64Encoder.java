@@ -0,0 +1,112 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Base64 encoder for frame events with reusable buffers
+ *
+ * android.util.Base64.encodeToString needs a byte array, allocates a fresh
+ * output array per call and then copies it into the String. This encoder
+ * reads straight from the (direct) ring slot in bulk chunks, writes into
+ * an output array kept between frames and an optional prefix such as
+ * "data:image/jpeg;base64," goes into the same array, so a frame costs a
+ * single allocation: the String handed to the bridge.
+ *
+ * Not thread-safe, owned by one thread such as the frame reader or a burst worker.
+ */
+public class FrameBase64Encoder {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] ALPHABET =
+        "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".getBytes(ASCII);
+
+    /**
+     * Source bytes read per bulk get, a multiple of 3 so chunks need no carry-over
+     */
+    private static final int CHUNK_BYTES = 3 * 4096;
+
+    private final byte[] chunk = new byte[CHUNK_BYTES];
+    private byte[] output = new byte[0];
+
+    private long encodeCount = 0;
+    private long totalEncodeNs = 0;
+
+    /**
+     * Encoded length of n bytes, with padding
+     */
+    public static int encodedLength(int n) {
+        return (n + 2) / 3 * 4;
+    }
+
+    /**
+     * Encode a frame
+     *
+     * @param src Frame bytes, read from its current position and left unchanged
+     * @param prefix Text put in front of the Base64 data, e.g. a data URL header, or null
+     * @return Prefix followed by the padded Base64 encoding, no line breaks
+     */
+    public String encode(ByteBuffer src, String prefix) {
+        long startNs = System.nanoTime();
+        int length = src.remaining();
+        int prefixLength = prefix != null ? prefix.length() : 0;
+        int total = prefixLength + encodedLength(length);
+        if (output.length < total) {
+            // Headroom so small size changes, e.g. JPEG output, do not reallocate every frame
+            output = new byte[total + total / 8];
+        }
+        for (int i = 0; i < prefixLength; i++) {
+            output[i] = (byte) prefix.charAt(i);
+        }
+
+        ByteBuffer in = src.duplicate();
+        int out = prefixLength;
+        while (in.hasRemaining()) {
+            int n = Math.min(CHUNK_BYTES, in.remaining());
+            in.get(chunk, 0, n);
+            out = encodeChunk(chunk, n, output, out);
+        }
+
+        String result = new String(output, 0, out, ASCII);
+        encodeCount++;
+        totalEncodeNs += System.nanoTime() - startNs;
+        return result;
+    }
+
+    private static int encodeChunk(byte[] in, int n, byte[] out, int pos) {
+        int full = n - n % 3;
+        for (int i = 0; i < full; i += 3) {
+            int bits = (in[i] & 0xff) << 16 | (in[i + 1] & 0xff) << 8 | (in[i + 2] & 0xff);
+            out[pos] = ALPHABET[bits >>> 18];
+            out[pos + 1] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[pos + 2] = ALPHABET[(bits >>> 6) & 0x3f];
+            out[pos + 3] = ALPHABET[bits & 0x3f];
+            pos += 4;
+        }
+        // Only the last chunk can end in a partial group
+        int rest = n - full;
+        if (rest > 0) {
+            int bits = (in[full] & 0xff) << 16 | (rest == 2 ? (in[full + 1] & 0xff) << 8 : 0);
+            out[pos] = ALPHABET[bits >>> 18];
+            out[pos + 1] = ALPHABET[(bits >>> 12) & 0x3f];
+            out[pos + 2] = rest == 2 ? ALPHABET[(bits >>> 6) & 0x3f] : (byte) '=';
+            out[pos + 3] = (byte) '=';
+            pos += 4;
+        }
+        return pos;
+    }
+
+    public long getEncodeCount() {
+        return encodeCount;
+    }
+
+    public long getAverageEncodeNs() {
+        return encodeCount > 0 ? totalEncodeNs / encodeCount : 0;
+    }
+
+    /**
+     * Drop the output buffer
+     */
+    public void release() {
+        output = new byte[0];
+    }
+}
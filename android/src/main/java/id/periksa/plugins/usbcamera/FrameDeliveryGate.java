@@ -0,0 +1,148 @@
+package id.periksa.plugins.usbcamera;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Flow control for frames sent to JavaScript over the Capacitor bridge
+ *
+ * notifyListeners never blocks: when the WebView's JS thread is busy every
+ * frame queues up in the bridge and latency grows without bound. The gate
+ * keeps at most one frame in flight, the reader thread only takes a frame
+ * from the ring when the gate is open, so the newest frame always wins and
+ * everything older is skipped and counted.
+ *
+ * <ul>
+ * <li>PUSH: every frame the reader gets to is sent, the previous behavior</li>
+ * <li>ACK: the next frame is sent once JS acknowledged the previous one, or
+ * after {@link #ACK_TIMEOUT_MS} so a lost acknowledgement cannot stall the stream</li>
+ * <li>PULL: a frame is sent only in answer to a request from JS</li>
+ * </ul>
+ */
+public class FrameDeliveryGate {
+    /**
+     * Time after which an unacknowledged frame no longer holds back the next one
+     */
+    public static final long ACK_TIMEOUT_MS = 1000;
+
+    public enum Mode {
+        PUSH, ACK, PULL;
+
+        /**
+         * Parse the JS option value, unknown values fall back to PUSH
+         */
+        public static Mode fromOption(String value) {
+            if ("ack".equalsIgnoreCase(value)) return ACK;
+            if ("pull".equalsIgnoreCase(value)) return PULL;
+            return PUSH;
+        }
+    }
+
+    private final Mode mode;
+    private final AtomicBoolean awaitingAck = new AtomicBoolean(false);
+    private final AtomicInteger pendingRequests = new AtomicInteger(0);
+    private volatile long inFlightFrameNumber = -1;
+    private volatile long inFlightSinceMs = 0;
+
+    private final AtomicLong deliveredCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong ackTimeoutCount = new AtomicLong(0);
+
+    public FrameDeliveryGate(Mode mode) {
+        if (mode == null) {
+            throw new IllegalArgumentException("mode must not be null");
+        }
+        this.mode = mode;
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    /**
+     * Whether the next frame may be sent now
+     *
+     * @param nowMs Current time, e.g. SystemClock.uptimeMillis()
+     */
+    public boolean canDeliver(long nowMs) {
+        if (pendingRequests.get() > 0) {
+            return true;
+        }
+        switch (mode) {
+            case ACK:
+                if (!awaitingAck.get()) {
+                    return true;
+                }
+                if (nowMs - inFlightSinceMs >= ACK_TIMEOUT_MS && awaitingAck.compareAndSet(true, false)) {
+                    ackTimeoutCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            case PULL:
+                return false;
+            default:
+                return true;
+        }
+    }
+
+    /**
+     * Record a sent frame, answering all pending requests
+     *
+     * @param frameNumber Number of the sent frame
+     * @param skipped Frames published since the last sent one that were never sent
+     * @param nowMs Current time in the canDeliver() time base
+     */
+    public void onDelivered(long frameNumber, long skipped, long nowMs) {
+        deliveredCount.incrementAndGet();
+        if (skipped > 0) {
+            droppedCount.addAndGet(skipped);
+        }
+        pendingRequests.set(0);
+        inFlightFrameNumber = frameNumber;
+        inFlightSinceMs = nowMs;
+        if (mode == Mode.ACK) {
+            awaitingAck.set(true);
+        }
+    }
+
+    /**
+     * JS finished with a frame
+     *
+     * @param frameNumber Acknowledged frame, -1 for whatever frame is in flight
+     * @return true if this opened the gate
+     */
+    public boolean acknowledge(long frameNumber) {
+        if (frameNumber >= 0 && frameNumber != inFlightFrameNumber) {
+            // Late acknowledgement of a frame that already timed out
+            return false;
+        }
+        return awaitingAck.compareAndSet(true, false);
+    }
+
+    /**
+     * JS asked for the next frame, opens the gate for one delivery in any mode
+     */
+    public void request() {
+        pendingRequests.incrementAndGet();
+    }
+
+    public int getPendingRequests() {
+        return pendingRequests.get();
+    }
+
+    public long getDeliveredCount() {
+        return deliveredCount.get();
+    }
+
+    /**
+     * Frames that were never sent because a newer one replaced them
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getAckTimeoutCount() {
+        return ackTimeoutCount.get();
+    }
+}
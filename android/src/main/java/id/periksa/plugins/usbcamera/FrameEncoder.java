@@ -0,0 +1,262 @@
+package id.periksa.plugins.usbcamera;
+
+import android.graphics.Bitmap;
+import android.graphics.ImageFormat;
+import android.graphics.Rect;
+import android.graphics.YuvImage;
+import android.os.Build;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Compresses NV21 frames for the JavaScript frame stream
+ *
+ * JS consumers only draw frames or hand them to the LiveKit web SDK, so
+ * a downscaled JPEG or WebP is a fraction of the raw YUV420SP size. The
+ * frame is box-filtered to the output size first, then JPEG goes through
+ * YuvImage straight from NV21, WebP through a reused ARGB bitmap.
+ * Scratch arrays, the bitmap and the output stream are kept between
+ * frames, the encoder is meant to run on one worker thread.
+ *
+ * Not thread-safe.
+ */
+public class FrameEncoder {
+    public enum Format {
+        RAW("YUV420SP", FrameWebSocketServer.FORMAT_YUV420SP, null),
+        JPEG("JPEG", FrameWebSocketServer.FORMAT_JPEG, "image/jpeg"),
+        WEBP("WEBP", FrameWebSocketServer.FORMAT_WEBP, "image/webp");
+
+        /** Format name reported to JavaScript */
+        public final String label;
+        /** Format code in the binary WebSocket header */
+        public final int binaryFormat;
+        /** MIME type for data URLs, null for raw frames */
+        public final String mimeType;
+
+        Format(String label, int binaryFormat, String mimeType) {
+            this.label = label;
+            this.binaryFormat = binaryFormat;
+            this.mimeType = mimeType;
+        }
+
+        /**
+         * Parse the JS option value, unknown values fall back to RAW
+         */
+        public static Format fromOption(String value) {
+            if ("jpeg".equalsIgnoreCase(value)) return JPEG;
+            if ("webp".equalsIgnoreCase(value)) return WEBP;
+            return RAW;
+        }
+    }
+
+    public static final int DEFAULT_QUALITY = 80;
+
+    private final Format format;
+    private final int quality;
+    private final int maxWidth;
+    private final int maxHeight;
+
+    private NV21Scaler scaler;
+    private byte[] frameScratch;
+    private int[] argbScratch;
+    private Bitmap bitmap;
+    private final ExposedByteArrayOutputStream output = new ExposedByteArrayOutputStream();
+
+    private int encodedWidth;
+    private int encodedHeight;
+    private long encodeCount = 0;
+    private long totalInputBytes = 0;
+    private long totalOutputBytes = 0;
+    private long totalEncodeNs = 0;
+
+    /**
+     * @param format Output format
+     * @param quality Compression quality 0-100, ignored for RAW
+     * @param maxWidth Output width limit, 0 for the camera width
+     * @param maxHeight Output height limit, 0 for the camera height
+     */
+    public FrameEncoder(Format format, int quality, int maxWidth, int maxHeight) {
+        if (format == null || quality < 0 || quality > 100 || maxWidth < 0 || maxHeight < 0) {
+            throw new IllegalArgumentException("Invalid encoder settings");
+        }
+        this.format = format;
+        this.quality = quality;
+        this.maxWidth = maxWidth;
+        this.maxHeight = maxHeight;
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    /**
+     * Whether frames pass through untouched, i.e. raw format at camera size
+     */
+    public boolean isPassThrough(int width, int height) {
+        if (format != Format.RAW) {
+            return false;
+        }
+        int[] size = NV21Scaler.fitSize(width, height, maxWidth, maxHeight);
+        return size[0] == width && size[1] == height;
+    }
+
+    /**
+     * Encode one frame
+     *
+     * The result stays valid until the next call.
+     *
+     * @param nv21Data Tightly packed NV21 frame, read from its current position and left unchanged
+     * @param width Frame width
+     * @param height Frame height
+     * @return Encoded frame bytes, position 0 to limit
+     */
+    public ByteBuffer encode(ByteBuffer nv21Data, int width, int height) {
+        long startNs = System.nanoTime();
+        int[] size = NV21Scaler.fitSize(width, height, maxWidth, maxHeight);
+        int outWidth = size[0];
+        int outHeight = size[1];
+        int outSize = NV21FramePool.frameSize(outWidth, outHeight);
+        if (frameScratch == null || frameScratch.length < outSize) {
+            frameScratch = new byte[outSize];
+        }
+
+        if (outWidth == width && outHeight == height) {
+            nv21Data.duplicate().get(frameScratch, 0, outSize);
+        } else {
+            if (scaler == null || scaler.getDstWidth() != outWidth || scaler.getDstHeight() != outHeight) {
+                scaler = new NV21Scaler(width, height, outWidth, outHeight);
+            }
+            scaler.scale(nv21Data, frameScratch);
+        }
+
+        ByteBuffer result;
+        switch (format) {
+            case JPEG:
+                output.reset();
+                YuvImage image = new YuvImage(frameScratch, ImageFormat.NV21, outWidth, outHeight, null);
+                image.compressToJpeg(new Rect(0, 0, outWidth, outHeight), quality, output);
+                result = output.asByteBuffer();
+                break;
+            case WEBP:
+                output.reset();
+                Bitmap frameBitmap = toBitmap(frameScratch, outWidth, outHeight);
+                frameBitmap.compress(webpFormat(), quality, output);
+                result = output.asByteBuffer();
+                break;
+            default:
+                result = ByteBuffer.wrap(frameScratch, 0, outSize).slice();
+                break;
+        }
+
+        encodedWidth = outWidth;
+        encodedHeight = outHeight;
+        encodeCount++;
+        totalInputBytes += NV21FramePool.frameSize(width, height);
+        totalOutputBytes += result.remaining();
+        totalEncodeNs += System.nanoTime() - startNs;
+        return result;
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat webpFormat() {
+        return Build.VERSION.SDK_INT >= Build.VERSION_CODES.R
+            ? Bitmap.CompressFormat.WEBP_LOSSY
+            : Bitmap.CompressFormat.WEBP;
+    }
+
+    private Bitmap toBitmap(byte[] nv21, int width, int height) {
+        int pixels = width * height;
+        if (argbScratch == null || argbScratch.length < pixels) {
+            argbScratch = new int[pixels];
+        }
+        if (bitmap == null || bitmap.getWidth() != width || bitmap.getHeight() != height) {
+            if (bitmap != null) {
+                bitmap.recycle();
+            }
+            bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        }
+        nv21ToArgb(nv21, width, height, argbScratch);
+        bitmap.setPixels(argbScratch, 0, width, 0, 0, width, height);
+        return bitmap;
+    }
+
+    /**
+     * BT.601 limited range NV21 to ARGB, 10 bit fixed point
+     */
+    static void nv21ToArgb(byte[] nv21, int width, int height, int[] argb) {
+        int chromaOffset = width * height;
+        int chromaStride = ((width + 1) / 2) * 2;
+        for (int y = 0; y < height; y++) {
+            int vuRow = chromaOffset + (y >> 1) * chromaStride;
+            int out = y * width;
+            for (int x = 0; x < width; x++) {
+                int luma = Math.max(0, (nv21[out + x] & 0xff) - 16) * 1192;
+                int vu = vuRow + (x & ~1);
+                int v = (nv21[vu] & 0xff) - 128;
+                int u = (nv21[vu + 1] & 0xff) - 128;
+
+                int r = clamp((luma + 1634 * v + 512) >> 10);
+                int g = clamp((luma - 833 * v - 400 * u + 512) >> 10);
+                int b = clamp((luma + 2066 * u + 512) >> 10);
+                argb[out + x] = 0xff000000 | (r << 16) | (g << 8) | b;
+            }
+        }
+    }
+
+    private static int clamp(int value) {
+        return value < 0 ? 0 : (value > 255 ? 255 : value);
+    }
+
+    /**
+     * Size of the last encoded frame
+     */
+    public int getEncodedWidth() {
+        return encodedWidth;
+    }
+
+    public int getEncodedHeight() {
+        return encodedHeight;
+    }
+
+    public long getEncodeCount() {
+        return encodeCount;
+    }
+
+    /**
+     * Raw NV21 bytes in per encoded byte out, averaged over all frames
+     */
+    public double getCompressionRatio() {
+        return totalOutputBytes > 0 ? (double) totalInputBytes / totalOutputBytes : 0;
+    }
+
+    public long getAverageEncodeNs() {
+        return encodeCount > 0 ? totalEncodeNs / encodeCount : 0;
+    }
+
+    /**
+     * Drop the scratch buffers and the bitmap
+     */
+    public void release() {
+        if (bitmap != null) {
+            bitmap.recycle();
+            bitmap = null;
+        }
+        scaler = null;
+        frameScratch = null;
+        argbScratch = null;
+    }
+
+    /**
+     * Output stream whose buffer can be wrapped without the copy toByteArray() makes
+     */
+    private static final class ExposedByteArrayOutputStream extends ByteArrayOutputStream {
+        ExposedByteArrayOutputStream() {
+            super(64 * 1024);
+        }
+
+        ByteBuffer asByteBuffer() {
+            return ByteBuffer.wrap(buf, 0, count).slice();
+        }
+    }
+}
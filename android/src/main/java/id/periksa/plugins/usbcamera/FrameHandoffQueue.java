@@ -0,0 +1,301 @@
+package id.periksa.plugins.usbcamera;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free hand-off ring between one producer and one consumer thread
+ *
+ * Used to move converted frames off the native libuvc callback thread onto a
+ * delivery thread, so a stall in WebRTC never blocks USB frame delivery.
+ * What happens when the ring is full is decided by the {@link DropPolicy}.
+ * Items that are dropped, or left over when the queue is closed, are handed
+ * to the {@link DropListener} so pooled frames can be released.
+ *
+ * The producer owns the tail index. The head index is advanced with a CAS, so
+ * the producer can evict the oldest item under DROP_OLDEST while the consumer
+ * is taking from the same end.
+ */
+public class FrameHandoffQueue<T> {
+
+    /**
+     * What offer() does when the ring is full
+     */
+    public enum DropPolicy {
+        /** Evict the oldest queued item to make room, favours latency */
+        DROP_OLDEST,
+        /** Drop the item being offered, keeps already queued items */
+        DROP_NEWEST,
+        /** Wait on the producer thread until the consumer makes room */
+        BLOCK
+    }
+
+    /**
+     * Receives items that leave the queue without being taken
+     */
+    public interface DropListener<T> {
+        void onDropped(T item);
+    }
+
+    private final AtomicReferenceArray<T> slots;
+    private final int mask;
+    private final DropPolicy dropPolicy;
+    private final DropListener<T> dropListener;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    // Parked threads, set just before parking so the other side knows to unpark
+    private volatile Thread waitingConsumer;
+    private volatile Thread waitingProducer;
+
+    private final AtomicLong offeredCount = new AtomicLong(0);
+    private final AtomicLong takenCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong blockedNs = new AtomicLong(0);
+    private volatile int maxDepth = 0;
+
+    /**
+     * @param capacity Maximum number of queued items, rounded up to a power of two
+     * @param dropPolicy Behaviour when the ring is full
+     * @param dropListener Receives dropped items, may be null
+     */
+    public FrameHandoffQueue(int capacity, DropPolicy dropPolicy, DropListener<T> dropListener) {
+        if (capacity <= 0 || capacity > (1 << 16)) {
+            throw new IllegalArgumentException("capacity must be between 1 and 65536");
+        }
+        if (dropPolicy == null) {
+            throw new IllegalArgumentException("dropPolicy must not be null");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity) {
+            size <<= 1;
+        }
+        this.slots = new AtomicReferenceArray<>(size);
+        this.mask = size - 1;
+        this.dropPolicy = dropPolicy;
+        this.dropListener = dropListener;
+    }
+
+    /**
+     * Queue an item, producer thread only
+     *
+     * @return true if the item was queued, false if it was dropped
+     */
+    public boolean offer(T item) {
+        if (item == null) {
+            throw new IllegalArgumentException("item must not be null");
+        }
+        offeredCount.incrementAndGet();
+        if (closed) {
+            drop(item);
+            return false;
+        }
+
+        long t = tail.get();
+        while (t - head.get() > mask) {
+            if (closed) {
+                drop(item);
+                return false;
+            }
+            switch (dropPolicy) {
+                case DROP_NEWEST:
+                    drop(item);
+                    return false;
+                case DROP_OLDEST:
+                    T oldest = removeHead();
+                    if (oldest != null) {
+                        drop(oldest);
+                    }
+                    break;
+                case BLOCK:
+                default:
+                    long start = System.nanoTime();
+                    waitingProducer = Thread.currentThread();
+                    if (t - head.get() > mask && !closed) {
+                        LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(10));
+                    }
+                    waitingProducer = null;
+                    blockedNs.addAndGet(System.nanoTime() - start);
+                    break;
+            }
+        }
+
+        slots.set((int) t & mask, item);
+        tail.set(t + 1);
+
+        int depth = (int) (t + 1 - head.get());
+        if (depth > maxDepth) {
+            maxDepth = depth;
+        }
+
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        if (closed) {
+            // Raced with close(), nothing will take the item anymore
+            clear();
+        }
+        return true;
+    }
+
+    /**
+     * Take the oldest item without waiting
+     *
+     * @return The item, or null if the queue is empty
+     */
+    public T poll() {
+        T item = removeHead();
+        if (item != null) {
+            takenCount.incrementAndGet();
+        }
+        return item;
+    }
+
+    private T removeHead() {
+        while (true) {
+            long h = head.get();
+            if (h >= tail.get()) {
+                return null;
+            }
+            int index = (int) h & mask;
+            T item = slots.get(index);
+            if (item != null && head.compareAndSet(h, h + 1)) {
+                // Only clear the slot if the producer has not refilled it in the meantime
+                slots.compareAndSet(index, item, null);
+                Thread producer = waitingProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                return item;
+            }
+        }
+    }
+
+    /**
+     * Take the oldest item, waiting until one is queued, consumer thread only
+     *
+     * @return The item, or null once the queue is closed and empty
+     * @throws InterruptedException if the consumer thread is interrupted while waiting
+     */
+    public T take() throws InterruptedException {
+        while (true) {
+            T item = poll();
+            if (item != null) {
+                return item;
+            }
+            if (closed) {
+                return null;
+            }
+            waitingConsumer = Thread.currentThread();
+            if (head.get() >= tail.get() && !closed) {
+                LockSupport.park(this);
+            }
+            waitingConsumer = null;
+            if (Thread.interrupted()) {
+                throw new InterruptedException();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting items and wake up waiting threads
+     *
+     * Items still queued can be taken until the queue is empty, or dropped with {@link #clear()}.
+     */
+    public void close() {
+        closed = true;
+        Thread consumer = waitingConsumer;
+        if (consumer != null) {
+            LockSupport.unpark(consumer);
+        }
+        Thread producer = waitingProducer;
+        if (producer != null) {
+            LockSupport.unpark(producer);
+        }
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Drop every queued item
+     */
+    public void clear() {
+        T item;
+        while ((item = removeHead()) != null) {
+            drop(item);
+        }
+    }
+
+    private void drop(T item) {
+        droppedCount.incrementAndGet();
+        if (dropListener != null) {
+            dropListener.onDropped(item);
+        }
+    }
+
+    /**
+     * Ring size after rounding up to a power of two
+     */
+    public int getCapacity() {
+        return mask + 1;
+    }
+
+    public DropPolicy getDropPolicy() {
+        return dropPolicy;
+    }
+
+    /**
+     * Number of items currently queued
+     */
+    public int size() {
+        long h = head.get();
+        return (int) Math.max(0, tail.get() - h);
+    }
+
+    /**
+     * Highest queue depth seen since creation or the last resetStats()
+     */
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public long getOfferedCount() {
+        return offeredCount.get();
+    }
+
+    /**
+     * Number of items handed to the consumer
+     */
+    public long getTakenCount() {
+        return takenCount.get();
+    }
+
+    /**
+     * Number of items dropped by the policy or by clear()
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    /**
+     * Total time the producer spent waiting under the BLOCK policy, in nanoseconds
+     */
+    public long getBlockedNs() {
+        return blockedNs.get();
+    }
+
+    public void resetStats() {
+        offeredCount.set(0);
+        takenCount.set(0);
+        droppedCount.set(0);
+        blockedNs.set(0);
+        maxDepth = size();
+    }
+}
@@ -0,0 +1,92 @@
+package id.periksa.plugins.usbcamera;
+
+/**
+ * Token bucket limiting the frame callback to a target frame rate
+ *
+ * Checked at the top of the frame callback so frames above the requested
+ * rate are dropped before any copy, conversion or encode. Credit accrues
+ * in nanoseconds of elapsed time; a frame costs one frame interval and may
+ * go through a quarter interval early, so camera jitter around an exact
+ * multiple of the target rate (e.g. 30 fps thinned to 15) does not drop
+ * an extra frame. The long-run rate never exceeds the target.
+ *
+ * Not thread-safe, meant to be driven from the frame callback thread.
+ */
+public class FrameRateLimiter {
+    /**
+     * Default bucket depth in frames, no bursts above the target rate
+     */
+    public static final int DEFAULT_BURST = 1;
+
+    private final long intervalNs;
+    private final long toleranceNs;
+    private final long capacityNs;
+    private long creditNs;
+    private long lastNs;
+    private boolean started = false;
+
+    private long passedCount = 0;
+    private long droppedCount = 0;
+
+    public FrameRateLimiter(float maxFps) {
+        this(maxFps, DEFAULT_BURST);
+    }
+
+    /**
+     * @param maxFps Target frame rate
+     * @param burst Frames that may pass back to back after an idle period, at least 1
+     */
+    public FrameRateLimiter(float maxFps, int burst) {
+        if (!(maxFps > 0f) || maxFps > 1000f || burst < 1) {
+            throw new IllegalArgumentException("Invalid frame rate limit " + maxFps + " x " + burst);
+        }
+        this.intervalNs = Math.round(1000000000.0 / maxFps);
+        this.toleranceNs = intervalNs / 4;
+        this.capacityNs = intervalNs * burst;
+    }
+
+    /**
+     * Decide whether a frame arriving now may pass
+     *
+     * @param nowNs Arrival time in the System.nanoTime() time base
+     * @return true if the frame is within the rate, false if it should be dropped
+     */
+    public boolean tryAcquire(long nowNs) {
+        if (!started) {
+            started = true;
+            lastNs = nowNs;
+            creditNs = capacityNs;
+        } else {
+            long elapsed = Math.max(0, nowNs - lastNs);
+            lastNs = nowNs;
+            creditNs = Math.min(capacityNs, creditNs + elapsed);
+        }
+
+        if (creditNs >= intervalNs - toleranceNs) {
+            creditNs -= intervalNs;
+            passedCount++;
+            return true;
+        }
+        droppedCount++;
+        return false;
+    }
+
+    /**
+     * Forget the bucket state, the next frame passes
+     */
+    public void reset() {
+        started = false;
+    }
+
+    public long getIntervalNs() {
+        return intervalNs;
+    }
+
+    public long getPassedCount() {
+        return passedCount;
+    }
+
+    public long getDroppedCount() {
+        return droppedCount;
+    }
+}
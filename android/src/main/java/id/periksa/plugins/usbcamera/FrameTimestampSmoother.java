@@ -0,0 +1,114 @@
+package id.periksa.plugins.usbcamera;
+
+/**
+ * Turns jittery capture timestamps into monotonic, evenly spaced presentation timestamps
+ *
+ * Each frame is placed on a grid of the nominal frame interval derived from
+ * the negotiated frame rate. The capture time only nudges the grid: a small
+ * fraction of the phase error is applied per frame, and an even smaller one
+ * corrects the interval itself, which tracks the drift between the camera
+ * clock and System.nanoTime(). Frames the camera skipped keep their slot on
+ * the grid. After a long gap the grid is re-anchored to the capture time.
+ *
+ * Not thread-safe, meant to be driven from the frame callback thread.
+ */
+public class FrameTimestampSmoother {
+    // Fraction of the phase error applied per frame (1/8)
+    private static final int PHASE_GAIN_SHIFT = 3;
+    // Fraction of the phase error fed into the interval estimate (1/256)
+    private static final int DRIFT_GAIN_SHIFT = 8;
+    // Interval estimate stays within this fraction of the nominal interval (1/16, about 6%)
+    private static final int MAX_DRIFT_SHIFT = 4;
+    // Gaps longer than this many intervals re-anchor the grid
+    private static final int MAX_GAP_FRAMES = 30;
+
+    private final long nominalIntervalNs;
+    private long intervalNs;
+    private long lastPtsNs;
+    private boolean started = false;
+    private long resyncCount = 0;
+    private long skippedFrames = 0;
+
+    /**
+     * @param nominalFps Negotiated frame rate, e.g. from Size.fps
+     */
+    public FrameTimestampSmoother(float nominalFps) {
+        if (!(nominalFps > 0f) || nominalFps > 1000f) {
+            throw new IllegalArgumentException("Invalid frame rate " + nominalFps);
+        }
+        this.nominalIntervalNs = Math.round(1000000000.0 / nominalFps);
+        this.intervalNs = nominalIntervalNs;
+    }
+
+    /**
+     * Map a capture timestamp to a presentation timestamp
+     *
+     * @param captureNs Capture time in the System.nanoTime() time base
+     * @return Presentation time, strictly greater than the previous one
+     */
+    public long smooth(long captureNs) {
+        if (!started) {
+            started = true;
+            lastPtsNs = captureNs;
+            return captureNs;
+        }
+
+        long elapsed = captureNs - lastPtsNs;
+        // Number of grid slots since the last frame, at least one
+        long slots = Math.max(1, (elapsed + intervalNs / 2) / intervalNs);
+        if (elapsed <= -intervalNs * MAX_GAP_FRAMES || slots > MAX_GAP_FRAMES) {
+            // Stall or clock jump, start a new grid at the capture time
+            resyncCount++;
+            intervalNs = nominalIntervalNs;
+            lastPtsNs = Math.max(captureNs, lastPtsNs + 1);
+            return lastPtsNs;
+        }
+        skippedFrames += slots - 1;
+
+        long predicted = lastPtsNs + slots * intervalNs;
+        long error = captureNs - predicted;
+
+        long maxDrift = nominalIntervalNs >> MAX_DRIFT_SHIFT;
+        intervalNs += (error / slots) >> DRIFT_GAIN_SHIFT;
+        intervalNs = Math.max(nominalIntervalNs - maxDrift, Math.min(nominalIntervalNs + maxDrift, intervalNs));
+
+        long pts = predicted + (error >> PHASE_GAIN_SHIFT);
+        // Never step back or collapse two frames onto the same time
+        pts = Math.max(pts, lastPtsNs + intervalNs / 2);
+        lastPtsNs = pts;
+        return pts;
+    }
+
+    /**
+     * Forget the grid, the next frame starts a new one
+     */
+    public void reset() {
+        started = false;
+        intervalNs = nominalIntervalNs;
+    }
+
+    public long getNominalIntervalNs() {
+        return nominalIntervalNs;
+    }
+
+    /**
+     * Current drift-corrected frame interval
+     */
+    public long getIntervalNs() {
+        return intervalNs;
+    }
+
+    /**
+     * Number of times the grid was re-anchored after a long gap
+     */
+    public long getResyncCount() {
+        return resyncCount;
+    }
+
+    /**
+     * Number of grid slots left empty, i.e. frames the camera did not deliver
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+}
@@ -0,0 +1,678 @@
+package id.periksa.plugins.usbcamera;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Loopback WebSocket server streaming raw binary frames to JavaScript
+ *
+ * Avoids the Base64 + JSON + bridge round trip of "frame" events: the WebView
+ * opens ws://127.0.0.1:port/frames?token=... and receives one binary message
+ * per frame, a 32 byte little-endian header followed by the frame bytes:
+ *
+ * <pre>
+ *  0 uint16  header size (32)
+ *  2 uint16  header version (1)
+ *  4 uint32  width
+ *  8 uint32  height
+ * 12 uint32  format, see FORMAT_* constants
+ * 16 float64 frame number
+ * 24 float64 timestamp, ms since epoch
+ * </pre>
+ *
+ * Only loopback connections presenting the random per-server token are
+ * accepted. Every client has a single pending frame slot, a client slower
+ * than the camera skips frames instead of building up a backlog. Messages
+ * are pooled and reference counted, so steady state streaming does not
+ * allocate per frame.
+ *
+ * Plain java.net, no Android dependencies.
+ */
+public class FrameWebSocketServer {
+    public static final String PATH = "/frames";
+    public static final int HEADER_SIZE = 32;
+    public static final int HEADER_VERSION = 1;
+
+    public static final int FORMAT_UNKNOWN = 0;
+    public static final int FORMAT_YUV420SP = 1;
+    public static final int FORMAT_JPEG = 2;
+    public static final int FORMAT_WEBP = 3;
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final int HANDSHAKE_TIMEOUT_MS = 5000;
+    private static final int MAX_HANDSHAKE_BYTES = 8192;
+    private static final int MAX_CLIENTS = 4;
+
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private final String token;
+    private final ServerSocket serverSocket;
+    private final Thread acceptThread;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    // Connections still in the HTTP upgrade, counted against MAX_CLIENTS
+    private final List<Socket> handshaking = new CopyOnWriteArrayList<>();
+    private final ConcurrentLinkedQueue<Message> freeMessages = new ConcurrentLinkedQueue<>();
+    private volatile boolean running = true;
+
+    private final AtomicLong sentCount = new AtomicLong(0);
+    private final AtomicLong skippedCount = new AtomicLong(0);
+
+    /**
+     * Bind to 127.0.0.1 and start accepting clients
+     *
+     * @param port Port to listen on, 0 picks a free one
+     * @throws IOException if the port can not be bound
+     */
+    public FrameWebSocketServer(int port) throws IOException {
+        this.token = newToken();
+        this.serverSocket = new ServerSocket();
+        this.serverSocket.setReuseAddress(true);
+        this.serverSocket.bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), port));
+        this.acceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        }, "FrameWebSocketAccept");
+        this.acceptThread.setDaemon(true);
+        this.acceptThread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * URL a client has to open, including the token
+     */
+    public String getUrl() {
+        return "ws://127.0.0.1:" + getPort() + PATH + "?token=" + token;
+    }
+
+    public int getClientCount() {
+        return clients.size();
+    }
+
+    public long getSentCount() {
+        return sentCount.get();
+    }
+
+    /**
+     * Frames a client had not sent yet when a newer one replaced it
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Queue a frame for every connected client, returns without waiting for the sockets
+     *
+     * @param data Frame bytes, read from its current position and left unchanged
+     * @param width Frame width
+     * @param height Frame height
+     * @param format One of the FORMAT_* constants
+     * @param frameNumber Sequence number of the frame
+     * @param timestampMs Capture time in ms since epoch
+     * @return Number of clients the frame was queued for
+     */
+    public int publish(ByteBuffer data, int width, int height, int format, long frameNumber, long timestampMs) {
+        if (!running || clients.isEmpty()) {
+            return 0;
+        }
+        int payload = data.remaining();
+        Message message = acquireMessage(HEADER_SIZE + payload);
+
+        ByteBuffer out = ByteBuffer.wrap(message.bytes).order(ByteOrder.LITTLE_ENDIAN);
+        out.putShort((short) HEADER_SIZE);
+        out.putShort((short) HEADER_VERSION);
+        out.putInt(width);
+        out.putInt(height);
+        out.putInt(format);
+        out.putDouble(frameNumber);
+        out.putDouble(timestampMs);
+        out.put(data.duplicate());
+        message.length = out.position();
+
+        int queued = 0;
+        for (Client client : clients) {
+            message.retain();
+            Message previous = client.pending.getAndSet(message);
+            if (previous != null) {
+                skippedCount.incrementAndGet();
+                previous.release();
+            }
+            client.wakeUp();
+            queued++;
+        }
+        // Drop the publisher's own reference
+        message.release();
+        return queued;
+    }
+
+    /**
+     * Close all clients and stop listening, never waits for a client
+     */
+    public void stop() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+        for (Client client : clients) {
+            // A client that stopped reading may hold its sender in a blocked write, no close frame
+            client.abort();
+        }
+        clients.clear();
+        for (Socket socket : handshaking) {
+            closeQuietly(socket);
+        }
+        freeMessages.clear();
+    }
+
+    private void acceptLoop() {
+        while (running) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (running) {
+                    continue;
+                }
+                return;
+            }
+            if (!socket.getInetAddress().isLoopbackAddress()
+                    || clients.size() + handshaking.size() >= MAX_CLIENTS) {
+                closeQuietly(socket);
+                continue;
+            }
+            // The upgrade may take up to the handshake timeout, never on this thread
+            handshaking.add(socket);
+            final Socket accepted = socket;
+            Thread reader = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    serve(accepted);
+                }
+            }, "FrameWebSocketRead");
+            reader.setDaemon(true);
+            reader.start();
+        }
+    }
+
+    /**
+     * Upgrade the connection, then read the client's frames on this thread until it closes
+     */
+    private void serve(Socket socket) {
+        Client client;
+        try {
+            client = handshake(socket);
+        } catch (IOException e) {
+            closeQuietly(socket);
+            return;
+        } finally {
+            handshaking.remove(socket);
+        }
+        if (client == null) {
+            return;
+        }
+        if (!running) {
+            // Stopped during the upgrade
+            client.abort();
+            return;
+        }
+        client.readLoop();
+    }
+
+    /**
+     * @return the connected client, null if the request was rejected
+     */
+    private Client handshake(Socket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        socket.setTcpNoDelay(true);
+        InputStream in = new BufferedInputStream(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+
+        List<String> lines = readRequest(in);
+        if (lines.isEmpty()) {
+            socket.close();
+            return null;
+        }
+        String[] requestLine = lines.get(0).split(" ");
+        String key = null;
+        boolean upgrade = false;
+        for (int i = 1; i < lines.size(); i++) {
+            String line = lines.get(i);
+            int colon = line.indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = line.substring(0, colon).trim().toLowerCase(Locale.US);
+            String value = line.substring(colon + 1).trim();
+            if (name.equals("sec-websocket-key")) {
+                key = value;
+            } else if (name.equals("upgrade")) {
+                upgrade = value.equalsIgnoreCase("websocket");
+            }
+        }
+
+        if (requestLine.length < 2 || !requestLine[0].equals("GET")) {
+            reject(socket, "405 Method Not Allowed");
+            return null;
+        }
+        if (!tokenMatches(requestLine[1])) {
+            reject(socket, "403 Forbidden");
+            return null;
+        }
+        if (!upgrade || key == null) {
+            reject(socket, "400 Bad Request");
+            return null;
+        }
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        out.write(response.getBytes(ASCII));
+        out.flush();
+        socket.setSoTimeout(0);
+
+        Client client = new Client(socket, in, out);
+        clients.add(client);
+        client.start();
+        return client;
+    }
+
+    private boolean tokenMatches(String target) {
+        int query = target.indexOf('?');
+        String path = query >= 0 ? target.substring(0, query) : target;
+        if (!path.equals(PATH) || query < 0) {
+            return false;
+        }
+        for (String param : target.substring(query + 1).split("&")) {
+            if (param.startsWith("token=")) {
+                return constantTimeEquals(param.substring("token=".length()), token);
+            }
+        }
+        return false;
+    }
+
+    private static boolean constantTimeEquals(String a, String b) {
+        if (a.length() != b.length()) {
+            return false;
+        }
+        int diff = 0;
+        for (int i = 0; i < a.length(); i++) {
+            diff |= a.charAt(i) ^ b.charAt(i);
+        }
+        return diff == 0;
+    }
+
+    private static void reject(Socket socket, String status) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(ASCII));
+        out.flush();
+        socket.close();
+    }
+
+    /**
+     * Read the request line and headers up to the blank line
+     */
+    private static List<String> readRequest(InputStream in) throws IOException {
+        List<String> lines = new ArrayList<>();
+        StringBuilder line = new StringBuilder();
+        int total = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            if (++total > MAX_HANDSHAKE_BYTES) {
+                throw new IOException("Handshake too large");
+            }
+            if (c == '\n') {
+                int length = line.length();
+                if (length > 0 && line.charAt(length - 1) == '\r') {
+                    line.setLength(length - 1);
+                }
+                if (line.length() == 0) {
+                    return lines;
+                }
+                lines.add(line.toString());
+                line.setLength(0);
+            } else {
+                line.append((char) c);
+            }
+        }
+        throw new IOException("Connection closed during handshake");
+    }
+
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key + WEBSOCKET_GUID).getBytes(ASCII)));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available", e);
+        }
+    }
+
+    /**
+     * Standard Base64 with padding, java.util.Base64 needs API 26
+     */
+    static String base64(byte[] bytes) {
+        final String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        StringBuilder sb = new StringBuilder((bytes.length + 2) / 3 * 4);
+        for (int i = 0; i < bytes.length; i += 3) {
+            int b0 = bytes[i] & 0xff;
+            int b1 = i + 1 < bytes.length ? bytes[i + 1] & 0xff : 0;
+            int b2 = i + 2 < bytes.length ? bytes[i + 2] & 0xff : 0;
+            sb.append(alphabet.charAt(b0 >> 2));
+            sb.append(alphabet.charAt(((b0 & 0x3) << 4) | (b1 >> 4)));
+            sb.append(i + 1 < bytes.length ? alphabet.charAt(((b1 & 0xf) << 2) | (b2 >> 6)) : '=');
+            sb.append(i + 2 < bytes.length ? alphabet.charAt(b2 & 0x3f) : '=');
+        }
+        return sb.toString();
+    }
+
+    private static String newToken() {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder sb = new StringBuilder(32);
+        for (byte b : bytes) {
+            sb.append(String.format(Locale.US, "%02x", b & 0xff));
+        }
+        return sb.toString();
+    }
+
+    private Message acquireMessage(int size) {
+        Message message;
+        while ((message = freeMessages.poll()) != null) {
+            if (message.bytes.length >= size) {
+                break;
+            }
+        }
+        if (message == null) {
+            message = new Message(this, size);
+        }
+        message.refs.set(1);
+        return message;
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Nothing left to do
+        }
+    }
+
+    /**
+     * Encoded frame shared by all clients it was queued for
+     */
+    private static final class Message {
+        final byte[] bytes;
+        int length;
+        final AtomicInteger refs = new AtomicInteger(0);
+        private final FrameWebSocketServer server;
+
+        Message(FrameWebSocketServer server, int size) {
+            this.server = server;
+            this.bytes = new byte[size];
+        }
+
+        void retain() {
+            refs.incrementAndGet();
+        }
+
+        void release() {
+            if (refs.decrementAndGet() == 0 && server.running) {
+                server.freeMessages.offer(this);
+            }
+        }
+    }
+
+    /**
+     * Connected client, one sender thread and one reader thread for control frames
+     */
+    private final class Client {
+        final Socket socket;
+        final InputStream in;
+        final OutputStream out;
+        final AtomicReference<Message> pending = new AtomicReference<>();
+        private final Object signal = new Object();
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private volatile boolean open = true;
+        private final byte[] frameHeader = new byte[10];
+
+        Client(Socket socket, InputStream in, OutputStream out) {
+            this.socket = socket;
+            this.in = in;
+            this.out = out;
+        }
+
+        void start() {
+            Thread sender = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    sendLoop();
+                }
+            }, "FrameWebSocketSend");
+            sender.setDaemon(true);
+            sender.start();
+        }
+
+        void wakeUp() {
+            synchronized (signal) {
+                signal.notify();
+            }
+        }
+
+        private void sendLoop() {
+            try {
+                while (open) {
+                    Message message = pending.getAndSet(null);
+                    if (message == null) {
+                        synchronized (signal) {
+                            if (pending.get() == null && open) {
+                                signal.wait(1000);
+                            }
+                        }
+                        continue;
+                    }
+                    try {
+                        writeFrame(OPCODE_BINARY, message.bytes, message.length);
+                        sentCount.incrementAndGet();
+                    } finally {
+                        message.release();
+                    }
+                }
+            } catch (IOException e) {
+                // Client went away
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                close(1001);
+            }
+        }
+
+        private void readLoop() {
+            try {
+                while (open) {
+                    int b0 = in.read();
+                    int b1 = in.read();
+                    if (b0 < 0 || b1 < 0) {
+                        break;
+                    }
+                    int opcode = b0 & 0x0f;
+                    boolean masked = (b1 & 0x80) != 0;
+                    long length = b1 & 0x7f;
+                    if (length == 126) {
+                        length = (readByte() << 8) | readByte();
+                    } else if (length == 127) {
+                        length = 0;
+                        for (int i = 0; i < 8; i++) {
+                            length = (length << 8) | readByte();
+                        }
+                    }
+                    if (!masked || length > 125 && opcode >= OPCODE_CLOSE) {
+                        // Clients must mask, control frames must be short
+                        close(1002);
+                        break;
+                    }
+                    byte[] mask = new byte[4];
+                    readFully(mask, 4);
+                    if (opcode >= OPCODE_CLOSE) {
+                        byte[] payload = new byte[(int) length];
+                        readFully(payload, payload.length);
+                        for (int i = 0; i < payload.length; i++) {
+                            payload[i] ^= mask[i & 3];
+                        }
+                        if (opcode == OPCODE_CLOSE) {
+                            close(1000);
+                            break;
+                        } else if (opcode == OPCODE_PING) {
+                            writeFrame(OPCODE_PONG, payload, payload.length);
+                        }
+                    } else {
+                        // Data from the client is not used, skip it
+                        skipFully(length);
+                    }
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                close(1001);
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("Connection closed");
+            }
+            return b;
+        }
+
+        private void readFully(byte[] buffer, int length) throws IOException {
+            int read = 0;
+            while (read < length) {
+                int n = in.read(buffer, read, length - read);
+                if (n < 0) {
+                    throw new IOException("Connection closed");
+                }
+                read += n;
+            }
+        }
+
+        private void skipFully(long length) throws IOException {
+            while (length > 0) {
+                long n = in.skip(length);
+                if (n <= 0) {
+                    readByte();
+                    n = 1;
+                }
+                length -= n;
+            }
+        }
+
+        private void writeFrame(int opcode, byte[] payload, int length) throws IOException {
+            writeLock.lock();
+            try {
+                writeFrameLocked(opcode, payload, length);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void writeFrameLocked(int opcode, byte[] payload, int length) throws IOException {
+            int headerLength;
+            frameHeader[0] = (byte) (0x80 | opcode);
+            if (length < 126) {
+                frameHeader[1] = (byte) length;
+                headerLength = 2;
+            } else if (length <= 0xffff) {
+                frameHeader[1] = 126;
+                frameHeader[2] = (byte) (length >> 8);
+                frameHeader[3] = (byte) length;
+                headerLength = 4;
+            } else {
+                frameHeader[1] = 127;
+                for (int i = 0; i < 8; i++) {
+                    frameHeader[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+                }
+                headerLength = 10;
+            }
+            out.write(frameHeader, 0, headerLength);
+            out.write(payload, 0, length);
+            out.flush();
+        }
+
+        void close(int code) {
+            if (!open) {
+                return;
+            }
+            open = false;
+            clients.remove(this);
+            // Only when no frame is being written, a stalled write must not hold up the close
+            if (writeLock.tryLock()) {
+                try {
+                    byte[] reason = {(byte) (code >> 8), (byte) code};
+                    writeFrameLocked(OPCODE_CLOSE, reason, reason.length);
+                } catch (IOException e) {
+                    // Already gone
+                } finally {
+                    writeLock.unlock();
+                }
+            }
+            release();
+        }
+
+        /**
+         * Close the socket without a close frame, unblocks a sender stuck in a write
+         */
+        void abort() {
+            if (!open) {
+                return;
+            }
+            open = false;
+            clients.remove(this);
+            release();
+        }
+
+        private void release() {
+            closeQuietly(socket);
+            wakeUp();
+            Message message = pending.getAndSet(null);
+            if (message != null) {
+                message.release();
+            }
+        }
+    }
+}
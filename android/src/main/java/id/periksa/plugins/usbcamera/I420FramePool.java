@@ -0,0 +1,186 @@
+package id.periksa.plugins.usbcamera;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable I420 frames keyed by (width, height)
+ *
+ * Frames are handed out by {@link #acquire(int, int)} and come back when
+ * {@link YUVConverter.I420Data#release()} is called, typically from the
+ * JavaI420Buffer release callback once LiveKit is done with the frame.
+ * In steady state every acquire is a hit and no direct memory is allocated.
+ */
+public class I420FramePool {
+    /**
+     * Default number of idle frames kept per resolution
+     */
+    public static final int DEFAULT_MAX_FREE_PER_SIZE = 4;
+
+    private final int maxFreePerSize;
+    private final int rowAlignment;
+    private final Map<Long, ArrayDeque<YUVConverter.I420Data>> freeFrames = new HashMap<>();
+    // Queue of the most recently used size, spares the boxed map lookup per frame
+    private long lastKey = -1;
+    private ArrayDeque<YUVConverter.I420Data> lastQueue;
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicInteger outstandingCount = new AtomicInteger(0);
+
+    public I420FramePool() {
+        this(DEFAULT_MAX_FREE_PER_SIZE);
+    }
+
+    /**
+     * @param maxFreePerSize Maximum number of idle frames retained per resolution,
+     *                       extra frames returned to the pool are dropped
+     */
+    public I420FramePool(int maxFreePerSize) {
+        this(maxFreePerSize, 1);
+    }
+
+    /**
+     * @param maxFreePerSize Maximum number of idle frames retained per resolution,
+     *                       extra frames returned to the pool are dropped
+     * @param rowAlignment Row stride alignment in bytes of the frames handed out,
+     *                     e.g. 16 or 64 for encoders that need aligned rows, 1 for packed planes
+     */
+    public I420FramePool(int maxFreePerSize, int rowAlignment) {
+        if (maxFreePerSize <= 0) {
+            throw new IllegalArgumentException("maxFreePerSize must be positive");
+        }
+        if (rowAlignment <= 0) {
+            throw new IllegalArgumentException("rowAlignment must be positive");
+        }
+        this.maxFreePerSize = maxFreePerSize;
+        this.rowAlignment = rowAlignment;
+    }
+
+    /**
+     * Take a frame of the given size from the pool, allocating a new one on a miss
+     *
+     * @param width Frame width
+     * @param height Frame height
+     * @return Frame whose planes are rewound and ready to be written
+     */
+    public YUVConverter.I420Data acquire(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+
+        YUVConverter.I420Data frame;
+        synchronized (freeFrames) {
+            ArrayDeque<YUVConverter.I420Data> queue = queueFor(key(width, height), false);
+            frame = queue != null ? queue.pollFirst() : null;
+        }
+
+        if (frame != null) {
+            hitCount.incrementAndGet();
+            frame.yPlane.clear();
+            frame.uPlane.clear();
+            frame.vPlane.clear();
+        } else {
+            missCount.incrementAndGet();
+            frame = YUVConverter.I420Data.allocate(YUVFrameLayout.i420(width, height, rowAlignment), this);
+        }
+
+        frame.markAcquired();
+        outstandingCount.incrementAndGet();
+        return frame;
+    }
+
+    /**
+     * Return a frame to the pool. Called from {@link YUVConverter.I420Data#release()}.
+     */
+    void recycle(YUVConverter.I420Data frame) {
+        outstandingCount.decrementAndGet();
+        synchronized (freeFrames) {
+            ArrayDeque<YUVConverter.I420Data> queue = queueFor(key(frame.width, frame.height), true);
+            if (queue.size() < maxFreePerSize) {
+                queue.offerFirst(frame);
+            }
+        }
+    }
+
+    /**
+     * Maximum number of idle frames retained per resolution
+     */
+    public int getMaxFreePerSize() {
+        return maxFreePerSize;
+    }
+
+    /**
+     * Row stride alignment of the frames handed out by this pool
+     */
+    public int getRowAlignment() {
+        return rowAlignment;
+    }
+
+    /**
+     * Drop all idle frames, e.g. after the capture resolution changed
+     */
+    public void clear() {
+        synchronized (freeFrames) {
+            freeFrames.clear();
+            lastKey = -1;
+            lastQueue = null;
+        }
+    }
+
+    /**
+     * Number of acquires served from an idle frame
+     */
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    /**
+     * Number of acquires that had to allocate a new frame
+     */
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * Number of frames acquired but not yet released
+     */
+    public int getOutstandingCount() {
+        return outstandingCount.get();
+    }
+
+    /**
+     * Reset hit and miss counters, outstanding count is left untouched
+     */
+    public void resetStats() {
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    /**
+     * Look up the idle queue of a size, must hold the freeFrames lock
+     */
+    private ArrayDeque<YUVConverter.I420Data> queueFor(long key, boolean create) {
+        if (key == lastKey) {
+            return lastQueue;
+        }
+        ArrayDeque<YUVConverter.I420Data> queue = freeFrames.get(key);
+        if (queue == null) {
+            if (!create) {
+                return null;
+            }
+            queue = new ArrayDeque<>(maxFreePerSize);
+            freeFrames.put(key, queue);
+        }
+        lastKey = key;
+        lastQueue = queue;
+        return queue;
+    }
+
+    private static long key(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
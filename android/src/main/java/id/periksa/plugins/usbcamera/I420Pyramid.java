@@ -0,0 +1,184 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Half, quarter, ... resolution I420 layers of one frame, built in one pass
+ *
+ * Every plane of the full frame is read once, row by row. Each pair of rows
+ * is reduced by 2x2 box averages to one row of the next layer, and that row
+ * immediately feeds the layer below it, so a quarter layer costs a quarter of
+ * the half layer instead of another read of the full frame. Only two rows per
+ * layer are kept between steps.
+ *
+ * Layer sizes follow WebRTC simulcast: width and height are halved and
+ * rounded down per level. An odd last chroma column or row is averaged with
+ * itself.
+ *
+ * Not thread-safe, meant to be reused for every frame of a stream.
+ */
+public class I420Pyramid {
+    /**
+     * Most layers below the full frame, 1/16 of its size
+     */
+    public static final int MAX_LEVELS = 4;
+
+    private final int levels;
+
+    // Two alternating rows per level, index 0 is the full frame
+    private final byte[][][] rows = new byte[MAX_LEVELS + 1][2][];
+    // Row waiting for its partner per level, null if none
+    private final byte[][] pending = new byte[MAX_LEVELS + 1][];
+    private final int[] produced = new int[MAX_LEVELS + 1];
+
+    // Destination of the plane being reduced
+    private final ByteBuffer[] planes = new ByteBuffer[MAX_LEVELS + 1];
+    private final int[] planeBases = new int[MAX_LEVELS + 1];
+    private final int[] planeStrides = new int[MAX_LEVELS + 1];
+    private final int[] planeWidths = new int[MAX_LEVELS + 1];
+    private final int[] planeHeights = new int[MAX_LEVELS + 1];
+
+    /**
+     * @param levels Layers below the full frame, 1 to MAX_LEVELS
+     */
+    public I420Pyramid(int levels) {
+        if (levels < 1 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be between 1 and " + MAX_LEVELS + ": " + levels);
+        }
+        this.levels = levels;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Size of a layer along one axis
+     *
+     * @param size Full frame width or height
+     * @param level 0 for the full frame
+     */
+    public static int layerSize(int size, int level) {
+        return size >> level;
+    }
+
+    /**
+     * Whether a frame is large enough for every layer
+     */
+    public boolean supports(int width, int height) {
+        return layerSize(width, levels) > 0 && layerSize(height, levels) > 0;
+    }
+
+    /**
+     * Build the layers of a frame
+     *
+     * @param full Full resolution frame, left unchanged
+     * @param pool Pool to take the layers from, or null to allocate them
+     * @return Layers from the largest to the smallest, release each when done
+     */
+    public YUVConverter.I420Data[] build(YUVConverter.I420Data full, I420FramePool pool) {
+        if (full == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        if (!supports(full.width, full.height)) {
+            throw new IllegalArgumentException("Frame " + full.width + "x" + full.height
+                + " too small for " + levels + " levels");
+        }
+        YUVConverter.I420Data[] layers = new YUVConverter.I420Data[levels];
+        try {
+            for (int level = 1; level <= levels; level++) {
+                int width = layerSize(full.width, level);
+                int height = layerSize(full.height, level);
+                layers[level - 1] = pool != null ? pool.acquire(width, height) : YUVConverter.allocate(width, height);
+            }
+            for (int plane = 0; plane < 3; plane++) {
+                reducePlane(full, layers, plane);
+            }
+        } catch (RuntimeException e) {
+            for (YUVConverter.I420Data layer : layers) {
+                if (layer != null) {
+                    layer.release();
+                }
+            }
+            throw e;
+        }
+        return layers;
+    }
+
+    /**
+     * Stream one plane of the full frame through every level
+     *
+     * @param plane 0 for Y, 1 for U, 2 for V
+     */
+    private void reducePlane(YUVConverter.I420Data full, YUVConverter.I420Data[] layers, int plane) {
+        for (int level = 0; level <= levels; level++) {
+            YUVConverter.I420Data frame = level == 0 ? full : layers[level - 1];
+            ByteBuffer buffer = plane == 0 ? frame.yPlane : plane == 1 ? frame.uPlane : frame.vPlane;
+            planes[level] = buffer.duplicate();
+            planeBases[level] = buffer.position();
+            planeStrides[level] = plane == 0 ? frame.strideY : plane == 1 ? frame.strideU : frame.strideV;
+            planeWidths[level] = plane == 0 ? frame.width : frame.chromaWidth;
+            planeHeights[level] = plane == 0 ? frame.height : frame.chromaHeight;
+            if (rows[level][0] == null || rows[level][0].length < planeWidths[level]) {
+                rows[level][0] = new byte[planeWidths[level]];
+                rows[level][1] = new byte[planeWidths[level]];
+            }
+            pending[level] = null;
+            produced[level] = 0;
+        }
+
+        ByteBuffer src = planes[0];
+        int width = planeWidths[0];
+        for (int y = 0; y < planeHeights[0]; y++) {
+            byte[] row = rows[0][y & 1];
+            src.position(planeBases[0] + y * planeStrides[0]);
+            src.get(row, 0, width);
+            push(1, row);
+        }
+        // Odd row counts leave a row without a partner, average it with itself
+        for (int level = 1; level <= levels; level++) {
+            if (pending[level] != null && produced[level] < planeHeights[level]) {
+                emit(level, pending[level], pending[level]);
+            }
+        }
+    }
+
+    /**
+     * Hand a row of level - 1 to level
+     */
+    private void push(int level, byte[] row) {
+        if (level > levels || produced[level] == planeHeights[level]) {
+            return;
+        }
+        if (pending[level] == null) {
+            pending[level] = row;
+            return;
+        }
+        emit(level, pending[level], row);
+    }
+
+    /**
+     * Average two rows of level - 1 into the next row of level, write it and pass it down
+     */
+    private void emit(int level, byte[] top, byte[] bottom) {
+        pending[level] = null;
+        int y = produced[level]++;
+        byte[] out = rows[level][y & 1];
+        int width = planeWidths[level];
+        int srcWidth = planeWidths[level - 1];
+        // Pairs within the source row, then an odd last column on its own
+        int pairs = Math.min(width, srcWidth / 2);
+        for (int x = 0, i = 0; x < pairs; x++, i += 2) {
+            out[x] = (byte) (((top[i] & 0xff) + (top[i + 1] & 0xff)
+                + (bottom[i] & 0xff) + (bottom[i + 1] & 0xff) + 2) >> 2);
+        }
+        for (int x = pairs; x < width; x++) {
+            int i = Math.min(2 * x, srcWidth - 1);
+            out[x] = (byte) (((top[i] & 0xff) + (bottom[i] & 0xff) + 1) >> 1);
+        }
+        ByteBuffer dst = planes[level];
+        dst.position(planeBases[level] + y * planeStrides[level]);
+        dst.put(out, 0, width);
+        push(level + 1, out);
+    }
+}
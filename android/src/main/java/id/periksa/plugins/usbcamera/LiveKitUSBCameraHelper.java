@@ -43,8 +43,20 @@ public class LiveKitUSBCameraHelper {
 
     private final Activity activity;
     private VideoSink videoSink;
-    private USBCameraVideoCapturer capturer;
     private volatile boolean isStreaming = false;
+    private int conversionStripes = 1;
+    private int conversionThreads = 0;
+    private int parallelThresholdPixels = ParallelYUVConverter.DEFAULT_THRESHOLD_PIXELS;
+    private USBCameraVideoCapturer.OutputFormat outputFormat = USBCameraVideoCapturer.OutputFormat.I420;
+    private int deliveryQueueCapacity = 0;
+    private FrameHandoffQueue.DropPolicy deliveryDropPolicy = FrameHandoffQueue.DropPolicy.DROP_OLDEST;
+    private boolean smoothTimestamps = false;
+    private int transformWidth = 0;
+    private int transformHeight = 0;
+    private int transformRotation = 0;
+    private boolean transformMirror = false;
+    private int simulcastLayers = 0;
+    private boolean adaptiveCapture = false;
 
     public LiveKitUSBCameraHelper(Activity activity) {
         this.activity = activity;
@@ -77,6 +89,112 @@ public class LiveKitUSBCameraHelper {
         Log.d(TAG, "VideoSink set for USB camera");
     }
 
+    /**
+     * Convert high resolution frames in parallel stripes on a worker pool
+     * Call this before startUSBCamera()
+     *
+     * @param stripeCount Number of horizontal stripes per frame, 1 disables parallel conversion
+     * @param poolSize Number of worker threads, 0 disables parallel conversion
+     * @param thresholdPixels Frames smaller than this (width * height) stay single-threaded
+     */
+    public void setParallelConversion(int stripeCount, int poolSize, int thresholdPixels) {
+        this.conversionStripes = stripeCount;
+        this.conversionThreads = poolSize;
+        this.parallelThresholdPixels = thresholdPixels;
+    }
+
+    /**
+     * Select whether frames reach LiveKit as Java-converted I420 or as NV21
+     * converted natively by libyuv
+     * Call this before startUSBCamera()
+     */
+    public void setOutputFormat(USBCameraVideoCapturer.OutputFormat format) {
+        if (format == null) {
+            throw new IllegalArgumentException("format must not be null");
+        }
+        this.outputFormat = format;
+    }
+
+    /**
+     * Deliver frames to LiveKit from a dedicated thread through a bounded queue
+     * Call this before startUSBCamera()
+     *
+     * @param queueCapacity Number of frames that can wait for delivery, 0 delivers on the USB callback thread
+     * @param dropPolicy What to do with a new frame when the queue is full
+     */
+    public void setAsyncDelivery(int queueCapacity, FrameHandoffQueue.DropPolicy dropPolicy) {
+        if (queueCapacity < 0 || dropPolicy == null) {
+            throw new IllegalArgumentException("Invalid async delivery settings");
+        }
+        this.deliveryQueueCapacity = queueCapacity;
+        this.deliveryDropPolicy = dropPolicy;
+    }
+
+    /**
+     * Put frame timestamps on an evenly spaced grid derived from the camera's
+     * negotiated frame rate instead of using raw capture times
+     * Call this before startUSBCamera()
+     */
+    public void setTimestampSmoothing(boolean enabled) {
+        this.smoothTimestamps = enabled;
+    }
+
+    /**
+     * Crop, scale, rotate and mirror frames while converting them for LiveKit
+     * The camera frame is cropped centrally to the output aspect ratio
+     * Call this before startUSBCamera()
+     *
+     * @param outputWidth Width of the frames LiveKit receives, 0 keeps the camera size
+     * @param outputHeight Height of the frames LiveKit receives, 0 keeps the camera size
+     * @param rotation Clockwise rotation, 0, 90, 180 or 270
+     * @param mirror Flip the frames horizontally after rotating
+     */
+    public void setOutputTransform(int outputWidth, int outputHeight, int rotation, boolean mirror) {
+        if (outputWidth < 0 || outputHeight < 0 || (outputWidth == 0) != (outputHeight == 0)) {
+            throw new IllegalArgumentException("Invalid output size " + outputWidth + "x" + outputHeight);
+        }
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Rotation must be 0, 90, 180 or 270: " + rotation);
+        }
+        this.transformWidth = outputWidth;
+        this.transformHeight = outputHeight;
+        this.transformRotation = rotation;
+        this.transformMirror = mirror;
+    }
+
+    /**
+     * Build the lower simulcast layers from each frame before it reaches the encoder
+     * Publish the track with simulcast enabled to use them
+     * Call this before startUSBCamera()
+     *
+     * @param levels Layers below the full frame, 2 gives 1/2 and 1/4 size, 0 disables
+     */
+    public void setSimulcastLayers(int levels) {
+        if (levels < 0 || levels > I420Pyramid.MAX_LEVELS) {
+            throw new IllegalArgumentException("levels must be between 0 and " + I420Pyramid.MAX_LEVELS + ": " + levels);
+        }
+        this.simulcastLayers = levels;
+    }
+
+    /**
+     * Lower the camera resolution and frame rate when frames back up or
+     * conversion falls behind, and raise them again when there is headroom
+     * Steps through the camera's supported modes, never above the requested one
+     * Call this before startUSBCamera()
+     */
+    public void setAdaptiveCapture(boolean enabled) {
+        this.adaptiveCapture = enabled;
+    }
+
+    /**
+     * Bound adaptive capture to what is actually sent, e.g. the size and frame
+     * rate LiveKit's bandwidth estimate allows
+     * Can be called while streaming, 0 for any argument removes the bound
+     */
+    public void setAdaptationTarget(int width, int height, float fps) {
+        USBCameraStreamActivity.setAdaptationTarget(width, height, fps);
+    }
+
     /**
      * Start USB camera streaming to LiveKit
      * This will launch the USBCameraStreamActivity in LiveKit mode
@@ -94,6 +212,19 @@ public class LiveKitUSBCameraHelper {
 
         Intent intent = new Intent(activity, USBCameraStreamActivity.class);
         intent.putExtra("streaming_mode", USBCameraStreamActivity.MODE_LIVEKIT);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_CONVERSION_STRIPES, conversionStripes);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_CONVERSION_THREADS, conversionThreads);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_PARALLEL_THRESHOLD_PIXELS, parallelThresholdPixels);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_OUTPUT_FORMAT, outputFormat.name());
+        intent.putExtra(USBCameraStreamActivity.EXTRA_DELIVERY_QUEUE_CAPACITY, deliveryQueueCapacity);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_DELIVERY_DROP_POLICY, deliveryDropPolicy.name());
+        intent.putExtra(USBCameraStreamActivity.EXTRA_SMOOTH_TIMESTAMPS, smoothTimestamps);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_OUTPUT_WIDTH, transformWidth);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_OUTPUT_HEIGHT, transformHeight);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_ROTATION, transformRotation);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_MIRROR, transformMirror);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_SIMULCAST_LAYERS, simulcastLayers);
+        intent.putExtra(USBCameraStreamActivity.EXTRA_ADAPTIVE_CAPTURE, adaptiveCapture);
 
         // Set the video sink statically (will be picked up by activity)
         USBCameraStreamActivity.setLiveKitVideoSink(videoSink);
@@ -112,7 +243,7 @@ public class LiveKitUSBCameraHelper {
             return;
         }
 
-        capturer = USBCameraStreamActivity.getLiveKitCapturer();
+        USBCameraVideoCapturer capturer = USBCameraStreamActivity.getLiveKitCapturer();
         if (capturer != null) {
             capturer.stopCapture();
             Log.d(TAG, "USB camera stopped");
@@ -123,18 +254,17 @@ public class LiveKitUSBCameraHelper {
 
     /**
      * Get the current capturer instance
+     * Not cached, an adaptive mode switch replaces the capturer
      */
     public USBCameraVideoCapturer getCapturer() {
-        if (capturer == null) {
-            capturer = USBCameraStreamActivity.getLiveKitCapturer();
-        }
-        return capturer;
+        return USBCameraStreamActivity.getLiveKitCapturer();
     }
 
     /**
      * Check if currently streaming
      */
     public boolean isStreaming() {
+        USBCameraVideoCapturer capturer = getCapturer();
         return isStreaming && (capturer != null && capturer.isCapturing());
     }
 
@@ -142,16 +272,41 @@ public class LiveKitUSBCameraHelper {
      * Get statistics about the stream
      */
     public String getStreamStats() {
+        USBCameraVideoCapturer capturer = getCapturer();
         if (capturer == null) {
             return "Not streaming";
         }
 
+        I420FramePool pool = capturer.getFramePool();
+        NV21FramePool nv21Pool = capturer.getNV21FramePool();
+        FrameHandoffQueue<?> queue = capturer.getDeliveryQueue();
+        String delivery = queue == null
+            ? "synchronous delivery"
+            : String.format(
+                Locale.US,
+                "queue depth %d (max %d of %d) / dropped %d / blocked %d ms",
+                queue.size(),
+                queue.getMaxDepth(),
+                queue.getCapacity(),
+                queue.getDroppedCount(),
+                queue.getBlockedNs() / 1000000
+            );
         return String.format(
             Locale.US,
-            "USB Camera Stats: %dx%d, %d frames captured",
+            "USB Camera Stats: %dx%d %s, %d frames captured, %d ns/frame, " +
+                "I420 pool hits %d / misses %d / outstanding %d, NV21 pool hits %d / misses %d / outstanding %d, %s",
             capturer.getWidth(),
             capturer.getHeight(),
-            capturer.getFrameCount()
+            capturer.getOutputFormat(),
+            capturer.getFrameCount(),
+            capturer.getAverageFrameProcessingNs(),
+            pool.getHitCount(),
+            pool.getMissCount(),
+            pool.getOutstandingCount(),
+            nv21Pool.getHitCount(),
+            nv21Pool.getMissCount(),
+            nv21Pool.getOutstandingCount(),
+            delivery
         );
     }
 
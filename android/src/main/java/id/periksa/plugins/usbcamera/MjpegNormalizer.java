@@ -0,0 +1,217 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Turns raw UVC MJPEG payloads into standalone JPEG files
+ *
+ * With PIXEL_FORMAT_RAW the frame callback gets the camera's MJPEG payload
+ * instead of a decoded frame, so JPEG consumers can forward it without a
+ * decode and re-encode. Payloads are checked cheaply: SOI at the start, an
+ * EOI near the end (some cameras pad frames) and a well-formed marker chain
+ * up to the start of scan. Many UVC cameras leave out the Huffman tables
+ * as allowed by the MJPEG format, which most decoders reject; the standard
+ * tables from ITU T.81 Annex K are inserted before the start of scan then.
+ *
+ * Frames that already carry their tables are returned as a slice of the
+ * input without a copy. Not thread-safe, the output buffer is reused.
+ */
+public class MjpegNormalizer {
+    /**
+     * Bytes after the last EOI that are accepted as padding
+     */
+    static final int MAX_TRAILING_BYTES = 4096;
+
+    private static final int MARKER_SOI = 0xd8;
+    private static final int MARKER_EOI = 0xd9;
+    private static final int MARKER_SOS = 0xda;
+    private static final int MARKER_DHT = 0xc4;
+
+    /**
+     * DHT segment with the four standard tables, ITU T.81 K.3
+     */
+    static final byte[] STANDARD_DHT = buildStandardDht();
+
+    private byte[] output = new byte[0];
+    // Results of the last parseHeaders() call
+    private int scanOffset;
+    private boolean hasTables;
+    private long validCount = 0;
+    private long injectedCount = 0;
+    private long invalidCount = 0;
+
+    /**
+     * Validate a payload and add Huffman tables if it has none
+     *
+     * @param frame MJPEG payload, read from its current position and left unchanged
+     * @return Complete JPEG, position 0 to limit, valid until the next call; null if the payload is not a complete JPEG
+     */
+    public ByteBuffer normalize(ByteBuffer frame) {
+        int start = frame.position();
+        int length = findEnd(frame);
+        if (length < 0 || !parseHeaders(frame, length)) {
+            invalidCount++;
+            return null;
+        }
+        validCount++;
+        if (hasTables) {
+            // Pass the payload through up to its EOI
+            ByteBuffer result = frame.duplicate();
+            result.limit(start + length);
+            return result.slice();
+        }
+
+        // Tables go right before the start of scan
+        int total = length + STANDARD_DHT.length;
+        if (output.length < total) {
+            output = new byte[total + total / 8];
+        }
+        ByteBuffer in = frame.duplicate();
+        in.get(output, 0, scanOffset);
+        System.arraycopy(STANDARD_DHT, 0, output, scanOffset, STANDARD_DHT.length);
+        in.get(output, scanOffset + STANDARD_DHT.length, length - scanOffset);
+        injectedCount++;
+        return ByteBuffer.wrap(output, 0, total).slice();
+    }
+
+    /**
+     * Length of the JPEG up to and including its EOI marker
+     *
+     * @return -1 if the payload does not start with SOI or has no EOI near its end
+     */
+    static int findEnd(ByteBuffer frame) {
+        int start = frame.position();
+        int end = frame.limit();
+        if (end - start < 4 || (frame.get(start) & 0xff) != 0xff || (frame.get(start + 1) & 0xff) != MARKER_SOI) {
+            return -1;
+        }
+        int lowest = Math.max(start + 2, end - MAX_TRAILING_BYTES - 2);
+        for (int i = end - 2; i >= lowest; i--) {
+            if ((frame.get(i) & 0xff) == 0xff && (frame.get(i + 1) & 0xff) == MARKER_EOI) {
+                return i + 2 - start;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Walk the marker segments from SOI to the start of scan
+     *
+     * @param length JPEG length from findEnd()
+     * @return false if the segment chain is broken or has no start of scan
+     */
+    boolean parseHeaders(ByteBuffer frame, int length) {
+        int start = frame.position();
+        int pos = 2;
+        hasTables = false;
+        while (pos + 4 <= length) {
+            if ((frame.get(start + pos) & 0xff) != 0xff) {
+                return false;
+            }
+            int marker = frame.get(start + pos + 1) & 0xff;
+            if (marker == 0xff) {
+                // Fill byte
+                pos++;
+                continue;
+            }
+            if (marker == MARKER_SOS) {
+                scanOffset = pos;
+                return true;
+            }
+            if (marker == MARKER_DHT) {
+                hasTables = true;
+            }
+            if (marker == 0x01 || (marker >= 0xd0 && marker <= 0xd7)) {
+                // Standalone markers carry no length
+                pos += 2;
+                continue;
+            }
+            int segmentLength = ((frame.get(start + pos + 2) & 0xff) << 8) | (frame.get(start + pos + 3) & 0xff);
+            if (segmentLength < 2) {
+                return false;
+            }
+            pos += 2 + segmentLength;
+        }
+        return false;
+    }
+
+    private static byte[] buildStandardDht() {
+        int[][] bits = {
+            {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0},
+            {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d},
+            {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0},
+            {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77},
+        };
+        int[][] values = {
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11},
+            {
+                0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+                0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+                0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+                0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+                0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+                0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+                0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+                0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+                0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+                0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                0xf9, 0xfa,
+            },
+            {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11},
+            {
+                0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+                0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+                0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+                0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+                0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+                0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+                0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+                0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+                0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+                0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+                0xf9, 0xfa,
+            },
+        };
+        // Table class and id: DC 0, AC 0, DC 1, AC 1
+        int[] classAndId = {0x00, 0x10, 0x01, 0x11};
+
+        int segmentLength = 2;
+        for (int[] v : values) {
+            segmentLength += 1 + 16 + v.length;
+        }
+        byte[] dht = new byte[2 + segmentLength];
+        int pos = 0;
+        dht[pos++] = (byte) 0xff;
+        dht[pos++] = (byte) MARKER_DHT;
+        dht[pos++] = (byte) (segmentLength >> 8);
+        dht[pos++] = (byte) segmentLength;
+        for (int t = 0; t < 4; t++) {
+            dht[pos++] = (byte) classAndId[t];
+            for (int b : bits[t]) {
+                dht[pos++] = (byte) b;
+            }
+            for (int v : values[t]) {
+                dht[pos++] = (byte) v;
+            }
+        }
+        return dht;
+    }
+
+    public long getValidCount() {
+        return validCount;
+    }
+
+    /**
+     * Frames that needed the standard Huffman tables
+     */
+    public long getInjectedCount() {
+        return injectedCount;
+    }
+
+    /**
+     * Payloads that were not a complete JPEG
+     */
+    public long getInvalidCount() {
+        return invalidCount;
+    }
+}
@@ -0,0 +1,172 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of reusable byte arrays holding tightly packed NV21 frames
+ *
+ * Backs the NV21 pass-through mode of {@link USBCameraVideoCapturer}, where the
+ * UVC frame is copied once into a heap array and handed to LiveKit as an
+ * NV21Buffer, leaving the I420 conversion to libyuv in native code.
+ * Frames come back through {@link Frame#release()}, typically from the
+ * NV21Buffer release callback.
+ */
+public class NV21FramePool {
+    private final int maxFree;
+    private final ArrayDeque<Frame> freeFrames = new ArrayDeque<>();
+
+    private final AtomicLong hitCount = new AtomicLong(0);
+    private final AtomicLong missCount = new AtomicLong(0);
+    private final AtomicInteger outstandingCount = new AtomicInteger(0);
+
+    public NV21FramePool() {
+        this(I420FramePool.DEFAULT_MAX_FREE_PER_SIZE);
+    }
+
+    /**
+     * @param maxFree Maximum number of idle frames retained, extra frames returned to the pool are dropped
+     */
+    public NV21FramePool(int maxFree) {
+        if (maxFree <= 0) {
+            throw new IllegalArgumentException("maxFree must be positive");
+        }
+        this.maxFree = maxFree;
+    }
+
+    /**
+     * Copy a tightly packed NV21 frame into a pooled array
+     *
+     * @param nv21Data Source YUV420SP data, read from its current position and left unchanged
+     * @param width Frame width
+     * @param height Frame height
+     * @return Frame holding a copy of the data
+     */
+    public Frame copyOf(ByteBuffer nv21Data, int width, int height) {
+        if (nv21Data == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        int size = frameSize(width, height);
+        if (nv21Data.remaining() < size) {
+            throw new IllegalArgumentException(
+                "Input data too small. Expected at least " + size +
+                " bytes but got " + nv21Data.remaining()
+            );
+        }
+
+        Frame frame = acquire(width, height);
+        // Absolute bulk get through a duplicate, the source position stays put
+        nv21Data.duplicate().get(frame.data, 0, size);
+        return frame;
+    }
+
+    /**
+     * Take a frame of the given size from the pool, allocating a new one on a miss
+     */
+    public Frame acquire(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid frame size " + width + "x" + height);
+        }
+
+        Frame frame = null;
+        synchronized (freeFrames) {
+            // Idle frames all have the size in use, anything else is stale
+            while (frame == null && !freeFrames.isEmpty()) {
+                Frame candidate = freeFrames.pollFirst();
+                if (candidate.width == width && candidate.height == height) {
+                    frame = candidate;
+                }
+            }
+        }
+
+        if (frame != null) {
+            hitCount.incrementAndGet();
+            frame.released.set(false);
+        } else {
+            missCount.incrementAndGet();
+            frame = new Frame(this, width, height);
+        }
+        outstandingCount.incrementAndGet();
+        return frame;
+    }
+
+    private void recycle(Frame frame) {
+        outstandingCount.decrementAndGet();
+        synchronized (freeFrames) {
+            if (freeFrames.size() < maxFree) {
+                freeFrames.offerFirst(frame);
+            }
+        }
+    }
+
+    /**
+     * Maximum number of idle frames retained
+     */
+    public int getMaxFree() {
+        return maxFree;
+    }
+
+    /**
+     * Drop all idle frames
+     */
+    public void clear() {
+        synchronized (freeFrames) {
+            freeFrames.clear();
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public int getOutstandingCount() {
+        return outstandingCount.get();
+    }
+
+    public void resetStats() {
+        hitCount.set(0);
+        missCount.set(0);
+    }
+
+    /**
+     * Size in bytes of a tightly packed NV21 frame
+     */
+    public static int frameSize(int width, int height) {
+        return width * height + ((width + 1) / 2) * ((height + 1) / 2) * 2;
+    }
+
+    /**
+     * Pooled NV21 frame
+     */
+    public static class Frame {
+        public final byte[] data;
+        public final int width;
+        public final int height;
+
+        private final NV21FramePool pool;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        Frame(NV21FramePool pool, int width, int height) {
+            this.data = new byte[frameSize(width, height)];
+            this.width = width;
+            this.height = height;
+            this.pool = pool;
+        }
+
+        /**
+         * Hand the array back to the pool, repeated calls are ignored
+         */
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                pool.recycle(this);
+            }
+        }
+    }
+}
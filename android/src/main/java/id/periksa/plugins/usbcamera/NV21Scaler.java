@@ -0,0 +1,194 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Box-filter downscaler for tightly packed NV21 frames
+ *
+ * Each destination pixel is the average of the source pixels its footprint
+ * covers, so text and edges stay readable at 1/2 or 1/3 size instead of the
+ * aliasing a nearest neighbour pick gives. The luma plane and the interleaved
+ * VU plane are scaled separately, the chroma plane keeps its pairs together.
+ * Column spans are computed once per instance, so one scaler is meant to be
+ * reused for every frame of a stream.
+ *
+ * Not thread-safe.
+ */
+public class NV21Scaler {
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+
+    // First source column/row and span of every destination column/row, luma and chroma
+    private final int[] lumaX0;
+    private final int[] lumaXn;
+    private final int[] lumaY0;
+    private final int[] lumaYn;
+    private final int[] chromaX0;
+    private final int[] chromaXn;
+    private final int[] chromaY0;
+    private final int[] chromaYn;
+
+    // Column sums of the current destination row
+    private final int[] rowSums;
+    private byte[] rowScratch;
+
+    public NV21Scaler(int srcWidth, int srcHeight, int dstWidth, int dstHeight) {
+        if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0 ||
+                dstWidth > srcWidth || dstHeight > srcHeight) {
+            throw new IllegalArgumentException("Invalid scale " + srcWidth + "x" + srcHeight +
+                " -> " + dstWidth + "x" + dstHeight);
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+
+        lumaX0 = new int[dstWidth];
+        lumaXn = new int[dstWidth];
+        spans(srcWidth, dstWidth, lumaX0, lumaXn);
+        lumaY0 = new int[dstHeight];
+        lumaYn = new int[dstHeight];
+        spans(srcHeight, dstHeight, lumaY0, lumaYn);
+
+        int srcChromaWidth = (srcWidth + 1) / 2;
+        int dstChromaWidth = (dstWidth + 1) / 2;
+        int dstChromaHeight = (dstHeight + 1) / 2;
+        chromaX0 = new int[dstChromaWidth];
+        chromaXn = new int[dstChromaWidth];
+        spans(srcChromaWidth, dstChromaWidth, chromaX0, chromaXn);
+        chromaY0 = new int[dstChromaHeight];
+        chromaYn = new int[dstChromaHeight];
+        spans((srcHeight + 1) / 2, dstChromaHeight, chromaY0, chromaYn);
+
+        rowSums = new int[Math.max(dstWidth, dstChromaWidth * 2)];
+        rowScratch = new byte[srcChromaWidth * 2];
+    }
+
+    /**
+     * Largest size fitting into maxWidth x maxHeight with the source aspect ratio, never upscaled
+     *
+     * A non-positive limit means no limit on that side. Results are rounded
+     * down to even sizes so the chroma planes stay exact.
+     */
+    public static int[] fitSize(int srcWidth, int srcHeight, int maxWidth, int maxHeight) {
+        double scale = 1.0;
+        if (maxWidth > 0) {
+            scale = Math.min(scale, (double) maxWidth / srcWidth);
+        }
+        if (maxHeight > 0) {
+            scale = Math.min(scale, (double) maxHeight / srcHeight);
+        }
+        if (scale >= 1.0) {
+            return new int[] {srcWidth, srcHeight};
+        }
+        int width = Math.max(2, (int) (srcWidth * scale) & ~1);
+        int height = Math.max(2, (int) (srcHeight * scale) & ~1);
+        return new int[] {Math.min(width, srcWidth), Math.min(height, srcHeight)};
+    }
+
+    private static void spans(int srcSize, int dstSize, int[] start, int[] count) {
+        for (int i = 0; i < dstSize; i++) {
+            int from = (int) ((long) i * srcSize / dstSize);
+            int to = (int) ((long) (i + 1) * srcSize / dstSize);
+            start[i] = from;
+            count[i] = Math.max(1, to - from);
+        }
+    }
+
+    public int getDstWidth() {
+        return dstWidth;
+    }
+
+    public int getDstHeight() {
+        return dstHeight;
+    }
+
+    /**
+     * Size in bytes of a scaled frame
+     */
+    public int getDstFrameSize() {
+        return NV21FramePool.frameSize(dstWidth, dstHeight);
+    }
+
+    /**
+     * Scale one frame
+     *
+     * @param src Source NV21 frame, read from its current position and left unchanged
+     * @param dst Destination array of at least {@link #getDstFrameSize()} bytes
+     */
+    public void scale(ByteBuffer src, byte[] dst) {
+        int srcSize = NV21FramePool.frameSize(srcWidth, srcHeight);
+        if (src.remaining() < srcSize) {
+            throw new IllegalArgumentException(
+                "Input data too small. Expected at least " + srcSize + " bytes but got " + src.remaining()
+            );
+        }
+        if (dst.length < getDstFrameSize()) {
+            throw new IllegalArgumentException("Output array too small: " + dst.length);
+        }
+        int base = src.position();
+
+        scalePlane(src, base, srcWidth, lumaX0, lumaXn, lumaY0, lumaYn, 1, dst, 0, dstWidth);
+
+        int srcChromaOffset = base + srcWidth * srcHeight;
+        int dstChromaOffset = dstWidth * dstHeight;
+        scalePlane(src, srcChromaOffset, ((srcWidth + 1) / 2) * 2,
+            chromaX0, chromaXn, chromaY0, chromaYn, 2, dst, dstChromaOffset, chromaX0.length * 2);
+    }
+
+    /**
+     * Average the footprint of every destination sample
+     *
+     * @param channels 1 for luma, 2 for interleaved VU pairs
+     */
+    private void scalePlane(ByteBuffer src, int srcOffset, int srcStride,
+                            int[] x0, int[] xn, int[] y0, int[] yn, int channels,
+                            byte[] dst, int dstOffset, int dstStride) {
+        int columns = x0.length;
+        int srcRowBytes = (x0[columns - 1] + xn[columns - 1]) * channels;
+        if (rowScratch.length < srcRowBytes) {
+            rowScratch = new byte[srcRowBytes];
+        }
+        ByteBuffer rows = src.duplicate();
+
+        for (int y = 0; y < y0.length; y++) {
+            Arrays.fill(rowSums, 0, columns * channels, 0);
+            for (int sy = y0[y], end = y0[y] + yn[y]; sy < end; sy++) {
+                rows.position(srcOffset + sy * srcStride);
+                rows.get(rowScratch, 0, srcRowBytes);
+                for (int x = 0; x < columns; x++) {
+                    int from = x0[x] * channels;
+                    int to = from + xn[x] * channels;
+                    if (channels == 1) {
+                        int sum = 0;
+                        for (int i = from; i < to; i++) {
+                            sum += rowScratch[i] & 0xff;
+                        }
+                        rowSums[x] += sum;
+                    } else {
+                        int v = 0;
+                        int u = 0;
+                        for (int i = from; i < to; i += 2) {
+                            v += rowScratch[i] & 0xff;
+                            u += rowScratch[i + 1] & 0xff;
+                        }
+                        rowSums[2 * x] += v;
+                        rowSums[2 * x + 1] += u;
+                    }
+                }
+            }
+
+            int out = dstOffset + y * dstStride;
+            for (int x = 0; x < columns; x++) {
+                int area = xn[x] * yn[y];
+                int half = area / 2;
+                for (int c = 0; c < channels; c++) {
+                    dst[out + x * channels + c] = (byte) ((rowSums[x * channels + c] + half) / area);
+                }
+            }
+        }
+    }
+}
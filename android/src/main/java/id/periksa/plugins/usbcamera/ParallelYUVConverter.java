@@ -0,0 +1,260 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stripe-parallel YUV420SP (NV21) to I420 conversion for high resolution modes
+ *
+ * The frame is split into horizontal stripes aligned to chroma rows (so every
+ * stripe starts on an even luma row). The calling thread converts the first
+ * stripe itself while a small fixed worker pool converts the rest. Frames
+ * below the pixel threshold are converted single-threaded by
+ * {@link YUVConverter}, where the hand-off cost would outweigh the gain.
+ */
+public class ParallelYUVConverter {
+    /**
+     * Default pixel count from which conversion is split across threads (1280x720)
+     */
+    public static final int DEFAULT_THRESHOLD_PIXELS = 1280 * 720;
+
+    private final int stripeCount;
+    private final int threadCount;
+    private volatile int thresholdPixels = DEFAULT_THRESHOLD_PIXELS;
+    private final ExecutorService executor;
+
+    /**
+     * @param stripeCount Number of horizontal stripes per frame, at least 1
+     * @param threadCount Number of worker threads besides the calling thread, at least 1
+     */
+    public ParallelYUVConverter(int stripeCount, int threadCount) {
+        if (stripeCount < 1 || threadCount < 1) {
+            throw new IllegalArgumentException("stripeCount and threadCount must be positive");
+        }
+        this.stripeCount = stripeCount;
+        this.threadCount = threadCount;
+        this.executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger index = new AtomicInteger(0);
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "YUVConverter-" + index.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Set the pixel count (width * height) below which frames are converted on the calling thread only
+     */
+    public void setThresholdPixels(int thresholdPixels) {
+        this.thresholdPixels = Math.max(0, thresholdPixels);
+    }
+
+    public int getThresholdPixels() {
+        return thresholdPixels;
+    }
+
+    public int getStripeCount() {
+        return stripeCount;
+    }
+
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * Convert YUV420SP (NV21) to I420 format, in parallel for large frames
+     *
+     * @param nv21Data Source YUV420SP data, read from its current position and left unchanged
+     * @param width Frame width
+     * @param height Frame height
+     * @param pool Frame pool to take the destination from, or null to allocate a new frame
+     * @return I420Data object containing separate Y, U, V planes
+     */
+    public YUVConverter.I420Data convert(ByteBuffer nv21Data, int width, int height, I420FramePool pool) {
+        if (nv21Data == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        int stripes = stripesFor(width, height);
+        if (stripes <= 1) {
+            return YUVConverter.convertYUV420SPToI420(nv21Data, width, height, pool);
+        }
+
+        YUVConverter.I420Data result = pool != null
+            ? pool.acquire(width, height)
+            : YUVConverter.allocate(width, height);
+        try {
+            if (result.layout.isPacked()) {
+                convert(nv21Data, width, height, result.yPlane, result.uPlane, result.vPlane, stripes);
+            } else {
+                // Pool hands out row-aligned planes
+                convert(nv21Data, YUVFrameLayout.nv21(width, height),
+                    result.yPlane, result.uPlane, result.vPlane, result.layout, stripes);
+            }
+        } catch (RuntimeException e) {
+            result.release();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Convert YUV420SP (NV21) to I420 format into caller supplied planes,
+     * in parallel for large frames. Destination planes are written from their
+     * current position and rewound afterwards.
+     */
+    public void convert(ByteBuffer nv21Data, int width, int height,
+                        ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane) {
+        if (nv21Data == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        int stripes = stripesFor(width, height);
+        if (stripes <= 1) {
+            YUVConverter.convertYUV420SPToI420(nv21Data, width, height, yPlane, uPlane, vPlane);
+            return;
+        }
+        convert(nv21Data, width, height, yPlane, uPlane, vPlane, stripes);
+    }
+
+    /**
+     * Convert a YUV 4:2:0 frame in any supported layout into an I420 frame,
+     * in parallel for large frames. See {@link YUVConverter#convert(ByteBuffer, YUVFrameLayout, YUVConverter.I420Data)}.
+     */
+    public void convert(ByteBuffer src, YUVFrameLayout srcLayout, YUVConverter.I420Data dst) {
+        if (src == null || srcLayout == null || dst == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        int stripes = stripesFor(srcLayout.width, srcLayout.height);
+        if (stripes <= 1) {
+            YUVConverter.convert(src, srcLayout, dst);
+            return;
+        }
+        convert(src, srcLayout, dst.yPlane, dst.uPlane, dst.vPlane, dst.layout, stripes);
+    }
+
+    private int stripesFor(int width, int height) {
+        if ((long) width * height < thresholdPixels) {
+            return 1;
+        }
+        return Math.min(stripeCount, (height + 1) / 2);
+    }
+
+    private void convert(final ByteBuffer nv21Data, final int width, final int height,
+                         final ByteBuffer yPlane, final ByteBuffer uPlane, final ByteBuffer vPlane,
+                         int stripes) {
+        YUVConverter.checkPlaneSizes(nv21Data, width, height, yPlane, uPlane, vPlane);
+
+        runStripes((height + 1) / 2, stripes, new StripeTask() {
+            @Override
+            public void run(int firstChromaRow, int chromaRows) {
+                YUVConverter.convertStripe(nv21Data, width, height, firstChromaRow, chromaRows,
+                    yPlane, uPlane, vPlane);
+            }
+        });
+
+        yPlane.rewind();
+        uPlane.rewind();
+        vPlane.rewind();
+    }
+
+    private void convert(final ByteBuffer src, final YUVFrameLayout srcLayout,
+                         final ByteBuffer dstY, final ByteBuffer dstU, final ByteBuffer dstV,
+                         final YUVFrameLayout dstLayout, int stripes) {
+        YUVConverter.checkLayouts(src, srcLayout, dstY, dstU, dstV, dstLayout);
+
+        runStripes(srcLayout.getChromaHeight(), stripes, new StripeTask() {
+            @Override
+            public void run(int firstChromaRow, int chromaRows) {
+                YUVConverter.convertRows(src, srcLayout, dstY, dstU, dstV, dstLayout, firstChromaRow, chromaRows);
+            }
+        });
+    }
+
+    /**
+     * Work on the chroma rows [firstChromaRow, firstChromaRow + chromaRows) and the matching luma rows
+     */
+    private interface StripeTask {
+        void run(int firstChromaRow, int chromaRows);
+    }
+
+    /**
+     * Split chromaHeight rows into stripes and run them on the workers and the calling thread,
+     * returning once every stripe is done
+     */
+    private void runStripes(int chromaHeight, int stripes, final StripeTask task) {
+        // Spread chroma rows as evenly as possible, the first stripes take the remainder
+        final int baseRows = chromaHeight / stripes;
+        final int extraRows = chromaHeight % stripes;
+
+        final CountDownLatch done = new CountDownLatch(stripes - 1);
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        int firstRow = baseRows + (extraRows > 0 ? 1 : 0);
+        for (int i = 1; i < stripes; i++) {
+            final int stripeFirstRow = firstRow;
+            final int stripeRows = baseRows + (i < extraRows ? 1 : 0);
+            firstRow += stripeRows;
+            Runnable stripe = new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run(stripeFirstRow, stripeRows);
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            };
+            try {
+                executor.execute(stripe);
+            } catch (RejectedExecutionException e) {
+                // Shut down meanwhile, convert it here so the frame is still complete
+                // once the stripes already handed out have finished below
+                stripe.run();
+            }
+        }
+
+        // The calling thread takes the first stripe instead of idling
+        RuntimeException localFailure = null;
+        try {
+            task.run(0, baseRows + (extraRows > 0 ? 1 : 0));
+        } catch (RuntimeException e) {
+            localFailure = e;
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+
+        if (localFailure != null) {
+            throw localFailure;
+        }
+        if (failure.get() != null) {
+            throw failure.get();
+        }
+    }
+
+    /**
+     * Stop the worker threads, stripes that can no longer be handed out run on the calling thread
+     */
+    public void shutdown() {
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,274 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Ring of the most recent NV21 frames for burst capture around a trigger
+ *
+ * The shutter is usually pressed a little late, so the camera frames are
+ * copied into pooled arrays continuously and the last ones are kept. On a
+ * trigger the frames up to the trigger time are handed over together with
+ * the next frames after it, all in capture order. Frames change owner on
+ * hand-over: the listener releases them back to the pool when done.
+ *
+ * With sharpness scoring on, every frame is scored with {@link SharpnessMeter}
+ * as it is copied in, and selectSharpest() picks the best of the latest ones
+ * for handheld stills.
+ *
+ * offer() runs on the frame callback thread, trigger() on any thread. The
+ * listener is called with the ring locked and should only queue the frame.
+ */
+public class PreCaptureRing {
+    public interface Listener {
+        /**
+         * @param frame Frame owned by the listener now, release it when done
+         * @param index Position in the burst, 0 is the oldest frame
+         * @param offsetNs Capture time relative to the trigger, negative before it
+         */
+        void onBurstFrame(NV21FramePool.Frame frame, int index, long offsetNs);
+
+        /**
+         * All frames were handed over
+         *
+         * @param count Frames in the burst, may be fewer than requested if the ring was not full or cancelled
+         */
+        void onBurstComplete(int count);
+    }
+
+    private final NV21FramePool pool;
+    private final NV21FramePool.Frame[] frames;
+    private final long[] timestamps;
+    private final double[] sharpness;
+    private final boolean scoreSharpness;
+    // Index of the oldest frame and number of frames held
+    private int head = 0;
+    private int count = 0;
+
+    // Burst in progress, waiting for frames after the trigger
+    private Listener listener;
+    private long triggerNs;
+    private int nextIndex;
+    private int remainingAfter;
+
+    private long offeredCount = 0;
+    private double selectedSharpness = -1;
+
+    /**
+     * @param capacity Frames kept before a trigger
+     */
+    public PreCaptureRing(int capacity) {
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity Frames kept before a trigger
+     * @param scoreSharpness Score every frame for selectSharpest()
+     */
+    public PreCaptureRing(int capacity, boolean scoreSharpness) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive");
+        }
+        this.frames = new NV21FramePool.Frame[capacity];
+        this.timestamps = new long[capacity];
+        this.sharpness = new double[capacity];
+        this.scoreSharpness = scoreSharpness;
+        // Room for the ring plus the frame being copied
+        this.pool = new NV21FramePool(capacity + 1);
+    }
+
+    public int getCapacity() {
+        return frames.length;
+    }
+
+    /**
+     * Copy a frame into the ring, or hand it over if a burst waits for it
+     *
+     * @param nv21Data Tightly packed NV21 frame, read from its current position and left unchanged
+     * @param timestampNs Capture time in the System.nanoTime() time base
+     */
+    public synchronized void offer(ByteBuffer nv21Data, int width, int height, long timestampNs) {
+        offeredCount++;
+        if (listener != null && timestampNs > triggerNs) {
+            listener.onBurstFrame(pool.copyOf(nv21Data, width, height), nextIndex++, timestampNs - triggerNs);
+            if (--remainingAfter <= 0) {
+                finishBurst();
+            }
+            return;
+        }
+
+        if (count > 0) {
+            NV21FramePool.Frame newest = frames[(head + count - 1) % frames.length];
+            if (newest.width != width || newest.height != height) {
+                // Mode switch, older frames would not match
+                clearFrames();
+            }
+        }
+        if (count == frames.length) {
+            // Drop the oldest frame first so its array can be reused
+            frames[head].release();
+            frames[head] = null;
+            head = (head + 1) % frames.length;
+            count--;
+        }
+        int slot = (head + count) % frames.length;
+        frames[slot] = pool.copyOf(nv21Data, width, height);
+        timestamps[slot] = timestampNs;
+        if (scoreSharpness) {
+            sharpness[slot] = SharpnessMeter.score(frames[slot].data, width, height);
+        }
+        count++;
+    }
+
+    /**
+     * Hand over a copy of the sharpest frame among the latest ones up to a trigger time
+     *
+     * The frames stay in the ring. If there is no frame up to the trigger yet,
+     * the next frame is taken as it is.
+     *
+     * @param triggerNs Trigger time in the offer() time base
+     * @param candidates Frames to choose from, at most the capacity
+     * @return false if a burst is in progress
+     */
+    public synchronized boolean selectSharpest(long triggerNs, int candidates, Listener listener) {
+        if (!scoreSharpness) {
+            throw new IllegalStateException("Sharpness scoring is off");
+        }
+        if (listener == null || candidates <= 0) {
+            throw new IllegalArgumentException("Invalid candidate count " + candidates);
+        }
+        if (this.listener != null) {
+            return false;
+        }
+        int atOrBefore = 0;
+        while (atOrBefore < count && timestamps[(head + atOrBefore) % frames.length] <= triggerNs) {
+            atOrBefore++;
+        }
+        if (atOrBefore == 0) {
+            selectedSharpness = -1;
+            return trigger(triggerNs, 0, 1, listener);
+        }
+        int best = -1;
+        for (int i = Math.max(0, atOrBefore - candidates); i < atOrBefore; i++) {
+            int slot = (head + i) % frames.length;
+            if (best < 0 || sharpness[slot] > sharpness[best]) {
+                best = slot;
+            }
+        }
+        NV21FramePool.Frame source = frames[best];
+        NV21FramePool.Frame copy = pool.acquire(source.width, source.height);
+        System.arraycopy(source.data, 0, copy.data, 0, NV21FramePool.frameSize(source.width, source.height));
+        selectedSharpness = sharpness[best];
+        listener.onBurstFrame(copy, 0, timestamps[best] - triggerNs);
+        listener.onBurstComplete(1);
+        return true;
+    }
+
+    /**
+     * Score of the frame last picked by selectSharpest(), -1 if it took the next frame unscored
+     */
+    public synchronized double getSelectedSharpness() {
+        return selectedSharpness;
+    }
+
+    /**
+     * Start a burst around a trigger time
+     *
+     * @param triggerNs Trigger time in the offer() time base
+     * @param before Frames to take up to the trigger, at most the capacity
+     * @param after Frames to take after the trigger
+     * @return false if a burst is already in progress
+     */
+    public synchronized boolean trigger(long triggerNs, int before, int after, Listener listener) {
+        if (listener == null || before < 0 || after < 0) {
+            throw new IllegalArgumentException("Invalid burst " + before + " + " + after);
+        }
+        if (this.listener != null) {
+            return false;
+        }
+        this.listener = listener;
+        this.triggerNs = triggerNs;
+        this.nextIndex = 0;
+        this.remainingAfter = after;
+
+        // Frames up to the trigger, skipping the older ones beyond 'before'
+        int atOrBefore = 0;
+        while (atOrBefore < count && timestamps[(head + atOrBefore) % frames.length] <= triggerNs) {
+            atOrBefore++;
+        }
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % frames.length;
+            NV21FramePool.Frame frame = frames[slot];
+            frames[slot] = null;
+            boolean wanted = i < atOrBefore ? i >= atOrBefore - before : remainingAfter > 0;
+            if (!wanted) {
+                frame.release();
+                continue;
+            }
+            listener.onBurstFrame(frame, nextIndex++, timestamps[slot] - triggerNs);
+            if (i >= atOrBefore) {
+                remainingAfter--;
+            }
+        }
+        head = 0;
+        count = 0;
+        if (remainingAfter <= 0) {
+            finishBurst();
+        }
+        return true;
+    }
+
+    /**
+     * End a burst in progress with the frames handed over so far
+     */
+    public synchronized void cancel() {
+        if (listener != null) {
+            finishBurst();
+        }
+    }
+
+    public synchronized boolean isCapturing() {
+        return listener != null;
+    }
+
+    /**
+     * Frames currently held
+     */
+    public synchronized int size() {
+        return count;
+    }
+
+    public synchronized long getOfferedCount() {
+        return offeredCount;
+    }
+
+    /**
+     * Frames handed out and not released yet
+     */
+    public int getOutstandingCount() {
+        return pool.getOutstandingCount() - size();
+    }
+
+    /**
+     * Release all held frames and the idle arrays
+     */
+    public synchronized void clear() {
+        clearFrames();
+        pool.clear();
+    }
+
+    private void finishBurst() {
+        Listener l = listener;
+        listener = null;
+        l.onBurstComplete(nextIndex);
+    }
+
+    private void clearFrames() {
+        for (int i = 0; i < count; i++) {
+            int slot = (head + i) % frames.length;
+            frames[slot].release();
+            frames[slot] = null;
+        }
+        head = 0;
+        count = 0;
+    }
+}
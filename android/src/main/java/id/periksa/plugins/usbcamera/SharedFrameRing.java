@@ -0,0 +1,301 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process frame transport between the camera activity and the plugin
+ *
+ * A fixed ring of slots carved out of one direct (or SharedMemory mapped)
+ * buffer. The writer copies each frame into a slot once and announces it
+ * with a "frame N ready" callback; the reader maps the newest slot without
+ * copying. Replaces the per-frame broadcast Intents, which went through
+ * Binder, copied the frame several times and hit the 1 MB transaction limit.
+ *
+ * Each slot has a state (FREE, WRITING, READY, READING) changed with CAS, so
+ * a frame is never overwritten while it is being read. The writer never
+ * touches the newest READY slot or a slot being read, which means that with
+ * at least three slots and one reader it always finds a slot and never
+ * waits. Frames the reader was too slow for are simply overwritten.
+ */
+public class SharedFrameRing {
+    /**
+     * Default number of slots, enough for one writer and one reader to never block
+     */
+    public static final int DEFAULT_SLOT_COUNT = 3;
+
+    private static final int FREE = 0;
+    private static final int WRITING = 1;
+    private static final int READY = 2;
+    private static final int READING = 3;
+
+    /**
+     * Receives "frame N ready" notifications on the writer thread, must return quickly
+     */
+    public interface Listener {
+        void onFrameAvailable(SharedFrameRing ring, long frameNumber);
+    }
+
+    private final ByteBuffer memory;
+    private final int slotCount;
+    private final int slotSize;
+    private final AtomicIntegerArray states;
+
+    // Slot metadata, written before the slot turns READY and read after it was claimed
+    private final long[] frameNumbers;
+    private final long[] timestamps;
+    private final int[] widths;
+    private final int[] heights;
+    private final int[] lengths;
+    private final String[] formats;
+
+    // Newest published frame, (frameNumber << 8) | slot, -1 before the first frame
+    private final AtomicLong latest = new AtomicLong(-1);
+    private long nextFrameNumber = 0;
+    private int nextSlot = 0;
+    private volatile Listener listener;
+
+    private final AtomicLong publishedCount = new AtomicLong(0);
+    private final AtomicLong droppedCount = new AtomicLong(0);
+    private final AtomicLong readCount = new AtomicLong(0);
+    private final AtomicLong skippedCount = new AtomicLong(0);
+
+    /**
+     * Ring backed by a new direct buffer
+     *
+     * @param slotCount Number of slots, at least 3 for a non-blocking writer
+     * @param maxFrameBytes Largest frame a slot can hold
+     */
+    public SharedFrameRing(int slotCount, int maxFrameBytes) {
+        this(ByteBuffer.allocateDirect(checkedSize(slotCount, maxFrameBytes)), slotCount, maxFrameBytes);
+    }
+
+    /**
+     * Ring backed by caller supplied memory, e.g. SharedMemory.mapReadWrite()
+     *
+     * @param memory Buffer of at least slotCount * maxFrameBytes bytes from its position
+     * @param slotCount Number of slots, at least 3 for a non-blocking writer
+     * @param maxFrameBytes Largest frame a slot can hold
+     */
+    public SharedFrameRing(ByteBuffer memory, int slotCount, int maxFrameBytes) {
+        int size = checkedSize(slotCount, maxFrameBytes);
+        if (memory == null || memory.remaining() < size) {
+            throw new IllegalArgumentException("Ring memory smaller than " + size + " bytes");
+        }
+        this.memory = memory.slice();
+        this.slotCount = slotCount;
+        this.slotSize = maxFrameBytes;
+        this.states = new AtomicIntegerArray(slotCount);
+        this.frameNumbers = new long[slotCount];
+        this.timestamps = new long[slotCount];
+        this.widths = new int[slotCount];
+        this.heights = new int[slotCount];
+        this.lengths = new int[slotCount];
+        this.formats = new String[slotCount];
+    }
+
+    private static int checkedSize(int slotCount, int maxFrameBytes) {
+        if (slotCount < 2 || slotCount > 255 || maxFrameBytes <= 0) {
+            throw new IllegalArgumentException("Invalid ring size " + slotCount + " x " + maxFrameBytes);
+        }
+        long size = (long) slotCount * maxFrameBytes;
+        if (size > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Ring too large: " + size + " bytes");
+        }
+        return (int) size;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    /**
+     * Copy a frame into the ring and notify the listener, writer thread only
+     *
+     * @param frame Frame data, read from its current position and left unchanged
+     * @param width Frame width
+     * @param height Frame height
+     * @param format Pixel format name, e.g. "YUV420SP"
+     * @param timestampNs Capture time in the System.nanoTime() time base
+     * @return Frame number, or -1 if the frame was dropped
+     */
+    public long publish(ByteBuffer frame, int width, int height, String format, long timestampNs) {
+        int length = frame.remaining();
+        if (length > slotSize) {
+            droppedCount.incrementAndGet();
+            return -1;
+        }
+        int slot = claimWriteSlot();
+        if (slot < 0) {
+            droppedCount.incrementAndGet();
+            return -1;
+        }
+
+        ByteBuffer target = memory.duplicate();
+        target.position(slot * slotSize);
+        target.put(frame.duplicate());
+
+        long frameNumber = nextFrameNumber++;
+        frameNumbers[slot] = frameNumber;
+        timestamps[slot] = timestampNs;
+        widths[slot] = width;
+        heights[slot] = height;
+        lengths[slot] = length;
+        formats[slot] = format;
+
+        // Volatile writes publish the data and metadata above
+        states.set(slot, READY);
+        latest.set((frameNumber << 8) | slot);
+        publishedCount.incrementAndGet();
+
+        Listener l = listener;
+        if (l != null) {
+            l.onFrameAvailable(this, frameNumber);
+        }
+        return frameNumber;
+    }
+
+    /**
+     * Find a FREE or stale READY slot, oldest first, skipping the newest frame and slots being read
+     */
+    private int claimWriteSlot() {
+        long newest = latest.get();
+        int newestSlot = newest >= 0 ? (int) (newest & 0xff) : -1;
+        for (int i = 0; i < slotCount; i++) {
+            int slot = (nextSlot + i) % slotCount;
+            if (slot == newestSlot) {
+                continue;
+            }
+            if (states.compareAndSet(slot, FREE, WRITING) || states.compareAndSet(slot, READY, WRITING)) {
+                nextSlot = (slot + 1) % slotCount;
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Claim the newest frame if it is newer than the given frame number
+     *
+     * The returned frame stays valid until {@link Frame#release()}, which must
+     * be called before acquiring the next one.
+     *
+     * @param afterFrameNumber Last frame number seen, -1 for none
+     * @return The newest frame, or null if there is nothing newer
+     */
+    public Frame acquireLatest(long afterFrameNumber) {
+        while (true) {
+            long newest = latest.get();
+            if (newest < 0 || (newest >>> 8) <= afterFrameNumber) {
+                return null;
+            }
+            int slot = (int) (newest & 0xff);
+            if (!states.compareAndSet(slot, READY, READING)) {
+                // The writer recycled the slot for a newer frame, look again
+                continue;
+            }
+            long frameNumber = frameNumbers[slot];
+            if (frameNumber <= afterFrameNumber) {
+                states.set(slot, READY);
+                return null;
+            }
+
+            readCount.incrementAndGet();
+            if (afterFrameNumber >= 0) {
+                skippedCount.addAndGet(frameNumber - afterFrameNumber - 1);
+            }
+            ByteBuffer data = memory.duplicate();
+            data.limit(slot * slotSize + lengths[slot]);
+            data.position(slot * slotSize);
+            return new Frame(this, slot, frameNumber, timestamps[slot], widths[slot], heights[slot],
+                formats[slot], data.slice().asReadOnlyBuffer());
+        }
+    }
+
+    private void release(int slot) {
+        // Back to READY so the frame can be read again until the writer recycles it
+        states.compareAndSet(slot, READING, READY);
+    }
+
+    /**
+     * Number of the newest published frame, -1 before the first one
+     */
+    public long getLatestFrameNumber() {
+        long newest = latest.get();
+        return newest < 0 ? -1 : newest >>> 8;
+    }
+
+    public int getSlotCount() {
+        return slotCount;
+    }
+
+    public int getMaxFrameBytes() {
+        return slotSize;
+    }
+
+    public long getPublishedCount() {
+        return publishedCount.get();
+    }
+
+    /**
+     * Frames the writer dropped because they were too large or no slot was free
+     */
+    public long getDroppedCount() {
+        return droppedCount.get();
+    }
+
+    public long getReadCount() {
+        return readCount.get();
+    }
+
+    /**
+     * Frames overwritten before the reader got to them
+     */
+    public long getSkippedCount() {
+        return skippedCount.get();
+    }
+
+    /**
+     * Frame claimed by the reader, a read-only view into its slot
+     */
+    public static final class Frame {
+        public final long frameNumber;
+        public final long timestampNs;
+        public final int width;
+        public final int height;
+        public final String format;
+        /** Frame bytes, position 0 to limit */
+        public final ByteBuffer data;
+
+        private final SharedFrameRing ring;
+        private final int slot;
+        private boolean released = false;
+
+        Frame(SharedFrameRing ring, int slot, long frameNumber, long timestampNs,
+              int width, int height, String format, ByteBuffer data) {
+            this.ring = ring;
+            this.slot = slot;
+            this.frameNumber = frameNumber;
+            this.timestampNs = timestampNs;
+            this.width = width;
+            this.height = height;
+            this.format = format;
+            this.data = data;
+        }
+
+        /**
+         * Give the slot back to the writer, the data view must not be used afterwards
+         */
+        public void release() {
+            if (!released) {
+                released = true;
+                ring.release(slot);
+            }
+        }
+    }
+}
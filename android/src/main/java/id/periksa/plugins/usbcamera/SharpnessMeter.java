@@ -0,0 +1,80 @@
+package id.periksa.plugins.usbcamera;
+
+/**
+ * Focus and motion blur metric for YUV frames
+ *
+ * The score is the variance of a 4-neighbour Laplacian over the luma plane:
+ * sharp edges give large second derivatives, blur flattens them. Only every
+ * step-th pixel of every step-th row is visited, so a 1080p frame costs about
+ * as much as a 320 pixel wide one. Scores depend on the scene, they are meant
+ * for comparing frames of the same shot, not as an absolute threshold.
+ *
+ * No allocations and no state, safe to call on the frame callback thread.
+ */
+public final class SharpnessMeter {
+    /**
+     * Sample grid width stepFor() aims for
+     */
+    public static final int TARGET_SAMPLE_WIDTH = 320;
+
+    private SharpnessMeter() {
+    }
+
+    /**
+     * Pixel step that keeps the sample grid near TARGET_SAMPLE_WIDTH columns
+     */
+    public static int stepFor(int width) {
+        return Math.max(1, width / TARGET_SAMPLE_WIDTH);
+    }
+
+    /**
+     * Score a YUV frame with the default step
+     *
+     * @param yuv Frame starting with its luma plane, e.g. NV21 or I420
+     */
+    public static double score(byte[] yuv, int width, int height) {
+        return score(yuv, 0, width, width, height, stepFor(width));
+    }
+
+    /**
+     * Laplacian variance of a luma plane
+     *
+     * @param luma Array holding the luma plane
+     * @param offset Index of the first luma byte
+     * @param stride Bytes per luma row
+     * @param width Frame width
+     * @param height Frame height
+     * @param step Distance between samples and to their neighbours, at least 1
+     * @return Variance of the Laplacian, 0 for frames too small to sample
+     */
+    public static double score(byte[] luma, int offset, int stride, int width, int height, int step) {
+        if (width <= 0 || height <= 0 || stride < width || step < 1) {
+            throw new IllegalArgumentException("Invalid luma plane " + width + "x" + height
+                + ", stride " + stride + ", step " + step);
+        }
+        if (luma.length < offset + (long) stride * (height - 1) + width) {
+            throw new IllegalArgumentException("Luma plane too short: " + luma.length);
+        }
+        final int rowStep = step * stride;
+        long sum = 0;
+        long sumSquares = 0;
+        int count = 0;
+        for (int y = step; y < height - step; y += step) {
+            int row = offset + y * stride;
+            for (int x = step; x < width - step; x += step) {
+                int i = row + x;
+                int laplacian = 4 * (luma[i] & 0xff)
+                    - (luma[i - step] & 0xff) - (luma[i + step] & 0xff)
+                    - (luma[i - rowStep] & 0xff) - (luma[i + rowStep] & 0xff);
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+                count++;
+            }
+        }
+        if (count == 0) {
+            return 0;
+        }
+        double mean = (double) sum / count;
+        return (double) sumSquares / count - mean * mean;
+    }
+}
@@ -0,0 +1,88 @@
+package id.periksa.plugins.usbcamera;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import livekit.org.webrtc.VideoFrame;
+
+/**
+ * Full resolution frame carrying prebuilt lower resolution layers for simulcast
+ *
+ * WebRTC scales a frame once per simulcast layer through cropAndScale(). This
+ * buffer answers those calls with the layers an {@link I420Pyramid} already
+ * built, so the encoder gets its 1/2 and 1/4 frames without another scaling
+ * pass. Requests for other sizes or crops are scaled from the smallest layer
+ * that still covers them.
+ *
+ * Reported as a native buffer on purpose: I420 buffers are scaled in native
+ * code and would never reach cropAndScale() here.
+ */
+public class SimulcastFrameBuffer implements VideoFrame.Buffer {
+    private final VideoFrame.I420Buffer full;
+    private final VideoFrame.I420Buffer[] layers;
+    private final AtomicInteger refCount = new AtomicInteger(1);
+
+    /**
+     * Takes over one reference of every buffer
+     *
+     * @param full Full resolution frame
+     * @param layers Layers from the largest to the smallest
+     */
+    public SimulcastFrameBuffer(VideoFrame.I420Buffer full, VideoFrame.I420Buffer[] layers) {
+        if (full == null || layers == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        this.full = full;
+        this.layers = layers;
+    }
+
+    @Override
+    public int getWidth() {
+        return full.getWidth();
+    }
+
+    @Override
+    public int getHeight() {
+        return full.getHeight();
+    }
+
+    @Override
+    public VideoFrame.I420Buffer toI420() {
+        return full.toI420();
+    }
+
+    @Override
+    public void retain() {
+        refCount.incrementAndGet();
+    }
+
+    @Override
+    public void release() {
+        if (refCount.decrementAndGet() != 0) {
+            return;
+        }
+        full.release();
+        for (VideoFrame.I420Buffer layer : layers) {
+            layer.release();
+        }
+    }
+
+    @Override
+    public VideoFrame.Buffer cropAndScale(int cropX, int cropY, int cropWidth, int cropHeight,
+                                          int scaleWidth, int scaleHeight) {
+        if (cropX != 0 || cropY != 0 || cropWidth != getWidth() || cropHeight != getHeight()) {
+            return full.cropAndScale(cropX, cropY, cropWidth, cropHeight, scaleWidth, scaleHeight);
+        }
+        VideoFrame.I420Buffer source = full;
+        for (VideoFrame.I420Buffer layer : layers) {
+            if (layer.getWidth() < scaleWidth || layer.getHeight() < scaleHeight) {
+                break;
+            }
+            source = layer;
+        }
+        if (source.getWidth() == scaleWidth && source.getHeight() == scaleHeight) {
+            source.retain();
+            return source;
+        }
+        return source.cropAndScale(0, 0, source.getWidth(), source.getHeight(), scaleWidth, scaleHeight);
+    }
+}
@@ -0,0 +1,282 @@
+package id.periksa.plugins.usbcamera;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import com.serenegiant.usb_libuvccamera.IFrameCallback;
+import com.serenegiant.usb_libuvccamera.UVCCamera;
+import com.serenegiant.usbcameracommon.UVCCameraHandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Still capture straight from the UVC frame callback
+ *
+ * Grabbing the TextureView bitmap, saving it as PNG and decoding it again
+ * to scale and re-encode as JPEG costs three full codec passes per photo.
+ * Here the next NV21 frame is copied out of the frame callback, scaled to
+ * the requested size and compressed to JPEG once on a worker thread. The
+ * same JPEG bytes are written to the file and sent to JavaScript. When the
+ * camera size already fits the request the camera's own MJPEG payload is
+ * taken instead, with no codec pass at all, falling back to NV21 if the
+ * camera does not deliver MJPEG.
+ *
+ * Full resolution stills switch the camera to its largest MJPEG mode for
+ * one frame, see {@link UVCCameraHandler#captureFullResolution}; the MJPEG
+ * payload is passed on as it is.
+ *
+ * One capture at a time, results are delivered on the worker thread.
+ */
+public class StillImageCapture {
+    private static final String TAG = "StillImageCapture";
+
+    /**
+     * Time to wait for a frame before the capture fails
+     */
+    public static final long FRAME_TIMEOUT_MS = 2000;
+
+    public interface Callback {
+        /**
+         * JPEG is ready
+         *
+         * @param jpeg Encoded image, position 0 to limit, only valid during the call
+         * @param width Image width
+         * @param height Image height
+         * @param modeSwitchMs Time to get the full resolution frame including the mode switch, -1 for preview stills
+         */
+        void onCaptured(ByteBuffer jpeg, int width, int height, long modeSwitchMs);
+
+        void onError(Exception e);
+    }
+
+    private final UVCCameraHandler mCameraHandler;
+    private final HandlerThread mWorkerThread;
+    private final Handler mWorker;
+    private final AtomicBoolean mPending = new AtomicBoolean(false);
+    // Set until a frame was taken, further callbacks before the callback is removed are ignored
+    private final AtomicBoolean mAwaitingFrame = new AtomicBoolean(false);
+
+    private volatile int mPixelFormat = UVCCamera.PIXEL_FORMAT_NV21;
+
+    // Worker thread only, besides hand-over in capture()
+    private FrameEncoder mEncoder;
+    private Callback mCallback;
+    private final MjpegNormalizer mNormalizer = new MjpegNormalizer();
+
+    public StillImageCapture(UVCCameraHandler cameraHandler) {
+        mCameraHandler = cameraHandler;
+        mWorkerThread = new HandlerThread("StillImageCapture");
+        mWorkerThread.start();
+        mWorker = new Handler(mWorkerThread.getLooper());
+    }
+
+    /**
+     * Capture the next preview frame
+     *
+     * @param maxWidth Output width limit, 0 for the camera width
+     * @param maxHeight Output height limit, 0 for the camera height
+     * @param quality JPEG quality 0-100
+     * @return false if a capture is already running
+     */
+    public boolean capture(int maxWidth, int maxHeight, int quality, Callback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        final FrameEncoder encoder = new FrameEncoder(FrameEncoder.Format.JPEG, quality, maxWidth, maxHeight);
+        if (!mPending.compareAndSet(false, true)) {
+            return false;
+        }
+        mEncoder = encoder;
+        mCallback = callback;
+        final int width = mCameraHandler.getWidth();
+        final int height = mCameraHandler.getHeight();
+        final int[] size = NV21Scaler.fitSize(width, height, maxWidth, maxHeight);
+        // No scaling needed, the camera's JPEG can be used as it is
+        mPixelFormat = size[0] == width && size[1] == height
+            ? UVCCamera.PIXEL_FORMAT_RAW : UVCCamera.PIXEL_FORMAT_NV21;
+        mAwaitingFrame.set(true);
+        mWorker.postDelayed(mTimeout, FRAME_TIMEOUT_MS);
+        mCameraHandler.setFrameCallback(mFrameCallback, mPixelFormat);
+        return true;
+    }
+
+    /**
+     * Capture one frame at the camera's largest MJPEG size
+     *
+     * @param quality JPEG quality 0-100, only used if the camera delivers no MJPEG payload
+     * @return false if a capture is already running
+     */
+    public boolean captureFullResolution(int quality, Callback callback) {
+        if (callback == null) {
+            throw new IllegalArgumentException("callback must not be null");
+        }
+        final FrameEncoder encoder = new FrameEncoder(FrameEncoder.Format.JPEG, quality, 0, 0);
+        if (!mPending.compareAndSet(false, true)) {
+            return false;
+        }
+        mEncoder = encoder;
+        mCallback = callback;
+        mCameraHandler.captureFullResolution(mFullResolutionCallback);
+        return true;
+    }
+
+    public boolean isCapturing() {
+        return mPending.get();
+    }
+
+    /**
+     * Stop the worker thread, a capture in progress is dropped
+     */
+    public void release() {
+        mAwaitingFrame.set(false);
+        if (mPending.getAndSet(false)) {
+            mCameraHandler.setFrameCallback(null, 0);
+        }
+        mWorker.removeCallbacksAndMessages(null);
+        mWorkerThread.quitSafely();
+    }
+
+    private final IFrameCallback mFrameCallback = new IFrameCallback() {
+        @Override
+        public void onFrame(final ByteBuffer frame) {
+            // Runs on the native frame thread, the buffer is only valid during the call
+            final int width = mCameraHandler.getWidth();
+            final int height = mCameraHandler.getHeight();
+            if (mPixelFormat == UVCCamera.PIXEL_FORMAT_RAW) {
+                onRawFrame(frame, width, height);
+                return;
+            }
+            final int size = NV21FramePool.frameSize(width, height);
+            if (frame.remaining() < size || !mAwaitingFrame.compareAndSet(true, false)) {
+                return;
+            }
+            final byte[] nv21 = new byte[size];
+            frame.duplicate().get(nv21, 0, size);
+            mCameraHandler.setFrameCallback(null, 0);
+            mWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    encode(nv21, width, height);
+                }
+            });
+        }
+    };
+
+    private void onRawFrame(ByteBuffer frame, final int width, final int height) {
+        final int length = MjpegNormalizer.findEnd(frame);
+        if (length < 0) {
+            // Not MJPEG, e.g. the camera runs in YUYV, take the next frame decoded
+            Log.w(TAG, "Raw frame is not a JPEG, capturing NV21");
+            mPixelFormat = UVCCamera.PIXEL_FORMAT_NV21;
+            mCameraHandler.setFrameCallback(mFrameCallback, mPixelFormat);
+            return;
+        }
+        if (!mAwaitingFrame.compareAndSet(true, false)) {
+            return;
+        }
+        final byte[] jpeg = new byte[length];
+        frame.duplicate().get(jpeg);
+        mCameraHandler.setFrameCallback(null, 0);
+        mWorker.post(new Runnable() {
+            @Override
+            public void run() {
+                mWorker.removeCallbacks(mTimeout);
+                deliverJpeg(jpeg, width, height, -1);
+            }
+        });
+    }
+
+    private final UVCCameraHandler.StillCaptureCallback mFullResolutionCallback = new UVCCameraHandler.StillCaptureCallback() {
+        @Override
+        public void onStillCaptured(final byte[] data, final int width, final int height,
+                                    final boolean isJpeg, final long switchMs) {
+            // Camera thread, which restores the preview as soon as this returns
+            mWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (isJpeg) {
+                        deliverJpeg(data, width, height, switchMs);
+                    } else {
+                        encode(data, width, height, switchMs);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onStillError(final Exception e) {
+            mWorker.post(new Runnable() {
+                @Override
+                public void run() {
+                    fail(e);
+                }
+            });
+        }
+    };
+
+    private void deliverJpeg(byte[] jpeg, int width, int height, long switchMs) {
+        if (!mPending.get()) return;
+        final Callback callback = mCallback;
+        mCallback = null;
+        mEncoder = null;
+        // Adds the Huffman tables many cameras leave out
+        final ByteBuffer normalized = mNormalizer.normalize(ByteBuffer.wrap(jpeg));
+        mPending.set(false);
+        if (normalized == null) {
+            callback.onError(new IllegalStateException("Camera sent a malformed JPEG"));
+            return;
+        }
+        Log.d(TAG, "Camera JPEG " + width + "x" + height + ", " + normalized.remaining() + " bytes"
+            + (switchMs >= 0 ? ", mode switch " + switchMs + " ms" : ""));
+        callback.onCaptured(normalized, width, height, switchMs);
+    }
+
+    private void fail(Exception e) {
+        if (!mPending.getAndSet(false)) return;
+        final Callback callback = mCallback;
+        mCallback = null;
+        mEncoder = null;
+        callback.onError(e);
+    }
+
+    private void encode(byte[] nv21, int width, int height) {
+        encode(nv21, width, height, -1);
+    }
+
+    private void encode(byte[] nv21, int width, int height, long switchMs) {
+        mWorker.removeCallbacks(mTimeout);
+        if (!mPending.get()) return;
+        final Callback callback = mCallback;
+        final FrameEncoder encoder = mEncoder;
+        mCallback = null;
+        mEncoder = null;
+        try {
+            ByteBuffer jpeg;
+            try {
+                jpeg = encoder.encode(ByteBuffer.wrap(nv21), width, height);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Error encoding still image", e);
+                mPending.set(false);
+                callback.onError(e);
+                return;
+            }
+            Log.d(TAG, "Still " + encoder.getEncodedWidth() + "x" + encoder.getEncodedHeight()
+                + ", " + jpeg.remaining() + " bytes in " + encoder.getAverageEncodeNs() / 1000000 + " ms");
+            mPending.set(false);
+            callback.onCaptured(jpeg, encoder.getEncodedWidth(), encoder.getEncodedHeight(), switchMs);
+        } finally {
+            encoder.release();
+        }
+    }
+
+    private final Runnable mTimeout = new Runnable() {
+        @Override
+        public void run() {
+            if (!mAwaitingFrame.getAndSet(false)) return;
+            mCameraHandler.setFrameCallback(null, 0);
+            fail(new IllegalStateException("No frame within " + FRAME_TIMEOUT_MS + " ms"));
+        }
+    };
+}
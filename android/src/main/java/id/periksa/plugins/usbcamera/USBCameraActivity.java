@@ -3,7 +3,6 @@ package id.periksa.plugins.usbcamera;
 import android.content.ContentResolver;
 import android.content.ContentValues;
 import android.content.Intent;
-import android.graphics.Bitmap;
 import android.graphics.SurfaceTexture;
 import android.hardware.usb.UsbDevice;
 import android.net.Uri;
@@ -12,7 +11,6 @@ import android.os.Bundle;
 import android.provider.MediaStore;
 import android.util.Log;
 import android.view.Surface;
-import android.view.TextureView;
 import android.view.View;
 import android.widget.ImageButton;
 import android.widget.TextView;
@@ -28,11 +26,11 @@ import com.serenegiant.usb_libuvccamera.UVCCamera;
 import com.serenegiant.usbcameracommon.UVCCameraHandler;
 import com.serenegiant.widget.CameraViewInterface;
 
-import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.List;
 import java.util.UUID;
 
@@ -58,6 +56,31 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
      * 0:YUYV, other:MJPEG
      */
     private static final int PREVIEW_MODE = 1;
+    /**
+     * default size limit and JPEG quality of captured photos
+     */
+    private static final int PHOTO_WIDTH = 640;
+    private static final int PHOTO_HEIGHT = 480;
+    private static final int PHOTO_QUALITY = 85;
+
+    public static final String EXTRA_PHOTO_WIDTH = "photo_width";
+    public static final String EXTRA_PHOTO_HEIGHT = "photo_height";
+    public static final String EXTRA_PHOTO_QUALITY = "photo_quality";
+    public static final String EXTRA_PHOTO_FULL_RESOLUTION = "photo_full_resolution";
+    // Pick the sharpest of this many recent preview frames instead of taking the next one
+    public static final String EXTRA_PHOTO_SHARPEST_OF = "photo_sharpest_of";
+    // Burst mode: frames kept before the shutter and taken after it, photo size and quality apply
+    public static final String EXTRA_BURST_BEFORE = "burst_before";
+    public static final String EXTRA_BURST_AFTER = "burst_after";
+
+    /**
+     * Receives burst images as they are saved, called on the burst encoder threads
+     */
+    public interface BurstListener {
+        void onBurstImage(File file, ByteBuffer jpeg, int index, int width, int height, long offsetMs);
+    }
+
+    private static volatile BurstListener burstListener;
 
     private LibUVCCameraUSBMonitor mUSBMonitor;
     private UVCCameraHandler mCameraHandler;
@@ -68,6 +91,15 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
     private Intent intentResult;
 
     private boolean isCaptureToStorage;
+    private StillImageCapture mStillCapture;
+    private int mPhotoWidth = PHOTO_WIDTH;
+    private int mPhotoHeight = PHOTO_HEIGHT;
+    private int mPhotoQuality = PHOTO_QUALITY;
+    private boolean isFullResolution;
+    private int mSharpestOf;
+    private BurstCapture mBurstCapture;
+    private int mBurstBefore;
+    private int mBurstAfter;
 
     private ImageButton mBtnRecord;
     private ImageButton mBtnStopRecord;
@@ -148,10 +180,28 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
         mCameraHandler = UVCCameraHandler.createHandler(this, mUVCCameraView,
                 1, PREVIEW_WIDTH, PREVIEW_HEIGHT, PREVIEW_MODE);
         mCameraHandler.addCallback(cameraCallback);
+        mStillCapture = new StillImageCapture(mCameraHandler);
 
         // Fix: Add null check for extras
         Bundle extras = getIntent().getExtras();
         isCaptureToStorage = extras != null && extras.getBoolean("capture_to_storage", false);
+        if (extras != null) {
+            mPhotoWidth = Math.max(0, extras.getInt(EXTRA_PHOTO_WIDTH, PHOTO_WIDTH));
+            mPhotoHeight = Math.max(0, extras.getInt(EXTRA_PHOTO_HEIGHT, PHOTO_HEIGHT));
+            mPhotoQuality = Math.max(0, Math.min(100, extras.getInt(EXTRA_PHOTO_QUALITY, PHOTO_QUALITY)));
+            isFullResolution = extras.getBoolean(EXTRA_PHOTO_FULL_RESOLUTION, false);
+            mBurstBefore = Math.max(0, extras.getInt(EXTRA_BURST_BEFORE, 0));
+            mBurstAfter = Math.max(0, extras.getInt(EXTRA_BURST_AFTER, 0));
+            mSharpestOf = isFullResolution ? 0 : Math.max(0, extras.getInt(EXTRA_PHOTO_SHARPEST_OF, 0));
+        }
+        if (mBurstBefore + mBurstAfter > 0) {
+            // Keeps the recent preview frames from now on
+            mBurstCapture = new BurstCapture(mCameraHandler, Math.max(1, mBurstBefore));
+            mBurstCapture.start();
+        } else if (mSharpestOf > 0) {
+            mBurstCapture = new BurstCapture(mCameraHandler, mSharpestOf, true);
+            mBurstCapture.start();
+        }
         Intent intent = getIntent();
         isVideoRecordingMode = intent.getBooleanExtra("video_recording", false);
         // Controlling the initial visibility of buttons
@@ -194,6 +244,14 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
 
     @Override
     public void onDestroy() {
+        if (mBurstCapture != null) {
+            mBurstCapture.release();
+            mBurstCapture = null;
+        }
+        if (mStillCapture != null) {
+            mStillCapture.release();
+            mStillCapture = null;
+        }
         if (mCameraHandler != null) {
             mCameraHandler.release();
             mCameraHandler = null;
@@ -306,12 +364,7 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
         });
     }
 
-    private File saveImgToCache(Bitmap bitmap, String fileName) {
-       if (bitmap == null) {
-           Log.e(TAG, "Bitmap is null, cannot save to cache");
-           return null;
-       }
-
+    private File saveImgToCache(ByteBuffer jpeg, String fileName) {
        File dir = new File(getCacheDir(), "USBCamera");
        if (!dir.exists() && !dir.mkdirs()) {
            Log.e(TAG, "Failed to create cache directory");
@@ -324,12 +377,8 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
                File cacheFile = new File(dir, fileName);
 
                // Use try-with-resources for automatic closure
-               try (BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(cacheFile))) {
-                   if (!bitmap.compress(Bitmap.CompressFormat.PNG, 80, bos)) {
-                       Log.e(TAG, "Failed to compress bitmap");
-                       return null;
-                   }
-                   bos.flush();
+               try (OutputStream os = new FileOutputStream(cacheFile)) {
+                   writeBytes(os, jpeg);
                }
                return cacheFile;
            }
@@ -340,27 +389,29 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
        return null;
     }
 
-    private File captureCameraImage(boolean saveToStorage) {
-        TextureView cameraTextureView = (TextureView) mUVCCameraView;
-        Bitmap bitmap = cameraTextureView.getBitmap();
-
-        if (bitmap == null) {
-            Log.e(TAG, "Failed to capture bitmap from camera view");
-            return null;
-        }
+    private static void writeBytes(OutputStream os, ByteBuffer bytes) throws IOException {
+        os.write(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+    }
 
+    /**
+     * Save an encoded still, called on the capture worker thread
+     *
+     * The JPEG bytes go to the cache file the plugin returns and, if asked
+     * for, unchanged into the MediaStore.
+     */
+    private File saveCapturedImage(ByteBuffer jpeg, boolean saveToStorage) {
         // Generates random name for the file with extension
-        String fileName = UUID.randomUUID().toString() + ".png";
+        String fileName = UUID.randomUUID().toString() + ".jpg";
 
-        File cacheFile = saveImgToCache(bitmap, fileName);
+        File cacheFile = saveImgToCache(jpeg, fileName);
 
-        if (!saveToStorage) {
+        if (!saveToStorage || cacheFile == null) {
             return cacheFile;
         }
 
         final ContentValues values = new ContentValues();
         values.put(MediaStore.MediaColumns.DISPLAY_NAME, fileName);
-        values.put(MediaStore.MediaColumns.MIME_TYPE, "image/png");
+        values.put(MediaStore.MediaColumns.MIME_TYPE, "image/jpeg");
         values.put(MediaStore.MediaColumns.RELATIVE_PATH, "DCIM/ExternalCamera");
 
         final ContentResolver resolver = getContentResolver();
@@ -377,8 +428,7 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
                 if (stream == null)
                     throw new IOException("Failed to open output stream.");
 
-                if (!bitmap.compress(Bitmap.CompressFormat.PNG, 100, stream))
-                    throw new IOException("Failed to save bitmap.");
+                writeBytes(stream, jpeg);
             }
         } catch (IOException e) {
             Log.e(TAG, "Error saving image to MediaStore", e);
@@ -390,35 +440,152 @@ public class USBCameraActivity extends BaseActivity implements CameraDialog.Came
         return cacheFile;
     }
 
-    private final View.OnClickListener mOnCancelClickListener = new View.OnClickListener() {
+    private final StillImageCapture.Callback mStillCallback = new StillImageCapture.Callback() {
         @Override
-        public void onClick(View v) {
-            mCameraHandler.close();
-            exitCancelWithCode("user_canceled");
+        public void onCaptured(ByteBuffer jpeg, int width, int height, long modeSwitchMs) {
+            onStillCaptured(jpeg, width, height, modeSwitchMs, null);
         }
-    };
 
-    private final View.OnClickListener mOnCaptureClickListener = new View.OnClickListener() {
         @Override
-        public void onClick(View v) {
-            if (mCameraHandler.isOpened()) {
-                File imgResult = captureCameraImage(isCaptureToStorage);
+        public void onError(Exception e) {
+            Log.e(TAG, "Failed to capture still image", e);
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    onCaptureFailed();
+                }
+            });
+        }
+    };
 
+    /**
+     * Save the still and finish with it on the UI thread, the result intent is only touched there
+     *
+     * @param sharpness Score of the frame picked by sharpestOf, null otherwise
+     */
+    private void onStillCaptured(ByteBuffer jpeg, final int width, final int height, final long modeSwitchMs,
+                                 final Double sharpness) {
+        final File imgResult = saveCapturedImage(jpeg, isCaptureToStorage);
+        runOnUiThread(new Runnable() {
+            @Override
+            public void run() {
                 if (imgResult == null) {
-                    Toast.makeText(USBCameraActivity.this, "Failed to capture image", Toast.LENGTH_SHORT).show();
+                    onCaptureFailed();
                     return;
                 }
-
-                Uri fileUri = Uri.fromFile(imgResult);
-
-                mCameraHandler.close();
+                if (mCameraHandler != null) {
+                    mCameraHandler.close();
+                }
 
                 intentResult.putExtra("exit_code", "success");
                 intentResult.putExtra("img_file", imgResult);
-                intentResult.putExtra("img_uri", fileUri);
+                intentResult.putExtra("img_uri", Uri.fromFile(imgResult));
+                intentResult.putExtra("img_width", width);
+                intentResult.putExtra("img_height", height);
+                if (modeSwitchMs >= 0) {
+                    intentResult.putExtra("mode_switch_ms", modeSwitchMs);
+                }
+                if (sharpness != null) {
+                    intentResult.putExtra("img_sharpness", sharpness.doubleValue());
+                }
                 setResult(RESULT_OK, intentResult);
                 finish();
             }
+        });
+    }
+
+    private final BurstCapture.Callback mBurstCallback = new BurstCapture.Callback() {
+        @Override
+        public void onBurstImage(ByteBuffer jpeg, int index, int width, int height, long offsetMs) {
+            final File imgResult = saveCapturedImage(jpeg, isCaptureToStorage);
+            final BurstListener listener = burstListener;
+            if (imgResult != null && listener != null) {
+                listener.onBurstImage(imgResult, jpeg, index, width, height, offsetMs);
+            }
+        }
+
+        @Override
+        public void onBurstComplete(final int count, final int failed) {
+            runOnUiThread(new Runnable() {
+                @Override
+                public void run() {
+                    if (count == 0) {
+                        onCaptureFailed();
+                        return;
+                    }
+                    if (mCameraHandler != null) {
+                        mCameraHandler.close();
+                    }
+
+                    intentResult.putExtra("exit_code", "success");
+                    intentResult.putExtra("burst_count", count);
+                    intentResult.putExtra("burst_failed", failed);
+                    setResult(RESULT_OK, intentResult);
+                    finish();
+                }
+            });
+        }
+    };
+
+    private final BurstCapture.Callback mSharpestCallback = new BurstCapture.Callback() {
+        @Override
+        public void onBurstImage(ByteBuffer jpeg, int index, int width, int height, long offsetMs) {
+            onStillCaptured(jpeg, width, height, -1, mBurstCapture.getSelectedSharpness());
+        }
+
+        @Override
+        public void onBurstComplete(int count, int failed) {
+            if (count == 0) {
+                mStillCallback.onError(new IllegalStateException("No frame to pick from"));
+            }
+        }
+    };
+
+    /**
+     * Set the receiver of burst images, must be called before starting the activity
+     */
+    public static void setBurstListener(BurstListener listener) {
+        burstListener = listener;
+    }
+
+    private void onCaptureFailed() {
+        mBtnCapture.setEnabled(true);
+        Toast.makeText(USBCameraActivity.this, "Failed to capture image", Toast.LENGTH_SHORT).show();
+    }
+
+    private final View.OnClickListener mOnCancelClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            mCameraHandler.close();
+            exitCancelWithCode("user_canceled");
+        }
+    };
+
+    private final View.OnClickListener mOnCaptureClickListener = new View.OnClickListener() {
+        @Override
+        public void onClick(View v) {
+            if (!mCameraHandler.isOpened()) return;
+            if (mSharpestOf > 0) {
+                if (mBurstCapture.triggerSharpest(mSharpestOf, mPhotoWidth, mPhotoHeight,
+                        mPhotoQuality, mSharpestCallback)) {
+                    mBtnCapture.setEnabled(false);
+                }
+                return;
+            }
+            if (mBurstCapture != null) {
+                if (mBurstCapture.trigger(mBurstBefore, mBurstAfter, mPhotoWidth, mPhotoHeight,
+                        mPhotoQuality, mBurstCallback)) {
+                    mBtnCapture.setEnabled(false);
+                }
+                return;
+            }
+            boolean started = isFullResolution
+                ? mStillCapture.captureFullResolution(mPhotoQuality, mStillCallback)
+                : mStillCapture.capture(mPhotoWidth, mPhotoHeight, mPhotoQuality, mStillCallback);
+            if (started) {
+                // Result comes back once the next frame is encoded
+                mBtnCapture.setEnabled(false);
+            }
         }
     };
 
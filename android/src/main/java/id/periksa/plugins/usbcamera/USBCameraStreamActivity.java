@@ -5,6 +5,9 @@ import android.graphics.SurfaceTexture;
 import android.hardware.usb.UsbDevice;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 import android.view.Surface;
@@ -17,11 +20,13 @@ import com.serenegiant.usb_libuvccamera.CameraDialog;
 import com.serenegiant.usb_libuvccamera.IFrameCallback;
 import com.serenegiant.usb_libuvccamera.LibUVCCameraUSBMonitor;
 import com.serenegiant.usb_libuvccamera.LibUVCCameraUSBMonitor.OnDeviceConnectListener;
+import com.serenegiant.usb_libuvccamera.Size;
 import com.serenegiant.usb_libuvccamera.UVCCamera;
 import com.serenegiant.usbcameracommon.UVCCameraHandler;
 import com.serenegiant.widget.CameraViewInterface;
 
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.List;
 
 import livekit.org.webrtc.VideoSink;
@@ -39,13 +44,47 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
     public static final String MODE_BROADCAST = "broadcast";
     public static final String MODE_LIVEKIT = "livekit";
 
+    // Optional LiveKit capturer settings passed as intent extras
+    public static final String EXTRA_CONVERSION_STRIPES = "conversion_stripes";
+    public static final String EXTRA_CONVERSION_THREADS = "conversion_threads";
+    public static final String EXTRA_PARALLEL_THRESHOLD_PIXELS = "parallel_threshold_pixels";
+    public static final String EXTRA_OUTPUT_FORMAT = "output_format";
+    public static final String EXTRA_DELIVERY_QUEUE_CAPACITY = "delivery_queue_capacity";
+    public static final String EXTRA_DELIVERY_DROP_POLICY = "delivery_drop_policy";
+    public static final String EXTRA_SMOOTH_TIMESTAMPS = "smooth_timestamps";
+    // Crop/scale/rotate/mirror in the I420 conversion, 0x0 keeps the camera size
+    public static final String EXTRA_OUTPUT_WIDTH = "output_width";
+    public static final String EXTRA_OUTPUT_HEIGHT = "output_height";
+    public static final String EXTRA_ROTATION = "rotation";
+    public static final String EXTRA_MIRROR = "mirror";
+    // Lower resolution layers built for simulcast, 0 for none
+    public static final String EXTRA_SIMULCAST_LAYERS = "simulcast_layers";
+    // Step the camera mode with downstream pressure
+    public static final String EXTRA_ADAPTIVE_CAPTURE = "adaptive_capture";
+
+    // Requested stream mode, the closest mode the camera supports is used
+    public static final String EXTRA_WIDTH = "width";
+    public static final String EXTRA_HEIGHT = "height";
+    public static final String EXTRA_FRAME_RATE = "frame_rate";
+    // Broadcast mode: publish the camera's MJPEG payloads instead of decoded frames
+    public static final String EXTRA_MJPEG_PASS_THROUGH = "mjpeg_pass_through";
+
     // Static reference for LiveKit integration
     private static USBCameraVideoCapturer liveKitCapturer;
     private static VideoSink liveKitVideoSink;
+    // In-process frame transport for broadcast mode, owned by the plugin
+    private static volatile SharedFrameRing frameRing;
+    // Sink-provided bound for adaptive capture in pixels per second, 0 for none
+    private static volatile double adaptationTargetPixelRate = 0;
 
-    private static final int PREVIEW_WIDTH = 640;
-    private static final int PREVIEW_HEIGHT = 480;
+    static final int PREVIEW_WIDTH = 640;
+    static final int PREVIEW_HEIGHT = 480;
     private static final int PREVIEW_MODE = 1; // MJPEG mode
+    // Invalid raw frames in a row before falling back to decoded frames, e.g. a YUYV-only camera
+    private static final int MAX_INVALID_MJPEG_FRAMES = 3;
+    // Adaptive capture: statistics check interval and the lowest frame rate stepped down to
+    private static final long ADAPTATION_INTERVAL_MS = 500;
+    private static final float MIN_ADAPTIVE_FPS = 5f;
 
     private LibUVCCameraUSBMonitor mUSBMonitor;
     private UVCCameraHandler mCameraHandler;
@@ -55,6 +94,52 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
     private Intent intentResult;
     private volatile boolean isStreaming = false;
     private String streamingMode = MODE_BROADCAST; // Default to broadcast mode
+    private int conversionStripes = 1;
+    private int conversionThreads = 0;
+    private int parallelThresholdPixels = ParallelYUVConverter.DEFAULT_THRESHOLD_PIXELS;
+    private USBCameraVideoCapturer.OutputFormat outputFormat = USBCameraVideoCapturer.OutputFormat.I420;
+    private int deliveryQueueCapacity = 0;
+    private FrameHandoffQueue.DropPolicy deliveryDropPolicy = FrameHandoffQueue.DropPolicy.DROP_OLDEST;
+    private boolean smoothTimestamps = false;
+    private int outputWidth = 0;
+    private int outputHeight = 0;
+    private int outputRotation = 0;
+    private boolean outputMirror = false;
+    private int simulcastLayers = 0;
+    private boolean adaptiveCapture = false;
+    // Adaptive capture state, main thread only
+    private final Handler mAdaptationHandler = new Handler(Looper.getMainLooper());
+    private CaptureModeController captureModeController;
+    private USBCameraVideoCapturer adaptationCapturer;
+    private long adaptationFrames;
+    private long adaptationProcessingNs;
+    private int requestedWidth = PREVIEW_WIDTH;
+    private int requestedHeight = PREVIEW_HEIGHT;
+    private float requestedFrameRate = 0f;
+    private volatile boolean mjpegPassThrough = false;
+    // Frame callback thread only
+    private final MjpegNormalizer mjpegNormalizer = new MjpegNormalizer();
+    private int invalidMjpegFrames = 0;
+
+    // Negotiated mode, known once the preview runs
+    private volatile int frameWidth = PREVIEW_WIDTH;
+    private volatile int frameHeight = PREVIEW_HEIGHT;
+    private volatile FrameRateLimiter frameRateLimiter;
+    private volatile boolean streamConfigured = false;
+
+    // Entry point for all frames, drops frames above the requested rate before any copy
+    private final IFrameCallback mStreamFrameCallback = new IFrameCallback() {
+        @Override
+        public void onFrame(ByteBuffer frame) {
+            final FrameRateLimiter limiter = frameRateLimiter;
+            if (limiter != null && !limiter.tryAcquire(System.nanoTime())) return;
+
+            final IFrameCallback target = MODE_LIVEKIT.equals(streamingMode) ? liveKitCapturer : mBroadcastFrameCallback;
+            if (target != null) {
+                target.onFrame(frame);
+            }
+        }
+    };
 
     // Frame callback for broadcast mode streaming
     private final IFrameCallback mBroadcastFrameCallback = new IFrameCallback() {
@@ -63,6 +148,21 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
             if (!isStreaming || frame == null) return;
 
             try {
+                String format = "YUV420SP";
+                if (mjpegPassThrough) {
+                    frame = normalizeMjpeg(frame);
+                    if (frame == null) return;
+                    format = "JPEG";
+                }
+
+                final SharedFrameRing ring = frameRing;
+                if (ring != null) {
+                    // Single copy into the shared ring, the plugin reads it in place
+                    ring.publish(frame, frameWidth, frameHeight, format, System.nanoTime());
+                    return;
+                }
+
+                // Legacy path for receivers outside the plugin
                 // Fix: Save and restore ByteBuffer position
                 int position = frame.position();
                 byte[] frameData = new byte[frame.remaining()];
@@ -72,9 +172,9 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
                 // Send frame data back to plugin via broadcast
                 Intent frameIntent = new Intent("id.periksa.plugins.usbcamera.FRAME_AVAILABLE");
                 frameIntent.putExtra("frame_data", frameData);
-                frameIntent.putExtra("width", PREVIEW_WIDTH);
-                frameIntent.putExtra("height", PREVIEW_HEIGHT);
-                frameIntent.putExtra("format", "YUV420SP");
+                frameIntent.putExtra("width", frameWidth);
+                frameIntent.putExtra("height", frameHeight);
+                frameIntent.putExtra("format", format);
 
                 // Note: This broadcast should ideally use local broadcast or permissions
                 // for production apps to prevent interception
@@ -86,6 +186,25 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
         }
     };
 
+    /**
+     * Validate a raw MJPEG payload, falling back to decoded frames if the camera does not send any
+     *
+     * @return Complete JPEG, or null to skip the frame
+     */
+    private ByteBuffer normalizeMjpeg(ByteBuffer frame) {
+        ByteBuffer jpeg = mjpegNormalizer.normalize(frame);
+        if (jpeg != null) {
+            invalidMjpegFrames = 0;
+            return jpeg;
+        }
+        if (++invalidMjpegFrames >= MAX_INVALID_MJPEG_FRAMES && mjpegPassThrough) {
+            Log.w(TAG, "Camera sends no usable MJPEG, falling back to YUV420SP frames");
+            mjpegPassThrough = false;
+            mCameraHandler.setFrameCallback(mStreamFrameCallback, UVCCamera.PIXEL_FORMAT_YUV420SP);
+        }
+        return null;
+    }
+
     /**
      * Set the VideoSink for LiveKit mode
      * Must be called before starting the activity
@@ -94,6 +213,22 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
         liveKitVideoSink = sink;
     }
 
+    /**
+     * Set the shared frame ring used instead of per-frame broadcasts in broadcast mode
+     * Must be called before starting the activity, null restores the broadcasts
+     */
+    public static void setFrameRing(SharedFrameRing ring) {
+        frameRing = ring;
+    }
+
+    /**
+     * Bound the mode adaptive capture may use, e.g. from LiveKit's bandwidth estimate
+     * Can be changed while streaming, 0 for any argument removes the bound
+     */
+    public static void setAdaptationTarget(int width, int height, float fps) {
+        adaptationTargetPixelRate = width > 0 && height > 0 && fps > 0f ? (double) width * height * fps : 0;
+    }
+
     /**
      * Get the LiveKit capturer instance
      */
@@ -110,6 +245,42 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
         Bundle extras = getIntent().getExtras();
         if (extras != null) {
             streamingMode = extras.getString("streaming_mode", MODE_BROADCAST);
+            conversionStripes = extras.getInt(EXTRA_CONVERSION_STRIPES, conversionStripes);
+            conversionThreads = extras.getInt(EXTRA_CONVERSION_THREADS, conversionThreads);
+            parallelThresholdPixels = extras.getInt(EXTRA_PARALLEL_THRESHOLD_PIXELS, parallelThresholdPixels);
+            String format = extras.getString(EXTRA_OUTPUT_FORMAT);
+            if (format != null) {
+                try {
+                    outputFormat = USBCameraVideoCapturer.OutputFormat.valueOf(format);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Unknown output format " + format + ", using " + outputFormat);
+                }
+            }
+            deliveryQueueCapacity = extras.getInt(EXTRA_DELIVERY_QUEUE_CAPACITY, deliveryQueueCapacity);
+            smoothTimestamps = extras.getBoolean(EXTRA_SMOOTH_TIMESTAMPS, smoothTimestamps);
+            outputWidth = extras.getInt(EXTRA_OUTPUT_WIDTH, outputWidth);
+            outputHeight = extras.getInt(EXTRA_OUTPUT_HEIGHT, outputHeight);
+            outputRotation = extras.getInt(EXTRA_ROTATION, outputRotation);
+            outputMirror = extras.getBoolean(EXTRA_MIRROR, outputMirror);
+            simulcastLayers = extras.getInt(EXTRA_SIMULCAST_LAYERS, simulcastLayers);
+            adaptiveCapture = extras.getBoolean(EXTRA_ADAPTIVE_CAPTURE, adaptiveCapture);
+            requestedWidth = extras.getInt(EXTRA_WIDTH, requestedWidth);
+            requestedHeight = extras.getInt(EXTRA_HEIGHT, requestedHeight);
+            requestedFrameRate = extras.getFloat(EXTRA_FRAME_RATE, requestedFrameRate);
+            mjpegPassThrough = extras.getBoolean(EXTRA_MJPEG_PASS_THROUGH, false);
+            if (requestedWidth <= 0 || requestedHeight <= 0) {
+                Log.w(TAG, "Invalid size " + requestedWidth + "x" + requestedHeight + ", using default");
+                requestedWidth = PREVIEW_WIDTH;
+                requestedHeight = PREVIEW_HEIGHT;
+            }
+            String dropPolicy = extras.getString(EXTRA_DELIVERY_DROP_POLICY);
+            if (dropPolicy != null) {
+                try {
+                    deliveryDropPolicy = FrameHandoffQueue.DropPolicy.valueOf(dropPolicy);
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Unknown drop policy " + dropPolicy + ", using " + deliveryDropPolicy);
+                }
+            }
         }
         Log.d(TAG, "Starting stream activity in " + streamingMode + " mode");
 
@@ -124,7 +295,10 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
 
         mUSBMonitor = new LibUVCCameraUSBMonitor(this, mOnDeviceConnectListener);
         mCameraHandler = UVCCameraHandler.createHandler(this, mUVCCameraView,
-                1, PREVIEW_WIDTH, PREVIEW_HEIGHT, PREVIEW_MODE);
+                1, requestedWidth, requestedHeight, PREVIEW_MODE);
+        // Ask the camera for a mode at or below the requested rate, saving USB bandwidth
+        mCameraHandler.setPreferredPreviewMode(requestedWidth, requestedHeight,
+                requestedFrameRate > 0f ? (int) Math.ceil(requestedFrameRate) : 0);
 
         intentResult = new Intent();
     }
@@ -251,48 +425,138 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
         }
 
         try {
+            // Frame consumers are set up in onStartPreview, once the negotiated size is known
+            mCameraHandler.addCallback(mStreamSetupCallback);
             mCameraHandler.startPreview(new Surface(st));
-
-            // Register frame callback based on streaming mode
-            if (MODE_LIVEKIT.equals(streamingMode)) {
-                // LiveKit mode: Create capturer and set it as callback
-                liveKitCapturer = new USBCameraVideoCapturer(PREVIEW_WIDTH, PREVIEW_HEIGHT);
-                if (liveKitVideoSink != null) {
-                    liveKitCapturer.setVideoSink(liveKitVideoSink);
-                }
-                liveKitCapturer.startCapture();
-                mCameraHandler.setFrameCallback(liveKitCapturer, UVCCamera.PIXEL_FORMAT_YUV420SP);
-                Log.d(TAG, "Started LiveKit mode streaming");
-            } else {
-                // Broadcast mode: Use broadcast callback
-                // Note: Using YUV420SP format for compatibility with most cameras
-                mCameraHandler.setFrameCallback(mBroadcastFrameCallback, UVCCamera.PIXEL_FORMAT_YUV420SP);
-                Log.d(TAG, "Started broadcast mode streaming");
-            }
         } catch (Exception e) {
             Log.e(TAG, "Error starting preview and streaming", e);
             exitWithCode("error_start_failed");
+        }
+    }
+
+    /**
+     * Set the requested crop/scale/rotate/mirror on the capturer, skipped when it changes nothing
+     */
+    private void applyOutputTransform(USBCameraVideoCapturer capturer) {
+        int width = outputWidth > 0 ? outputWidth : (outputRotation % 180 == 0 ? frameWidth : frameHeight);
+        int height = outputHeight > 0 ? outputHeight : (outputRotation % 180 == 0 ? frameHeight : frameWidth);
+        if (outputRotation == 0 && !outputMirror && width == frameWidth && height == frameHeight) {
             return;
         }
+        try {
+            // Box averaging for reductions of 2x and more, bilinear otherwise
+            boolean halvedOrMore = (long) width * height * 4 <= (long) frameWidth * frameHeight;
+            YUVTransform transform = YUVTransform.fit(frameWidth, frameHeight, width, height,
+                    outputRotation, outputMirror,
+                    halvedOrMore ? YUVTransform.Filter.BOX : YUVTransform.Filter.BILINEAR);
+            capturer.setTransform(transform);
+            Log.d(TAG, "Transforming frames to " + width + "x" + height + ", rotation " + outputRotation
+                    + (outputMirror ? ", mirrored" : ""));
+        } catch (IllegalArgumentException e) {
+            Log.w(TAG, "Invalid output transform, sending camera frames unchanged", e);
+        }
+    }
+
+    /**
+     * Set up the frame consumers for the negotiated mode, runs on the camera thread
+     */
+    private void configureStreaming() {
+        frameWidth = mCameraHandler.getWidth();
+        frameHeight = mCameraHandler.getHeight();
+        float negotiatedFps = nominalFrameRate(mCameraHandler.getPreviewSize(),
+                requestedFrameRate > 0f ? Math.min(31f, (float) Math.ceil(requestedFrameRate)) : 31f);
+        Log.d(TAG, "Preview running at " + frameWidth + "x" + frameHeight + " @ " + negotiatedFps +
+                " fps, requested " + requestedWidth + "x" + requestedHeight + " @ " + requestedFrameRate);
+
+        // Only limit when the camera delivers faster than requested
+        if (requestedFrameRate > 0f && (negotiatedFps <= 0f || negotiatedFps > requestedFrameRate)) {
+            frameRateLimiter = new FrameRateLimiter(requestedFrameRate);
+        } else {
+            frameRateLimiter = null;
+        }
+        float deliveredFps = frameRateLimiter != null
+                ? (negotiatedFps > 0f ? Math.min(negotiatedFps, requestedFrameRate) : requestedFrameRate)
+                : negotiatedFps;
+
+        // Register frame callback based on streaming mode
+        if (MODE_LIVEKIT.equals(streamingMode)) {
+            // LiveKit mode: Create capturer and feed it through the stream callback
+            liveKitCapturer = new USBCameraVideoCapturer(frameWidth, frameHeight);
+            liveKitCapturer.setParallelConversion(conversionStripes, conversionThreads);
+            liveKitCapturer.setParallelThresholdPixels(parallelThresholdPixels);
+            liveKitCapturer.setOutputFormat(outputFormat);
+            liveKitCapturer.setAsyncDelivery(deliveryQueueCapacity, deliveryDropPolicy);
+            applyOutputTransform(liveKitCapturer);
+            if (simulcastLayers > 0) {
+                try {
+                    liveKitCapturer.setSimulcastLayers(simulcastLayers);
+                    Log.d(TAG, "Building " + simulcastLayers + " simulcast layers per frame");
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "Invalid simulcast layer count " + simulcastLayers, e);
+                }
+            }
+            if (smoothTimestamps) {
+                if (deliveredFps > 0f) {
+                    liveKitCapturer.setTimestampSmoothing(deliveredFps);
+                    Log.d(TAG, "Smoothing timestamps at " + deliveredFps + " fps");
+                } else {
+                    Log.w(TAG, "Frame rate unknown, using raw capture timestamps");
+                }
+            }
+            if (liveKitVideoSink != null) {
+                liveKitCapturer.setVideoSink(liveKitVideoSink);
+            }
+            liveKitCapturer.startCapture();
+            Log.d(TAG, "Started LiveKit mode streaming");
+            if (adaptiveCapture) {
+                startAdaptation(deliveredFps);
+            }
+        } else {
+            // Broadcast mode: make sure the shared ring can hold the negotiated frames
+            final SharedFrameRing ring = frameRing;
+            int frameBytes = NV21FramePool.frameSize(frameWidth, frameHeight);
+            if (ring != null && ring.getMaxFrameBytes() < frameBytes) {
+                SharedFrameRing larger = new SharedFrameRing(ring.getSlotCount(), frameBytes);
+                larger.setListener(ring.getListener());
+                frameRing = larger;
+                Log.d(TAG, "Frame ring resized to " + frameBytes + " bytes per slot");
+            }
+            Log.d(TAG, "Started broadcast mode streaming");
+        }
+        if (mjpegPassThrough && !MODE_LIVEKIT.equals(streamingMode)) {
+            // Raw payloads skip the MJPEG decode in libuvc
+            mCameraHandler.setFrameCallback(mStreamFrameCallback, UVCCamera.PIXEL_FORMAT_RAW);
+            Log.d(TAG, "Forwarding camera MJPEG frames");
+        } else {
+            mjpegPassThrough = false;
+            // Note: Using YUV420SP format for compatibility with most cameras
+            mCameraHandler.setFrameCallback(mStreamFrameCallback, UVCCamera.PIXEL_FORMAT_YUV420SP);
+        }
 
         runOnUiThread(() -> {
             mBtnCancel.setVisibility(View.VISIBLE);
+            // Adaptive capture restarts the stream on every mode change
+            if (!isStreaming) {
+                showToast("Streaming started", Toast.LENGTH_SHORT);
+            }
             isStreaming = true;
-            showToast("Streaming started", Toast.LENGTH_SHORT);
 
             // Notify that streaming has started
             intentResult.putExtra("exit_code", "streaming_started");
-            intentResult.putExtra("width", PREVIEW_WIDTH);
-            intentResult.putExtra("height", PREVIEW_HEIGHT);
+            intentResult.putExtra("width", frameWidth);
+            intentResult.putExtra("height", frameHeight);
             setResult(RESULT_OK, intentResult);
         });
     }
 
     private void stopStreaming() {
+        mAdaptationHandler.removeCallbacks(mAdaptationTick);
+        captureModeController = null;
         if (isStreaming) {
             isStreaming = false;
             if (mCameraHandler != null) {
                 mCameraHandler.setFrameCallback(null, 0);
+                mCameraHandler.removeCallback(mStreamSetupCallback);
             }
 
             // Stop LiveKit capturer if in LiveKit mode
@@ -301,7 +565,189 @@ public class USBCameraStreamActivity extends BaseActivity implements CameraDialo
                 Log.d(TAG, "LiveKit capturer stopped");
             }
 
+            streamConfigured = false;
+            frameRateLimiter = null;
             Log.d(TAG, "Streaming stopped");
         }
     }
+
+    /**
+     * Watch the new LiveKit capturer, runs on the camera thread after every (re)configuration
+     */
+    private void startAdaptation(float deliveredFps) {
+        if (deliveredFps <= 0f) {
+            Log.w(TAG, "Frame rate unknown, adaptive capture disabled");
+            return;
+        }
+        final CaptureModeController.Mode current = new CaptureModeController.Mode(frameWidth, frameHeight, deliveredFps);
+        final List<CaptureModeController.Mode> supported = supportedModes(deliveredFps);
+        mAdaptationHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                long nowMs = SystemClock.elapsedRealtime();
+                if (captureModeController == null) {
+                    // The first mode is the ceiling, adaptation never goes above what was requested
+                    captureModeController = new CaptureModeController(supported, current, nowMs);
+                    Log.d(TAG, "Adaptive capture over modes " + captureModeController.getModes());
+                } else {
+                    captureModeController.onModeApplied(current, nowMs);
+                }
+                mAdaptationHandler.removeCallbacks(mAdaptationTick);
+                mAdaptationHandler.postDelayed(mAdaptationTick, ADAPTATION_INTERVAL_MS);
+            }
+        });
+    }
+
+    /**
+     * Modes of the running frame format with their frame rates up to maxFps
+     */
+    private List<CaptureModeController.Mode> supportedModes(float maxFps) {
+        List<CaptureModeController.Mode> modes = new ArrayList<>();
+        Size current = mCameraHandler.getPreviewSize();
+        List<Size> sizes = mCameraHandler.getSupportedPreviewSizes();
+        if (current == null || sizes == null) {
+            return modes;
+        }
+        for (Size size : sizes) {
+            if (size.type != current.type || size.fps == null) {
+                continue;
+            }
+            for (float fps : size.fps) {
+                // Whole rates, 29.97 and 30 are the same rung
+                float rounded = Math.round(fps);
+                if (rounded >= MIN_ADAPTIVE_FPS && rounded <= maxFps) {
+                    modes.add(new CaptureModeController.Mode(size.width, size.height, rounded));
+                }
+            }
+        }
+        return modes;
+    }
+
+    private final Runnable mAdaptationTick = new Runnable() {
+        @Override
+        public void run() {
+            final USBCameraVideoCapturer capturer = liveKitCapturer;
+            final CaptureModeController controller = captureModeController;
+            // A mode change in progress schedules the next tick once the new capturer runs
+            if (capturer == null || controller == null || !capturer.isCapturing()) {
+                return;
+            }
+            if (capturer != adaptationCapturer) {
+                adaptationCapturer = capturer;
+                adaptationFrames = 0;
+                adaptationProcessingNs = 0;
+            }
+            long frames = capturer.getFrameCount();
+            long processingNs = capturer.getFrameProcessingNs();
+            long conversionNs = frames > adaptationFrames
+                    ? (processingNs - adaptationProcessingNs) / (frames - adaptationFrames)
+                    : 0;
+            adaptationFrames = frames;
+            adaptationProcessingNs = processingNs;
+
+            final FrameHandoffQueue<?> queue = capturer.getDeliveryQueue();
+            controller.setTargetPixelRate(adaptationTargetPixelRate);
+            CaptureModeController.Mode next = controller.update(SystemClock.elapsedRealtime(),
+                    queue != null ? queue.size() : 0, queue != null ? queue.getCapacity() : 0, conversionNs);
+            if (next != null) {
+                switchCaptureMode(next, capturer);
+            } else {
+                mAdaptationHandler.postDelayed(this, ADAPTATION_INTERVAL_MS);
+            }
+        }
+    };
+
+    /**
+     * Reopen the preview in another mode and rebuild the capturer for it
+     */
+    private void switchCaptureMode(CaptureModeController.Mode mode, USBCameraVideoCapturer capturer) {
+        Log.i(TAG, "Adapting capture from " + frameWidth + "x" + frameHeight + " to " + mode);
+        // Frames of the new size must not reach the old capturer
+        capturer.stopCapture();
+        requestedWidth = mode.width;
+        requestedHeight = mode.height;
+        requestedFrameRate = mode.fps;
+        mCameraHandler.changePreviewMode(mode.width, mode.height, (int) Math.ceil(mode.fps), new Runnable() {
+            @Override
+            public void run() {
+                if (!streamConfigured) {
+                    return;
+                }
+                try {
+                    configureStreaming();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error restarting streaming after a mode change", e);
+                    runOnUiThread(() -> exitWithCode("error_start_failed"));
+                }
+            }
+        });
+    }
+
+    /**
+     * Nominal frame rate of the running mode, falling back to the fastest rate
+     * within the preview range when the camera did not report the selected one
+     */
+    private static float nominalFrameRate(Size size, float maxFps) {
+        if (size == null || size.fps == null) {
+            return 0f;
+        }
+        try {
+            return size.getCurrentFrameRate();
+        } catch (IllegalStateException e) {
+            float best = 0f;
+            for (float fps : size.fps) {
+                // The camera handler opens the preview with this ceiling
+                if (fps <= maxFps && fps > best) {
+                    best = fps;
+                }
+            }
+            return best;
+        }
+    }
+
+    private final UVCCameraHandler.CameraCallback mStreamSetupCallback =
+        new UVCCameraHandler.CameraCallback() {
+            @Override
+            public void onOpen() {
+            }
+
+            @Override
+            public void onClose() {
+            }
+
+            @Override
+            public void onStartPreview() {
+                if (streamConfigured || mCameraHandler == null) {
+                    return;
+                }
+                streamConfigured = true;
+                try {
+                    configureStreaming();
+                } catch (Exception e) {
+                    Log.e(TAG, "Error starting streaming", e);
+                    runOnUiThread(() -> exitWithCode("error_start_failed"));
+                }
+            }
+
+            @Override
+            public void onStopPreview() {
+            }
+
+            @Override
+            public void onStartRecording() {
+            }
+
+            @Override
+            public void onStopRecording(String path) {
+            }
+
+            @Override
+            public void onError(final Exception e) {
+                Log.e(TAG, "Camera error", e);
+                if (!streamConfigured) {
+                    // The preview never started, e.g. no usable mode
+                    runOnUiThread(() -> exitWithCode("error_start_failed"));
+                }
+            }
+        };
 }
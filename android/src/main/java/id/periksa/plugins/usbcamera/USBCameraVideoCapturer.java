@@ -7,22 +7,63 @@ import com.serenegiant.usb_libuvccamera.IFrameCallback;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicLong;
 
+import livekit.org.webrtc.NV21Buffer;
 import livekit.org.webrtc.VideoFrame;
 import livekit.org.webrtc.VideoSink;
 import livekit.org.webrtc.JavaI420Buffer;
 
 /**
  * Custom video capturer for LiveKit that captures frames from USB camera
- * and converts them from YUV420SP (NV21) to I420 format
+ * and either converts them from YUV420SP (NV21) to I420 format in Java or
+ * passes them on as NV21 for native conversion
  */
 public class USBCameraVideoCapturer implements IFrameCallback {
     private static final String TAG = "USBCameraVideoCapturer";
 
+    /**
+     * Buffer type pushed to the VideoSink
+     */
+    public enum OutputFormat {
+        /** Convert to I420 in Java, JavaI420Buffer backed by pooled direct planes */
+        I420,
+        /** Copy the NV21 frame into a pooled array, NV21Buffer converted natively by libyuv */
+        NV21
+    }
+
     private final int width;
     private final int height;
     private volatile boolean isCapturing = false;
     private volatile VideoSink videoSink;
     private final AtomicLong frameCount = new AtomicLong(0);
+    private volatile I420FramePool framePool = new I420FramePool();
+    private volatile NV21FramePool nv21FramePool = new NV21FramePool();
+    private volatile OutputFormat outputFormat = OutputFormat.I420;
+    private final AtomicLong frameProcessingNs = new AtomicLong(0);
+    // Optional PTS smoothing, only touched from the frame callback thread once set
+    private volatile FrameTimestampSmoother timestampSmoother;
+
+    // Frame memory layout, null means tightly packed NV21 in and out
+    private volatile YUVFrameLayout sourceLayout;
+    private int outputRowAlignment = 1;
+    // Optional crop/scale/rotate/mirror, only used on the frame callback thread once set
+    private volatile YUVTransform transform;
+    // Optional simulcast layers built from every converted frame, frame callback thread only
+    private volatile I420Pyramid simulcastPyramid;
+
+    // Stripe-parallel conversion settings, applied on the next startCapture()
+    private int conversionStripes = 1;
+    private int conversionThreads = 0;
+    private int parallelThresholdPixels = ParallelYUVConverter.DEFAULT_THRESHOLD_PIXELS;
+    private volatile ParallelYUVConverter parallelConverter;
+
+    // Asynchronous delivery settings, applied on the next startCapture()
+    private int deliveryQueueCapacity = 0;
+    private FrameHandoffQueue.DropPolicy deliveryDropPolicy = FrameHandoffQueue.DropPolicy.DROP_OLDEST;
+    private volatile FrameHandoffQueue<VideoFrame> deliveryQueue;
+    private Thread deliveryThread;
+
+    // Held while a frame is converted, stopCapture() takes it to wait for that frame
+    private final Object frameLock = new Object();
 
     public USBCameraVideoCapturer(int width, int height) {
         this.width = width;
@@ -36,20 +77,229 @@ public class USBCameraVideoCapturer implements IFrameCallback {
         this.videoSink = sink;
     }
 
+    /**
+     * Convert frames in horizontal stripes on a worker pool
+     * Takes effect on the next startCapture()
+     *
+     * @param stripeCount Number of stripes per frame, 1 disables parallel conversion
+     * @param poolSize Number of worker threads, 0 disables parallel conversion
+     */
+    public synchronized void setParallelConversion(int stripeCount, int poolSize) {
+        if (stripeCount < 1 || poolSize < 0) {
+            throw new IllegalArgumentException("Invalid parallel conversion settings");
+        }
+        conversionStripes = stripeCount;
+        conversionThreads = poolSize;
+        if (isCapturing) {
+            Log.w(TAG, "Parallel conversion settings apply on next startCapture()");
+        }
+    }
+
+    /**
+     * Set the frame size (width * height) from which parallel conversion is used
+     * Takes effect on the next startCapture()
+     */
+    public synchronized void setParallelThresholdPixels(int thresholdPixels) {
+        parallelThresholdPixels = thresholdPixels;
+    }
+
+    /**
+     * Select the buffer type pushed to the VideoSink, can be changed while capturing
+     *
+     * NV21 mode skips the Java-side conversion and only copies the frame once.
+     * It needs tightly packed NV21 input, frames with a custom source layout
+     * are still converted to I420.
+     */
+    public void setOutputFormat(OutputFormat format) {
+        if (format == null) {
+            throw new IllegalArgumentException("format must not be null");
+        }
+        outputFormat = format;
+    }
+
+    public OutputFormat getOutputFormat() {
+        return outputFormat;
+    }
+
+    /**
+     * Smooth frame timestamps onto an evenly spaced, drift-corrected grid
+     * derived from the negotiated frame rate, can be changed while capturing
+     *
+     * @param nominalFps Negotiated frame rate (Size.fps of the running mode), 0 uses raw capture times
+     */
+    public void setTimestampSmoothing(float nominalFps) {
+        timestampSmoother = nominalFps > 0f ? new FrameTimestampSmoother(nominalFps) : null;
+    }
+
+    /**
+     * @return The active smoother, or null when raw capture timestamps are used
+     */
+    public FrameTimestampSmoother getTimestampSmoother() {
+        return timestampSmoother;
+    }
+
+    /**
+     * Describe the memory layout of incoming frames, for cameras that pad rows
+     * or deliver NV12 / planar data. Null restores tightly packed NV21.
+     */
+    public void setSourceLayout(YUVFrameLayout layout) {
+        if (layout != null && (layout.width != width || layout.height != height)) {
+            throw new IllegalArgumentException("Source layout " + layout + " does not match " + width + "x" + height);
+        }
+        sourceLayout = layout;
+    }
+
+    public YUVFrameLayout getSourceLayout() {
+        return sourceLayout;
+    }
+
+    /**
+     * Crop, scale, rotate and mirror frames in the I420 conversion pass, can be changed while capturing
+     *
+     * Frames reach LiveKit at the transform's output size with rotation already
+     * applied. NV21 output is converted to I420 while a transform is set, and
+     * parallel conversion does not apply. Null restores plain conversion.
+     */
+    public void setTransform(YUVTransform transform) {
+        if (transform != null && (transform.getSrcWidth() != width || transform.getSrcHeight() != height)) {
+            throw new IllegalArgumentException("Transform source " + transform.getSrcWidth() + "x"
+                + transform.getSrcHeight() + " does not match " + width + "x" + height);
+        }
+        this.transform = transform;
+    }
+
+    public YUVTransform getTransform() {
+        return transform;
+    }
+
+    /**
+     * Build lower resolution simulcast layers from every frame, can be changed while capturing
+     *
+     * Each level halves the previous size, 2 gives the usual 1/2 and 1/4
+     * layers. The layers are made in one pass over the converted frame and
+     * handed to the encoder through {@link SimulcastFrameBuffer}, instead of
+     * WebRTC scaling the full frame once per layer. NV21 output is converted
+     * to I420 while layers are on. Frames too small for every level are sent
+     * without layers.
+     *
+     * @param levels Layers below the full frame, 0 disables
+     */
+    public void setSimulcastLayers(int levels) {
+        simulcastPyramid = levels > 0 ? new I420Pyramid(levels) : null;
+    }
+
+    public int getSimulcastLayers() {
+        I420Pyramid pyramid = simulcastPyramid;
+        return pyramid != null ? pyramid.getLevels() : 0;
+    }
+
+    /**
+     * Align the row strides of the I420 frames handed to LiveKit, e.g. 16 or 64 bytes
+     * Takes effect on the next startCapture()
+     *
+     * @param rowAlignment Row alignment in bytes, 1 for tightly packed planes
+     */
+    public synchronized void setOutputRowAlignment(int rowAlignment) {
+        if (rowAlignment < 1) {
+            throw new IllegalArgumentException("rowAlignment must be positive");
+        }
+        outputRowAlignment = rowAlignment;
+        if (isCapturing) {
+            Log.w(TAG, "Output row alignment applies on next startCapture()");
+        }
+    }
+
+    public synchronized int getOutputRowAlignment() {
+        return outputRowAlignment;
+    }
+
+    /**
+     * Hand converted frames to a dedicated delivery thread instead of calling
+     * the VideoSink on the libuvc callback thread, so a stall in WebRTC does
+     * not hold up USB frame delivery
+     * Takes effect on the next startCapture()
+     *
+     * @param queueCapacity Number of frames that can wait for delivery, 0 delivers synchronously
+     * @param dropPolicy What to do with a new frame when the queue is full
+     */
+    public synchronized void setAsyncDelivery(int queueCapacity, FrameHandoffQueue.DropPolicy dropPolicy) {
+        if (queueCapacity < 0 || dropPolicy == null) {
+            throw new IllegalArgumentException("Invalid async delivery settings");
+        }
+        deliveryQueueCapacity = queueCapacity;
+        deliveryDropPolicy = dropPolicy;
+        if (isCapturing) {
+            Log.w(TAG, "Async delivery settings apply on next startCapture()");
+        }
+    }
+
+    public synchronized int getDeliveryQueueCapacity() {
+        return deliveryQueueCapacity;
+    }
+
+    public synchronized FrameHandoffQueue.DropPolicy getDeliveryDropPolicy() {
+        return deliveryDropPolicy;
+    }
+
+    public synchronized int getConversionStripes() {
+        return conversionStripes;
+    }
+
+    public synchronized int getConversionThreads() {
+        return conversionThreads;
+    }
+
+    public synchronized int getParallelThresholdPixels() {
+        return parallelThresholdPixels;
+    }
+
     /**
      * Start capturing frames
      */
-    public void startCapture() {
+    public synchronized void startCapture() {
+        if (conversionStripes > 1 && conversionThreads > 0 && parallelConverter == null) {
+            ParallelYUVConverter converter = new ParallelYUVConverter(conversionStripes, conversionThreads);
+            converter.setThresholdPixels(parallelThresholdPixels);
+            parallelConverter = converter;
+        }
+        // Queued frames hold on to pooled buffers, keep enough idle ones around to cover them
+        int poolFrames = I420FramePool.DEFAULT_MAX_FREE_PER_SIZE + deliveryQueueCapacity;
+        if (framePool.getRowAlignment() != outputRowAlignment || framePool.getMaxFreePerSize() != poolFrames) {
+            framePool.clear();
+            framePool = new I420FramePool(poolFrames, outputRowAlignment);
+        }
+        if (nv21FramePool.getMaxFree() != poolFrames) {
+            nv21FramePool.clear();
+            nv21FramePool = new NV21FramePool(poolFrames);
+        }
+        if (deliveryQueueCapacity > 0 && deliveryQueue == null) {
+            startDeliveryThread();
+        }
+        FrameTimestampSmoother smoother = timestampSmoother;
+        if (smoother != null) {
+            smoother.reset();
+        }
         isCapturing = true;
         frameCount.set(0);
+        frameProcessingNs.set(0);
         Log.d(TAG, "Started capturing USB camera frames for LiveKit");
     }
 
     /**
      * Stop capturing frames
      */
-    public void stopCapture() {
-        isCapturing = false;
+    public synchronized void stopCapture() {
+        // The converter and pools below must not be torn down under a frame still converting
+        synchronized (frameLock) {
+            isCapturing = false;
+        }
+        if (parallelConverter != null) {
+            parallelConverter.shutdown();
+            parallelConverter = null;
+        }
+        stopDeliveryThread();
+        framePool.clear();
+        nv21FramePool.clear();
         Log.d(TAG, "Stopped capturing USB camera frames");
     }
 
@@ -58,47 +308,34 @@ public class USBCameraVideoCapturer implements IFrameCallback {
      */
     @Override
     public void onFrame(ByteBuffer frame) {
+        // Stamp the frame at the callback boundary, before any copy or conversion jitter
+        final long captureNs = System.nanoTime();
         if (!isCapturing || videoSink == null || frame == null) {
             return;
         }
 
         try {
-            // Save and restore ByteBuffer position (important for reuse)
-            int position = frame.position();
-
-            // Convert ByteBuffer to byte array
-            byte[] frameData = new byte[frame.remaining()];
-            frame.get(frameData);
-            frame.position(position); // Reset position for reuse
-
-            // Convert YUV420SP (NV21) to I420 format
-            YUVConverter.I420Data i420Data = YUVConverter.convertYUV420SPToI420(
-                frameData, width, height
-            );
-
-            // Create I420Buffer for LiveKit
-            JavaI420Buffer i420Buffer = JavaI420Buffer.wrap(
-                width,
-                height,
-                i420Data.yPlane,
-                i420Data.strideY,
-                i420Data.uPlane,
-                i420Data.strideU,
-                i420Data.vPlane,
-                i420Data.strideV,
-                null // No release callback needed for direct buffers
-            );
-
-            // Create VideoFrame with timestamp
-            long timestampNs = System.nanoTime();
-            VideoFrame videoFrame = new VideoFrame(i420Buffer, 0, timestampNs);
-
-            // Push frame to LiveKit
-            videoSink.onFrame(videoFrame);
-
-            // Release resources
-            videoFrame.release();
-            i420Data.release();
+            final VideoFrame.Buffer buffer = convertFrame(frame);
+            if (buffer == null) {
+                return;
+            }
+
+            // Create VideoFrame with the capture timestamp
+            final FrameTimestampSmoother smoother = timestampSmoother;
+            long timestampNs = smoother != null ? smoother.smooth(captureNs) : captureNs;
+            VideoFrame videoFrame = new VideoFrame(buffer, 0, timestampNs);
+
+            final FrameHandoffQueue<VideoFrame> queue = deliveryQueue;
+            if (queue != null) {
+                // The delivery thread pushes and releases it, dropped frames are released by the queue
+                queue.offer(videoFrame);
+            } else {
+                // Push frame to LiveKit
+                videoSink.onFrame(videoFrame);
+
+                // Drop our reference, the buffer returns to its pool when the last holder releases
+                videoFrame.release();
+            }
 
             long count = frameCount.incrementAndGet();
             if (count % 30 == 0) {
@@ -110,6 +347,179 @@ public class USBCameraVideoCapturer implements IFrameCallback {
         }
     }
 
+    /**
+     * Turn the camera frame into a LiveKit buffer under the frame lock
+     *
+     * @return null if capture stopped meanwhile
+     */
+    private VideoFrame.Buffer convertFrame(ByteBuffer frame) {
+        synchronized (frameLock) {
+            if (!isCapturing) {
+                return null;
+            }
+            long startNs = System.nanoTime();
+            final YUVFrameLayout layout = sourceLayout;
+            final YUVTransform frameTransform = transform;
+            final I420Pyramid pyramid = simulcastPyramid;
+            final VideoFrame.Buffer buffer = outputFormat == OutputFormat.NV21 && layout == null
+                    && frameTransform == null && pyramid == null
+                ? wrapNV21(frame)
+                : wrapI420(frame, layout, frameTransform, pyramid);
+            frameProcessingNs.addAndGet(System.nanoTime() - startNs);
+            return buffer;
+        }
+    }
+
+    private void startDeliveryThread() {
+        final FrameHandoffQueue<VideoFrame> queue = new FrameHandoffQueue<>(
+            deliveryQueueCapacity, deliveryDropPolicy, VideoFrame::release
+        );
+        deliveryThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    VideoFrame videoFrame;
+                    while ((videoFrame = queue.take()) != null) {
+                        try {
+                            VideoSink sink = videoSink;
+                            if (sink != null) {
+                                sink.onFrame(videoFrame);
+                            }
+                        } catch (Exception e) {
+                            Log.e(TAG, "Error delivering frame to LiveKit: " + e.getMessage(), e);
+                        } finally {
+                            videoFrame.release();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    queue.clear();
+                }
+            }
+        }, "USBCameraDelivery");
+        deliveryQueue = queue;
+        deliveryThread.start();
+    }
+
+    private void stopDeliveryThread() {
+        FrameHandoffQueue<VideoFrame> queue = deliveryQueue;
+        if (queue == null) {
+            return;
+        }
+        deliveryQueue = null;
+        // Frames still waiting are stale once capture stops
+        queue.close();
+        queue.clear();
+        try {
+            deliveryThread.join(500);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (deliveryThread.isAlive()) {
+            Log.w(TAG, "Delivery thread did not stop in time");
+        }
+        deliveryThread = null;
+    }
+
+    /**
+     * Convert the frame into pooled I420 planes, the frame position is left untouched for reuse
+     */
+    private VideoFrame.Buffer wrapI420(ByteBuffer frame, YUVFrameLayout layout, YUVTransform frameTransform,
+                                       I420Pyramid pyramid) {
+        final ParallelYUVConverter converter = parallelConverter;
+        final YUVConverter.I420Data i420Data;
+        if (frameTransform != null) {
+            i420Data = transformFrame(frame, layout, frameTransform);
+        } else if (layout == null) {
+            i420Data = converter != null
+                ? converter.convert(frame, width, height, framePool)
+                : YUVConverter.convertYUV420SPToI420(frame, width, height, framePool);
+        } else {
+            i420Data = convertLayout(frame, layout, converter);
+        }
+
+        final VideoFrame.I420Buffer fullBuffer = wrapPooled(i420Data);
+        if (pyramid == null || !pyramid.supports(i420Data.width, i420Data.height)) {
+            return fullBuffer;
+        }
+        try {
+            return wrapSimulcast(fullBuffer, pyramid.build(i420Data, framePool));
+        } catch (RuntimeException e) {
+            fullBuffer.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Attach the simulcast layers to the full frame
+     */
+    private VideoFrame.Buffer wrapSimulcast(VideoFrame.I420Buffer fullBuffer, YUVConverter.I420Data[] layers) {
+        VideoFrame.I420Buffer[] layerBuffers = new VideoFrame.I420Buffer[layers.length];
+        for (int i = 0; i < layers.length; i++) {
+            layerBuffers[i] = wrapPooled(layers[i]);
+        }
+        return new SimulcastFrameBuffer(fullBuffer, layerBuffers);
+    }
+
+    /**
+     * Wrap pooled I420 planes for LiveKit
+     */
+    private static VideoFrame.I420Buffer wrapPooled(YUVConverter.I420Data i420Data) {
+        return JavaI420Buffer.wrap(
+            i420Data.width,
+            i420Data.height,
+            i420Data.yPlane,
+            i420Data.strideY,
+            i420Data.uPlane,
+            i420Data.strideU,
+            i420Data.vPlane,
+            i420Data.strideV,
+            i420Data::release // Hand the planes back to the pool once LiveKit is done
+        );
+    }
+
+    /**
+     * Copy the frame into a pooled NV21 array, conversion happens natively in the encoder pipeline
+     */
+    private VideoFrame.Buffer wrapNV21(ByteBuffer frame) {
+        final NV21FramePool.Frame nv21Frame = nv21FramePool.copyOf(frame, width, height);
+        return new NV21Buffer(nv21Frame.data, width, height, nv21Frame::release);
+    }
+
+    /**
+     * Crop, scale, rotate and mirror the frame into a pooled I420 frame of the transform's output size
+     */
+    private YUVConverter.I420Data transformFrame(ByteBuffer frame, YUVFrameLayout layout, YUVTransform frameTransform) {
+        YUVConverter.I420Data i420Data = framePool.acquire(frameTransform.getDstWidth(), frameTransform.getDstHeight());
+        try {
+            frameTransform.transform(frame, layout != null ? layout : YUVFrameLayout.nv21(width, height), i420Data);
+        } catch (RuntimeException e) {
+            i420Data.release();
+            throw e;
+        }
+        return i420Data;
+    }
+
+    /**
+     * Convert a frame described by an explicit source layout into a pooled I420 frame
+     */
+    private YUVConverter.I420Data convertLayout(ByteBuffer frame, YUVFrameLayout layout,
+                                                ParallelYUVConverter converter) {
+        YUVConverter.I420Data i420Data = framePool.acquire(width, height);
+        try {
+            if (converter != null) {
+                converter.convert(frame, layout, i420Data);
+            } else {
+                YUVConverter.convert(frame, layout, i420Data);
+            }
+        } catch (RuntimeException e) {
+            i420Data.release();
+            throw e;
+        }
+        return i420Data;
+    }
+
     /**
      * Get the current frame count
      */
@@ -117,6 +527,44 @@ public class USBCameraVideoCapturer implements IFrameCallback {
         return frameCount.get();
     }
 
+    /**
+     * Get the pool backing converted I420 frames, for allocation statistics
+     */
+    public I420FramePool getFramePool() {
+        return framePool;
+    }
+
+    /**
+     * Get the pool backing NV21 pass-through frames
+     */
+    public NV21FramePool getNV21FramePool() {
+        return nv21FramePool;
+    }
+
+    /**
+     * Get the queue between the callback and delivery threads, for depth and drop statistics
+     *
+     * @return The queue, or null when frames are delivered synchronously
+     */
+    public FrameHandoffQueue<VideoFrame> getDeliveryQueue() {
+        return deliveryQueue;
+    }
+
+    /**
+     * Average time spent in Java to turn a camera frame into a LiveKit buffer, in nanoseconds
+     */
+    public long getAverageFrameProcessingNs() {
+        long count = frameCount.get();
+        return count > 0 ? frameProcessingNs.get() / count : 0;
+    }
+
+    /**
+     * Total time spent in Java turning camera frames into LiveKit buffers since startCapture(), in nanoseconds
+     */
+    public long getFrameProcessingNs() {
+        return frameProcessingNs.get();
+    }
+
     /**
      * Check if currently capturing
      */
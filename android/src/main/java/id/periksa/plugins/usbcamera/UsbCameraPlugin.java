@@ -1,21 +1,19 @@
 package id.periksa.plugins.usbcamera;
 
 import android.Manifest;
-import android.content.BroadcastReceiver;
-import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
-import android.graphics.Bitmap;
-import android.graphics.ImageDecoder;
 import android.net.Uri;
-import android.os.Build;
 import android.os.Bundle;
-import android.provider.MediaStore;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
 import androidx.activity.result.ActivityResult;
 
+import com.getcapacitor.JSArray;
 import com.getcapacitor.JSObject;
 import com.getcapacitor.PermissionState;
 import com.getcapacitor.Plugin;
@@ -26,10 +24,19 @@ import com.getcapacitor.annotation.CapacitorPlugin;
 import com.getcapacitor.annotation.Permission;
 import com.getcapacitor.annotation.PermissionCallback;
 
-import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 @CapacitorPlugin(name = "UsbCamera", permissions = {
         @Permission(strings = {Manifest.permission.CAMERA}, alias = UsbCameraPlugin.PERM_CAMERA),
@@ -43,14 +50,42 @@ public class UsbCameraPlugin extends Plugin {
     static final String PERM_WRITE_EXT_STORAGE = "w_ext";
 
     private static final String TAG = "PluginBridgeDebug";
+    /**
+     * Frame events between two main-thread latency samples
+     */
+    private static final int MAIN_THREAD_PROBE_INTERVAL = 30;
     private static final String[] REQUIRED_PERMISSION_ALIASES = new String[]{
             PERM_CAMERA, PERM_READ_EXT_STORAGE, PERM_WRITE_EXT_STORAGE
     };
 
     private final List<String> mMissPermissions = new ArrayList<>();
-    private BroadcastReceiver frameReceiver;
     private volatile boolean isStreamingActive = false;
-    private boolean isFrameReceiverRegistered = false;
+
+    // Frames arrive through a shared in-process ring and are read on a dedicated thread
+    private volatile SharedFrameRing frameRing;
+    private HandlerThread frameReaderThread;
+    private volatile Handler frameReaderHandler;
+    private final AtomicBoolean frameReadPending = new AtomicBoolean(false);
+    private volatile long lastFrameNumber = -1;
+    // Frame serialization state, owned by the frame reader thread
+    private FrameBase64Encoder frameBase64Encoder;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final AtomicLong serializeCount = new AtomicLong(0);
+    private final AtomicLong serializeTotalNs = new AtomicLong(0);
+    private final AtomicLong mainThreadSamples = new AtomicLong(0);
+    private final AtomicLong mainThreadTotalNs = new AtomicLong(0);
+    private final AtomicBoolean mainThreadProbePending = new AtomicBoolean(false);
+    // Ring the reader thread last read from, the activity may swap in a larger one
+    private SharedFrameRing readerRing;
+    // Optional binary transport, frames go out over a loopback WebSocket instead of "frame" events
+    private volatile FrameWebSocketServer frameServer;
+    // Optional compression and downscaling, runs on the frame reader thread
+    private volatile FrameEncoder frameEncoder;
+    // Flow control for "frame" events, keeps at most one frame in flight in the bridge
+    private volatile FrameDeliveryGate frameGate;
+    private final ConcurrentLinkedQueue<PluginCall> frameRequests = new ConcurrentLinkedQueue<>();
+    // Images of the running burst, filled on the burst encoder threads
+    private final List<JSObject> burstFrames = new ArrayList<>();
 
     @Override
     protected void handleOnStart() {
@@ -60,15 +95,13 @@ public class UsbCameraPlugin extends Plugin {
     @Override
     protected void handleOnStop() {
         super.handleOnStop();
-        if (frameReceiver != null && isFrameReceiverRegistered) {
-            try {
-                getContext().unregisterReceiver(frameReceiver);
-                isFrameReceiverRegistered = false;
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Frame receiver was not registered", e);
-            }
-            frameReceiver = null;
-        }
+        // The stream activity covers the WebView while it streams, the transport stays up until the stream ends
+    }
+
+    @Override
+    protected void handleOnDestroy() {
+        releaseFrameRing();
+        super.handleOnDestroy();
     }
 
     @PluginMethod
@@ -107,6 +140,10 @@ public class UsbCameraPlugin extends Plugin {
             call.reject("User denied required permissions");
             return;
         }
+        if ("captureBurst".equals(call.getMethodName())) {
+            showBurstIntent(call);
+            return;
+        }
         showIntent(call);
     }
 
@@ -116,70 +153,180 @@ public class UsbCameraPlugin extends Plugin {
 
         Intent camIntent = new Intent(getActivity(), USBCameraActivity.class);
         camIntent.putExtra("capture_to_storage", saveToStorage);
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_WIDTH, call.getInt("width", 640));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_HEIGHT, call.getInt("height", 480));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_QUALITY, call.getInt("quality", 85));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_FULL_RESOLUTION, call.getBoolean("fullResolution", false));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_SHARPEST_OF, call.getInt("sharpestOf", 0));
         startActivityForResult(call, camIntent, "imageResult");
     }
 
-    private String loadImageFromUri(Uri photoUri, int compressionRatio) {
-        Bitmap bitmap = null;
-        try {
-            if (Build.VERSION.SDK_INT > 27) {
-                // on newer versions of Android, use the new decodeBitmap method
-                ImageDecoder.Source source = ImageDecoder.createSource(getContext().getContentResolver(), photoUri);
-                bitmap = ImageDecoder.decodeBitmap(source);
-            } else {
-                // support older versions of Android by using getBitmap
-                bitmap = MediaStore.Images.Media.getBitmap(getContext().getContentResolver(), photoUri);
-            }
-        } catch (IOException ex) {
-            ex.printStackTrace();
+    /**
+     * Data URL of a captured photo
+     *
+     * The activity already encoded the JPEG at the requested size, its file
+     * bytes are sent as they are instead of being decoded and re-encoded.
+     * A single photo, so the plain Base64 encoder is used rather than keeping
+     * a reusable one around.
+     */
+    private static String loadImageDataUrl(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(bytes);
         }
-
-        Bitmap resizedBitmap = Bitmap.createScaledBitmap(bitmap, 640, 480, true);
-
-        // Convert Bitmap to Base64 string.
-        ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
-        resizedBitmap.compress(Bitmap.CompressFormat.JPEG, compressionRatio, byteArrayOutputStream);
-        byte[] byteArray = byteArrayOutputStream.toByteArray();
-        String encoded = Base64.encodeToString(byteArray, Base64.NO_PADDING | Base64.NO_WRAP);
-
-        return encoded;
+        return "data:image/jpeg;base64," + Base64.encodeToString(bytes, Base64.NO_WRAP);
     }
 
     @ActivityCallback
-    private void imageResult(PluginCall call, ActivityResult result) {
+    private void imageResult(final PluginCall call, ActivityResult result) {
         if (call == null) return;
-        Bundle bundle = result.getData().getExtras();
+        final Bundle bundle = result.getData().getExtras();
         if (bundle != null) {
             String exitCode = (String) bundle.get("exit_code");
             int resultCode = result.getResultCode();
 
             String resultCodeDesc = (resultCode == -1) ? "OK" : "CANCELED";
 
-            String b64Result = "";
-            Uri photoUri = (Uri) bundle.get("img_uri");
+            final Uri photoUri = (Uri) bundle.get("img_uri");
+            final File photoFile = (File) bundle.get("img_file");
 
-            // Result Code is OK.
-            if (resultCode == -1) {
-                if (photoUri != null) {
-                    b64Result = loadImageFromUri(photoUri, 85);
-                    b64Result = "data:image/jpeg;base64," + b64Result;
-                }
-            }
-
-            JSObject plResult = new JSObject();
+            final JSObject plResult = new JSObject();
             plResult.put("status_code", resultCode);
             plResult.put("status_code_s", resultCodeDesc);
             plResult.put("exit_code", exitCode);
 
-            JSObject dataResult = new JSObject();
-            if (b64Result.length() > 0) {
-                dataResult.put("dataURL", b64Result);
-                dataResult.put("fileURI", photoUri);
-                plResult.put("data", dataResult);
+            // Result Code is OK.
+            if (resultCode != -1 || photoFile == null) {
+                call.resolve(plResult);
+                return;
             }
 
-            call.resolve(plResult);
+            // Read and encode the file off the main thread
+            getBridge().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        JSObject dataResult = new JSObject();
+                        dataResult.put("dataURL", loadImageDataUrl(photoFile));
+                        dataResult.put("fileURI", photoUri);
+                        dataResult.put("width", bundle.getInt("img_width"));
+                        dataResult.put("height", bundle.getInt("img_height"));
+                        if (bundle.containsKey("mode_switch_ms")) {
+                            dataResult.put("modeSwitchMs", bundle.getLong("mode_switch_ms"));
+                        }
+                        if (bundle.containsKey("img_sharpness")) {
+                            dataResult.put("sharpness", bundle.getDouble("img_sharpness"));
+                        }
+                        plResult.put("data", dataResult);
+                    } catch (IOException e) {
+                        Log.e(TAG, "Error reading captured image", e);
+                    }
+                    call.resolve(plResult);
+                }
+            });
+        }
+    }
+
+    /**
+     * Capture a burst of photos around the shutter press
+     *
+     * The camera keeps its last preview frames, the shutter takes those plus
+     * the next ones. Each photo is sent as a "burstFrame" event as soon as it
+     * is encoded; the call resolves once all of them are.
+     */
+    @PluginMethod
+    public void captureBurst(PluginCall call) {
+        if (checkAndRequestPermissions(call)) {
+            showBurstIntent(call);
+        }
+    }
+
+    private void showBurstIntent(PluginCall call) {
+        int before = call.getInt("before", 3);
+        int after = call.getInt("after", 3);
+        if (before < 0 || after < 0 || before + after == 0) {
+            call.reject("before and after must not be negative and not both 0");
+            return;
+        }
+        synchronized (burstFrames) {
+            burstFrames.clear();
+        }
+        USBCameraActivity.setBurstListener(new USBCameraActivity.BurstListener() {
+            // One encoder per burst worker thread, its buffer is reused for the following frames
+            private final ThreadLocal<FrameBase64Encoder> base64Encoders = new ThreadLocal<FrameBase64Encoder>() {
+                @Override
+                protected FrameBase64Encoder initialValue() {
+                    return new FrameBase64Encoder();
+                }
+            };
+
+            @Override
+            public void onBurstImage(File file, ByteBuffer jpeg, int index, int width, int height, long offsetMs) {
+                synchronized (burstFrames) {
+                    burstFrames.add(burstFrameInfo(file, index, width, height, offsetMs));
+                }
+                // Encoded on the burst worker, like the frame, so several go out at once
+                JSObject event = burstFrameInfo(file, index, width, height, offsetMs);
+                event.put("dataURL", base64Encoders.get().encode(jpeg, "data:image/jpeg;base64,"));
+                notifyListeners("burstFrame", event);
+            }
+        });
+
+        Intent camIntent = new Intent(getActivity(), USBCameraActivity.class);
+        camIntent.putExtra("capture_to_storage", call.getBoolean("saveToStorage", false));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_WIDTH, call.getInt("width", 640));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_HEIGHT, call.getInt("height", 480));
+        camIntent.putExtra(USBCameraActivity.EXTRA_PHOTO_QUALITY, call.getInt("quality", 85));
+        camIntent.putExtra(USBCameraActivity.EXTRA_BURST_BEFORE, before);
+        camIntent.putExtra(USBCameraActivity.EXTRA_BURST_AFTER, after);
+        startActivityForResult(call, camIntent, "burstResult");
+    }
+
+    private static JSObject burstFrameInfo(File file, int index, int width, int height, long offsetMs) {
+        JSObject frame = new JSObject();
+        frame.put("index", index);
+        frame.put("offsetMs", offsetMs);
+        frame.put("width", width);
+        frame.put("height", height);
+        frame.put("fileURI", Uri.fromFile(file));
+        return frame;
+    }
+
+    @ActivityCallback
+    private void burstResult(PluginCall call, ActivityResult result) {
+        USBCameraActivity.setBurstListener(null);
+        if (call == null) return;
+
+        Bundle bundle = result.getData() != null ? result.getData().getExtras() : null;
+        JSObject plResult = new JSObject();
+        plResult.put("status_code", result.getResultCode());
+        plResult.put("status_code_s", result.getResultCode() == -1 ? "OK" : "CANCELED");
+        plResult.put("exit_code", bundle != null ? bundle.getString("exit_code", "unknown") : "unknown");
+
+        List<JSObject> frames;
+        synchronized (burstFrames) {
+            frames = new ArrayList<>(burstFrames);
+            burstFrames.clear();
         }
+        if (result.getResultCode() == -1 && bundle != null) {
+            // Images finish out of order, list them in capture order
+            Collections.sort(frames, new Comparator<JSObject>() {
+                @Override
+                public int compare(JSObject a, JSObject b) {
+                    return Integer.compare(a.optInt("index"), b.optInt("index"));
+                }
+            });
+            JSArray frameList = new JSArray();
+            for (JSObject frame : frames) {
+                frameList.put(frame);
+            }
+            JSObject dataResult = new JSObject();
+            dataResult.put("count", bundle.getInt("burst_count"));
+            dataResult.put("failed", bundle.getInt("burst_failed"));
+            dataResult.put("frames", frameList);
+            plResult.put("data", dataResult);
+        }
+        call.resolve(plResult);
     }
 
     // LiveKit Streaming Methods
@@ -191,18 +338,68 @@ public class UsbCameraPlugin extends Plugin {
         }
     }
 
+    /**
+     * Resolve with the next frame, the only way frames are sent in "pull" delivery mode
+     */
     @PluginMethod
-    public void stopStream(PluginCall call) {
-        isStreamingActive = false;
-        if (frameReceiver != null && isFrameReceiverRegistered) {
-            try {
-                getContext().unregisterReceiver(frameReceiver);
-                isFrameReceiverRegistered = false;
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, "Frame receiver was not registered", e);
-            }
-            frameReceiver = null;
+    public void requestFrame(PluginCall call) {
+        FrameDeliveryGate gate = frameGate;
+        if (!isStreamingActive || gate == null) {
+            call.reject("Stream not active");
+            return;
+        }
+        if (frameServer != null) {
+            call.reject("Frames are sent over the WebSocket transport");
+            return;
+        }
+        frameRequests.add(call);
+        gate.request();
+        scheduleFrameRead();
+    }
+
+    /**
+     * JS finished with a frame, lets the next one through in "ack" delivery mode
+     */
+    @PluginMethod
+    public void ackFrame(PluginCall call) {
+        FrameDeliveryGate gate = frameGate;
+        Double frameNumber = call.getDouble("frameNumber");
+        if (gate != null && gate.acknowledge(frameNumber != null ? frameNumber.longValue() : -1)) {
+            scheduleFrameRead();
+        }
+        call.resolve();
+    }
+
+    @PluginMethod
+    public void getStreamStats(PluginCall call) {
+        JSObject stats = new JSObject();
+        FrameDeliveryGate gate = frameGate;
+        SharedFrameRing ring = frameRing;
+        FrameWebSocketServer server = frameServer;
+        stats.put("streaming", isStreamingActive);
+        if (gate != null) {
+            stats.put("delivery", gate.getMode().name().toLowerCase(Locale.US));
+            stats.put("deliveredFrames", gate.getDeliveredCount());
+            stats.put("droppedFrames", gate.getDroppedCount());
+            stats.put("ackTimeouts", gate.getAckTimeoutCount());
         }
+        stats.put("serializeMs", average(serializeTotalNs, serializeCount) / 1e6);
+        stats.put("mainThreadMs", average(mainThreadTotalNs, mainThreadSamples) / 1e6);
+        if (ring != null) {
+            stats.put("capturedFrames", ring.getPublishedCount());
+        }
+        if (server != null) {
+            stats.put("frameServer", serverInfo(server));
+            stats.put("sentFrames", server.getSentCount());
+            stats.put("skippedFrames", server.getSkippedCount());
+            stats.put("clients", server.getClientCount());
+        }
+        call.resolve(stats);
+    }
+
+    @PluginMethod
+    public void stopStream(PluginCall call) {
+        releaseFrameRing();
 
         JSObject result = new JSObject();
         result.put("status", "stopped");
@@ -211,61 +408,299 @@ public class UsbCameraPlugin extends Plugin {
     }
 
     private void startStreamingIntent(PluginCall call) {
-        // Register broadcast receiver for frame data
-        if (frameReceiver == null) {
-            frameReceiver = new BroadcastReceiver() {
-                @Override
-                public void onReceive(Context context, Intent intent) {
-                    if (!isStreamingActive) return;
-
-                    byte[] frameData = intent.getByteArrayExtra("frame_data");
-                    int width = intent.getIntExtra("width", 640);
-                    int height = intent.getIntExtra("height", 480);
-                    String format = intent.getStringExtra("format");
-
-                    if (frameData != null) {
-                        // Convert frame to base64 for sending to JavaScript
-                        String base64Frame = Base64.encodeToString(frameData, Base64.NO_WRAP);
-
-                        JSObject frameObject = new JSObject();
-                        frameObject.put("frameData", base64Frame);
-                        frameObject.put("width", width);
-                        frameObject.put("height", height);
-                        frameObject.put("format", format);
-                        frameObject.put("timestamp", System.currentTimeMillis());
-
-                        // Emit event to JavaScript
-                        notifyListeners("frame", frameObject);
-                    }
-                }
-            };
-
-            IntentFilter filter = new IntentFilter("id.periksa.plugins.usbcamera.FRAME_AVAILABLE");
-
-            // Fix: Check API level for RECEIVER_NOT_EXPORTED
+        // Frames come through a shared ring instead of per-frame broadcast Intents
+        if (frameRing == null) {
             try {
-                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.TIRAMISU) {
-                    getContext().registerReceiver(frameReceiver, filter, Context.RECEIVER_NOT_EXPORTED);
-                } else {
-                    getContext().registerReceiver(frameReceiver, filter);
-                }
-                isFrameReceiverRegistered = true;
-                isStreamingActive = true; // Set only after successful registration
+                frameReaderThread = new HandlerThread("UsbCameraFrameReader");
+                frameReaderThread.start();
+                frameReaderHandler = new Handler(frameReaderThread.getLooper());
+                // Sized for the requested mode, the activity swaps in a larger ring if the camera picks a bigger one
+                frameRing = new SharedFrameRing(
+                    SharedFrameRing.DEFAULT_SLOT_COUNT,
+                    NV21FramePool.frameSize(
+                        call.getInt("width", USBCameraStreamActivity.PREVIEW_WIDTH),
+                        call.getInt("height", USBCameraStreamActivity.PREVIEW_HEIGHT))
+                );
+                frameRing.setListener(frameAvailableListener);
             } catch (Exception e) {
-                Log.e(TAG, "Error registering frame receiver", e);
-                isStreamingActive = false;
-                call.reject("Failed to register frame receiver: " + e.getMessage());
+                Log.e(TAG, "Error creating frame ring", e);
+                releaseFrameRing();
+                call.reject("Failed to create frame transport: " + e.getMessage());
                 return;
             }
+        }
+        if ("websocket".equals(call.getString("transport", "event")) && frameServer == null) {
+            try {
+                frameServer = new FrameWebSocketServer(call.getInt("port", 0));
+                Log.d(TAG, "Frame WebSocket listening on port " + frameServer.getPort());
+                // startStream only resolves once the stream activity is gone, JS connects on this event instead
+                notifyListeners("frameServer", serverInfo(frameServer));
+            } catch (Exception e) {
+                Log.e(TAG, "Error starting frame WebSocket", e);
+                releaseFrameRing();
+                call.reject("Failed to start frame WebSocket: " + e.getMessage());
+                return;
+            }
+        }
+        FrameEncoder.Format outputFormat = FrameEncoder.Format.fromOption(call.getString("outputFormat", "raw"));
+        int outputWidth = Math.max(0, call.getInt("outputWidth", 0));
+        int outputHeight = Math.max(0, call.getInt("outputHeight", 0));
+        int quality = Math.max(0, Math.min(100, call.getInt("quality", FrameEncoder.DEFAULT_QUALITY)));
+        if (outputFormat != FrameEncoder.Format.RAW || outputWidth > 0 || outputHeight > 0) {
+            frameEncoder = new FrameEncoder(outputFormat, quality, outputWidth, outputHeight);
         } else {
-            isStreamingActive = true;
+            frameEncoder = null;
         }
+        serializeCount.set(0);
+        serializeTotalNs.set(0);
+        mainThreadSamples.set(0);
+        mainThreadTotalNs.set(0);
+        frameGate = new FrameDeliveryGate(FrameDeliveryGate.Mode.fromOption(call.getString("delivery", "push")));
+        lastFrameNumber = -1;
+        USBCameraStreamActivity.setFrameRing(frameRing);
+        isStreamingActive = true;
 
         Intent streamIntent = new Intent(getActivity(), USBCameraStreamActivity.class);
         streamIntent.putExtra("streaming_mode", USBCameraStreamActivity.MODE_BROADCAST);
+        // JPEG at camera size: forward the camera's own MJPEG frames, nothing to decode or encode
+        boolean mjpegPassThrough = outputFormat == FrameEncoder.Format.JPEG && outputWidth == 0 && outputHeight == 0
+            && call.getBoolean("mjpegPassThrough", true);
+        streamIntent.putExtra(USBCameraStreamActivity.EXTRA_MJPEG_PASS_THROUGH, mjpegPassThrough);
+        putStreamModeExtras(call, streamIntent);
         startActivityForResult(call, streamIntent, "streamResult");
     }
 
+    /**
+     * Pass the requested width, height and frame rate on to the stream activity
+     */
+    private static void putStreamModeExtras(PluginCall call, Intent streamIntent) {
+        Integer width = call.getInt("width");
+        Integer height = call.getInt("height");
+        Float frameRate = call.getFloat("frameRate");
+        if (width != null && height != null && width > 0 && height > 0) {
+            streamIntent.putExtra(USBCameraStreamActivity.EXTRA_WIDTH, (int) width);
+            streamIntent.putExtra(USBCameraStreamActivity.EXTRA_HEIGHT, (int) height);
+        }
+        if (frameRate != null && frameRate > 0f) {
+            streamIntent.putExtra(USBCameraStreamActivity.EXTRA_FRAME_RATE, (float) frameRate);
+        }
+    }
+
+    /**
+     * "Frame N ready" notification, runs on the camera callback thread so it only schedules a read.
+     * Bursts collapse into one read of the newest frame.
+     */
+    private final SharedFrameRing.Listener frameAvailableListener = new SharedFrameRing.Listener() {
+        @Override
+        public void onFrameAvailable(SharedFrameRing ring, long frameNumber) {
+            if (isStreamingActive && frameRing != null && ring != frameRing) {
+                // The activity replaced the ring to fit the negotiated frame size
+                frameRing = ring;
+            }
+            scheduleFrameRead();
+        }
+    };
+
+    private FrameBase64Encoder base64Encoder() {
+        if (frameBase64Encoder == null) {
+            frameBase64Encoder = new FrameBase64Encoder();
+        }
+        return frameBase64Encoder;
+    }
+
+    /**
+     * Sample how long the main thread takes to get to a frame event
+     *
+     * Everything up to notifyListeners runs on the reader thread; the bridge
+     * then posts the evaluateJavascript call to the main thread. A probe
+     * posted right behind it runs once that call is done, so its delay is
+     * the main-thread cost of the frame plus whatever UI work was queued.
+     */
+    private void probeMainThread() {
+        if (serializeCount.get() % MAIN_THREAD_PROBE_INTERVAL != 0
+            || !mainThreadProbePending.compareAndSet(false, true)) {
+            return;
+        }
+        final long postedNs = System.nanoTime();
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                mainThreadTotalNs.addAndGet(System.nanoTime() - postedNs);
+                mainThreadSamples.incrementAndGet();
+                mainThreadProbePending.set(false);
+            }
+        });
+    }
+
+    private static double average(AtomicLong total, AtomicLong count) {
+        long n = count.get();
+        return n > 0 ? (double) total.get() / n : 0;
+    }
+
+    /**
+     * Post a read of the newest frame unless one is already pending
+     */
+    private void scheduleFrameRead() {
+        Handler handler = frameReaderHandler;
+        if (isStreamingActive && handler != null && frameReadPending.compareAndSet(false, true)) {
+            handler.post(readLatestFrame);
+        }
+    }
+
+    private final Runnable readLatestFrame = new Runnable() {
+        @Override
+        public void run() {
+            frameReadPending.set(false);
+            SharedFrameRing ring = frameRing;
+            if (!isStreamingActive || ring == null) return;
+            if (ring != readerRing) {
+                // Frame numbers start over with a new ring
+                readerRing = ring;
+                lastFrameNumber = -1;
+            }
+
+            FrameWebSocketServer server = frameServer;
+            FrameDeliveryGate gate = frameGate;
+            long nowMs = SystemClock.uptimeMillis();
+            if (server == null && gate != null && !gate.canDeliver(nowMs)) {
+                // JS still busy, the frame stays in the ring and newer ones replace it
+                return;
+            }
+
+            SharedFrameRing.Frame frame = ring.acquireLatest(lastFrameNumber);
+            if (frame == null) return;
+
+            FrameEncoder encoder = frameEncoder;
+            long timestamp = System.currentTimeMillis();
+            long skipped = lastFrameNumber < 0 ? frame.frameNumber : frame.frameNumber - lastFrameNumber - 1;
+            if (encoder != null && (!"YUV420SP".equals(frame.format) || encoder.isPassThrough(frame.width, frame.height))) {
+                // Camera MJPEG frames are already compressed
+                encoder = null;
+            }
+
+            ByteBuffer payload = null;
+            int width = frame.width;
+            int height = frame.height;
+            String format = frame.format;
+            String frameData = null;
+            long serializeStartNs = System.nanoTime();
+            try {
+                lastFrameNumber = frame.frameNumber;
+                if (encoder != null) {
+                    // Compress straight from the ring slot, the result lives in the encoder
+                    try {
+                        payload = encoder.encode(frame.data, frame.width, frame.height);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Error encoding frame", e);
+                        return;
+                    }
+                    width = encoder.getEncodedWidth();
+                    height = encoder.getEncodedHeight();
+                    format = encoder.getFormat().label;
+                } else if (server != null) {
+                    // Straight from the ring slot into the socket message, no Base64 and no bridge
+                    server.publish(frame.data, width, height, binaryFormat(format), frame.frameNumber, timestamp);
+                    return;
+                } else {
+                    // Base64 straight from the ring slot, no intermediate copy
+                    frameData = base64Encoder().encode(frame.data,
+                        "JPEG".equals(format) ? "data:image/jpeg;base64," : null);
+                }
+            } finally {
+                frame.release();
+            }
+
+            if (payload != null && server != null) {
+                server.publish(payload, width, height, binaryFormat(format), frame.frameNumber, timestamp);
+                return;
+            }
+
+            // Compressed frames go to JavaScript as data: URLs
+            if (payload != null) {
+                String mimeType = encoder.getFormat().mimeType;
+                frameData = base64Encoder().encode(payload, mimeType != null ? "data:" + mimeType + ";base64," : null);
+            }
+
+            JSObject frameObject = new JSObject();
+            frameObject.put("frameData", frameData);
+            frameObject.put("width", width);
+            frameObject.put("height", height);
+            frameObject.put("format", format);
+            frameObject.put("timestamp", timestamp);
+            frameObject.put("frameNumber", frame.frameNumber);
+
+            if (gate != null) {
+                gate.onDelivered(frame.frameNumber, skipped, nowMs);
+                frameObject.put("droppedFrames", gate.getDroppedCount());
+            }
+            // Answer pull requests first, then emit event to JavaScript
+            PluginCall request;
+            while ((request = frameRequests.poll()) != null) {
+                request.resolve(frameObject);
+            }
+            if (gate == null || gate.getMode() != FrameDeliveryGate.Mode.PULL) {
+                notifyListeners("frame", frameObject);
+            }
+            serializeTotalNs.addAndGet(System.nanoTime() - serializeStartNs);
+            serializeCount.incrementAndGet();
+            probeMainThread();
+        }
+    };
+
+    private static JSObject serverInfo(FrameWebSocketServer server) {
+        JSObject serverInfo = new JSObject();
+        serverInfo.put("url", server.getUrl());
+        serverInfo.put("port", server.getPort());
+        serverInfo.put("token", server.getToken());
+        return serverInfo;
+    }
+
+    private static int binaryFormat(String format) {
+        if ("YUV420SP".equals(format)) return FrameWebSocketServer.FORMAT_YUV420SP;
+        if ("JPEG".equals(format)) return FrameWebSocketServer.FORMAT_JPEG;
+        if ("WEBP".equals(format)) return FrameWebSocketServer.FORMAT_WEBP;
+        return FrameWebSocketServer.FORMAT_UNKNOWN;
+    }
+
+    private void releaseFrameRing() {
+        isStreamingActive = false;
+        if (frameServer != null) {
+            frameServer.stop();
+            frameServer = null;
+        }
+        USBCameraStreamActivity.setFrameRing(null);
+        if (frameRing != null) {
+            frameRing.setListener(null);
+            frameRing = null;
+        }
+        final FrameEncoder encoder = frameEncoder;
+        frameEncoder = null;
+        if (frameReaderHandler != null) {
+            // The encoders belong to the reader thread, release them there after any frame in flight
+            frameReaderHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (encoder != null) {
+                        encoder.release();
+                    }
+                    if (frameBase64Encoder != null) {
+                        frameBase64Encoder.release();
+                    }
+                }
+            });
+        }
+        if (frameReaderThread != null) {
+            frameReaderThread.quitSafely();
+            frameReaderThread = null;
+            frameReaderHandler = null;
+        }
+        frameReadPending.set(false);
+        PluginCall request;
+        while ((request = frameRequests.poll()) != null) {
+            request.reject("Stream stopped");
+        }
+    }
+
     /**
      * Start USB camera streaming in LiveKit mode
      * This mode is optimized for native LiveKit integration
@@ -281,6 +716,7 @@ public class UsbCameraPlugin extends Plugin {
 
         Intent streamIntent = new Intent(getActivity(), USBCameraStreamActivity.class);
         streamIntent.putExtra("streaming_mode", USBCameraStreamActivity.MODE_LIVEKIT);
+        putStreamModeExtras(call, streamIntent);
         startActivityForResult(call, streamIntent, "streamResult");
 
         Log.d(TAG, "Started LiveKit streaming mode");
@@ -298,6 +734,8 @@ public class UsbCameraPlugin extends Plugin {
 
     @ActivityCallback
     private void streamResult(PluginCall call, ActivityResult result) {
+        // The stream activity has finished, so has the stream
+        releaseFrameRing();
         if (call == null) return;
 
         Bundle bundle = result.getData() != null ? result.getData().getExtras() : null;
@@ -312,16 +750,9 @@ public class UsbCameraPlugin extends Plugin {
             plResult.put("width", width);
             plResult.put("height", height);
 
-            if ("streaming_started".equals(exitCode)) {
-                plResult.put("streaming", true);
-                call.resolve(plResult);
-            } else {
-                isStreamingActive = false;
-                plResult.put("streaming", false);
-                call.resolve(plResult);
-            }
+            plResult.put("streaming", "streaming_started".equals(exitCode));
+            call.resolve(plResult);
         } else {
-            isStreamingActive = false;
             JSObject errorResult = new JSObject();
             errorResult.put("status_code", result.getResultCode());
             errorResult.put("exit_code", "error");
@@ -1,15 +1,50 @@
 package id.periksa.plugins.usbcamera;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Utility class for converting YUV420SP (NV21) to I420 format for LiveKit
  *
  * YUV420SP (NV21): 2-plane format with Y plane followed by interleaved VU plane
  * I420: 3-plane format with separate Y, U, V planes
+ *
+ * Chroma planes are ((width + 1) / 2) x ((height + 1) / 2), so odd frame
+ * sizes carry one extra chroma column/row like libyuv expects.
  */
 public class YUVConverter {
 
+    /**
+     * Number of interleaved VU bytes moved per bulk read in the scalar kernel
+     */
+    private static final int CHROMA_CHUNK_BYTES = 4096;
+
+    /**
+     * VU pairs handled per 64 bit word by the SWAR kernel
+     */
+    private static final int SWAR_PAIRS_PER_WORD = 4;
+
+    /**
+     * Selects every other byte of a 64 bit word
+     */
+    private static final long EVEN_BYTES_MASK = 0x00FF00FF00FF00FFL;
+
+    /**
+     * Per-thread scratch arrays for the scalar kernel, the UVC callback
+     * thread reuses the same arrays for every frame
+     */
+    private static final ThreadLocal<byte[][]> CHROMA_SCRATCH = new ThreadLocal<byte[][]>() {
+        @Override
+        protected byte[][] initialValue() {
+            return new byte[][] {
+                new byte[CHROMA_CHUNK_BYTES],
+                new byte[CHROMA_CHUNK_BYTES / 2],
+                new byte[CHROMA_CHUNK_BYTES / 2]
+            };
+        }
+    };
+
     /**
      * Convert YUV420SP (NV21) to I420 format
      *
@@ -19,45 +54,448 @@ public class YUVConverter {
      * @return I420Data object containing separate Y, U, V planes
      */
     public static I420Data convertYUV420SPToI420(byte[] nv21Data, int width, int height) {
+        return convertYUV420SPToI420(nv21Data, width, height, null);
+    }
+
+    /**
+     * Convert YUV420SP (NV21) to I420 format into a frame taken from a pool
+     *
+     * The returned frame must be handed back with {@link I420Data#release()}
+     * once the consumer is done with it, otherwise the pool keeps allocating.
+     *
+     * @param nv21Data Source YUV420SP data
+     * @param width Frame width
+     * @param height Frame height
+     * @param pool Frame pool to take the destination from, or null to allocate a new frame
+     * @return I420Data object containing separate Y, U, V planes
+     */
+    public static I420Data convertYUV420SPToI420(byte[] nv21Data, int width, int height, I420FramePool pool) {
+        if (nv21Data == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        // Default (big endian) order matches pooled planes, so the word-at-a-time kernel is used
+        return convertYUV420SPToI420(ByteBuffer.wrap(nv21Data), width, height, pool);
+    }
+
+    /**
+     * Convert YUV420SP (NV21) to I420 format reading straight from a ByteBuffer
+     *
+     * This is meant for the direct ByteBuffer handed to IFrameCallback#onFrame
+     * and avoids copying the frame into an intermediate byte array first.
+     * The source position and limit are left unchanged.
+     *
+     * @param nv21Data Source YUV420SP data, read from its current position
+     * @param width Frame width
+     * @param height Frame height
+     * @param pool Frame pool to take the destination from, or null to allocate a new frame
+     * @return I420Data object containing separate Y, U, V planes
+     */
+    public static I420Data convertYUV420SPToI420(ByteBuffer nv21Data, int width, int height, I420FramePool pool) {
         if (nv21Data == null || width <= 0 || height <= 0) {
             throw new IllegalArgumentException("Invalid input parameters");
         }
 
+        I420Data result = pool != null ? pool.acquire(width, height) : allocate(width, height);
+        try {
+            if (result.layout.isPacked()) {
+                convertYUV420SPToI420(nv21Data, width, height, result.yPlane, result.uPlane, result.vPlane);
+            } else {
+                // Pool hands out row-aligned planes
+                convert(nv21Data, YUVFrameLayout.nv21(width, height), result);
+            }
+        } catch (RuntimeException e) {
+            result.release();
+            throw e;
+        }
+        return result;
+    }
+
+    /**
+     * Convert YUV420SP (NV21) to I420 format into caller supplied planes
+     *
+     * The Y plane is moved with a single bulk transfer. The VU plane is split
+     * word-at-a-time when source and destinations share a byte order, which is
+     * always the case for buffers coming from the pool and the native frame
+     * callback, otherwise it falls back to the chunked scalar kernel.
+     * The source position and limit are left unchanged, destination planes are
+     * written from their current position and rewound afterwards.
+     *
+     * @param nv21Data Source YUV420SP data, read from its current position
+     * @param width Frame width
+     * @param height Frame height
+     * @param yPlane Destination Y plane, at least width * height bytes remaining
+     * @param uPlane Destination U plane, at least one byte per chroma sample remaining
+     * @param vPlane Destination V plane, at least one byte per chroma sample remaining
+     */
+    public static void convertYUV420SPToI420(ByteBuffer nv21Data, int width, int height,
+                                             ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane) {
+        if (nv21Data == null || width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+
+        checkPlaneSizes(nv21Data, width, height, yPlane, uPlane, vPlane);
+
         int ySize = width * height;
-        int uvSize = ySize / 4;
+        int uvSize = ((width + 1) / 2) * ((height + 1) / 2);
+
+        int position = nv21Data.position();
+        int limit = nv21Data.limit();
+        try {
+            // Copy Y plane (identical in both formats) in one transfer
+            nv21Data.limit(position + ySize);
+            yPlane.put(nv21Data);
+        } finally {
+            nv21Data.limit(limit);
+            nv21Data.position(position);
+        }
+
+        // De-interleave UV plane
+        // NV21 format: ...VUVUVU... (interleaved)
+        // I420 format: ...UUU... ...VVV... (separate)
+        deinterleaveVU(nv21Data, position + ySize, uPlane, uPlane.position(), vPlane, vPlane.position(), uvSize);
+
+        yPlane.rewind();
+        uPlane.rewind();
+        vPlane.rewind();
+    }
+
+    /**
+     * Convert a YUV 4:2:0 frame in any supported layout into an I420 frame
+     *
+     * The source layout may be NV21, NV12 or planar, with arbitrary row
+     * padding. Destination rows are written using the frame's own strides,
+     * padding bytes are left untouched.
+     *
+     * @param src Source frame, plane offsets are relative to its position
+     * @param srcLayout Layout of the source frame
+     * @param dst Destination frame of the same size
+     */
+    public static void convert(ByteBuffer src, YUVFrameLayout srcLayout, I420Data dst) {
+        convert(src, srcLayout, dst.yPlane, dst.uPlane, dst.vPlane, dst.layout);
+    }
+
+    /**
+     * Convert a YUV 4:2:0 frame between two layouts
+     *
+     * Source planes live in one buffer, destination planes may each have their
+     * own buffer (pass the same buffer three times for a single-buffer layout).
+     * Positions and limits are not modified.
+     *
+     * @param src Source frame, plane offsets are relative to its position
+     * @param srcLayout Layout of the source frame
+     * @param dstY Buffer holding the destination Y plane
+     * @param dstU Buffer holding the destination U plane
+     * @param dstV Buffer holding the destination V plane
+     * @param dstLayout Layout of the destination, same size as the source
+     */
+    public static void convert(ByteBuffer src, YUVFrameLayout srcLayout,
+                               ByteBuffer dstY, ByteBuffer dstU, ByteBuffer dstV, YUVFrameLayout dstLayout) {
+        checkLayouts(src, srcLayout, dstY, dstU, dstV, dstLayout);
+        convertRows(src, srcLayout, dstY, dstU, dstV, dstLayout, 0, srcLayout.getChromaHeight());
+    }
+
+    /**
+     * Validate that buffers can hold frames of the given layouts
+     */
+    static void checkLayouts(ByteBuffer src, YUVFrameLayout srcLayout,
+                             ByteBuffer dstY, ByteBuffer dstU, ByteBuffer dstV, YUVFrameLayout dstLayout) {
+        if (src == null || srcLayout == null || dstY == null || dstU == null || dstV == null || dstLayout == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        if (srcLayout.width != dstLayout.width || srcLayout.height != dstLayout.height) {
+            throw new IllegalArgumentException("Source " + srcLayout + " and destination " + dstLayout + " differ in size");
+        }
+        int width = srcLayout.width;
+        int height = srcLayout.height;
+        int chromaWidth = srcLayout.getChromaWidth();
+        int chromaHeight = srcLayout.getChromaHeight();
+        if (src.remaining() < srcLayout.requiredSize()) {
+            throw new IllegalArgumentException(
+                "Input data too small. Expected at least " + srcLayout.requiredSize() +
+                " bytes but got " + src.remaining()
+            );
+        }
+        if (dstY.remaining() < dstLayout.y.requiredSize(width, height)
+                || dstU.remaining() < dstLayout.u.requiredSize(chromaWidth, chromaHeight)
+                || dstV.remaining() < dstLayout.v.requiredSize(chromaWidth, chromaHeight)) {
+            throw new IllegalArgumentException("Destination planes too small for " + dstLayout);
+        }
+    }
+
+    /**
+     * Convert the rows of one horizontal stripe between two layouts
+     *
+     * Covers chroma rows [firstChromaRow, firstChromaRow + chromaRows) and the
+     * matching luma rows. Stripes write disjoint byte ranges, so they may run
+     * concurrently. No buffer position is modified.
+     */
+    static void convertRows(ByteBuffer src, YUVFrameLayout srcLayout,
+                            ByteBuffer dstY, ByteBuffer dstU, ByteBuffer dstV, YUVFrameLayout dstLayout,
+                            int firstChromaRow, int chromaRows) {
+        int chromaWidth = srcLayout.getChromaWidth();
+        int lastChromaRow = Math.min(firstChromaRow + chromaRows, srcLayout.getChromaHeight());
+        int firstLumaRow = firstChromaRow * 2;
+        int lastLumaRow = Math.min(lastChromaRow * 2, srcLayout.height);
+        int srcBase = src.position();
+
+        copyPlaneRows(src, srcBase, srcLayout.y, dstY, dstY.position(), dstLayout.y,
+            srcLayout.width, firstLumaRow, lastLumaRow);
+
+        boolean planarDst = dstLayout.u.pixelStride == 1 && dstLayout.v.pixelStride == 1;
+        boolean vuSrc = srcLayout.isSemiPlanarVU();
+        if (planarDst && (vuSrc || srcLayout.isSemiPlanarUV())) {
+            // The kernels write the first byte of each pair to their "v" argument
+            ByteBuffer firstDst = vuSrc ? dstV : dstU;
+            ByteBuffer secondDst = vuSrc ? dstU : dstV;
+            YUVFrameLayout.Plane firstPlane = vuSrc ? dstLayout.v : dstLayout.u;
+            YUVFrameLayout.Plane secondPlane = vuSrc ? dstLayout.u : dstLayout.v;
+            YUVFrameLayout.Plane srcPlane = vuSrc ? srcLayout.v : srcLayout.u;
+            int firstBase = firstDst.position();
+            int secondBase = secondDst.position();
+
+            if (srcPlane.rowStride == chromaWidth * 2
+                    && firstPlane.rowStride == chromaWidth && secondPlane.rowStride == chromaWidth) {
+                // No padding on either side, the whole stripe is one run of pairs
+                deinterleaveVU(src, srcBase + srcPlane.indexOf(0, firstChromaRow),
+                    secondDst, secondBase + secondPlane.indexOf(0, firstChromaRow),
+                    firstDst, firstBase + firstPlane.indexOf(0, firstChromaRow),
+                    (lastChromaRow - firstChromaRow) * chromaWidth);
+            } else {
+                for (int row = firstChromaRow; row < lastChromaRow; row++) {
+                    deinterleaveVU(src, srcBase + srcPlane.indexOf(0, row),
+                        secondDst, secondBase + secondPlane.indexOf(0, row),
+                        firstDst, firstBase + firstPlane.indexOf(0, row),
+                        chromaWidth);
+                }
+            }
+        } else {
+            copyPlaneRows(src, srcBase, srcLayout.u, dstU, dstU.position(), dstLayout.u,
+                chromaWidth, firstChromaRow, lastChromaRow);
+            copyPlaneRows(src, srcBase, srcLayout.v, dstV, dstV.position(), dstLayout.v,
+                chromaWidth, firstChromaRow, lastChromaRow);
+        }
+    }
+
+    /**
+     * Copy rows [firstRow, lastRow) of a plane, using bulk transfers when both
+     * sides have one byte per sample and a per-sample loop otherwise
+     */
+    private static void copyPlaneRows(ByteBuffer src, int srcBase, YUVFrameLayout.Plane srcPlane,
+                                      ByteBuffer dst, int dstBase, YUVFrameLayout.Plane dstPlane,
+                                      int cols, int firstRow, int lastRow) {
+        if (firstRow >= lastRow) {
+            return;
+        }
+        if (srcPlane.pixelStride == 1 && dstPlane.pixelStride == 1) {
+            ByteBuffer from = src.duplicate();
+            ByteBuffer to = dst.duplicate();
+            if (srcPlane.rowStride == cols && dstPlane.rowStride == cols) {
+                // Contiguous rows, one transfer
+                int start = srcBase + srcPlane.indexOf(0, firstRow);
+                from.limit(start + (lastRow - firstRow) * cols);
+                from.position(start);
+                to.position(dstBase + dstPlane.indexOf(0, firstRow));
+                to.put(from);
+                return;
+            }
+            for (int row = firstRow; row < lastRow; row++) {
+                int start = srcBase + srcPlane.indexOf(0, row);
+                from.limit(start + cols);
+                from.position(start);
+                to.position(dstBase + dstPlane.indexOf(0, row));
+                to.put(from);
+            }
+            return;
+        }
+        for (int row = firstRow; row < lastRow; row++) {
+            int from = srcBase + srcPlane.indexOf(0, row);
+            int to = dstBase + dstPlane.indexOf(0, row);
+            for (int col = 0; col < cols; col++) {
+                dst.put(to, src.get(from));
+                from += srcPlane.pixelStride;
+                to += dstPlane.pixelStride;
+            }
+        }
+    }
+
+    /**
+     * Allocate an unpooled I420 frame
+     */
+    static I420Data allocate(int width, int height) {
+        return I420Data.allocate(YUVFrameLayout.i420(width, height, 1), null);
+    }
+
+    /**
+     * Convert one horizontal stripe of a YUV420SP (NV21) frame into I420 planes
+     *
+     * A stripe covers chroma rows [firstChromaRow, firstChromaRow + chromaRows)
+     * and therefore always starts on an even luma row. Stripes touch disjoint
+     * byte ranges, so different stripes of the same frame may be converted
+     * concurrently. Offsets are relative to each buffer's current position and
+     * no buffer position is modified.
+     *
+     * @param nv21Data Source YUV420SP data
+     * @param width Frame width
+     * @param height Frame height
+     * @param firstChromaRow First chroma row of the stripe
+     * @param chromaRows Number of chroma rows in the stripe
+     * @param yPlane Destination Y plane
+     * @param uPlane Destination U plane
+     * @param vPlane Destination V plane
+     */
+    static void convertStripe(ByteBuffer nv21Data, int width, int height, int firstChromaRow, int chromaRows,
+                              ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane) {
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int firstLumaRow = firstChromaRow * 2;
+        int lumaRows = Math.min(height, (firstChromaRow + chromaRows) * 2) - firstLumaRow;
+
+        // Y rows, one bulk transfer through private views of the buffers
+        int lumaOffset = firstLumaRow * width;
+        int lumaBytes = lumaRows * width;
+        ByteBuffer src = nv21Data.duplicate();
+        src.position(nv21Data.position() + lumaOffset);
+        src.limit(src.position() + lumaBytes);
+        ByteBuffer dstY = yPlane.duplicate();
+        dstY.position(yPlane.position() + lumaOffset);
+        dstY.put(src);
+
+        // VU rows of the stripe are contiguous as well
+        int chromaOffset = firstChromaRow * chromaWidth;
+        int pairs = Math.min(chromaRows, chromaHeight - firstChromaRow) * chromaWidth;
+        deinterleaveVU(nv21Data, nv21Data.position() + width * height + chromaOffset * 2,
+            uPlane, uPlane.position() + chromaOffset,
+            vPlane, vPlane.position() + chromaOffset,
+            pairs);
+    }
+
+    /**
+     * Validate that source and destination buffers can hold a frame of the given size
+     */
+    static void checkPlaneSizes(ByteBuffer nv21Data, int width, int height,
+                                ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane) {
+        int ySize = width * height;
+        int uvSize = ((width + 1) / 2) * ((height + 1) / 2);
 
         // Validate input data size
-        int expectedSize = width * height * 3 / 2; // Y plane + UV plane
-        if (nv21Data.length < expectedSize) {
+        int expectedSize = ySize + uvSize * 2; // Y plane + UV plane
+        if (nv21Data.remaining() < expectedSize) {
             throw new IllegalArgumentException(
                 "Input data too small. Expected at least " + expectedSize +
-                " bytes but got " + nv21Data.length
+                " bytes but got " + nv21Data.remaining()
             );
         }
+        if (yPlane.remaining() < ySize || uPlane.remaining() < uvSize || vPlane.remaining() < uvSize) {
+            throw new IllegalArgumentException("Destination planes too small for " + width + "x" + height);
+        }
+    }
+
+    /**
+     * Split interleaved VU pairs into separate U and V planes, picking the
+     * fastest kernel the buffers allow. Buffer positions are not modified.
+     *
+     * @param vu Source holding interleaved V,U bytes
+     * @param vuIndex Absolute index of the first V byte
+     * @param u Destination U plane
+     * @param uIndex Absolute index of the first U byte to write
+     * @param v Destination V plane
+     * @param vIndex Absolute index of the first V byte to write
+     * @param pairs Number of VU pairs to split
+     */
+    static void deinterleaveVU(ByteBuffer vu, int vuIndex, ByteBuffer u, int uIndex,
+                               ByteBuffer v, int vIndex, int pairs) {
+        if (canUseSwar(vu, u, v)) {
+            deinterleaveVUSwar(vu, vuIndex, u, uIndex, v, vIndex, pairs);
+        } else {
+            deinterleaveVUScalar(vu, vuIndex, u, uIndex, v, vIndex, pairs);
+        }
+    }
 
-        // Allocate direct ByteBuffers for LiveKit (required for native code)
-        ByteBuffer yPlane = ByteBuffer.allocateDirect(ySize);
-        ByteBuffer uPlane = ByteBuffer.allocateDirect(uvSize);
-        ByteBuffer vPlane = ByteBuffer.allocateDirect(uvSize);
+    /**
+     * The SWAR kernel packs bytes in register order, so it needs the source
+     * and both destinations to agree on byte order
+     */
+    static boolean canUseSwar(ByteBuffer vu, ByteBuffer u, ByteBuffer v) {
+        return vu.order() == u.order() && vu.order() == v.order();
+    }
 
-        // Copy Y plane (identical in both formats)
-        yPlane.put(nv21Data, 0, ySize);
-        yPlane.rewind();
+    /**
+     * Scalar kernel: bulk reads chunks of VU bytes into scratch arrays,
+     * splits them one pair at a time and bulk writes U and V.
+     * Buffer positions are not modified.
+     */
+    static void deinterleaveVUScalar(ByteBuffer vu, int vuIndex, ByteBuffer u, int uIndex,
+                                     ByteBuffer v, int vIndex, int pairs) {
+        ByteBuffer src = vu.duplicate();
+        ByteBuffer dstU = u.duplicate();
+        ByteBuffer dstV = v.duplicate();
+        src.position(vuIndex);
+        dstU.position(uIndex);
+        dstV.position(vIndex);
 
-        // De-interleave UV plane
-        // NV21 format: ...VUVUVU... (interleaved)
-        // I420 format: ...UUU... ...VVV... (separate)
-        int uvStart = ySize;
-        for (int i = 0; i < uvSize; i++) {
-            int vuIndex = uvStart + (i * 2);
-            vPlane.put(nv21Data[vuIndex]);     // V component
-            uPlane.put(nv21Data[vuIndex + 1]); // U component
+        byte[][] scratch = CHROMA_SCRATCH.get();
+        byte[] vuBytes = scratch[0];
+        byte[] uBytes = scratch[1];
+        byte[] vBytes = scratch[2];
+        int remaining = pairs * 2;
+        while (remaining > 0) {
+            int chunk = Math.min(remaining, CHROMA_CHUNK_BYTES);
+            src.get(vuBytes, 0, chunk);
+            int chunkPairs = chunk / 2;
+            for (int i = 0, j = 0; i < chunkPairs; i++, j += 2) {
+                vBytes[i] = vuBytes[j];     // V component
+                uBytes[i] = vuBytes[j + 1]; // U component
+            }
+            dstU.put(uBytes, 0, chunkPairs);
+            dstV.put(vBytes, 0, chunkPairs);
+            remaining -= chunk;
         }
+    }
 
-        uPlane.rewind();
-        vPlane.rewind();
+    /**
+     * SWAR kernel: reads 8 interleaved VU bytes as one long and splits them
+     * into 4 U and 4 V bytes with shifts and masks, written back as ints.
+     * A scalar tail handles pair counts that are not a multiple of 4.
+     * Requires {@link #canUseSwar} to hold. Buffer positions are not modified.
+     */
+    static void deinterleaveVUSwar(ByteBuffer vu, int vuIndex, ByteBuffer u, int uIndex,
+                                   ByteBuffer v, int vIndex, int pairs) {
+        // Little endian loads put the first (V) byte in the low lane,
+        // big endian loads put it in the high lane
+        final boolean vInLowLanes = vu.order() == ByteOrder.LITTLE_ENDIAN;
+        final int words = pairs / SWAR_PAIRS_PER_WORD;
 
-        return new I420Data(yPlane, uPlane, vPlane, width, height);
+        int src = vuIndex;
+        int dstU = uIndex;
+        int dstV = vIndex;
+        for (int i = 0; i < words; i++) {
+            final long word = vu.getLong(src);
+            final int low = packEvenBytes(word);
+            final int high = packEvenBytes(word >>> 8);
+            u.putInt(dstU, vInLowLanes ? high : low);
+            v.putInt(dstV, vInLowLanes ? low : high);
+            src += 8;
+            dstU += SWAR_PAIRS_PER_WORD;
+            dstV += SWAR_PAIRS_PER_WORD;
+        }
+
+        // Scalar tail
+        for (int i = words * SWAR_PAIRS_PER_WORD; i < pairs; i++) {
+            v.put(dstV++, vu.get(src));     // V component
+            u.put(dstU++, vu.get(src + 1)); // U component
+            src += 2;
+        }
+    }
+
+    /**
+     * Gather bytes 0, 2, 4 and 6 (counting from the least significant end)
+     * of a word into the low 32 bits, keeping their relative order
+     */
+    static int packEvenBytes(long word) {
+        long x = word & EVEN_BYTES_MASK;
+        x = (x | (x >>> 8)) & 0x0000FFFF0000FFFFL;
+        x = (x | (x >>> 16)) & 0x00000000FFFFFFFFL;
+        return (int) x;
     }
 
     /**
@@ -74,31 +512,83 @@ public class YUVConverter {
         public final int strideV;
         public final int chromaWidth;
         public final int chromaHeight;
+        /**
+         * Plane layout, each plane lives in its own buffer at offset 0
+         */
+        public final YUVFrameLayout layout;
+
+        private final I420FramePool pool;
+        private final AtomicBoolean released = new AtomicBoolean(false);
 
         public I420Data(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, int width, int height) {
+            this(yPlane, uPlane, vPlane, YUVFrameLayout.i420(width, height, 1), null);
+        }
+
+        /**
+         * @param layout Planar layout with pixel stride 1, row strides may include padding
+         */
+        public I420Data(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, YUVFrameLayout layout) {
+            this(yPlane, uPlane, vPlane, layout, null);
+        }
+
+        I420Data(ByteBuffer yPlane, ByteBuffer uPlane, ByteBuffer vPlane, YUVFrameLayout layout, I420FramePool pool) {
+            if (!layout.isPlanar()) {
+                throw new IllegalArgumentException("I420 planes must have a pixel stride of 1");
+            }
             this.yPlane = yPlane;
             this.uPlane = uPlane;
             this.vPlane = vPlane;
-            this.width = width;
-            this.height = height;
+            this.width = layout.width;
+            this.height = layout.height;
+
+            // Strides come from the layout, chroma dimensions per I420 spec
+            this.strideY = layout.y.rowStride;
+            this.strideU = layout.u.rowStride;
+            this.strideV = layout.v.rowStride;
+            this.chromaWidth = layout.getChromaWidth();
+            this.chromaHeight = layout.getChromaHeight();
+            this.layout = layout;
+            this.pool = pool;
+        }
+
+        /**
+         * Allocate direct planes for the given planar layout
+         */
+        static I420Data allocate(YUVFrameLayout layout, I420FramePool pool) {
+            // Allocate direct ByteBuffers for LiveKit (required for native code)
+            return new I420Data(
+                ByteBuffer.allocateDirect(layout.y.rowStride * layout.height),
+                ByteBuffer.allocateDirect(layout.u.rowStride * layout.getChromaHeight()),
+                ByteBuffer.allocateDirect(layout.v.rowStride * layout.getChromaHeight()),
+                layout,
+                pool
+            );
+        }
 
-            // Calculate strides and chroma dimensions per I420 spec
-            this.strideY = width;
-            this.strideU = (width + 1) / 2;
-            this.strideV = (width + 1) / 2;
-            this.chromaWidth = (width + 1) / 2;
-            this.chromaHeight = (height + 1) / 2;
+        /**
+         * Called by the pool when the frame is handed out again
+         */
+        void markAcquired() {
+            released.set(false);
         }
 
         /**
          * Release native ByteBuffer resources
+         *
+         * Pooled frames go back to their pool, repeated calls are ignored.
          */
         public void release() {
+            if (!released.compareAndSet(false, true)) {
+                return;
+            }
             // Direct ByteBuffers are managed by native code
             // No explicit cleanup needed, but we can clear references
             yPlane.clear();
             uPlane.clear();
             vPlane.clear();
+            if (pool != null) {
+                pool.recycle(this);
+            }
         }
     }
 }
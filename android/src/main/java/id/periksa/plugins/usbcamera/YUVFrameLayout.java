@@ -0,0 +1,189 @@
+package id.periksa.plugins.usbcamera;
+
+/**
+ * Memory layout of a YUV 4:2:0 frame
+ *
+ * Each plane is described by an offset, a row stride and a pixel stride,
+ * the same model as android.media.Image.Plane. That covers tightly packed
+ * NV21/NV12/I420 as well as row-aligned layouts (16/64 byte strides) used by
+ * some UVC cameras, MediaCodec and LiveKit, so padded frames can be read and
+ * written directly without repacking.
+ *
+ * Offsets are relative to the position of the buffer holding the plane.
+ * Semi-planar layouts keep all planes in one buffer, planar layouts may use
+ * a separate buffer per plane (see {@link #i420(int, int, int)}).
+ */
+public final class YUVFrameLayout {
+
+    /**
+     * Layout of a single plane
+     */
+    public static final class Plane {
+        /** Byte offset of the first sample */
+        public final int offset;
+        /** Bytes between the first samples of two consecutive rows */
+        public final int rowStride;
+        /** Bytes between two consecutive samples of a row */
+        public final int pixelStride;
+
+        public Plane(int offset, int rowStride, int pixelStride) {
+            if (offset < 0 || rowStride <= 0 || pixelStride <= 0) {
+                throw new IllegalArgumentException(
+                    "Invalid plane layout offset=" + offset + " rowStride=" + rowStride + " pixelStride=" + pixelStride
+                );
+            }
+            this.offset = offset;
+            this.rowStride = rowStride;
+            this.pixelStride = pixelStride;
+        }
+
+        /**
+         * Index of the sample at (x, y) relative to the buffer position
+         */
+        public int indexOf(int x, int y) {
+            return offset + y * rowStride + x * pixelStride;
+        }
+
+        /**
+         * Number of bytes needed to hold cols x rows samples, counted from the buffer position
+         */
+        public int requiredSize(int cols, int rows) {
+            return offset + (rows - 1) * rowStride + (cols - 1) * pixelStride + 1;
+        }
+    }
+
+    public final int width;
+    public final int height;
+    public final Plane y;
+    public final Plane u;
+    public final Plane v;
+
+    public YUVFrameLayout(int width, int height, Plane y, Plane u, Plane v) {
+        if (width <= 0 || height <= 0 || y == null || u == null || v == null) {
+            throw new IllegalArgumentException("Invalid frame layout");
+        }
+        int chromaWidth = (width + 1) / 2;
+        if (y.rowStride < (width - 1) * y.pixelStride + 1
+                || u.rowStride < (chromaWidth - 1) * u.pixelStride + 1
+                || v.rowStride < (chromaWidth - 1) * v.pixelStride + 1) {
+            throw new IllegalArgumentException("Row stride smaller than a row for " + width + "x" + height);
+        }
+        this.width = width;
+        this.height = height;
+        this.y = y;
+        this.u = u;
+        this.v = v;
+    }
+
+    public int getChromaWidth() {
+        return (width + 1) / 2;
+    }
+
+    public int getChromaHeight() {
+        return (height + 1) / 2;
+    }
+
+    /**
+     * True when U and V are interleaved VU pairs in one buffer (NV21 / YUV420SP)
+     */
+    public boolean isSemiPlanarVU() {
+        return u.pixelStride == 2 && v.pixelStride == 2 && u.rowStride == v.rowStride && u.offset == v.offset + 1;
+    }
+
+    /**
+     * True when U and V are interleaved UV pairs in one buffer (NV12)
+     */
+    public boolean isSemiPlanarUV() {
+        return u.pixelStride == 2 && v.pixelStride == 2 && u.rowStride == v.rowStride && v.offset == u.offset + 1;
+    }
+
+    /**
+     * True when every plane has one byte per sample
+     */
+    public boolean isPlanar() {
+        return y.pixelStride == 1 && u.pixelStride == 1 && v.pixelStride == 1;
+    }
+
+    /**
+     * True for a tightly packed layout without any row padding
+     */
+    public boolean isPacked() {
+        int chromaWidth = getChromaWidth();
+        return y.pixelStride == 1 && y.rowStride == width
+            && u.rowStride == chromaWidth * u.pixelStride
+            && v.rowStride == chromaWidth * v.pixelStride;
+    }
+
+    /**
+     * Size of the buffer needed for this layout when all planes share one buffer
+     */
+    public int requiredSize() {
+        int chromaWidth = getChromaWidth();
+        int chromaHeight = getChromaHeight();
+        return Math.max(y.requiredSize(width, height),
+            Math.max(u.requiredSize(chromaWidth, chromaHeight), v.requiredSize(chromaWidth, chromaHeight)));
+    }
+
+    /**
+     * Round value up to a multiple of alignment
+     */
+    public static int align(int value, int alignment) {
+        if (alignment <= 1) {
+            return value;
+        }
+        return ((value + alignment - 1) / alignment) * alignment;
+    }
+
+    /**
+     * Tightly packed NV21 (YUV420SP) in one buffer, as delivered by libuvc
+     */
+    public static YUVFrameLayout nv21(int width, int height) {
+        return nv21(width, height, 1);
+    }
+
+    /**
+     * NV21 (YUV420SP) in one buffer with rows aligned to rowAlignment bytes
+     */
+    public static YUVFrameLayout nv21(int width, int height, int rowAlignment) {
+        int yStride = align(width, rowAlignment);
+        int vuStride = align(((width + 1) / 2) * 2, rowAlignment);
+        int vuOffset = yStride * height;
+        return new YUVFrameLayout(width, height,
+            new Plane(0, yStride, 1),
+            new Plane(vuOffset + 1, vuStride, 2),
+            new Plane(vuOffset, vuStride, 2));
+    }
+
+    /**
+     * NV12 in one buffer with rows aligned to rowAlignment bytes
+     */
+    public static YUVFrameLayout nv12(int width, int height, int rowAlignment) {
+        int yStride = align(width, rowAlignment);
+        int uvStride = align(((width + 1) / 2) * 2, rowAlignment);
+        int uvOffset = yStride * height;
+        return new YUVFrameLayout(width, height,
+            new Plane(0, yStride, 1),
+            new Plane(uvOffset, uvStride, 2),
+            new Plane(uvOffset + 1, uvStride, 2));
+    }
+
+    /**
+     * I420 with each plane in its own buffer starting at offset 0 and rows
+     * aligned to rowAlignment bytes, the layout used by {@link YUVConverter.I420Data}
+     */
+    public static YUVFrameLayout i420(int width, int height, int rowAlignment) {
+        int chromaStride = align((width + 1) / 2, rowAlignment);
+        return new YUVFrameLayout(width, height,
+            new Plane(0, align(width, rowAlignment), 1),
+            new Plane(0, chromaStride, 1),
+            new Plane(0, chromaStride, 1));
+    }
+
+    @Override
+    public String toString() {
+        return "YUVFrameLayout(" + width + "x" + height
+            + ", y=" + y.offset + "/" + y.rowStride + "/" + y.pixelStride
+            + ", u=" + u.offset + "/" + u.rowStride + "/" + u.pixelStride
+            + ", v=" + v.offset + "/" + v.rowStride + "/" + v.pixelStride + ")";
+    }
+}
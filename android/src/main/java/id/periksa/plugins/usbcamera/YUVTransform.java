@@ -0,0 +1,464 @@
+package id.periksa.plugins.usbcamera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Single-pass crop, scale, rotate and mirror from YUV 4:2:0 to I420
+ *
+ * Each plane is walked in source order: the rows of a crop window are read
+ * once, reduced to one row of the scaled image (box average or bilinear) and
+ * that row is written straight to where it ends up after rotation and
+ * mirroring. Every destination byte is written exactly once, there is no
+ * intermediate full-size frame. For 90 and 270 degrees a scaled row becomes a
+ * destination column; a band of BAND_ROWS scaled rows is kept and written out
+ * as short contiguous runs instead of one strided byte at a time. Unscaled
+ * axes skip the filter and copy samples directly.
+ *
+ * Rotation is clockwise; mirroring flips the result horizontally after the
+ * rotation, like a front camera preview. Sample positions are computed once
+ * per instance, so one transform is meant to be reused for every frame of
+ * a stream.
+ *
+ * Not thread-safe.
+ */
+public class YUVTransform {
+    /**
+     * Scaled rows collected before a rotated band is written
+     */
+    static final int BAND_ROWS = 32;
+
+    public enum Filter {
+        /** Average of the source pixels each destination pixel covers, best for large reductions */
+        BOX,
+        /** Weighted 2x2 neighbourhood, smoother for small reductions and upscaling */
+        BILINEAR
+    }
+
+    private final int srcWidth;
+    private final int srcHeight;
+    private final int cropX;
+    private final int cropY;
+    private final int cropWidth;
+    private final int cropHeight;
+    private final int dstWidth;
+    private final int dstHeight;
+    private final int rotation;
+    private final boolean mirror;
+    private final Filter filter;
+
+    // Size of the scaled image before rotation
+    private final int scaledWidth;
+    private final int scaledHeight;
+
+    private final Axis lumaColumns;
+    private final Axis lumaRows;
+    private final Axis chromaColumns;
+    private final Axis chromaRows;
+
+    // Source rows of the current window, a row of the scaled image and its reversed copy
+    private byte[] rowA = new byte[0];
+    private byte[] rowB = new byte[0];
+    private final int[] columnSums;
+    private final byte[] scaledRow;
+    private final byte[] reversedRow;
+    // Band of scaled rows for 90 and 270 degrees and one destination run of it
+    private final byte[] band;
+    private final byte[] bandRun;
+
+    /**
+     * @param srcWidth Source frame width
+     * @param srcHeight Source frame height
+     * @param cropX Left edge of the source window, even
+     * @param cropY Top edge of the source window, even
+     * @param cropWidth Source window width
+     * @param cropHeight Source window height
+     * @param dstWidth Output width after rotation
+     * @param dstHeight Output height after rotation
+     * @param rotation Clockwise rotation, 0, 90, 180 or 270
+     * @param mirror Flip the output horizontally
+     * @param filter Resampling filter
+     */
+    public YUVTransform(int srcWidth, int srcHeight, int cropX, int cropY, int cropWidth, int cropHeight,
+                        int dstWidth, int dstHeight, int rotation, boolean mirror, Filter filter) {
+        if (srcWidth <= 0 || srcHeight <= 0 || cropWidth <= 0 || cropHeight <= 0
+                || cropX < 0 || cropY < 0 || cropX + cropWidth > srcWidth || cropY + cropHeight > srcHeight) {
+            throw new IllegalArgumentException("Invalid crop " + cropWidth + "x" + cropHeight + "+" + cropX + "+" + cropY
+                + " of " + srcWidth + "x" + srcHeight);
+        }
+        if ((cropX & 1) != 0 || (cropY & 1) != 0) {
+            throw new IllegalArgumentException("Crop origin must be even to keep chroma aligned");
+        }
+        if (dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Invalid output size " + dstWidth + "x" + dstHeight);
+        }
+        if (rotation != 0 && rotation != 90 && rotation != 180 && rotation != 270) {
+            throw new IllegalArgumentException("Rotation must be 0, 90, 180 or 270: " + rotation);
+        }
+        if (filter == null) {
+            throw new IllegalArgumentException("filter must not be null");
+        }
+        this.srcWidth = srcWidth;
+        this.srcHeight = srcHeight;
+        this.cropX = cropX;
+        this.cropY = cropY;
+        this.cropWidth = cropWidth;
+        this.cropHeight = cropHeight;
+        this.dstWidth = dstWidth;
+        this.dstHeight = dstHeight;
+        this.rotation = rotation;
+        this.mirror = mirror;
+        this.filter = filter;
+
+        boolean swapped = rotation == 90 || rotation == 270;
+        scaledWidth = swapped ? dstHeight : dstWidth;
+        scaledHeight = swapped ? dstWidth : dstHeight;
+
+        int chromaX = cropX / 2;
+        int chromaY = cropY / 2;
+        lumaColumns = new Axis(cropX, cropWidth, scaledWidth, filter);
+        lumaRows = new Axis(cropY, cropHeight, scaledHeight, filter);
+        chromaColumns = new Axis(chromaX, (cropX + cropWidth + 1) / 2 - chromaX, (scaledWidth + 1) / 2, filter);
+        chromaRows = new Axis(chromaY, (cropY + cropHeight + 1) / 2 - chromaY, (scaledHeight + 1) / 2, filter);
+
+        columnSums = new int[cropWidth];
+        scaledRow = new byte[scaledWidth];
+        reversedRow = new byte[scaledWidth];
+        band = swapped ? new byte[BAND_ROWS * scaledWidth] : new byte[0];
+        bandRun = swapped ? new byte[BAND_ROWS] : new byte[0];
+    }
+
+    /**
+     * Transform for an output size, cropping the source centrally to the output aspect ratio
+     *
+     * @param dstWidth Output width after rotation
+     * @param dstHeight Output height after rotation
+     */
+    public static YUVTransform fit(int srcWidth, int srcHeight, int dstWidth, int dstHeight,
+                                   int rotation, boolean mirror, Filter filter) {
+        if (srcWidth <= 0 || srcHeight <= 0 || dstWidth <= 0 || dstHeight <= 0) {
+            throw new IllegalArgumentException("Invalid sizes " + srcWidth + "x" + srcHeight
+                + " -> " + dstWidth + "x" + dstHeight);
+        }
+        boolean swapped = rotation == 90 || rotation == 270;
+        long targetWidth = swapped ? dstHeight : dstWidth;
+        long targetHeight = swapped ? dstWidth : dstHeight;
+        int cropWidth = srcWidth;
+        int cropHeight = srcHeight;
+        if (srcWidth * targetHeight > srcHeight * targetWidth) {
+            cropWidth = (int) Math.min(srcWidth, (srcHeight * targetWidth + targetHeight / 2) / targetHeight);
+        } else {
+            cropHeight = (int) Math.min(srcHeight, (srcWidth * targetHeight + targetWidth / 2) / targetWidth);
+        }
+        int cropX = ((srcWidth - cropWidth) / 2) & ~1;
+        int cropY = ((srcHeight - cropHeight) / 2) & ~1;
+        return new YUVTransform(srcWidth, srcHeight, cropX, cropY, cropWidth, cropHeight,
+            dstWidth, dstHeight, rotation, mirror, filter);
+    }
+
+    public int getSrcWidth() {
+        return srcWidth;
+    }
+
+    public int getSrcHeight() {
+        return srcHeight;
+    }
+
+    public int getDstWidth() {
+        return dstWidth;
+    }
+
+    public int getDstHeight() {
+        return dstHeight;
+    }
+
+    public int getRotation() {
+        return rotation;
+    }
+
+    public boolean isMirrored() {
+        return mirror;
+    }
+
+    public Filter getFilter() {
+        return filter;
+    }
+
+    /**
+     * Transform a tightly packed NV21 frame into a pooled I420 frame
+     *
+     * @param nv21Data Source frame, read from its current position and left unchanged
+     * @param pool Pool to take the destination from, or null to allocate a new frame
+     */
+    public YUVConverter.I420Data transform(ByteBuffer nv21Data, I420FramePool pool) {
+        YUVConverter.I420Data dst = pool != null
+            ? pool.acquire(dstWidth, dstHeight)
+            : YUVConverter.allocate(dstWidth, dstHeight);
+        try {
+            transform(nv21Data, YUVFrameLayout.nv21(srcWidth, srcHeight), dst);
+        } catch (RuntimeException e) {
+            dst.release();
+            throw e;
+        }
+        return dst;
+    }
+
+    /**
+     * Transform a frame in any supported layout into an I420 frame of the output size
+     *
+     * @param src Source frame, plane offsets are relative to its position
+     * @param srcLayout Layout of the source frame, of the source size
+     * @param dst Destination of the output size, padding bytes are left untouched
+     */
+    public void transform(ByteBuffer src, YUVFrameLayout srcLayout, YUVConverter.I420Data dst) {
+        if (src == null || srcLayout == null || dst == null) {
+            throw new IllegalArgumentException("Invalid input parameters");
+        }
+        if (srcLayout.width != srcWidth || srcLayout.height != srcHeight) {
+            throw new IllegalArgumentException("Source " + srcLayout + " does not match " + srcWidth + "x" + srcHeight);
+        }
+        if (dst.width != dstWidth || dst.height != dstHeight) {
+            throw new IllegalArgumentException("Destination " + dst.width + "x" + dst.height
+                + " does not match " + dstWidth + "x" + dstHeight);
+        }
+        if (src.remaining() < srcLayout.requiredSize()) {
+            throw new IllegalArgumentException(
+                "Input data too small. Expected at least " + srcLayout.requiredSize() +
+                " bytes but got " + src.remaining()
+            );
+        }
+        ByteBuffer from = src.duplicate();
+        int srcBase = src.position();
+        transformPlane(from, srcBase, srcLayout.y, lumaColumns, lumaRows,
+            dst.yPlane.duplicate(), dst.yPlane.position(), dst.layout.y, dstWidth, dstHeight);
+        int chromaWidth = dst.layout.getChromaWidth();
+        int chromaHeight = dst.layout.getChromaHeight();
+        transformPlane(from, srcBase, srcLayout.u, chromaColumns, chromaRows,
+            dst.uPlane.duplicate(), dst.uPlane.position(), dst.layout.u, chromaWidth, chromaHeight);
+        transformPlane(from, srcBase, srcLayout.v, chromaColumns, chromaRows,
+            dst.vPlane.duplicate(), dst.vPlane.position(), dst.layout.v, chromaWidth, chromaHeight);
+    }
+
+    private void transformPlane(ByteBuffer src, int srcBase, YUVFrameLayout.Plane srcPlane, Axis columns, Axis rows,
+                                ByteBuffer dst, int dstBase, YUVFrameLayout.Plane dstPlane,
+                                int outWidth, int outHeight) {
+        int pixelStride = srcPlane.pixelStride;
+        int rowBytes = (columns.srcLength - 1) * pixelStride + 1;
+        // One spare sample, bilinear reads the right neighbour with a zero weight at the edge
+        if (rowA.length < rowBytes + pixelStride) {
+            rowA = new byte[rowBytes + pixelStride];
+            rowB = new byte[rowBytes + pixelStride];
+        }
+        int width = columns.dstLength;
+        int height = rows.dstLength;
+        boolean banded = rotation == 90 || rotation == 270;
+        boolean copy = columns.identity && rows.identity;
+        int bandStart = 0;
+        for (int v = 0; v < height; v++) {
+            byte[] out = banded ? band : scaledRow;
+            int outOffset = banded ? (v - bandStart) * width : 0;
+            if (copy) {
+                copyRow(src, srcBase, srcPlane, columns, rows.start[v], rowBytes, out, outOffset);
+            } else if (filter == Filter.BOX) {
+                boxRow(src, srcBase, srcPlane, columns, rows.start[v], rows.span[v], rowBytes, out, outOffset);
+            } else {
+                bilinearRow(src, srcBase, srcPlane, columns, rows.start[v], rows.span[v], rowBytes, out, outOffset);
+            }
+            if (!banded) {
+                writeRow(dst, dstBase, dstPlane, v, width, outWidth, outHeight);
+            } else if (v - bandStart + 1 == BAND_ROWS || v == height - 1) {
+                writeBand(dst, dstBase, dstPlane, bandStart, v - bandStart + 1, width, outWidth, outHeight);
+                bandStart = v + 1;
+            }
+        }
+    }
+
+    private void readRow(ByteBuffer src, int srcBase, YUVFrameLayout.Plane plane, int firstColumn, int row,
+                         byte[] out, int outOffset, int rowBytes) {
+        int start = srcBase + plane.indexOf(firstColumn, row);
+        src.limit(start + rowBytes);
+        src.position(start);
+        src.get(out, outOffset, rowBytes);
+        src.limit(src.capacity());
+    }
+
+    /**
+     * Copy an unscaled row, planar rows go straight into the output
+     */
+    private void copyRow(ByteBuffer src, int srcBase, YUVFrameLayout.Plane plane, Axis columns,
+                         int row, int rowBytes, byte[] out, int outOffset) {
+        int pixelStride = plane.pixelStride;
+        if (pixelStride == 1) {
+            readRow(src, srcBase, plane, columns.srcOffset, row, out, outOffset, rowBytes);
+            return;
+        }
+        byte[] samples = rowA;
+        readRow(src, srcBase, plane, columns.srcOffset, row, samples, 0, rowBytes);
+        for (int u = 0, i = 0; u < columns.dstLength; u++, i += pixelStride) {
+            out[outOffset + u] = samples[i];
+        }
+    }
+
+    /**
+     * Average the window rows into one scaled row
+     */
+    private void boxRow(ByteBuffer src, int srcBase, YUVFrameLayout.Plane plane, Axis columns,
+                        int firstRow, int rowCount, int rowBytes, byte[] out, int outOffset) {
+        int pixelStride = plane.pixelStride;
+        int srcColumns = columns.srcLength;
+        int[] sums = columnSums;
+        byte[] row = rowA;
+        readRow(src, srcBase, plane, columns.srcOffset, firstRow, row, 0, rowBytes);
+        for (int x = 0, i = 0; x < srcColumns; x++, i += pixelStride) {
+            sums[x] = row[i] & 0xff;
+        }
+        for (int r = 1; r < rowCount; r++) {
+            readRow(src, srcBase, plane, columns.srcOffset, firstRow + r, row, 0, rowBytes);
+            for (int x = 0, i = 0; x < srcColumns; x++, i += pixelStride) {
+                sums[x] += row[i] & 0xff;
+            }
+        }
+        int[] start = columns.start;
+        int[] span = columns.span;
+        for (int u = 0; u < columns.dstLength; u++) {
+            int x0 = start[u] - columns.srcOffset;
+            int n = span[u];
+            int sum = 0;
+            for (int x = x0; x < x0 + n; x++) {
+                sum += sums[x];
+            }
+            int area = n * rowCount;
+            out[outOffset + u] = (byte) ((sum + area / 2) / area);
+        }
+    }
+
+    /**
+     * Interpolate between two window rows into one scaled row
+     *
+     * @param weight Weight of the lower row in 1/256
+     */
+    private void bilinearRow(ByteBuffer src, int srcBase, YUVFrameLayout.Plane plane, Axis columns,
+                             int firstRow, int weight, int rowBytes, byte[] out, int outOffset) {
+        int pixelStride = plane.pixelStride;
+        byte[] top = rowA;
+        byte[] bottom = rowB;
+        readRow(src, srcBase, plane, columns.srcOffset, firstRow, top, 0, rowBytes);
+        if (weight > 0) {
+            readRow(src, srcBase, plane, columns.srcOffset, firstRow + 1, bottom, 0, rowBytes);
+        } else {
+            bottom = top;
+        }
+        int topWeight = 256 - weight;
+        int[] start = columns.start;
+        int[] fraction = columns.span;
+        for (int u = 0; u < columns.dstLength; u++) {
+            int i = (start[u] - columns.srcOffset) * pixelStride;
+            int fx = fraction[u];
+            int left = (top[i] & 0xff) * topWeight + (bottom[i] & 0xff) * weight;
+            int right = (top[i + pixelStride] & 0xff) * topWeight + (bottom[i + pixelStride] & 0xff) * weight;
+            out[outOffset + u] = (byte) ((left * (256 - fx) + right * fx + 32768) >> 16);
+        }
+    }
+
+    /**
+     * Write scaledRow v to its place in the plane rotated by 0 or 180 degrees and mirrored
+     *
+     * @param width Scaled plane width
+     * @param outWidth Destination plane width
+     * @param outHeight Destination plane height
+     */
+    private void writeRow(ByteBuffer dst, int dstBase, YUVFrameLayout.Plane plane, int v,
+                          int width, int outWidth, int outHeight) {
+        int y = rotation == 180 ? outHeight - 1 - v : v;
+        byte[] row = scaledRow;
+        // Upright rows read left to right, 180 degrees reverses them and mirroring again
+        if ((rotation == 180) != mirror) {
+            for (int u = 0; u < width; u++) {
+                reversedRow[width - 1 - u] = scaledRow[u];
+            }
+            row = reversedRow;
+        }
+        dst.position(dstBase + plane.indexOf(0, y));
+        dst.put(row, 0, width);
+    }
+
+    /**
+     * Write a band of scaled rows to the plane rotated by 90 or 270 degrees and mirrored
+     *
+     * Scaled row v becomes destination column x, so sample u of every row in
+     * the band lands in one destination row as a run of count bytes.
+     *
+     * @param firstRow First scaled row of the band
+     * @param count Scaled rows in the band
+     * @param width Scaled plane width
+     * @param outWidth Destination plane width
+     * @param outHeight Destination plane height
+     */
+    private void writeBand(ByteBuffer dst, int dstBase, YUVFrameLayout.Plane plane, int firstRow, int count,
+                           int width, int outWidth, int outHeight) {
+        // 90 degrees puts the last scaled row on the left, mirroring swaps that
+        boolean ascending = (rotation == 90) == mirror;
+        int x = ascending ? firstRow : outWidth - firstRow - count;
+        byte[] run = bandRun;
+        for (int u = 0; u < width; u++) {
+            if (ascending) {
+                for (int j = 0, i = u; j < count; j++, i += width) {
+                    run[j] = band[i];
+                }
+            } else {
+                for (int j = count - 1, i = u; j >= 0; j--, i += width) {
+                    run[j] = band[i];
+                }
+            }
+            int y = rotation == 90 ? u : outHeight - 1 - u;
+            dst.position(dstBase + plane.indexOf(x, y));
+            dst.put(run, 0, count);
+        }
+    }
+
+    /**
+     * Source sample positions along one axis of a plane
+     *
+     * For BOX, start and span are the first source sample and the number of
+     * samples each destination sample averages. For BILINEAR, start is the
+     * left (upper) neighbour and span the weight of the right (lower) one in
+     * 1/256.
+     */
+    static final class Axis {
+        final int srcOffset;
+        final int srcLength;
+        final int dstLength;
+        final int[] start;
+        final int[] span;
+        // Every destination sample is exactly one source sample
+        final boolean identity;
+
+        Axis(int srcOffset, int srcLength, int dstLength, Filter filter) {
+            this.srcOffset = srcOffset;
+            this.srcLength = srcLength;
+            this.dstLength = dstLength;
+            identity = srcLength == dstLength;
+            start = new int[dstLength];
+            span = new int[dstLength];
+            for (int i = 0; i < dstLength; i++) {
+                if (filter == Filter.BOX) {
+                    int first = (int) ((long) i * srcLength / dstLength);
+                    int end = (int) ((long) (i + 1) * srcLength / dstLength);
+                    start[i] = srcOffset + first;
+                    span[i] = Math.max(1, end - first);
+                } else {
+                    // Sample centres line up: (i + 0.5) * src / dst - 0.5, in 1/256
+                    long position = ((2L * i + 1) * srcLength * 256) / (2L * dstLength) - 128;
+                    position = Math.max(0, position);
+                    int first = (int) (position >> 8);
+                    int weight = (int) (position & 0xff);
+                    if (first >= srcLength - 1) {
+                        first = srcLength - 1;
+                        weight = 0;
+                    }
+                    start[i] = srcOffset + first;
+                    span[i] = weight;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package com.serenegiant.encoder;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the muxer sample writer.
+ */
+public class SampleWriterTest {
+
+	private static class Recorder implements SampleWriter.Sink {
+		final List<String> samples = new ArrayList<>();
+
+		@Override
+		public synchronized void writeSample(int trackIndex, ByteBuffer data, long presentationTimeUs, int flags) {
+			samples.add(trackIndex + ":" + presentationTimeUs + ":" + data.get(data.position()) + ":" + data.remaining());
+		}
+
+		synchronized List<String> get() {
+			return new ArrayList<>(samples);
+		}
+	}
+
+	@Test
+	public void writesInPresentationTimeOrderOverTracks() {
+		Recorder recorder = new Recorder();
+		SampleWriter writer = new SampleWriter(2, 8, recorder);
+		assertTrue(writer.offer(0, sample(1, 10), 0, 0));
+		assertTrue(writer.offer(0, sample(2, 10), 33, 0));
+		assertTrue(writer.offer(0, sample(3, 10), 66, 0));
+		assertTrue(writer.offer(1, sample(4, 4), 10, 0));
+		assertTrue(writer.offer(1, sample(5, 4), 40, 0));
+		writer.stop();
+
+		List<String> expected = new ArrayList<>();
+		expected.add("0:0:1:10");
+		expected.add("1:10:4:4");
+		expected.add("0:33:2:10");
+		expected.add("1:40:5:4");
+		expected.add("0:66:3:10");
+		assertEquals(expected, recorder.get());
+		assertEquals(38, writer.getBytesWritten());
+		assertEquals(5, writer.getSamplesWritten());
+		assertEquals(0, writer.getQueueDepth());
+	}
+
+	@Test
+	public void waitsForAnEmptyTrackUntilHalfFull() {
+		Recorder recorder = new Recorder();
+		SampleWriter writer = new SampleWriter(2, 4, recorder);
+		writer.offer(0, sample(1, 2), 0, 0);
+		// Track 1 may still deliver an earlier sample
+		assertFalse(writer.writeNext(false));
+		writer.offer(0, sample(2, 2), 33, 0);
+		assertTrue(writer.writeNext(false));
+		assertEquals(1, recorder.get().size());
+		assertEquals(1, writer.getQueueDepth());
+		assertEquals(2, writer.getMaxQueueDepth());
+	}
+
+	@Test
+	public void endedTrack_isNotWaitedFor() {
+		Recorder recorder = new Recorder();
+		SampleWriter writer = new SampleWriter(2, 8, recorder);
+		writer.offer(0, sample(1, 2), 0, 0);
+		writer.endTrack(1);
+		assertTrue(writer.writeNext(false));
+		assertFalse(writer.offer(1, sample(2, 2), 10, 0));
+	}
+
+	@Test
+	public void copiesTheSampleWithoutMovingTheSource() {
+		Recorder recorder = new Recorder();
+		SampleWriter writer = new SampleWriter(1, 2, recorder);
+		ByteBuffer source = sample(7, 6);
+		source.put(2, (byte) 5);
+		source.position(2);
+		writer.offer(0, source, 0, 0);
+		assertEquals(2, source.position());
+		source.put(2, (byte) 9);
+		writer.stop();
+		assertEquals("0:0:5:4", recorder.get().get(0));
+	}
+
+	@Test(timeout = 5000)
+	public void fullRing_blocksTheProducerUntilWritten() throws Exception {
+		Recorder recorder = new Recorder();
+		final SampleWriter writer = new SampleWriter(1, 2, recorder);
+		writer.offer(0, sample(1, 2), 0, 0);
+		writer.offer(0, sample(2, 2), 1, 0);
+		Thread producer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				writer.offer(0, sample(3, 2), 2, 0);
+			}
+		});
+		producer.start();
+		while (writer.getProducerWaits() == 0) {
+			Thread.sleep(1);
+		}
+		assertTrue(producer.isAlive());
+		assertTrue(writer.writeNext(false));
+		producer.join();
+		assertEquals(2, writer.getQueueDepth());
+	}
+
+	@Test(timeout = 5000)
+	public void writerThread_drainsOnStop() {
+		Recorder recorder = new Recorder();
+		SampleWriter writer = new SampleWriter(2, 4, recorder);
+		writer.start();
+		for (int i = 0; i < 20; i++) {
+			writer.offer(0, sample(i, 3), i * 33L, 0);
+		}
+		writer.stop();
+		assertEquals(20, recorder.get().size());
+		assertEquals(60, writer.getBytesWritten());
+		assertTrue(writer.getMaxLatencyNs() >= writer.getAverageLatencyNs());
+		assertFalse(writer.offer(0, sample(1, 3), 1000, 0));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void unknownTrack_isRejected() {
+		new SampleWriter(1, 2, new Recorder()).offer(1, sample(1, 1), 0, 0);
+	}
+
+	private static ByteBuffer sample(int marker, int size) {
+		byte[] data = new byte[size];
+		data[0] = (byte) marker;
+		return ByteBuffer.wrap(data);
+	}
+}
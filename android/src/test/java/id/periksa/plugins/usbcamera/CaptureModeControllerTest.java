@@ -0,0 +1,127 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Tests for the adaptive capture mode ladder.
+ */
+public class CaptureModeControllerTest {
+    private static final CaptureModeController.Mode VGA_30 = new CaptureModeController.Mode(640, 480, 30f);
+    private static final CaptureModeController.Mode VGA_15 = new CaptureModeController.Mode(640, 480, 15f);
+    private static final CaptureModeController.Mode QVGA_30 = new CaptureModeController.Mode(320, 240, 30f);
+    private static final CaptureModeController.Mode QVGA_15 = new CaptureModeController.Mode(320, 240, 15f);
+    private static final CaptureModeController.Mode QQVGA_30 = new CaptureModeController.Mode(160, 120, 30f);
+    private static final CaptureModeController.Mode HD_30 = new CaptureModeController.Mode(1280, 720, 30f);
+
+    private static final long MS = 1000000L;
+
+    private static CaptureModeController controller() {
+        List<CaptureModeController.Mode> supported = Arrays.asList(
+            HD_30, VGA_30, VGA_15, QVGA_30, QVGA_15, QQVGA_30);
+        return new CaptureModeController(supported, VGA_30, 0, 2000, 10000, 0);
+    }
+
+    @Test
+    public void ladder_isOrderedAndCappedAtTheCurrentMode() {
+        CaptureModeController controller = controller();
+        assertEquals(Arrays.asList(QQVGA_30, QVGA_15, QVGA_30, VGA_15, VGA_30), controller.getModes());
+        assertEquals(VGA_30, controller.getCurrentMode());
+    }
+
+    @Test
+    public void sustainedQueuePressure_stepsDownOneMode() {
+        CaptureModeController controller = controller();
+        assertNull(controller.update(0, 3, 4, 5 * MS));
+        assertNull(controller.update(1000, 3, 4, 5 * MS));
+        assertEquals(VGA_15, controller.update(2000, 3, 4, 5 * MS));
+        assertEquals(VGA_15, controller.getCurrentMode());
+        assertEquals(1, controller.getChangeCount());
+    }
+
+    @Test
+    public void briefPressure_isIgnored() {
+        CaptureModeController controller = controller();
+        assertNull(controller.update(0, 4, 4, 5 * MS));
+        assertNull(controller.update(1000, 0, 4, 5 * MS));
+        assertNull(controller.update(1500, 4, 4, 5 * MS));
+        assertNull(controller.update(3000, 4, 4, 5 * MS));
+        assertEquals(VGA_30, controller.getCurrentMode());
+    }
+
+    @Test
+    public void slowConversion_stepsDown() {
+        CaptureModeController controller = controller();
+        // 25 ms of a 33 ms frame interval
+        assertNull(controller.update(0, 0, 0, 25 * MS));
+        assertEquals(VGA_15, controller.update(2000, 0, 0, 25 * MS));
+    }
+
+    @Test
+    public void sinkTarget_jumpsToTheLargestModeWithinIt() {
+        CaptureModeController controller = controller();
+        controller.setTargetPixelRate(2500000);
+        assertNull(controller.update(0, 0, 4, 5 * MS));
+        assertEquals(QVGA_30, controller.update(2000, 0, 4, 5 * MS));
+    }
+
+    @Test
+    public void settlePeriod_blocksDecisions() {
+        CaptureModeController controller = new CaptureModeController(
+            Arrays.asList(VGA_15, QVGA_30), VGA_30, 0, 0, 0, 3000);
+        assertNull(controller.update(1000, 4, 4, 5 * MS));
+        assertEquals(VGA_15, controller.update(3000, 4, 4, 5 * MS));
+        assertNull(controller.update(4000, 4, 4, 5 * MS));
+        assertEquals(QVGA_30, controller.update(6000, 4, 4, 5 * MS));
+    }
+
+    @Test
+    public void headroom_stepsUpAfterTheHold() {
+        CaptureModeController controller = controller();
+        controller.onModeApplied(QVGA_30, 0);
+        // 5 ms at 320x240 predicts 20 ms at 640x480, 30% of a 15 fps interval
+        assertNull(controller.update(0, 0, 4, 5 * MS));
+        assertNull(controller.update(9000, 1, 4, 5 * MS));
+        assertEquals(VGA_15, controller.update(10000, 0, 4, 5 * MS));
+    }
+
+    @Test
+    public void betweenThresholds_keepsTheMode() {
+        CaptureModeController controller = controller();
+        controller.onModeApplied(QVGA_30, 0);
+        // Too slow for 640x480 at 15 fps, fast enough to stay
+        for (long t = 0; t <= 60000; t += 500) {
+            assertNull(controller.update(t, 0, 4, 7 * MS));
+        }
+        assertEquals(QVGA_30, controller.getCurrentMode());
+    }
+
+    @Test
+    public void sinkTarget_capsSteppingUp() {
+        CaptureModeController controller = controller();
+        controller.onModeApplied(QVGA_30, 0);
+        controller.setTargetPixelRate(QVGA_30.getPixelRate());
+        for (long t = 0; t <= 30000; t += 1000) {
+            assertNull(controller.update(t, 0, 4, 1 * MS));
+        }
+        controller.setTargetPixelRate(0);
+        assertNull(controller.update(31000, 0, 4, 1 * MS));
+        assertEquals(VGA_15, controller.update(41000, 0, 4, 1 * MS));
+    }
+
+    @Test
+    public void unknownAppliedMode_mapsToTheClosestRung() {
+        CaptureModeController controller = controller();
+        controller.onModeApplied(new CaptureModeController.Mode(352, 288, 25f), 0);
+        assertEquals(QVGA_30, controller.getCurrentMode());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidMode_isRejected() {
+        new CaptureModeController.Mode(640, 0, 30f);
+    }
+}
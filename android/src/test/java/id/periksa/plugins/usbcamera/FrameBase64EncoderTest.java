@@ -0,0 +1,55 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Tests for the reusable-buffer Base64 frame encoder.
+ */
+public class FrameBase64EncoderTest {
+
+    @Test
+    public void encode_matchesJdkForAllPaddingCases() {
+        FrameBase64Encoder encoder = new FrameBase64Encoder();
+        Random random = new Random(3);
+        for (int length = 0; length < 40; length++) {
+            byte[] data = new byte[length];
+            random.nextBytes(data);
+            assertEquals("length " + length, Base64.getEncoder().encodeToString(data),
+                encoder.encode(ByteBuffer.wrap(data), null));
+        }
+    }
+
+    @Test
+    public void encode_handlesMultipleChunksFromDirectBuffer() {
+        FrameBase64Encoder encoder = new FrameBase64Encoder();
+        byte[] data = new byte[NV21FramePool.frameSize(640, 480) + 1];
+        new Random(5).nextBytes(data);
+        ByteBuffer direct = ByteBuffer.allocateDirect(data.length + 10);
+        direct.position(10);
+        direct.put(data);
+        direct.position(10);
+
+        String encoded = encoder.encode(direct, null);
+        assertEquals(Base64.getEncoder().encodeToString(data), encoded);
+        assertEquals(FrameBase64Encoder.encodedLength(data.length), encoded.length());
+        assertEquals(10, direct.position());
+    }
+
+    @Test
+    public void encode_writesPrefixAndReusesBuffer() {
+        FrameBase64Encoder encoder = new FrameBase64Encoder();
+        byte[] large = new byte[300];
+        byte[] small = {1, 2, 3, 4};
+        encoder.encode(ByteBuffer.wrap(large), null);
+
+        String dataUrl = encoder.encode(ByteBuffer.wrap(small), "data:image/jpeg;base64,");
+        assertEquals("data:image/jpeg;base64," + Base64.getEncoder().encodeToString(small), dataUrl);
+        assertEquals(2, encoder.getEncodeCount());
+    }
+}
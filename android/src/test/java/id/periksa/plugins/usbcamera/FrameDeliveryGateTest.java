@@ -0,0 +1,77 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests for the JS frame delivery flow control.
+ */
+public class FrameDeliveryGateTest {
+
+    @Test
+    public void push_alwaysDeliversAndCountsSkippedFrames() {
+        FrameDeliveryGate gate = new FrameDeliveryGate(FrameDeliveryGate.Mode.PUSH);
+        assertTrue(gate.canDeliver(0));
+        gate.onDelivered(0, 0, 0);
+        assertTrue(gate.canDeliver(1));
+        gate.onDelivered(4, 3, 1);
+        assertEquals(2, gate.getDeliveredCount());
+        assertEquals(3, gate.getDroppedCount());
+    }
+
+    @Test
+    public void ack_holdsBackUntilAcknowledged() {
+        FrameDeliveryGate gate = new FrameDeliveryGate(FrameDeliveryGate.Mode.ACK);
+        assertTrue(gate.canDeliver(0));
+        gate.onDelivered(7, 0, 0);
+        assertFalse(gate.canDeliver(10));
+
+        // Acknowledging another frame does not open the gate
+        assertFalse(gate.acknowledge(6));
+        assertFalse(gate.canDeliver(20));
+
+        assertTrue(gate.acknowledge(7));
+        assertTrue(gate.canDeliver(30));
+        // Repeated acknowledgements are ignored
+        assertFalse(gate.acknowledge(7));
+    }
+
+    @Test
+    public void ack_timesOutSoLostAcknowledgementsCannotStall() {
+        FrameDeliveryGate gate = new FrameDeliveryGate(FrameDeliveryGate.Mode.ACK);
+        gate.onDelivered(0, 0, 1000);
+        assertFalse(gate.canDeliver(1000 + FrameDeliveryGate.ACK_TIMEOUT_MS - 1));
+        assertTrue(gate.canDeliver(1000 + FrameDeliveryGate.ACK_TIMEOUT_MS));
+        assertEquals(1, gate.getAckTimeoutCount());
+
+        gate.onDelivered(5, 4, 2100);
+        assertFalse(gate.canDeliver(2200));
+        assertTrue(gate.acknowledge(-1));
+        assertEquals(4, gate.getDroppedCount());
+    }
+
+    @Test
+    public void pull_deliversOnlyOnRequest() {
+        FrameDeliveryGate gate = new FrameDeliveryGate(FrameDeliveryGate.Mode.PULL);
+        assertFalse(gate.canDeliver(0));
+        gate.request();
+        gate.request();
+        assertEquals(2, gate.getPendingRequests());
+        assertTrue(gate.canDeliver(0));
+
+        // One frame answers all pending requests
+        gate.onDelivered(3, 3, 0);
+        assertEquals(0, gate.getPendingRequests());
+        assertFalse(gate.canDeliver(0));
+        assertEquals(1, gate.getDeliveredCount());
+    }
+
+    @Test
+    public void fromOption_fallsBackToPush() {
+        assertEquals(FrameDeliveryGate.Mode.ACK, FrameDeliveryGate.Mode.fromOption("ack"));
+        assertEquals(FrameDeliveryGate.Mode.PULL, FrameDeliveryGate.Mode.fromOption("PULL"));
+        assertEquals(FrameDeliveryGate.Mode.PUSH, FrameDeliveryGate.Mode.fromOption("other"));
+        assertEquals(FrameDeliveryGate.Mode.PUSH, FrameDeliveryGate.Mode.fromOption(null));
+    }
+}
@@ -0,0 +1,148 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Tests for the single-producer/single-consumer frame hand-off ring.
+ */
+public class FrameHandoffQueueTest {
+
+    @Test
+    public void dropNewest_keepsQueuedItems() {
+        List<Integer> dropped = new ArrayList<>();
+        FrameHandoffQueue<Integer> queue = new FrameHandoffQueue<>(3, FrameHandoffQueue.DropPolicy.DROP_NEWEST, dropped::add);
+        assertEquals(4, queue.getCapacity());
+        for (int i = 0; i < 6; i++) {
+            assertEquals(i < 4, queue.offer(i));
+        }
+        assertEquals(4, queue.size());
+        assertEquals(4, queue.getMaxDepth());
+        assertEquals(2, queue.getDroppedCount());
+        assertEquals(Arrays.asList(4, 5), dropped);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(Integer.valueOf(i), queue.poll());
+        }
+        assertNull(queue.poll());
+        assertEquals(4, queue.getTakenCount());
+    }
+
+    @Test
+    public void dropOldest_evictsHead() {
+        List<Integer> dropped = new ArrayList<>();
+        FrameHandoffQueue<Integer> queue = new FrameHandoffQueue<>(2, FrameHandoffQueue.DropPolicy.DROP_OLDEST, dropped::add);
+        for (int i = 0; i < 5; i++) {
+            assertTrue(queue.offer(i));
+        }
+        assertEquals(Arrays.asList(0, 1, 2), dropped);
+        assertEquals(Integer.valueOf(3), queue.poll());
+        assertEquals(Integer.valueOf(4), queue.poll());
+        assertEquals(0, queue.size());
+        assertEquals(2, queue.getTakenCount());
+    }
+
+    @Test
+    public void block_waitsForConsumer() throws Exception {
+        final FrameHandoffQueue<Integer> queue = new FrameHandoffQueue<>(1, FrameHandoffQueue.DropPolicy.BLOCK, null);
+        assertTrue(queue.offer(1));
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        assertTrue(queue.offer(2));
+        consumer.join();
+        assertEquals(Integer.valueOf(2), queue.poll());
+        assertEquals(0, queue.getDroppedCount());
+        assertTrue(queue.getBlockedNs() > 0);
+    }
+
+    @Test
+    public void close_wakesConsumer_andDropsLateItems() throws Exception {
+        final List<Integer> dropped = Collections.synchronizedList(new ArrayList<Integer>());
+        final FrameHandoffQueue<Integer> queue = new FrameHandoffQueue<>(4, FrameHandoffQueue.DropPolicy.DROP_OLDEST, dropped::add);
+        final Integer[] result = {-1};
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    result[0] = queue.take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        Thread.sleep(20);
+        queue.close();
+        consumer.join(1000);
+        assertFalse(consumer.isAlive());
+        assertNull(result[0]);
+
+        assertFalse(queue.offer(7));
+        assertEquals(Collections.singletonList(7), dropped);
+    }
+
+    @Test
+    public void concurrentProducerAndConsumer_accountForEveryItemOnce() throws Exception {
+        for (FrameHandoffQueue.DropPolicy policy : FrameHandoffQueue.DropPolicy.values()) {
+            final int items = 200000;
+            final AtomicIntegerArray seen = new AtomicIntegerArray(items);
+            final FrameHandoffQueue<Integer> queue = new FrameHandoffQueue<>(8, policy, new FrameHandoffQueue.DropListener<Integer>() {
+                @Override
+                public void onDropped(Integer item) {
+                    seen.incrementAndGet(item);
+                }
+            });
+            final int[] lastTaken = {-1};
+            final boolean[] ordered = {true};
+            Thread consumer = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        Integer item;
+                        while ((item = queue.take()) != null) {
+                            if (item <= lastTaken[0]) {
+                                ordered[0] = false;
+                            }
+                            lastTaken[0] = item;
+                            seen.incrementAndGet(item);
+                        }
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            });
+            consumer.start();
+            for (int i = 0; i < items; i++) {
+                queue.offer(i);
+            }
+            queue.close();
+            consumer.join(10000);
+            assertFalse(policy + " consumer stuck", consumer.isAlive());
+
+            assertTrue(policy + " order", ordered[0]);
+            for (int i = 0; i < items; i++) {
+                assertEquals(policy + " item " + i, 1, seen.get(i));
+            }
+            assertEquals(policy + " totals", items, queue.getTakenCount() + queue.getDroppedCount());
+            if (policy == FrameHandoffQueue.DropPolicy.BLOCK) {
+                assertEquals(0, queue.getDroppedCount());
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for the token bucket frame rate limiter.
+ */
+public class FrameRateLimiterTest {
+    private static final long FRAME_30FPS_NS = 33333333L;
+
+    @Test
+    public void halfRate_passesEveryOtherFrameDespiteJitter() {
+        FrameRateLimiter limiter = new FrameRateLimiter(15f);
+        Random random = new Random(7);
+        int passed = 0;
+        for (int i = 0; i < 300; i++) {
+            long jitter = random.nextInt(6000000) - 3000000;
+            boolean pass = limiter.tryAcquire(i * FRAME_30FPS_NS + jitter);
+            assertEquals("frame " + i, i % 2 == 0, pass);
+            if (pass) passed++;
+        }
+        assertEquals(150, passed);
+        assertEquals(150, limiter.getPassedCount());
+        assertEquals(150, limiter.getDroppedCount());
+    }
+
+    @Test
+    public void sameRate_passesEveryFrame() {
+        FrameRateLimiter limiter = new FrameRateLimiter(30f);
+        Random random = new Random(11);
+        for (int i = 0; i < 300; i++) {
+            long jitter = random.nextInt(6000000) - 3000000;
+            assertTrue("frame " + i, limiter.tryAcquire(i * FRAME_30FPS_NS + jitter));
+        }
+        assertEquals(0, limiter.getDroppedCount());
+    }
+
+    @Test
+    public void longRunRate_neverExceedsTarget() {
+        FrameRateLimiter limiter = new FrameRateLimiter(10f);
+        long oneSecond = 1000000000L;
+        // 60 fps input for 10 seconds
+        int passed = 0;
+        for (long t = 0; t < 10 * oneSecond; t += oneSecond / 60) {
+            if (limiter.tryAcquire(t)) passed++;
+        }
+        assertTrue("passed " + passed, passed <= 101);
+        assertTrue("passed " + passed, passed >= 99);
+    }
+
+    @Test
+    public void burst_allowsBackToBackFramesAfterIdle() {
+        FrameRateLimiter limiter = new FrameRateLimiter(10f, 3);
+        assertTrue(limiter.tryAcquire(0));
+        long idle = 1000000000L;
+        // Bucket refills to three frames, a fourth right after is dropped
+        assertTrue(limiter.tryAcquire(idle));
+        assertTrue(limiter.tryAcquire(idle + 1));
+        assertTrue(limiter.tryAcquire(idle + 2));
+        assertFalse(limiter.tryAcquire(idle + 3));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void invalidRate_isRejected() {
+        new FrameRateLimiter(0f);
+    }
+}
@@ -0,0 +1,87 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+/**
+ * Tests for the capture timestamp to PTS smoothing.
+ */
+public class FrameTimestampSmootherTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void jitteryCapture_yieldsMonotonicEvenlySpacedTimestamps() {
+        FrameTimestampSmoother smoother = new FrameTimestampSmoother(30f);
+        long interval = smoother.getNominalIntervalNs();
+        Random random = new Random(3);
+
+        long start = 5000 * MS;
+        long previous = Long.MIN_VALUE;
+        long maxDeviation = 0;
+        for (int i = 0; i < 600; i++) {
+            // Up to +-4 ms of conversion / scheduling jitter on a 33.3 ms grid
+            long capture = start + i * interval + (random.nextInt(8 * (int) MS) - 4 * MS);
+            long pts = smoother.smooth(capture);
+            assertTrue("monotonic at " + i, pts > previous);
+            if (i > 60) {
+                maxDeviation = Math.max(maxDeviation, Math.abs(pts - previous - interval));
+            }
+            previous = pts;
+        }
+        assertTrue("spacing deviation " + maxDeviation, maxDeviation < 2 * MS);
+        assertEquals(0, smoother.getResyncCount());
+    }
+
+    @Test
+    public void clockDrift_isTrackedByTheInterval() {
+        FrameTimestampSmoother smoother = new FrameTimestampSmoother(30f);
+        // Camera clock runs 0.5% fast relative to the host clock
+        long actualInterval = Math.round(smoother.getNominalIntervalNs() * 0.995);
+        long capture = 0;
+        long pts = 0;
+        for (int i = 0; i < 3000; i++) {
+            capture += actualInterval;
+            pts = smoother.smooth(capture);
+        }
+        assertEquals(actualInterval, smoother.getIntervalNs(), 20000);
+        assertEquals(capture, pts, MS);
+    }
+
+    @Test
+    public void skippedFrames_keepTheirSlots_andLongGapsResync() {
+        FrameTimestampSmoother smoother = new FrameTimestampSmoother(25f);
+        long interval = smoother.getNominalIntervalNs();
+        assertEquals(40 * MS, interval);
+
+        assertEquals(0, smoother.smooth(0));
+        assertEquals(interval, smoother.smooth(interval));
+        // Two frames missing
+        assertEquals(4 * interval, smoother.smooth(4 * interval));
+        assertEquals(2, smoother.getSkippedFrames());
+
+        // Ten second stall
+        long resumed = 10000 * MS;
+        assertEquals(resumed, smoother.smooth(resumed));
+        assertEquals(1, smoother.getResyncCount());
+        assertEquals(resumed + interval, smoother.smooth(resumed + interval));
+    }
+
+    @Test
+    public void captureBurst_neverCollapsesTimestamps() {
+        FrameTimestampSmoother smoother = new FrameTimestampSmoother(30f);
+        long first = smoother.smooth(1000 * MS);
+        long second = smoother.smooth(1000 * MS);
+        long third = smoother.smooth(1000 * MS + 1);
+        assertTrue(second > first);
+        assertTrue(third > second);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void rejectsInvalidFrameRate() {
+        new FrameTimestampSmoother(0f);
+    }
+}
@@ -0,0 +1,232 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+/**
+ * Tests for the loopback WebSocket frame server, using a raw socket client.
+ */
+public class FrameWebSocketServerTest {
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // Sample key and accept value from RFC 6455
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    private FrameWebSocketServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new FrameWebSocketServer(0);
+    }
+
+    @After
+    public void tearDown() {
+        server.stop();
+    }
+
+    @Test
+    public void acceptKey_matchesRfcExample() {
+        assertEquals(ACCEPT, FrameWebSocketServer.acceptKey(KEY));
+        assertEquals("Zm9vYg==", FrameWebSocketServer.base64("foob".getBytes(ASCII)));
+        assertEquals("Zm9vYmE=", FrameWebSocketServer.base64("fooba".getBytes(ASCII)));
+        assertEquals("Zm9vYmFy", FrameWebSocketServer.base64("foobar".getBytes(ASCII)));
+    }
+
+    @Test
+    public void client_receivesBinaryFrameWithHeader() throws Exception {
+        Socket socket = connect(server.getToken());
+        try {
+            String response = readResponse(socket.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 101"));
+            assertTrue(response, response.contains("Sec-WebSocket-Accept: " + ACCEPT));
+            waitForClients(1);
+
+            byte[] payload = new byte[300];
+            for (int i = 0; i < payload.length; i++) {
+                payload[i] = (byte) i;
+            }
+            assertEquals(1, server.publish(ByteBuffer.wrap(payload), 20, 10,
+                FrameWebSocketServer.FORMAT_YUV420SP, 42, 123456789L));
+
+            byte[] message = readMessage(socket.getInputStream(), 0x2);
+            assertEquals(FrameWebSocketServer.HEADER_SIZE + payload.length, message.length);
+            ByteBuffer header = ByteBuffer.wrap(message).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals(FrameWebSocketServer.HEADER_SIZE, header.getShort(0));
+            assertEquals(FrameWebSocketServer.HEADER_VERSION, header.getShort(2));
+            assertEquals(20, header.getInt(4));
+            assertEquals(10, header.getInt(8));
+            assertEquals(FrameWebSocketServer.FORMAT_YUV420SP, header.getInt(12));
+            assertEquals(42.0, header.getDouble(16), 0.0);
+            assertEquals(123456789.0, header.getDouble(24), 0.0);
+            for (int i = 0; i < payload.length; i++) {
+                assertEquals(payload[i], message[FrameWebSocketServer.HEADER_SIZE + i]);
+            }
+            assertEquals(1, server.getSentCount());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void wrongToken_isRejected() throws Exception {
+        Socket socket = connect("not-the-token");
+        try {
+            String response = readResponse(socket.getInputStream());
+            assertTrue(response, response.startsWith("HTTP/1.1 403"));
+            assertEquals(0, server.getClientCount());
+            assertEquals(0, server.publish(ByteBuffer.allocate(4), 2, 2,
+                FrameWebSocketServer.FORMAT_YUV420SP, 0, 0));
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void ping_isAnsweredAndCloseRemovesClient() throws Exception {
+        Socket socket = connect(server.getToken());
+        try {
+            readResponse(socket.getInputStream());
+            waitForClients(1);
+
+            OutputStream out = socket.getOutputStream();
+            writeMaskedFrame(out, 0x9, "hi".getBytes(ASCII));
+            byte[] pong = readMessage(socket.getInputStream(), 0xA);
+            assertEquals("hi", new String(pong, ASCII));
+
+            writeMaskedFrame(out, 0x8, new byte[]{0x03, (byte) 0xE8});
+            byte[] close = readMessage(socket.getInputStream(), 0x8);
+            assertEquals(2, close.length);
+            waitForClients(0);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void silentConnection_doesNotDelayOtherClients() throws Exception {
+        // Connects but never sends its upgrade request
+        Socket silent = new Socket("127.0.0.1", server.getPort());
+        try {
+            Thread.sleep(100);
+            long start = System.currentTimeMillis();
+            Socket socket = connect(server.getToken());
+            try {
+                String response = readResponse(socket.getInputStream());
+                assertTrue(response, response.startsWith("HTTP/1.1 101"));
+                assertTrue(System.currentTimeMillis() - start < 1000);
+                waitForClients(1);
+            } finally {
+                socket.close();
+            }
+        } finally {
+            silent.close();
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void stop_doesNotWaitForAClientThatStoppedReading() throws Exception {
+        Socket socket = connect(server.getToken());
+        try {
+            readResponse(socket.getInputStream());
+            waitForClients(1);
+
+            // Never read again, the sender ends up blocked in a write
+            ByteBuffer frame = ByteBuffer.allocate(4 * 1024 * 1024);
+            long deadline = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < deadline) {
+                server.publish(frame, 1024, 1024, FrameWebSocketServer.FORMAT_YUV420SP, 0, 0);
+                Thread.sleep(20);
+            }
+            assertTrue(server.getSkippedCount() > 0);
+
+            long start = System.currentTimeMillis();
+            server.stop();
+            assertTrue(System.currentTimeMillis() - start < 1000);
+            assertEquals(0, server.getClientCount());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private Socket connect(String token) throws IOException {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        socket.setSoTimeout(5000);
+        String request = "GET " + FrameWebSocketServer.PATH + "?token=" + token + " HTTP/1.1\r\n" +
+            "Host: 127.0.0.1:" + server.getPort() + "\r\n" +
+            "Upgrade: websocket\r\n" +
+            "Connection: Upgrade\r\n" +
+            "Sec-WebSocket-Key: " + KEY + "\r\n" +
+            "Sec-WebSocket-Version: 13\r\n\r\n";
+        socket.getOutputStream().write(request.getBytes(ASCII));
+        return socket;
+    }
+
+    private void waitForClients(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (server.getClientCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, server.getClientCount());
+    }
+
+    private static String readResponse(InputStream in) throws IOException {
+        StringBuilder response = new StringBuilder();
+        int c;
+        while (response.indexOf("\r\n\r\n") < 0 && (c = in.read()) != -1) {
+            response.append((char) c);
+        }
+        return response.toString();
+    }
+
+    private static byte[] readMessage(InputStream in, int expectedOpcode) throws IOException {
+        int b0 = readByte(in);
+        int b1 = readByte(in);
+        assertEquals(0x80 | expectedOpcode, b0);
+        assertEquals("Server frames must not be masked", 0, b1 & 0x80);
+        long length = b1 & 0x7f;
+        if (length == 126) {
+            length = (readByte(in) << 8) | readByte(in);
+        } else if (length == 127) {
+            length = 0;
+            for (int i = 0; i < 8; i++) {
+                length = (length << 8) | readByte(in);
+            }
+        }
+        byte[] payload = new byte[(int) length];
+        int read = 0;
+        while (read < payload.length) {
+            int n = in.read(payload, read, payload.length - read);
+            assertTrue("Connection closed", n > 0);
+            read += n;
+        }
+        return payload;
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+        int b = in.read();
+        assertTrue("Connection closed", b >= 0);
+        return b;
+    }
+
+    private static void writeMaskedFrame(OutputStream out, int opcode, byte[] payload) throws IOException {
+        byte[] mask = {0x11, 0x22, 0x33, 0x44};
+        out.write(0x80 | opcode);
+        out.write(0x80 | payload.length);
+        out.write(mask);
+        for (int i = 0; i < payload.length; i++) {
+            out.write(payload[i] ^ mask[i & 3]);
+        }
+        out.flush();
+    }
+}
@@ -0,0 +1,170 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Tests for the one-pass simulcast layer builder.
+ */
+public class I420PyramidTest {
+
+    @Test
+    public void layerSizes_halveAndRoundDown() {
+        assertEquals(640, I420Pyramid.layerSize(1280, 1));
+        assertEquals(180, I420Pyramid.layerSize(720, 2));
+        assertEquals(67, I420Pyramid.layerSize(135, 1));
+
+        I420Pyramid pyramid = new I420Pyramid(2);
+        assertTrue(pyramid.supports(4, 4));
+        assertFalse(pyramid.supports(4, 3));
+    }
+
+    @Test
+    public void matchesRepeatedBoxAverages() {
+        int[][] sizes = {{16, 12}, {22, 14}, {30, 18}, {27, 21}, {36, 34}};
+        for (int[] size : sizes) {
+            for (int levels = 1; levels <= 3; levels++) {
+                if (!new I420Pyramid(levels).supports(size[0], size[1])) {
+                    continue;
+                }
+                YUVConverter.I420Data full = randomI420(size[0], size[1], size[0] * 31 + size[1]);
+                YUVConverter.I420Data[] layers = new I420Pyramid(levels).build(full, null);
+                assertEquals(levels, layers.length);
+
+                byte[][] previous = planesOf(full);
+                int previousWidth = full.width;
+                int previousHeight = full.height;
+                for (int level = 1; level <= levels; level++) {
+                    YUVConverter.I420Data layer = layers[level - 1];
+                    assertEquals(size[0] >> level, layer.width);
+                    assertEquals(size[1] >> level, layer.height);
+                    byte[][] expected = {
+                        reduce(previous[0], previousWidth, previousHeight, layer.width, layer.height),
+                        reduce(previous[1], (previousWidth + 1) / 2, (previousHeight + 1) / 2,
+                            layer.chromaWidth, layer.chromaHeight),
+                        reduce(previous[2], (previousWidth + 1) / 2, (previousHeight + 1) / 2,
+                            layer.chromaWidth, layer.chromaHeight),
+                    };
+                    byte[][] actual = planesOf(layer);
+                    String where = size[0] + "x" + size[1] + " level " + level;
+                    assertArrayEquals(where + " Y", expected[0], actual[0]);
+                    assertArrayEquals(where + " U", expected[1], actual[1]);
+                    assertArrayEquals(where + " V", expected[2], actual[2]);
+                    previous = expected;
+                    previousWidth = layer.width;
+                    previousHeight = layer.height;
+                }
+            }
+        }
+    }
+
+    @Test
+    public void paddedStrides_areRespected() {
+        YUVConverter.I420Data packed = randomI420(24, 16, 5);
+        I420FramePool alignedPool = new I420FramePool(2, 16);
+        YUVConverter.I420Data padded = alignedPool.acquire(24, 16);
+        copyPlanes(packed, padded);
+
+        YUVConverter.I420Data[] expected = new I420Pyramid(2).build(packed, null);
+        YUVConverter.I420Data[] actual = new I420Pyramid(2).build(padded, alignedPool);
+        for (int i = 0; i < 2; i++) {
+            assertEquals(16, actual[i].strideY);
+            assertArrayEquals(planesOf(expected[i])[0], planesOf(actual[i])[0]);
+            assertArrayEquals(planesOf(expected[i])[1], planesOf(actual[i])[1]);
+            assertArrayEquals(planesOf(expected[i])[2], planesOf(actual[i])[2]);
+        }
+    }
+
+    @Test
+    public void layersComeFromThePool() {
+        I420FramePool pool = new I420FramePool();
+        I420Pyramid pyramid = new I420Pyramid(2);
+        YUVConverter.I420Data full = randomI420(32, 16, 9);
+        for (int i = 0; i < 3; i++) {
+            YUVConverter.I420Data[] layers = pyramid.build(full, pool);
+            assertEquals(2, pool.getOutstandingCount());
+            for (YUVConverter.I420Data layer : layers) {
+                layer.release();
+            }
+        }
+        assertEquals(0, pool.getOutstandingCount());
+        assertEquals(2, pool.getMissCount());
+        assertEquals(4, pool.getHitCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooSmallFrame_isRejected() {
+        new I420Pyramid(3).build(randomI420(16, 6, 1), null);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void tooManyLevels_areRejected() {
+        new I420Pyramid(I420Pyramid.MAX_LEVELS + 1);
+    }
+
+    /**
+     * 2x2 box average with the last column and row repeated at odd edges
+     */
+    private static byte[] reduce(byte[] plane, int width, int height, int outWidth, int outHeight) {
+        byte[] out = new byte[outWidth * outHeight];
+        for (int y = 0; y < outHeight; y++) {
+            int y0 = 2 * y;
+            int y1 = Math.min(2 * y + 1, height - 1);
+            for (int x = 0; x < outWidth; x++) {
+                int x0 = 2 * x;
+                int x1 = Math.min(2 * x + 1, width - 1);
+                int sum = (plane[y0 * width + x0] & 0xff) + (plane[y0 * width + x1] & 0xff)
+                    + (plane[y1 * width + x0] & 0xff) + (plane[y1 * width + x1] & 0xff);
+                out[y * outWidth + x] = (byte) ((sum + 2) >> 2);
+            }
+        }
+        return out;
+    }
+
+    private static YUVConverter.I420Data randomI420(int width, int height, long seed) {
+        Random random = new Random(seed);
+        byte[] nv21 = new byte[NV21FramePool.frameSize(width, height)];
+        random.nextBytes(nv21);
+        return YUVConverter.convertYUV420SPToI420(ByteBuffer.wrap(nv21), width, height, null);
+    }
+
+    /**
+     * Tightly packed copies of the Y, U and V planes
+     */
+    private static byte[][] planesOf(YUVConverter.I420Data frame) {
+        return new byte[][] {
+            planeOf(frame.yPlane, frame.strideY, frame.width, frame.height),
+            planeOf(frame.uPlane, frame.strideU, frame.chromaWidth, frame.chromaHeight),
+            planeOf(frame.vPlane, frame.strideV, frame.chromaWidth, frame.chromaHeight),
+        };
+    }
+
+    private static byte[] planeOf(ByteBuffer buffer, int stride, int width, int height) {
+        byte[] out = new byte[width * height];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                out[y * width + x] = buffer.get(y * stride + x);
+            }
+        }
+        return out;
+    }
+
+    private static void copyPlanes(YUVConverter.I420Data from, YUVConverter.I420Data to) {
+        byte[][] planes = planesOf(from);
+        ByteBuffer[] targets = {to.yPlane, to.uPlane, to.vPlane};
+        int[] strides = {to.strideY, to.strideU, to.strideV};
+        int[] widths = {to.width, to.chromaWidth, to.chromaWidth};
+        for (int p = 0; p < 3; p++) {
+            int rowCount = planes[p].length / widths[p];
+            for (int y = 0; y < rowCount; y++) {
+                for (int x = 0; x < widths[p]; x++) {
+                    targets[p].put(y * strides[p] + x, planes[p][y * widths[p] + x]);
+                }
+            }
+        }
+    }
+}
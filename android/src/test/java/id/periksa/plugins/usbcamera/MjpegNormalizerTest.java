@@ -0,0 +1,125 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Tests for MJPEG payload validation and Huffman table injection.
+ */
+public class MjpegNormalizerTest {
+
+    @Test
+    public void standardDht_hasAnnexKLayout() {
+        byte[] dht = MjpegNormalizer.STANDARD_DHT;
+        assertEquals(420, dht.length);
+        assertEquals(0xff, dht[0] & 0xff);
+        assertEquals(0xc4, dht[1] & 0xff);
+        assertEquals(0x01a2, ((dht[2] & 0xff) << 8) | (dht[3] & 0xff));
+    }
+
+    @Test
+    public void framesWithTables_passThroughWithoutPadding() throws IOException {
+        byte[] jpeg = encodeTestImage();
+        byte[] padded = Arrays.copyOf(jpeg, jpeg.length + 100);
+
+        MjpegNormalizer normalizer = new MjpegNormalizer();
+        ByteBuffer result = normalizer.normalize(ByteBuffer.wrap(padded));
+        assertNotNull(result);
+        assertArrayEquals(jpeg, toArray(result));
+        assertEquals(1, normalizer.getValidCount());
+        assertEquals(0, normalizer.getInjectedCount());
+    }
+
+    @Test
+    public void framesWithoutTables_decodeLikeTheOriginal() throws IOException {
+        byte[] jpeg = encodeTestImage();
+        byte[] stripped = stripHuffmanTables(jpeg);
+        assertTrue(stripped.length < jpeg.length);
+
+        MjpegNormalizer normalizer = new MjpegNormalizer();
+        ByteBuffer input = ByteBuffer.allocateDirect(stripped.length);
+        input.put(stripped).flip();
+        ByteBuffer result = normalizer.normalize(input);
+        assertNotNull(result);
+        assertEquals(1, normalizer.getInjectedCount());
+        assertEquals(0, input.position());
+
+        BufferedImage expected = ImageIO.read(new ByteArrayInputStream(jpeg));
+        BufferedImage actual = ImageIO.read(new ByteArrayInputStream(toArray(result)));
+        assertNotNull(actual);
+        for (int y = 0; y < expected.getHeight(); y++) {
+            for (int x = 0; x < expected.getWidth(); x++) {
+                assertEquals(expected.getRGB(x, y), actual.getRGB(x, y));
+            }
+        }
+    }
+
+    @Test
+    public void incompletePayloads_areRejected() throws IOException {
+        byte[] jpeg = encodeTestImage();
+        MjpegNormalizer normalizer = new MjpegNormalizer();
+
+        // Cut off before the EOI
+        assertNull(normalizer.normalize(ByteBuffer.wrap(jpeg, 0, jpeg.length - 10)));
+        // Decoded YUYV data instead of MJPEG
+        byte[] yuyv = new byte[640 * 480 * 2];
+        Arrays.fill(yuyv, (byte) 0x80);
+        assertNull(normalizer.normalize(ByteBuffer.wrap(yuyv)));
+        // Broken segment chain
+        byte[] broken = jpeg.clone();
+        broken[2] = 0x12;
+        assertNull(normalizer.normalize(ByteBuffer.wrap(broken)));
+
+        assertEquals(3, normalizer.getInvalidCount());
+        assertEquals(0, normalizer.getValidCount());
+    }
+
+    private static byte[] encodeTestImage() throws IOException {
+        BufferedImage image = new BufferedImage(64, 48, BufferedImage.TYPE_INT_RGB);
+        for (int y = 0; y < 48; y++) {
+            for (int x = 0; x < 64; x++) {
+                image.setRGB(x, y, (x * 4) << 16 | (y * 5) << 8 | ((x + y) * 2));
+            }
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        assertTrue(ImageIO.write(image, "jpeg", out));
+        return out.toByteArray();
+    }
+
+    /**
+     * Remove all DHT segments, like a camera sending abbreviated MJPEG
+     */
+    private static byte[] stripHuffmanTables(byte[] jpeg) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(jpeg, 0, 2);
+        int pos = 2;
+        while (true) {
+            int marker = jpeg[pos + 1] & 0xff;
+            if (marker == 0xda) {
+                out.write(jpeg, pos, jpeg.length - pos);
+                return out.toByteArray();
+            }
+            int length = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+            if (marker != 0xc4) {
+                out.write(jpeg, pos, 2 + length);
+            }
+            pos += 2 + length;
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,56 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the pooled NV21 pass-through frames.
+ */
+public class NV21FramePoolTest {
+
+    @Test
+    public void copyOf_copiesFrameAndLeavesSourceUntouched() {
+        int width = 17;
+        int height = 9;
+        byte[] nv21 = new byte[NV21FramePool.frameSize(width, height) + 5];
+        new Random(7).nextBytes(nv21);
+        ByteBuffer source = ByteBuffer.allocateDirect(nv21.length);
+        source.put(nv21).flip();
+        source.position(5);
+
+        NV21FramePool pool = new NV21FramePool();
+        NV21FramePool.Frame frame = pool.copyOf(source, width, height);
+        assertArrayEquals(Arrays.copyOfRange(nv21, 5, nv21.length), frame.data);
+        assertEquals(5, source.position());
+        assertEquals(1, pool.getOutstandingCount());
+    }
+
+    @Test
+    public void releasedFrames_areReused_andDoubleReleaseIsIgnored() {
+        NV21FramePool pool = new NV21FramePool(2);
+        NV21FramePool.Frame first = pool.acquire(64, 48);
+        first.release();
+        first.release();
+        assertEquals(0, pool.getOutstandingCount());
+
+        NV21FramePool.Frame second = pool.acquire(64, 48);
+        assertSame(first, second);
+        assertEquals(1, pool.getHitCount());
+        assertEquals(1, pool.getMissCount());
+        second.release();
+
+        NV21FramePool.Frame resized = pool.acquire(32, 24);
+        assertNotSame(first, resized);
+        assertEquals(NV21FramePool.frameSize(32, 24), resized.data.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void copyOf_rejectsShortInput() {
+        new NV21FramePool().copyOf(ByteBuffer.allocate(640 * 480), 640, 480);
+    }
+}
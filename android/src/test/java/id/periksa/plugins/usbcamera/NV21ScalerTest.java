@@ -0,0 +1,106 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Tests for the NV21 box-filter downscaler.
+ */
+public class NV21ScalerTest {
+
+    @Test
+    public void fitSize_keepsAspectAndNeverUpscales() {
+        assertArrayEquals(new int[] {320, 240}, NV21Scaler.fitSize(640, 480, 320, 0));
+        assertArrayEquals(new int[] {320, 240}, NV21Scaler.fitSize(640, 480, 400, 240));
+        assertArrayEquals(new int[] {640, 480}, NV21Scaler.fitSize(640, 480, 1280, 960));
+        assertArrayEquals(new int[] {640, 480}, NV21Scaler.fitSize(640, 480, 0, 0));
+        // Rounded down to even sizes
+        assertArrayEquals(new int[] {212, 158}, NV21Scaler.fitSize(640, 480, 213, 0));
+    }
+
+    @Test
+    public void halfSize_averagesTwoByTwoBlocks() {
+        int width = 4;
+        int height = 4;
+        byte[] src = new byte[NV21FramePool.frameSize(width, height)];
+        for (int i = 0; i < width * height; i++) {
+            src[i] = (byte) (i * 10);
+        }
+        // VU pairs: V = 100 + i, U = 200 - i
+        for (int i = 0; i < 4; i++) {
+            src[width * height + 2 * i] = (byte) (100 + i);
+            src[width * height + 2 * i + 1] = (byte) (200 - i);
+        }
+
+        NV21Scaler scaler = new NV21Scaler(width, height, 2, 2);
+        byte[] dst = new byte[scaler.getDstFrameSize()];
+        scaler.scale(ByteBuffer.wrap(src), dst);
+
+        // Luma block (0,1,4,5) * 10 averages to 25, rounded to nearest
+        assertEquals(25, dst[0] & 0xff);
+        assertEquals(45, dst[1] & 0xff);
+        assertEquals(105, dst[2] & 0xff);
+        assertEquals(125, dst[3] & 0xff);
+        // One chroma pair from all four source pairs, rounded to nearest
+        assertEquals(102, dst[4] & 0xff);
+        assertEquals(199, dst[5] & 0xff);
+    }
+
+    @Test
+    public void scale_matchesBruteForceAverageAndLeavesSourceUntouched() {
+        int width = 30;
+        int height = 20;
+        byte[] frame = new byte[NV21FramePool.frameSize(width, height)];
+        for (int i = 0; i < frame.length; i++) {
+            frame[i] = (byte) (i * 31 + (i >> 3));
+        }
+        ByteBuffer src = ByteBuffer.allocateDirect(frame.length + 3);
+        src.position(3);
+        src.put(frame);
+        src.position(3);
+
+        NV21Scaler scaler = new NV21Scaler(width, height, 12, 8);
+        byte[] dst = new byte[scaler.getDstFrameSize()];
+        scaler.scale(src, dst);
+        assertEquals(3, src.position());
+
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 12; x++) {
+                assertEquals(boxAverage(frame, 0, width, 1, width, height, 12, 8, x, y),
+                    dst[y * 12 + x] & 0xff);
+            }
+        }
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 6; x++) {
+                for (int c = 0; c < 2; c++) {
+                    assertEquals(boxAverage(frame, width * height + c, width, 2, 15, 10, 6, 4, x, y),
+                        dst[12 * 8 + y * 12 + 2 * x + c] & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void upscale_isRejected() {
+        new NV21Scaler(320, 240, 640, 480);
+    }
+
+    private static int boxAverage(byte[] src, int offset, int stride, int step,
+                                  int srcW, int srcH, int dstW, int dstH, int x, int y) {
+        int x0 = x * srcW / dstW;
+        int x1 = (x + 1) * srcW / dstW;
+        int y0 = y * srcH / dstH;
+        int y1 = (y + 1) * srcH / dstH;
+        int sum = 0;
+        for (int sy = y0; sy < y1; sy++) {
+            for (int sx = x0; sx < x1; sx++) {
+                sum += src[offset + sy * stride + sx * step] & 0xff;
+            }
+        }
+        int area = (x1 - x0) * (y1 - y0);
+        return (sum + area / 2) / area;
+    }
+}
@@ -0,0 +1,157 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tests for the burst capture pre-trigger ring.
+ */
+public class PreCaptureRingTest {
+    private static final int WIDTH = 4;
+    private static final int HEIGHT = 2;
+
+    private static class Recorder implements PreCaptureRing.Listener {
+        final List<Integer> markers = new ArrayList<>();
+        final List<Long> offsets = new ArrayList<>();
+        int completed = -1;
+
+        @Override
+        public void onBurstFrame(NV21FramePool.Frame frame, int index, long offsetNs) {
+            assertEquals(markers.size(), index);
+            markers.add((int) frame.data[0]);
+            offsets.add(offsetNs);
+            frame.release();
+        }
+
+        @Override
+        public void onBurstComplete(int count) {
+            completed = count;
+        }
+    }
+
+    @Test
+    public void keepsOnlyTheLatestFrames() {
+        PreCaptureRing ring = new PreCaptureRing(3);
+        for (int i = 1; i <= 10; i++) {
+            ring.offer(frame(i), WIDTH, HEIGHT, i * 100L);
+        }
+        assertEquals(3, ring.size());
+
+        Recorder recorder = new Recorder();
+        assertTrue(ring.trigger(1000, 3, 0, recorder));
+        assertEquals(asList(8, 9, 10), recorder.markers);
+        assertEquals(3, recorder.completed);
+        assertEquals(0, ring.getOutstandingCount());
+    }
+
+    @Test
+    public void returnsFramesAroundTheTrigger() {
+        PreCaptureRing ring = new PreCaptureRing(4);
+        for (int i = 1; i <= 5; i++) {
+            ring.offer(frame(i), WIDTH, HEIGHT, i * 100L);
+        }
+
+        // Frames 4 and 5 arrived after the trigger and count as the first 'after' frames
+        Recorder recorder = new Recorder();
+        assertTrue(ring.trigger(350, 2, 3, recorder));
+        assertTrue(ring.isCapturing());
+        assertEquals(asList(2, 3, 4, 5), recorder.markers);
+
+        ring.offer(frame(6), WIDTH, HEIGHT, 600);
+        ring.offer(frame(7), WIDTH, HEIGHT, 700);
+        assertFalse(ring.isCapturing());
+        assertEquals(asList(2, 3, 4, 5, 6), recorder.markers);
+        assertEquals(5, recorder.completed);
+        assertEquals(-150L, (long) recorder.offsets.get(0));
+        assertEquals(250L, (long) recorder.offsets.get(4));
+
+        // The ring fills again after the burst
+        assertEquals(1, ring.size());
+        assertEquals(0, ring.getOutstandingCount());
+    }
+
+    @Test
+    public void cancelCompletesWithTheFramesSoFar() {
+        PreCaptureRing ring = new PreCaptureRing(2);
+        ring.offer(frame(1), WIDTH, HEIGHT, 100);
+
+        Recorder recorder = new Recorder();
+        assertTrue(ring.trigger(150, 2, 5, recorder));
+        assertFalse(ring.trigger(150, 2, 5, new Recorder()));
+        ring.offer(frame(2), WIDTH, HEIGHT, 200);
+        ring.cancel();
+
+        assertEquals(asList(1, 2), recorder.markers);
+        assertEquals(2, recorder.completed);
+        assertFalse(ring.isCapturing());
+    }
+
+    @Test
+    public void sizeChangeDropsOlderFrames() {
+        PreCaptureRing ring = new PreCaptureRing(4);
+        ring.offer(frame(1), WIDTH, HEIGHT, 100);
+        ring.offer(frame(2), WIDTH, HEIGHT, 200);
+        ring.offer(ByteBuffer.wrap(new byte[]{3, 0, 0, 0, 0, 0}), 2, 2, 300);
+        assertEquals(1, ring.size());
+
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertEquals(0, ring.getOutstandingCount());
+    }
+
+    @Test
+    public void selectSharpest_picksTheBestRecentFrame() {
+        PreCaptureRing ring = new PreCaptureRing(4, true);
+        byte[] sharp = new byte[NV21FramePool.frameSize(8, 8)];
+        for (int i = 0; i < 64; i++) {
+            sharp[i] = (byte) (((i % 8 + i / 8) & 1) == 0 ? 0 : 200);
+        }
+        byte[] flat = new byte[sharp.length];
+        // The sharp frame is too old once more than 'candidates' frames follow it
+        ring.offer(ByteBuffer.wrap(sharp), 8, 8, 100);
+        ring.offer(ByteBuffer.wrap(flat), 8, 8, 200);
+        sharp[0] = 1;
+        ring.offer(ByteBuffer.wrap(sharp), 8, 8, 300);
+        ring.offer(ByteBuffer.wrap(flat), 8, 8, 400);
+
+        Recorder recorder = new Recorder();
+        assertTrue(ring.selectSharpest(450, 3, recorder));
+        assertEquals(asList(1), recorder.markers);
+        assertEquals(-150L, (long) recorder.offsets.get(0));
+        assertEquals(1, recorder.completed);
+        assertTrue(ring.getSelectedSharpness() > 0);
+        // Nothing taken out of the ring
+        assertEquals(4, ring.size());
+        assertEquals(0, ring.getOutstandingCount());
+    }
+
+    @Test
+    public void selectSharpest_waitsForAFrameIfNoneIsOldEnough() {
+        PreCaptureRing ring = new PreCaptureRing(2, true);
+        Recorder recorder = new Recorder();
+        assertTrue(ring.selectSharpest(50, 2, recorder));
+        assertTrue(ring.isCapturing());
+        ring.offer(frame(7), WIDTH, HEIGHT, 100);
+        assertEquals(asList(7), recorder.markers);
+        assertEquals(1, recorder.completed);
+    }
+
+    private static ByteBuffer frame(int marker) {
+        byte[] data = new byte[NV21FramePool.frameSize(WIDTH, HEIGHT)];
+        data[0] = (byte) marker;
+        return ByteBuffer.wrap(data);
+    }
+
+    private static List<Integer> asList(Integer... values) {
+        List<Integer> list = new ArrayList<>();
+        for (Integer v : values) {
+            list.add(v);
+        }
+        return list;
+    }
+}
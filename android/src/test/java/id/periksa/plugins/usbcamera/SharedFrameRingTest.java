@@ -0,0 +1,155 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Tests for the in-process shared frame ring.
+ */
+public class SharedFrameRingTest {
+
+    @Test
+    public void reader_getsNewestFrameAndNotifications() {
+        SharedFrameRing ring = new SharedFrameRing(3, 16);
+        final List<Long> notified = new ArrayList<>();
+        ring.setListener(new SharedFrameRing.Listener() {
+            @Override
+            public void onFrameAvailable(SharedFrameRing r, long frameNumber) {
+                notified.add(frameNumber);
+            }
+        });
+        assertNull(ring.acquireLatest(-1));
+
+        for (int i = 0; i < 5; i++) {
+            assertEquals(i, ring.publish(frameOf(i, 10), 4, 2, "YUV420SP", 1000 + i));
+        }
+        assertEquals(5, notified.size());
+        assertEquals(Long.valueOf(4), notified.get(4));
+
+        SharedFrameRing.Frame frame = ring.acquireLatest(-1);
+        assertEquals(4, frame.frameNumber);
+        assertEquals(1004, frame.timestampNs);
+        assertEquals(4, frame.width);
+        assertEquals(2, frame.height);
+        assertEquals("YUV420SP", frame.format);
+        assertEquals(10, frame.data.remaining());
+        assertEquals(4, frame.data.get(0));
+        assertEquals(4 + 9, frame.data.get(9));
+        frame.release();
+
+        // Nothing newer than what was already read
+        assertNull(ring.acquireLatest(4));
+    }
+
+    @Test
+    public void frameBeingRead_isNeverOverwritten() {
+        SharedFrameRing ring = new SharedFrameRing(3, 8);
+        ring.publish(frameOf(1, 8), 1, 1, "YUV420SP", 0);
+        SharedFrameRing.Frame held = ring.acquireLatest(-1);
+
+        for (int i = 2; i < 50; i++) {
+            assertTrue(ring.publish(frameOf(i, 8), 1, 1, "YUV420SP", 0) >= 0);
+        }
+        assertEquals(0, ring.getDroppedCount());
+        for (int i = 0; i < 8; i++) {
+            assertEquals(1 + i, held.data.get(i));
+        }
+        held.release();
+
+        SharedFrameRing.Frame latest = ring.acquireLatest(held.frameNumber);
+        assertEquals(48, latest.frameNumber);
+        assertEquals(49, latest.data.get(0));
+        latest.release();
+        assertEquals(47, ring.getSkippedCount());
+    }
+
+    @Test
+    public void oversizedFrames_areDropped() {
+        SharedFrameRing ring = new SharedFrameRing(3, 8);
+        assertEquals(-1, ring.publish(frameOf(0, 9), 3, 3, "YUV420SP", 0));
+        assertEquals(1, ring.getDroppedCount());
+        assertEquals(-1, ring.getLatestFrameNumber());
+    }
+
+    @Test
+    public void publish_leavesSourcePositionUntouched() {
+        SharedFrameRing ring = new SharedFrameRing(3, 8);
+        ByteBuffer source = frameOf(0, 8);
+        source.position(2);
+        ring.publish(source, 2, 3, "YUV420SP", 0);
+        assertEquals(2, source.position());
+        SharedFrameRing.Frame frame = ring.acquireLatest(-1);
+        assertEquals(6, frame.data.remaining());
+        assertEquals(2, frame.data.get(0));
+        frame.release();
+    }
+
+    @Test
+    public void concurrentWriterAndReader_seeConsistentFrames() throws Exception {
+        final int frameBytes = 4096;
+        final SharedFrameRing ring = new SharedFrameRing(3, frameBytes);
+        final AtomicBoolean done = new AtomicBoolean(false);
+        final AtomicBoolean torn = new AtomicBoolean(false);
+        final long[] reads = {0};
+
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long last = -1;
+                while (!done.get() || ring.getLatestFrameNumber() > last) {
+                    SharedFrameRing.Frame frame = ring.acquireLatest(last);
+                    if (frame == null) {
+                        continue;
+                    }
+                    // Every byte of a frame carries its frame number
+                    byte expected = (byte) frame.frameNumber;
+                    for (int i = 0; i < frameBytes; i++) {
+                        if (frame.data.get(i) != expected) {
+                            torn.set(true);
+                        }
+                    }
+                    if (frame.frameNumber <= last) {
+                        torn.set(true);
+                    }
+                    last = frame.frameNumber;
+                    frame.release();
+                    reads[0]++;
+                }
+            }
+        });
+        reader.start();
+
+        byte[] payload = new byte[frameBytes];
+        ByteBuffer source = ByteBuffer.allocateDirect(frameBytes);
+        for (int i = 0; i < 20000; i++) {
+            Arrays.fill(payload, (byte) i);
+            source.clear();
+            source.put(payload).flip();
+            assertEquals(i, ring.publish(source, 64, 64, "YUV420SP", i));
+        }
+        done.set(true);
+        reader.join(10000);
+
+        assertFalse(reader.isAlive());
+        assertFalse("torn or out of order frame", torn.get());
+        assertEquals(0, ring.getDroppedCount());
+        assertTrue(reads[0] > 0);
+        assertEquals(20000, ring.getPublishedCount());
+    }
+
+    private static ByteBuffer frameOf(int first, int length) {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        for (int i = 0; i < length; i++) {
+            buffer.put((byte) (first + i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
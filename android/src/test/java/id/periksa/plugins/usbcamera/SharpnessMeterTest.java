@@ -0,0 +1,93 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+
+/**
+ * Tests for the Laplacian variance sharpness metric.
+ */
+public class SharpnessMeterTest {
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+
+    @Test
+    public void flatFrames_scoreZero() {
+        byte[] frame = new byte[NV21FramePool.frameSize(WIDTH, HEIGHT)];
+        Arrays.fill(frame, (byte) 120);
+        assertEquals(0, SharpnessMeter.score(frame, WIDTH, HEIGHT), 0);
+    }
+
+    @Test
+    public void blurredFrames_scoreLower() {
+        byte[] sharp = checkerboard(8);
+        byte[] blurred = boxBlur(sharp, 2);
+        byte[] veryBlurred = boxBlur(blurred, 2);
+
+        for (int step = 1; step <= 3; step++) {
+            double sharpScore = SharpnessMeter.score(sharp, 0, WIDTH, WIDTH, HEIGHT, step);
+            double blurredScore = SharpnessMeter.score(blurred, 0, WIDTH, WIDTH, HEIGHT, step);
+            double veryBlurredScore = SharpnessMeter.score(veryBlurred, 0, WIDTH, WIDTH, HEIGHT, step);
+            assertTrue(sharpScore > blurredScore);
+            assertTrue(blurredScore > veryBlurredScore);
+        }
+    }
+
+    @Test
+    public void stride_skipsRowPadding() {
+        byte[] frame = checkerboard(4);
+        int stride = WIDTH + 16;
+        byte[] padded = new byte[10 + stride * HEIGHT];
+        Arrays.fill(padded, (byte) 255);
+        for (int y = 0; y < HEIGHT; y++) {
+            System.arraycopy(frame, y * WIDTH, padded, 10 + y * stride, WIDTH);
+        }
+        assertEquals(SharpnessMeter.score(frame, 0, WIDTH, WIDTH, HEIGHT, 2),
+            SharpnessMeter.score(padded, 10, stride, WIDTH, HEIGHT, 2), 1e-9);
+    }
+
+    @Test
+    public void stepFor_keepsSampleGridNearTarget() {
+        assertEquals(1, SharpnessMeter.stepFor(320));
+        assertEquals(2, SharpnessMeter.stepFor(640));
+        assertEquals(6, SharpnessMeter.stepFor(1920));
+        assertEquals(1, SharpnessMeter.stepFor(160));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void shortPlanes_areRejected() {
+        SharpnessMeter.score(new byte[WIDTH * HEIGHT - 1], 0, WIDTH, WIDTH, HEIGHT, 1);
+    }
+
+    static byte[] checkerboard(int cell) {
+        byte[] frame = new byte[NV21FramePool.frameSize(WIDTH, HEIGHT)];
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                frame[y * WIDTH + x] = (byte) (((x / cell + y / cell) & 1) == 0 ? 30 : 220);
+            }
+        }
+        return frame;
+    }
+
+    static byte[] boxBlur(byte[] frame, int radius) {
+        byte[] out = frame.clone();
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int sum = 0;
+                int n = 0;
+                for (int dy = -radius; dy <= radius; dy++) {
+                    for (int dx = -radius; dx <= radius; dx++) {
+                        int sx = Math.min(WIDTH - 1, Math.max(0, x + dx));
+                        int sy = Math.min(HEIGHT - 1, Math.max(0, y + dy));
+                        sum += frame[sy * WIDTH + sx] & 0xff;
+                        n++;
+                    }
+                }
+                out[y * WIDTH + x] = (byte) (sum / n);
+            }
+        }
+        return out;
+    }
+}
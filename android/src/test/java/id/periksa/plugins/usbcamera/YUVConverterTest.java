@@ -0,0 +1,335 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+/**
+ * Equivalence tests for the YUV420SP (NV21) to I420 conversion kernels.
+ */
+public class YUVConverterTest {
+
+    private static final int[][] FRAME_SIZES = {
+        {640, 480}, {1280, 720}, {2, 2}, {1, 1}, {3, 5}, {17, 9}, {641, 481}, {30, 2}, {6, 7}
+    };
+
+    @Test
+    public void swarKernel_matchesScalarKernel_forRandomFrames() {
+        Random random = new Random(42);
+        for (int[] size : FRAME_SIZES) {
+            int chromaSize = chromaSize(size[0], size[1]);
+            ByteBuffer vu = randomBuffer(random, chromaSize * 2, ByteOrder.BIG_ENDIAN);
+
+            ByteBuffer scalarU = ByteBuffer.allocateDirect(chromaSize);
+            ByteBuffer scalarV = ByteBuffer.allocateDirect(chromaSize);
+            YUVConverter.deinterleaveVUScalar(vu, 0, scalarU, 0, scalarV, 0, chromaSize);
+
+            ByteBuffer swarU = ByteBuffer.allocateDirect(chromaSize);
+            ByteBuffer swarV = ByteBuffer.allocateDirect(chromaSize);
+            YUVConverter.deinterleaveVUSwar(vu, 0, swarU, 0, swarV, 0, chromaSize);
+
+            String label = size[0] + "x" + size[1];
+            assertArrayEquals(label + " U", toArray(scalarU), toArray(swarU));
+            assertArrayEquals(label + " V", toArray(scalarV), toArray(swarV));
+        }
+    }
+
+    @Test
+    public void swarKernel_matchesScalarKernel_forOddPairCountsOffsetsAndByteOrders() {
+        Random random = new Random(7);
+        for (ByteOrder order : new ByteOrder[] {ByteOrder.BIG_ENDIAN, ByteOrder.LITTLE_ENDIAN}) {
+            for (int pairs = 0; pairs < 40; pairs++) {
+                int srcOffset = random.nextInt(9);
+                int dstOffset = random.nextInt(5);
+                ByteBuffer vu = randomBuffer(random, srcOffset + pairs * 2, order);
+
+                ByteBuffer scalarU = ByteBuffer.allocate(dstOffset + pairs).order(order);
+                ByteBuffer scalarV = ByteBuffer.allocate(dstOffset + pairs).order(order);
+                YUVConverter.deinterleaveVUScalar(vu, srcOffset, scalarU, dstOffset, scalarV, dstOffset, pairs);
+
+                ByteBuffer swarU = ByteBuffer.allocate(dstOffset + pairs).order(order);
+                ByteBuffer swarV = ByteBuffer.allocate(dstOffset + pairs).order(order);
+                YUVConverter.deinterleaveVUSwar(vu, srcOffset, swarU, dstOffset, swarV, dstOffset, pairs);
+
+                String label = order + " pairs=" + pairs;
+                assertArrayEquals(label + " U", scalarU.array(), swarU.array());
+                assertArrayEquals(label + " V", scalarV.array(), swarV.array());
+            }
+        }
+    }
+
+    @Test
+    public void convert_matchesReference_forRandomFrames() {
+        Random random = new Random(1234);
+        I420FramePool pool = new I420FramePool();
+        for (int[] size : FRAME_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            byte[] nv21 = new byte[width * height + chromaSize(width, height) * 2];
+            random.nextBytes(nv21);
+
+            byte[][] expected = referenceConvert(nv21, width, height);
+            String label = width + "x" + height;
+
+            YUVConverter.I420Data fromArray = YUVConverter.convertYUV420SPToI420(nv21, width, height);
+            assertPlanes(label + " byte[]", expected, fromArray);
+
+            ByteBuffer direct = ByteBuffer.allocateDirect(nv21.length);
+            direct.put(nv21).flip();
+            YUVConverter.I420Data fromBuffer = YUVConverter.convertYUV420SPToI420(direct, width, height, pool);
+            assertPlanes(label + " ByteBuffer", expected, fromBuffer);
+            assertEquals(label + " source position", 0, direct.position());
+            assertEquals(label + " source limit", nv21.length, direct.limit());
+            fromBuffer.release();
+        }
+    }
+
+    @Test
+    public void convert_fallsBackToScalar_whenByteOrdersDiffer() {
+        int width = 33;
+        int height = 17;
+        byte[] nv21 = new byte[width * height + chromaSize(width, height) * 2];
+        new Random(99).nextBytes(nv21);
+
+        ByteBuffer source = ByteBuffer.wrap(nv21).order(ByteOrder.LITTLE_ENDIAN);
+        ByteBuffer y = ByteBuffer.allocateDirect(width * height);
+        ByteBuffer u = ByteBuffer.allocateDirect(chromaSize(width, height));
+        ByteBuffer v = ByteBuffer.allocateDirect(chromaSize(width, height));
+        assertFalse(YUVConverter.canUseSwar(source, u, v));
+
+        YUVConverter.convertYUV420SPToI420(source, width, height, y, u, v);
+        assertPlanes("mixed order", referenceConvert(nv21, width, height),
+            new YUVConverter.I420Data(y, u, v, width, height));
+    }
+
+    @Test
+    public void parallelConvert_matchesSingleThreaded_forStripeCounts() {
+        Random random = new Random(2024);
+        for (int stripes = 1; stripes <= 7; stripes++) {
+            ParallelYUVConverter converter = new ParallelYUVConverter(stripes, 3);
+            converter.setThresholdPixels(0);
+            try {
+                for (int[] size : FRAME_SIZES) {
+                    int width = size[0];
+                    int height = size[1];
+                    byte[] nv21 = new byte[width * height + chromaSize(width, height) * 2];
+                    random.nextBytes(nv21);
+
+                    ByteBuffer direct = ByteBuffer.allocateDirect(nv21.length);
+                    direct.put(nv21).flip();
+                    YUVConverter.I420Data parallel = converter.convert(direct, width, height, null);
+                    assertPlanes(width + "x" + height + " stripes=" + stripes,
+                        referenceConvert(nv21, width, height), parallel);
+                }
+            } finally {
+                converter.shutdown();
+            }
+        }
+    }
+
+    @Test
+    public void parallelConvert_afterShutdown_stillConvertsWholeFrame() {
+        Random random = new Random(404);
+        ParallelYUVConverter converter = new ParallelYUVConverter(4, 2);
+        converter.setThresholdPixels(0);
+        converter.shutdown();
+        int width = 640;
+        int height = 480;
+        byte[] nv21 = new byte[width * height + chromaSize(width, height) * 2];
+        random.nextBytes(nv21);
+        YUVConverter.I420Data converted = converter.convert(ByteBuffer.wrap(nv21), width, height, null);
+        assertPlanes("after shutdown", referenceConvert(nv21, width, height), converted);
+    }
+
+    @Test
+    public void layoutConvert_matchesReference_forPaddedSemiPlanarAndPlanarSources() {
+        Random random = new Random(606);
+        for (int[] size : FRAME_SIZES) {
+            int width = size[0];
+            int height = size[1];
+            YUVFrameLayout[] sources = {
+                YUVFrameLayout.nv21(width, height),
+                YUVFrameLayout.nv21(width, height, 16),
+                YUVFrameLayout.nv12(width, height, 64),
+                YUVFrameLayout.i420(width, height, 1),
+                padded(YUVFrameLayout.i420(width, height, 32), width * height + 13),
+            };
+            for (YUVFrameLayout srcLayout : sources) {
+                byte[] src = new byte[srcLayout.requiredSize()];
+                random.nextBytes(src);
+                byte[][] expected = referenceSample(src, srcLayout);
+
+                for (int alignment : new int[] {1, 16, 64}) {
+                    YUVFrameLayout dstLayout = YUVFrameLayout.i420(width, height, alignment);
+                    YUVConverter.I420Data dst = YUVConverter.I420Data.allocate(dstLayout, null);
+                    fill(dst, (byte) 0x5A);
+                    YUVConverter.convert(ByteBuffer.wrap(src), srcLayout, dst);
+
+                    String label = srcLayout + " -> " + dstLayout;
+                    assertArrayEquals(label + " Y", expected[0], sample(dst.yPlane, dstLayout.y, width, height));
+                    assertArrayEquals(label + " U", expected[1],
+                        sample(dst.uPlane, dstLayout.u, dstLayout.getChromaWidth(), dstLayout.getChromaHeight()));
+                    assertArrayEquals(label + " V", expected[2],
+                        sample(dst.vPlane, dstLayout.v, dstLayout.getChromaWidth(), dstLayout.getChromaHeight()));
+                    assertPaddingUntouched(label + " Y", dst.yPlane, dstLayout.y.rowStride, width);
+                    assertPaddingUntouched(label + " U", dst.uPlane, dstLayout.u.rowStride, dstLayout.getChromaWidth());
+                    assertPaddingUntouched(label + " V", dst.vPlane, dstLayout.v.rowStride, dstLayout.getChromaWidth());
+                }
+            }
+        }
+    }
+
+    @Test
+    public void alignedPool_andParallelLayoutConvert_matchReference() {
+        Random random = new Random(66);
+        I420FramePool pool = new I420FramePool(I420FramePool.DEFAULT_MAX_FREE_PER_SIZE, 64);
+        ParallelYUVConverter converter = new ParallelYUVConverter(4, 3);
+        converter.setThresholdPixels(0);
+        try {
+            for (int[] size : FRAME_SIZES) {
+                int width = size[0];
+                int height = size[1];
+                byte[] nv21 = new byte[width * height + chromaSize(width, height) * 2];
+                random.nextBytes(nv21);
+                byte[][] expected = referenceConvert(nv21, width, height);
+                String label = width + "x" + height;
+
+                YUVConverter.I420Data single = YUVConverter.convertYUV420SPToI420(ByteBuffer.wrap(nv21), width, height, pool);
+                assertEquals(label + " stride", YUVFrameLayout.align(width, 64), single.strideY);
+                assertArrayEquals(label + " single Y", expected[0], sample(single.yPlane, single.layout.y, width, height));
+                assertArrayEquals(label + " single U", expected[1],
+                    sample(single.uPlane, single.layout.u, single.chromaWidth, single.chromaHeight));
+                single.release();
+
+                YUVConverter.I420Data parallel = converter.convert(ByteBuffer.wrap(nv21), width, height, pool);
+                assertArrayEquals(label + " parallel Y", expected[0], sample(parallel.yPlane, parallel.layout.y, width, height));
+                assertArrayEquals(label + " parallel V", expected[2],
+                    sample(parallel.vPlane, parallel.layout.v, parallel.chromaWidth, parallel.chromaHeight));
+                parallel.release();
+
+                YUVFrameLayout srcLayout = YUVFrameLayout.nv12(width, height, 16);
+                byte[] nv12 = new byte[srcLayout.requiredSize()];
+                random.nextBytes(nv12);
+                byte[][] expectedNv12 = referenceSample(nv12, srcLayout);
+                YUVConverter.I420Data fromNv12 = pool.acquire(width, height);
+                converter.convert(ByteBuffer.wrap(nv12), srcLayout, fromNv12);
+                assertArrayEquals(label + " nv12 U", expectedNv12[1],
+                    sample(fromNv12.uPlane, fromNv12.layout.u, fromNv12.chromaWidth, fromNv12.chromaHeight));
+                assertArrayEquals(label + " nv12 V", expectedNv12[2],
+                    sample(fromNv12.vPlane, fromNv12.layout.v, fromNv12.chromaWidth, fromNv12.chromaHeight));
+                fromNv12.release();
+            }
+        } finally {
+            converter.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void layoutConvert_rejectsSizeMismatch() {
+        YUVConverter.convert(ByteBuffer.allocate(64 * 64 * 2), YUVFrameLayout.nv21(64, 64),
+            YUVConverter.allocate(32, 32));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void convert_rejectsShortInput() {
+        YUVConverter.convertYUV420SPToI420(new byte[640 * 480], 640, 480);
+    }
+
+    /**
+     * Straightforward per-pair reference of the NV21 to I420 split
+     */
+    private static byte[][] referenceConvert(byte[] nv21, int width, int height) {
+        int ySize = width * height;
+        int chromaSize = chromaSize(width, height);
+        byte[] y = new byte[ySize];
+        byte[] u = new byte[chromaSize];
+        byte[] v = new byte[chromaSize];
+        System.arraycopy(nv21, 0, y, 0, ySize);
+        for (int i = 0; i < chromaSize; i++) {
+            v[i] = nv21[ySize + i * 2];
+            u[i] = nv21[ySize + i * 2 + 1];
+        }
+        return new byte[][] {y, u, v};
+    }
+
+    /**
+     * Read every sample of the three planes through the layout, one index at a time
+     */
+    private static byte[][] referenceSample(byte[] frame, YUVFrameLayout layout) {
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        int chromaWidth = layout.getChromaWidth();
+        int chromaHeight = layout.getChromaHeight();
+        return new byte[][] {
+            sample(buffer, layout.y, layout.width, layout.height),
+            sample(buffer, layout.u, chromaWidth, chromaHeight),
+            sample(buffer, layout.v, chromaWidth, chromaHeight),
+        };
+    }
+
+    private static byte[] sample(ByteBuffer buffer, YUVFrameLayout.Plane plane, int cols, int rows) {
+        byte[] samples = new byte[cols * rows];
+        for (int y = 0; y < rows; y++) {
+            for (int x = 0; x < cols; x++) {
+                samples[y * cols + x] = buffer.get(plane.indexOf(x, y));
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * Planar layout with the planes of one buffer placed apart, U after the Y plane at uOffset
+     */
+    private static YUVFrameLayout padded(YUVFrameLayout planar, int uOffset) {
+        int chromaBytes = planar.u.rowStride * planar.getChromaHeight();
+        return new YUVFrameLayout(planar.width, planar.height,
+            planar.y,
+            new YUVFrameLayout.Plane(uOffset, planar.u.rowStride, 1),
+            new YUVFrameLayout.Plane(uOffset + chromaBytes + 7, planar.v.rowStride, 1));
+    }
+
+    private static void fill(YUVConverter.I420Data frame, byte value) {
+        for (ByteBuffer plane : new ByteBuffer[] {frame.yPlane, frame.uPlane, frame.vPlane}) {
+            for (int i = 0; i < plane.capacity(); i++) {
+                plane.put(i, value);
+            }
+        }
+    }
+
+    private static void assertPaddingUntouched(String label, ByteBuffer plane, int rowStride, int cols) {
+        for (int i = 0; i < plane.capacity(); i++) {
+            if (i % rowStride >= cols) {
+                assertEquals(label + " padding at " + i, (byte) 0x5A, plane.get(i));
+            }
+        }
+    }
+
+    private static void assertPlanes(String label, byte[][] expected, YUVConverter.I420Data actual) {
+        assertArrayEquals(label + " Y", expected[0], toArray(actual.yPlane));
+        assertArrayEquals(label + " U", expected[1], toArray(actual.uPlane));
+        assertArrayEquals(label + " V", expected[2], toArray(actual.vPlane));
+    }
+
+    private static int chromaSize(int width, int height) {
+        return ((width + 1) / 2) * ((height + 1) / 2);
+    }
+
+    private static ByteBuffer randomBuffer(Random random, int size, ByteOrder order) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size).order(order);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        ByteBuffer copy = buffer.duplicate();
+        copy.rewind();
+        byte[] bytes = new byte[copy.remaining()];
+        copy.get(bytes);
+        return bytes;
+    }
+}
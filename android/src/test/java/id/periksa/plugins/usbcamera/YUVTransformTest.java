@@ -0,0 +1,259 @@
+package id.periksa.plugins.usbcamera;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Tests for the fused crop/scale/rotate/mirror transform against a per-pixel reference.
+ */
+public class YUVTransformTest {
+    private static final int[] ROTATIONS = {0, 90, 180, 270};
+
+    @Test
+    public void identity_matchesPlainConversion() {
+        int width = 10;
+        int height = 6;
+        byte[] nv21 = randomNV21(width, height, 1);
+        for (YUVTransform.Filter filter : YUVTransform.Filter.values()) {
+            YUVTransform transform = new YUVTransform(width, height, 0, 0, width, height,
+                width, height, 0, false, filter);
+            YUVConverter.I420Data expected = YUVConverter.convertYUV420SPToI420(nv21, width, height);
+            YUVConverter.I420Data actual = transform.transform(ByteBuffer.wrap(nv21), null);
+            assertPlaneEquals(expected.yPlane, actual.yPlane, expected.strideY, width, height, 0);
+            assertPlaneEquals(expected.uPlane, actual.uPlane, expected.strideU, 5, 3, 0);
+            assertPlaneEquals(expected.vPlane, actual.vPlane, expected.strideV, 5, 3, 0);
+        }
+    }
+
+    @Test
+    public void rotation90_movesTheTopLeftCornerToTheTopRight() {
+        int width = 4;
+        int height = 2;
+        byte[] nv21 = new byte[NV21FramePool.frameSize(width, height)];
+        for (int i = 0; i < width * height; i++) {
+            nv21[i] = (byte) i;
+        }
+        YUVTransform transform = new YUVTransform(width, height, 0, 0, width, height,
+            height, width, 90, false, YUVTransform.Filter.BOX);
+        YUVConverter.I420Data out = transform.transform(ByteBuffer.wrap(nv21), null);
+        // Rows of the 2x4 result read the source columns bottom to top
+        byte[] expected = {4, 0, 5, 1, 6, 2, 7, 3};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(expected[i], out.yPlane.get(i));
+        }
+    }
+
+    @Test
+    public void allOrientations_matchReference() {
+        int srcWidth = 36;
+        int srcHeight = 70;
+        byte[] nv21 = randomNV21(srcWidth, srcHeight, 2);
+        int[][] cases = {
+            // cropX, cropY, cropWidth, cropHeight, scaled width, scaled height
+            {0, 0, 36, 70, 36, 70},
+            {0, 0, 36, 22, 18, 11},
+            {4, 2, 24, 18, 8, 6},
+            {2, 0, 33, 21, 10, 7},
+            {0, 4, 36, 15, 13, 5},
+            // Rotated, more scaled rows than one band
+            {2, 6, 30, 64, 20, 45},
+        };
+        for (int[] c : cases) {
+            for (int rotation : ROTATIONS) {
+                for (boolean mirror : new boolean[] {false, true}) {
+                    for (YUVTransform.Filter filter : YUVTransform.Filter.values()) {
+                        boolean swapped = rotation == 90 || rotation == 270;
+                        int dstWidth = swapped ? c[5] : c[4];
+                        int dstHeight = swapped ? c[4] : c[5];
+                        YUVTransform transform = new YUVTransform(srcWidth, srcHeight, c[0], c[1], c[2], c[3],
+                            dstWidth, dstHeight, rotation, mirror, filter);
+                        YUVConverter.I420Data actual = transform.transform(ByteBuffer.wrap(nv21), null);
+                        byte[][] expected = reference(nv21, srcWidth, srcHeight, c, dstWidth, dstHeight,
+                            rotation, mirror, filter);
+                        // Bilinear fixed point may round differently from the double reference
+                        int tolerance = filter == YUVTransform.Filter.BOX ? 0 : 1;
+                        int chromaWidth = (dstWidth + 1) / 2;
+                        int chromaHeight = (dstHeight + 1) / 2;
+                        assertPlaneEquals(ByteBuffer.wrap(expected[0]), actual.yPlane, actual.strideY,
+                            dstWidth, dstHeight, tolerance);
+                        assertPlaneEquals(ByteBuffer.wrap(expected[1]), actual.uPlane, actual.strideU,
+                            chromaWidth, chromaHeight, tolerance);
+                        assertPlaneEquals(ByteBuffer.wrap(expected[2]), actual.vPlane, actual.strideV,
+                            chromaWidth, chromaHeight, tolerance);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void paddedLayouts_areReadAndWrittenWithTheirStrides() {
+        int width = 20;
+        int height = 12;
+        byte[] nv21 = randomNV21(width, height, 3);
+        YUVFrameLayout padded = YUVFrameLayout.nv21(width, height, 16);
+        ByteBuffer src = ByteBuffer.allocateDirect(padded.requiredSize() + 3);
+        src.position(3);
+        ByteBuffer frame = src.slice();
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                frame.put(padded.y.indexOf(x, y), nv21[y * width + x]);
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                frame.put(padded.v.indexOf(x, y), nv21[width * height + y * width + 2 * x]);
+                frame.put(padded.u.indexOf(x, y), nv21[width * height + y * width + 2 * x + 1]);
+            }
+        }
+
+        YUVTransform transform = new YUVTransform(width, height, 2, 2, 16, 8, 4, 8, 90, true, YUVTransform.Filter.BOX);
+        YUVConverter.I420Data expected = transform.transform(ByteBuffer.wrap(nv21), null);
+        YUVConverter.I420Data actual = new I420FramePool(1, 64).acquire(4, 8);
+        transform.transform(frame, padded, actual);
+        assertStridedPlaneEquals(expected.yPlane, actual.yPlane, expected.strideY, actual.strideY, 4, 8);
+        assertStridedPlaneEquals(expected.uPlane, actual.uPlane, expected.strideU, actual.strideU, 2, 4);
+        assertStridedPlaneEquals(expected.vPlane, actual.vPlane, expected.strideV, actual.strideV, 2, 4);
+    }
+
+    @Test
+    public void fit_cropsCentrallyToTheOutputAspect() {
+        byte[] nv21 = randomNV21(64, 48, 4);
+        YUVTransform transform = YUVTransform.fit(64, 48, 18, 32, 90, false, YUVTransform.Filter.BOX);
+        YUVConverter.I420Data out = transform.transform(ByteBuffer.wrap(nv21), new I420FramePool());
+        assertEquals(18, out.width);
+        assertEquals(32, out.height);
+
+        // 64x48 cropped to 16:9 before rotation is 64x36 at y = 6
+        YUVTransform explicit = new YUVTransform(64, 48, 0, 6, 64, 36, 18, 32, 90, false, YUVTransform.Filter.BOX);
+        YUVConverter.I420Data expected = explicit.transform(ByteBuffer.wrap(nv21), null);
+        assertPlaneEquals(expected.yPlane, out.yPlane, expected.strideY, 18, 32, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void oddCropOrigins_areRejected() {
+        new YUVTransform(64, 48, 1, 0, 32, 32, 16, 16, 0, false, YUVTransform.Filter.BOX);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void otherRotations_areRejected() {
+        new YUVTransform(64, 48, 0, 0, 64, 48, 64, 48, 45, false, YUVTransform.Filter.BOX);
+    }
+
+    /**
+     * Straightforward per output pixel: undo mirror and rotation, then sample the crop window
+     *
+     * @return Y, U and V planes, tightly packed
+     */
+    private static byte[][] reference(byte[] nv21, int srcWidth, int srcHeight, int[] crop,
+                                      int dstWidth, int dstHeight, int rotation, boolean mirror,
+                                      YUVTransform.Filter filter) {
+        int chromaSrcWidth = (srcWidth + 1) / 2;
+        int chromaX = crop[0] / 2;
+        int chromaY = crop[1] / 2;
+        int chromaCropWidth = (crop[0] + crop[2] + 1) / 2 - chromaX;
+        int chromaCropHeight = (crop[1] + crop[3] + 1) / 2 - chromaY;
+        int chromaDstWidth = (dstWidth + 1) / 2;
+        int chromaDstHeight = (dstHeight + 1) / 2;
+
+        byte[] y = new byte[dstWidth * dstHeight];
+        byte[] u = new byte[chromaDstWidth * chromaDstHeight];
+        byte[] v = new byte[chromaDstWidth * chromaDstHeight];
+        samplePlane(nv21, 0, srcWidth, 1, crop[0], crop[1], crop[2], crop[3],
+            y, dstWidth, dstHeight, rotation, mirror, filter);
+        int vuOffset = srcWidth * srcHeight;
+        samplePlane(nv21, vuOffset + 1, chromaSrcWidth * 2, 2, chromaX, chromaY, chromaCropWidth, chromaCropHeight,
+            u, chromaDstWidth, chromaDstHeight, rotation, mirror, filter);
+        samplePlane(nv21, vuOffset, chromaSrcWidth * 2, 2, chromaX, chromaY, chromaCropWidth, chromaCropHeight,
+            v, chromaDstWidth, chromaDstHeight, rotation, mirror, filter);
+        return new byte[][] {y, u, v};
+    }
+
+    private static void samplePlane(byte[] src, int offset, int rowStride, int pixelStride,
+                                    int cropX, int cropY, int cropWidth, int cropHeight,
+                                    byte[] dst, int dstWidth, int dstHeight, int rotation, boolean mirror,
+                                    YUVTransform.Filter filter) {
+        boolean swapped = rotation == 90 || rotation == 270;
+        int scaledWidth = swapped ? dstHeight : dstWidth;
+        int scaledHeight = swapped ? dstWidth : dstHeight;
+        for (int dy = 0; dy < dstHeight; dy++) {
+            for (int dx = 0; dx < dstWidth; dx++) {
+                int x = mirror ? dstWidth - 1 - dx : dx;
+                int sx;
+                int sy;
+                switch (rotation) {
+                    case 90: sx = dy; sy = scaledHeight - 1 - x; break;
+                    case 180: sx = scaledWidth - 1 - x; sy = scaledHeight - 1 - dy; break;
+                    case 270: sx = scaledWidth - 1 - dy; sy = x; break;
+                    default: sx = x; sy = dy; break;
+                }
+                double value;
+                if (filter == YUVTransform.Filter.BOX) {
+                    int x0 = sx * cropWidth / scaledWidth;
+                    int x1 = Math.max(x0 + 1, (sx + 1) * cropWidth / scaledWidth);
+                    int y0 = sy * cropHeight / scaledHeight;
+                    int y1 = Math.max(y0 + 1, (sy + 1) * cropHeight / scaledHeight);
+                    int sum = 0;
+                    for (int yy = y0; yy < y1; yy++) {
+                        for (int xx = x0; xx < x1; xx++) {
+                            sum += sample(src, offset, rowStride, pixelStride, cropX + xx, cropY + yy);
+                        }
+                    }
+                    int area = (x1 - x0) * (y1 - y0);
+                    value = Math.floor((double) sum / area + 0.5);
+                } else {
+                    double fx = Math.min(cropWidth - 1, Math.max(0, (sx + 0.5) * cropWidth / scaledWidth - 0.5));
+                    double fy = Math.min(cropHeight - 1, Math.max(0, (sy + 0.5) * cropHeight / scaledHeight - 0.5));
+                    int x0 = (int) fx;
+                    int y0 = (int) fy;
+                    int x1 = Math.min(x0 + 1, cropWidth - 1);
+                    int y1 = Math.min(y0 + 1, cropHeight - 1);
+                    double wx = fx - x0;
+                    double wy = fy - y0;
+                    double top = sample(src, offset, rowStride, pixelStride, cropX + x0, cropY + y0) * (1 - wx)
+                        + sample(src, offset, rowStride, pixelStride, cropX + x1, cropY + y0) * wx;
+                    double bottom = sample(src, offset, rowStride, pixelStride, cropX + x0, cropY + y1) * (1 - wx)
+                        + sample(src, offset, rowStride, pixelStride, cropX + x1, cropY + y1) * wx;
+                    value = Math.floor(top * (1 - wy) + bottom * wy + 0.5);
+                }
+                dst[dy * dstWidth + dx] = (byte) value;
+            }
+        }
+    }
+
+    private static int sample(byte[] src, int offset, int rowStride, int pixelStride, int x, int y) {
+        return src[offset + y * rowStride + x * pixelStride] & 0xff;
+    }
+
+    private static byte[] randomNV21(int width, int height, long seed) {
+        byte[] frame = new byte[NV21FramePool.frameSize(width, height)];
+        new Random(seed).nextBytes(frame);
+        return frame;
+    }
+
+    private static void assertPlaneEquals(ByteBuffer expected, ByteBuffer actual, int stride,
+                                          int width, int height, int tolerance) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int e = expected.get(y * width + x) & 0xff;
+                int a = actual.get(y * stride + x) & 0xff;
+                if (Math.abs(e - a) > tolerance) {
+                    fail("Sample (" + x + ", " + y + ") expected " + e + " but was " + a);
+                }
+            }
+        }
+    }
+
+    private static void assertStridedPlaneEquals(ByteBuffer expected, ByteBuffer actual, int expectedStride,
+                                          int actualStride, int width, int height) {
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(expected.get(y * expectedStride + x), actual.get(y * actualStride + x));
+            }
+        }
+    }
+}
@@ -1,6 +1,30 @@
 export interface UsbCameraPhotoOptions {
   /** Let app save captured photo to the device storage. */
   saveToStorage?: boolean;
+  /**
+   * Maximum photo width, the camera frame is scaled down keeping its
+   * aspect ratio and never scaled up. Default: 640
+   */
+  width?: number;
+  /** Maximum photo height, see width. Default: 480 */
+  height?: number;
+  /**
+   * JPEG quality 0-100. When the camera frame already fits width and height
+   * the camera's own JPEG is returned and quality does not apply. Default: 85
+   */
+  quality?: number;
+  /**
+   * Capture at the largest MJPEG size the camera supports. The preview
+   * switches to that mode for one frame and back; the camera's JPEG is
+   * returned as is, width, height and quality do not apply. Default: false
+   */
+  fullResolution?: boolean;
+  /**
+   * Return the sharpest of this many preview frames up to the shutter press
+   * instead of the next frame, against motion blur with handheld cameras.
+   * Ignored with fullResolution. Default: 0 (off)
+   */
+  sharpestOf?: number;
 }
 
 export interface UsbCameraResult {
@@ -17,16 +41,140 @@ export interface UsbCameraResult {
   data?: {
     dataURL?: string,
     fileURI?: string,
+    /** Photo width */
+    width?: number,
+    /** Photo height */
+    height?: number,
+    /** With fullResolution, milliseconds from the capture request to the full resolution frame */
+    modeSwitchMs?: number,
+    /** With sharpestOf, sharpness score of the returned frame, only comparable within one shot */
+    sharpness?: number,
+  };
+}
+
+export interface UsbCameraBurstOptions {
+  /** Let app save the captured photos to the device storage. */
+  saveToStorage?: boolean;
+  /**
+   * Frames taken from before the shutter press. The camera keeps this many
+   * recent preview frames while the capture screen is open. Default: 3
+   */
+  before?: number;
+  /** Frames taken after the shutter press. Default: 3 */
+  after?: number;
+  /** Maximum photo width, see UsbCameraPhotoOptions. Default: 640 */
+  width?: number;
+  /** Maximum photo height, see UsbCameraPhotoOptions. Default: 480 */
+  height?: number;
+  /** JPEG quality 0-100. Default: 85 */
+  quality?: number;
+}
+
+export interface UsbCameraBurstFrame {
+  /** Position in the burst, 0 is the oldest frame. Events can arrive out of order. */
+  index: number;
+  /** Capture time relative to the shutter press in ms, negative before it */
+  offsetMs: number;
+  width: number;
+  height: number;
+  /** Android filesystem URI to the JPEG file */
+  fileURI: string;
+  /** Image in base64 DataURL, only in 'burstFrame' events */
+  dataURL?: string;
+}
+
+export interface UsbCameraBurstResult {
+  /** Status Code from Intent ResultCode. */
+  status_code: number;
+  /** Description string of the status code number. */
+  status_code_s: string;
+  /** Description of exit or cancel reason. */
+  exit_code: string;
+  data?: {
+    /** Photos captured */
+    count: number,
+    /** Frames that could not be encoded */
+    failed: number,
+    /** All photos in capture order, without their dataURL */
+    frames: UsbCameraBurstFrame[],
   };
 }
 
 export interface UsbCameraStreamOptions {
-  /** Frame rate for streaming (frames per second). Default: 30 */
+  /**
+   * Frame rate for streaming (frames per second). The camera is opened at or
+   * below this rate where possible and faster frames are dropped natively.
+   * Default: the camera rate
+   */
   frameRate?: number;
-  /** Width of the stream. Default: 640 */
+  /**
+   * Width of the stream. The closest mode the camera supports is used,
+   * the result reports the actual size. Default: 640
+   */
   width?: number;
-  /** Height of the stream. Default: 480 */
+  /** Height of the stream, see width. Default: 480 */
   height?: number;
+  /**
+   * How frames reach JavaScript (Android only). Default: 'event'
+   * - 'event': Base64 encoded 'frame' events
+   * - 'websocket': raw binary frames over a loopback WebSocket, see {@link UsbCameraFrameServer}
+   */
+  transport?: 'event' | 'websocket';
+  /** Port of the loopback WebSocket, 0 picks a free one. Default: 0 */
+  port?: number;
+  /**
+   * Format of the frames sent to JavaScript (Android only). Default: 'raw'
+   * - 'raw': YUV420SP (NV21) bytes
+   * - 'jpeg' / 'webp': compressed on a native worker thread, a `data:` URL
+   *   in 'frame' events or the compressed bytes over the WebSocket
+   *
+   * 'jpeg' without outputWidth / outputHeight forwards the camera's own
+   * MJPEG frames, see mjpegPassThrough.
+   */
+  outputFormat?: 'raw' | 'jpeg' | 'webp';
+  /**
+   * With outputFormat 'jpeg' at camera size, send the JPEG frames the camera
+   * produces instead of decoding and re-encoding them. quality does not apply
+   * then. Cameras without MJPEG fall back to encoding. Default: true
+   */
+  mjpegPassThrough?: boolean;
+  /** Compression quality 0-100 for 'jpeg' and 'webp'. Default: 80 */
+  quality?: number;
+  /**
+   * Maximum width of the frames sent to JavaScript, frames are downscaled
+   * keeping their aspect ratio and never upscaled. Default: camera width
+   */
+  outputWidth?: number;
+  /** Maximum height of the frames sent to JavaScript. Default: camera height */
+  outputHeight?: number;
+  /**
+   * Flow control for 'frame' events (Android only). Default: 'push'
+   * - 'push': every frame is emitted, frames queue up while JS is busy
+   * - 'ack': the next frame is emitted after {@link UsbCameraPlugin.ackFrame}
+   *   for the previous one, or after a 1 s timeout
+   * - 'pull': frames are only sent in answer to {@link UsbCameraPlugin.requestFrame}
+   *
+   * In 'ack' and 'pull' mode only the newest frame is kept, older ones are
+   * dropped and counted in `droppedFrames`.
+   */
+  delivery?: 'push' | 'ack' | 'pull';
+}
+
+/**
+ * Loopback WebSocket streaming binary frames, emitted as a 'frameServer' event
+ * when a stream with transport 'websocket' starts and reported by getStreamStats().
+ *
+ * Open `url` with `binaryType = 'arraybuffer'`; every message is one frame,
+ * a 32 byte little-endian header followed by the frame bytes. Use
+ * {@link parseUsbCameraFrame} to read it.
+ */
+export interface UsbCameraFrameServer {
+  /** Full ws:// URL including the access token */
+  url: string;
+  /** Port the server listens on, bound to 127.0.0.1 */
+  port: number;
+  /** Access token, required as the `token` query parameter */
+  token: string;
 }
 
 export interface UsbCameraStreamResult {
@@ -36,26 +184,112 @@ export interface UsbCameraStreamResult {
   exit_code: string;
   /** Whether streaming is active */
   streaming: boolean;
-  /** Stream width */
+  /** Negotiated stream width, may differ from the requested one */
   width?: number;
-  /** Stream height */
+  /** Negotiated stream height */
   height?: number;
 }
 
 export interface UsbCameraFrameData {
-  /** Base64 encoded frame data in YUV420SP format */
+  /**
+   * Base64 encoded frame data in YUV420SP format, or a `data:image/jpeg`
+   * / `data:image/webp` URL when outputFormat is 'jpeg' or 'webp'
+   */
   frameData: string;
   /** Frame width */
   width: number;
   /** Frame height */
   height: number;
-  /** Frame format (e.g., 'YUV420SP') */
+  /** Frame format: 'YUV420SP', 'JPEG' or 'WEBP' */
   format: string;
   /** Timestamp when frame was captured */
   timestamp: number;
+  /**
+   * Sequence number of the frame, gaps mean frames were skipped
+   * because the listener was slower than the camera (Android only)
+   */
+  frameNumber?: number;
+  /** Frames dropped so far because a newer frame replaced them (Android only) */
+  droppedFrames?: number;
+}
+
+/** Frame delivery counters of the running stream */
+export interface UsbCameraStreamStats {
+  /** Whether streaming is active */
+  streaming: boolean;
+  /** Delivery mode of 'frame' events */
+  delivery?: 'push' | 'ack' | 'pull';
+  /** Frames captured from the camera */
+  capturedFrames?: number;
+  /** Frames sent to JavaScript as events or requestFrame() results */
+  deliveredFrames?: number;
+  /** Frames never sent because a newer frame replaced them */
+  droppedFrames?: number;
+  /** Times an unacknowledged frame timed out in 'ack' mode */
+  ackTimeouts?: number;
+  /** Average milliseconds to encode and hand over one frame event, on the native reader thread */
+  serializeMs?: number;
+  /** Average milliseconds before the main thread gets to a frame event, sampled every 30 events */
+  mainThreadMs?: number;
+  /** Frames sent over the WebSocket transport */
+  sentFrames?: number;
+  /** Frames a WebSocket client skipped because it was slower than the camera */
+  skippedFrames?: number;
+  /** Connected WebSocket clients */
+  clients?: number;
+  /** Binary frame transport, present while a stream with transport 'websocket' runs */
+  frameServer?: UsbCameraFrameServer;
+}
+
+/**
+ * Frame received over the binary WebSocket transport.
+ *
+ * Header layout (little-endian):
+ * - 0 uint16 header size (32)
+ * - 2 uint16 header version (1)
+ * - 4 uint32 width
+ * - 8 uint32 height
+ * - 12 uint32 format: 0 unknown, 1 YUV420SP, 2 JPEG, 3 WEBP
+ * - 16 float64 frame number
+ * - 24 float64 timestamp in ms since epoch
+ */
+export interface UsbCameraBinaryFrame {
+  /** Frame bytes, a view into the received message without copying */
+  data: Uint8Array;
+  /** Frame width */
+  width: number;
+  /** Frame height */
+  height: number;
+  /** Frame format: 'YUV420SP', 'JPEG' or 'WEBP' */
+  format: string;
+  /** Timestamp when frame was captured */
+  timestamp: number;
+  /** Sequence number of the frame, gaps mean frames were skipped */
+  frameNumber: number;
+}
+
+const BINARY_FRAME_FORMATS = ['UNKNOWN', 'YUV420SP', 'JPEG', 'WEBP'];
+
+/**
+ * Parse one binary WebSocket message into a frame.
+ * @param {ArrayBuffer} message - Message received with binaryType 'arraybuffer'
+ * @returns {UsbCameraBinaryFrame} Frame header fields and a view of the frame bytes
+ */
+export function parseUsbCameraFrame(message: ArrayBuffer): UsbCameraBinaryFrame {
+  const view = new DataView(message);
+  const headerSize = view.getUint16(0, true);
+  const format = view.getUint32(12, true);
+  return {
+    data: new Uint8Array(message, headerSize),
+    width: view.getUint32(4, true),
+    height: view.getUint32(8, true),
+    format: BINARY_FRAME_FORMATS[format] ?? 'UNKNOWN',
+    frameNumber: view.getFloat64(16, true),
+    timestamp: view.getFloat64(24, true),
+  };
 }
 
-export type UsbCameraPluginEvents = 'frame';
+export type UsbCameraPluginEvents = 'frame' | 'burstFrame' | 'frameServer';
 
 export interface UsbCameraPlugin {
   /**
@@ -65,14 +299,42 @@ export interface UsbCameraPlugin {
    * */
   getPhoto(config?: UsbCameraPhotoOptions): Promise<UsbCameraResult>;
 
+  /**
+   * Open native activity and capture a burst of photos around the shutter press,
+   * including frames from just before it. Each photo is emitted as a 'burstFrame'
+   * event as soon as it is encoded; the promise resolves once all are.
+   * @returns {Promise<UsbCameraBurstResult>} Photo files and result status.
+   * */
+  captureBurst(options?: UsbCameraBurstOptions): Promise<UsbCameraBurstResult>;
+
   /**
    * Start streaming camera frames for LiveKit integration.
-   * Frames will be emitted via the 'frame' event.
+   * Frames will be emitted via the 'frame' event, or sent over the
+   * loopback WebSocket announced by the 'frameServer' event when transport is 'websocket'.
    * @param {UsbCameraStreamOptions} options - Streaming configuration
-   * @returns {Promise<UsbCameraStreamResult>} Streaming status
+   * @returns {Promise<UsbCameraStreamResult>} Final status, once the stream activity has closed
    */
   startStream(options?: UsbCameraStreamOptions): Promise<UsbCameraStreamResult>;
 
+  /**
+   * Get the next frame, the way to receive frames in 'pull' delivery mode.
+   * Resolves as soon as a frame newer than the last delivered one is available.
+   * @returns {Promise<UsbCameraFrameData>} The frame
+   */
+  requestFrame(): Promise<UsbCameraFrameData>;
+
+  /**
+   * Acknowledge a frame in 'ack' delivery mode, letting the next one through.
+   * @param {{frameNumber?: number}} options - Frame to acknowledge, omit for the frame in flight
+   */
+  ackFrame(options?: { frameNumber?: number }): Promise<void>;
+
+  /**
+   * Get frame delivery counters of the running stream.
+   * @returns {Promise<UsbCameraStreamStats>} Stream counters
+   */
+  getStreamStats(): Promise<UsbCameraStreamStats>;
+
   /**
    * Stop streaming camera frames.
    * @returns {Promise<{status: string, exit_code: string}>} Stop status
@@ -93,14 +355,35 @@ export interface UsbCameraPlugin {
 
   /**
    * Add a listener for camera frame events.
-   * @param {UsbCameraPluginEvents} eventName - Name of the event to listen to
+   * @param {'frame'} eventName - Name of the event to listen to
    * @param {(data: UsbCameraFrameData) => void} listenerFunc - Callback function to handle frames
    */
   addListener(
-    eventName: UsbCameraPluginEvents,
+    eventName: 'frame',
     listenerFunc: (data: UsbCameraFrameData) => void
   ): Promise<any>;
 
+  /**
+   * Add a listener for burst photos, emitted during captureBurst().
+   * @param {'burstFrame'} eventName - Name of the event to listen to
+   * @param {(data: UsbCameraBurstFrame) => void} listenerFunc - Callback function to handle photos
+   */
+  addListener(
+    eventName: 'burstFrame',
+    listenerFunc: (data: UsbCameraBurstFrame) => void
+  ): Promise<any>;
+
+  /**
+   * Add a listener for the binary frame transport, emitted when a stream
+   * with transport 'websocket' starts, before startStream() resolves.
+   * @param {'frameServer'} eventName - Name of the event to listen to
+   * @param {(server: UsbCameraFrameServer) => void} listenerFunc - Callback function to connect to the server
+   */
+  addListener(
+    eventName: 'frameServer',
+    listenerFunc: (server: UsbCameraFrameServer) => void
+  ): Promise<any>;
+
   /**
    * Remove all listeners for an event.
    * @param {UsbCameraPluginEvents} eventName - Name of the event